@@ -0,0 +1,32 @@
+package com.material;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * Runs JMH with its usual command line. If the {@value #THREADS_PROPERTY} system property lists thread counts, e.g.
+ * <pre>1,2,4</pre>, the selected benchmarks run once per count, so the contended results sit next to the single
+ * threaded baseline.
+ */
+public class BenchmarkRunner {
+  public static final String THREADS_PROPERTY = "jmh.threads";
+
+  private BenchmarkRunner() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+    String threadCounts = System.getProperty(THREADS_PROPERTY, "").trim();
+    if (threadCounts.isEmpty()) {
+      new Runner(commandLineOptions).run();
+      return;
+    }
+
+    for (String threadCount : threadCounts.split(",")) {
+      new Runner(new OptionsBuilder().parent(commandLineOptions).threads(Integer.parseInt(threadCount.trim())).build())
+          .run();
+    }
+  }
+}
@@ -0,0 +1,159 @@
+package com.material.filesystem;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Measures reading and writing the contents of a {@link File} of 1 KB up to 1 GB. The streaming reads and writes are
+ * also swept over chunk sizes, from the default of 4 bytes up.
+ *
+ * Writes copy the whole contents into a new array, so the append benchmark puts the original contents back after each
+ * write to keep the file at its size. The readWhileWriting group has three threads streaming the start of the file
+ * while a fourth overwrites its middle.
+ *
+ * Run with <pre>gradle jmh -Pjmh.includes=FileContentBenchmark -Pjmh.args='-prof gc'</pre> to see the bytes allocated
+ * per operation, and add <pre>-Pjmh.threads=1,4</pre> to run the single file benchmarks with contended locks. The 1 GB
+ * file runs in a 4 GB heap, raise it for more threads with <pre>-jvmArgsAppend -Xmx8g</pre> in the JMH args.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class FileContentBenchmark {
+  // the largest write, and the largest range read by getContentRange and the readWhileWriting group
+  private static final int MAX_RANGE_BYTES = 64 * 1024;
+
+  @Param({"1024", "1048576", "33554432", "1073741824"})
+  public int _size;
+
+  private File _file;
+  private byte[] _contents;
+  private byte[] _writeBytes;
+  private int _rangeBytes;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    _contents = new byte[_size];
+    for (int i = 0; i < _size; i++) {
+      _contents[i] = (byte) i;
+    }
+    _rangeBytes = Math.min(MAX_RANGE_BYTES, _size / 2);
+    _writeBytes = new byte[_rangeBytes];
+    _file = new File("file.txt");
+    _file.setContents(_contents);
+  }
+
+  /**
+   * The chunk size of the streaming reads and writes.
+   */
+  @State(Scope.Benchmark)
+  public static class Chunking {
+    @Param({"4", "512", "65536"})
+    public int _chunkSize;
+  }
+
+  /**
+   * Where a write starts, at the start or the middle of the file, or at its end to append.
+   */
+  @State(Scope.Benchmark)
+  public static class WritePosition {
+    @Param({"start", "middle", "end"})
+    public String _position;
+
+    private int _offset;
+
+    @Setup(Level.Trial)
+    public void setUp(FileContentBenchmark benchmark) {
+      switch (_position) {
+        case "start":
+          _offset = 0;
+          break;
+        case "middle":
+          _offset = benchmark._size / 2;
+          break;
+        case "end":
+          _offset = benchmark._size;
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown write position " + _position);
+      }
+    }
+  }
+
+  /**
+   * The stream one thread reads into. It is reset for each read, so it only grows during the first reads.
+   */
+  @State(Scope.Thread)
+  public static class ReadBuffer {
+    private final ByteArrayOutputStream _buffer = new ByteArrayOutputStream();
+  }
+
+  /**
+   * Sets contents built by the caller, which takes the lock but copies nothing.
+   */
+  @Benchmark
+  public File setContents() {
+    _file.setContents(_contents);
+    return _file;
+  }
+
+  @Benchmark
+  public File writeContentStream(WritePosition position, Chunking chunking) throws Exception {
+    _file.writeContentStream(
+        new FileStreamWriter(new ByteArrayInputStream(_writeBytes), position._offset, chunking._chunkSize));
+    if (position._offset == _size) {
+      _file.setContents(_contents);
+    }
+    return _file;
+  }
+
+  @Benchmark
+  public int readContentStream(ReadBuffer readBuffer, Chunking chunking) throws Exception {
+    readBuffer._buffer.reset();
+    FileStreamReader reader = new FileStreamReader(readBuffer._buffer, chunking._chunkSize);
+    _file.readContentStream(reader);
+    return reader.getBytesRead();
+  }
+
+  @Benchmark
+  public byte[] getContentRange() {
+    return _file.getContentRange(_size / 2 - _rangeBytes / 2, _rangeBytes);
+  }
+
+  @Benchmark
+  @Group("readWhileWriting")
+  @GroupThreads(3)
+  public int readRange(ReadBuffer readBuffer, Chunking chunking) throws Exception {
+    readBuffer._buffer.reset();
+    FileStreamReader reader = new FileStreamReader(readBuffer._buffer, chunking._chunkSize);
+    _file.readContentStream(reader, 0, _rangeBytes);
+    return reader.getBytesRead();
+  }
+
+  @Benchmark
+  @Group("readWhileWriting")
+  @GroupThreads(1)
+  public File overwriteMiddle(Chunking chunking) throws Exception {
+    _file.writeContentStream(new FileStreamWriter(new ByteArrayInputStream(_writeBytes), _size / 2,
+        chunking._chunkSize));
+    return _file;
+  }
+}
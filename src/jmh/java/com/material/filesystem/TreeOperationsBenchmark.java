@@ -0,0 +1,189 @@
+package com.material.filesystem;
+
+import com.material.filesystem.user.DefaultUserManager;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Measures the tree operations of a {@link DefaultFileSystem} on a wide, a deep and a balanced tree of a few thousand
+ * nodes. Lookups go to the top of the tree and to its deepest node, so each shape is also measured at a different
+ * depth.
+ *
+ * Every thread creates, moves and copies nodes in a scratch directory of its own. An operation which adds nodes removes
+ * them again in the same invocation, so the tree keeps its shape for the whole run. Otherwise the benchmark would end
+ * up measuring the copy-on-write child lists of ever larger directories.
+ *
+ * Run with <pre>gradle jmh -Pjmh.includes=TreeOperationsBenchmark -Pjmh.threads=1,4</pre> to compare the contended
+ * results with the single threaded baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TreeOperationsBenchmark {
+  private static final int WIDE_CHILDREN = 4096;
+  private static final int DEEP_DEPTH = 256;
+  private static final int BALANCED_FANOUT = 8;
+  private static final int BALANCED_DEPTH = 4;
+  private static final int SOURCE_FANOUT = 4;
+  private static final Path TREE = Paths.get("tree");
+  private static final Path SOURCE_DIRECTORY = Paths.get("source", "directory");
+  private static final Path SOURCE_FILE = Paths.get("source", "file.txt");
+  // matches one name in eight of the wide and balanced trees, and none of the deep tree, all nodes are visited
+  private static final Pattern FIND_PATTERN = Pattern.compile(".*7");
+
+  @Param({"wide", "deep", "balanced"})
+  public String _shape;
+
+  private DefaultUserManager _userManager;
+  private DefaultFileSystem _fileSystem;
+  private Path _leafPath;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    _userManager = new DefaultUserManager(true);
+    _fileSystem = new DefaultFileSystem(_userManager);
+    login(_userManager);
+
+    switch (_shape) {
+      case "wide":
+        for (int i = 0; i < WIDE_CHILDREN; i++) {
+          _leafPath = TREE.resolve("n" + i);
+          _fileSystem.createNodeAtPath(_leafPath, NodeType.FILE, false, true);
+        }
+        break;
+      case "deep":
+        Path directory = TREE;
+        for (int i = 0; i < DEEP_DEPTH; i++) {
+          directory = directory.resolve("d");
+        }
+        _leafPath = directory.resolve("leaf");
+        _fileSystem.createNodeAtPath(_leafPath, NodeType.FILE, false, true);
+        break;
+      case "balanced":
+        buildBalanced(TREE, BALANCED_DEPTH, BALANCED_FANOUT);
+        _leafPath = TREE;
+        for (int i = 0; i < BALANCED_DEPTH; i++) {
+          _leafPath = _leafPath.resolve("n" + (BALANCED_FANOUT - 1));
+        }
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown tree shape " + _shape);
+    }
+
+    buildBalanced(SOURCE_DIRECTORY, 2, SOURCE_FANOUT);
+    FileSystemTreeNode sourceFile = _fileSystem.createNodeAtPath(SOURCE_FILE, NodeType.FILE, false, true);
+    ((File) sourceFile.getFileSystemObject()).setContents(new byte[1024]);
+  }
+
+  private void buildBalanced(Path directory, int depth, int fanout) throws Exception {
+    for (int i = 0; i < fanout; i++) {
+      Path child = directory.resolve("n" + i);
+      _fileSystem.createNodeAtPath(child, depth == 1 ? NodeType.FILE : NodeType.DIRECTORY, false, true);
+      if (depth > 1) {
+        buildBalanced(child, depth - 1, fanout);
+      }
+    }
+  }
+
+  private static void login(DefaultUserManager userManager) {
+    // the user is per thread, and JMH may set up the benchmark on one of its worker threads
+    if (userManager.currentUser() == DefaultUserManager.GUEST_USER) {
+      userManager.login("root", "1234");
+    }
+  }
+
+  /**
+   * The scratch directory of one benchmark thread.
+   */
+  @State(Scope.Thread)
+  public static class Session {
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+    private Path _createdFile;
+    private Path _movingFileInA;
+    private Path _movingFileInB;
+    private Path _directoryA;
+    private Path _directoryB;
+    private boolean _inA = true;
+    private Path _copiedFile;
+    private Path _scratch;
+    private Path _copiedDirectory;
+
+    @Setup(Level.Trial)
+    public void setUp(TreeOperationsBenchmark benchmark) throws Exception {
+      login(benchmark._userManager);
+      _scratch = Paths.get("scratch", "t" + NEXT_ID.getAndIncrement());
+      _directoryA = _scratch.resolve("a");
+      _directoryB = _scratch.resolve("b");
+      _createdFile = _scratch.resolve("created.txt");
+      _movingFileInA = _directoryA.resolve("moving.txt");
+      _movingFileInB = _directoryB.resolve("moving.txt");
+      _copiedFile = _scratch.resolve("copied.txt");
+      _copiedDirectory = _scratch.resolve(SOURCE_DIRECTORY.getFileName());
+
+      FileSystem fileSystem = benchmark._fileSystem;
+      fileSystem.createNodeAtPath(_movingFileInA, NodeType.FILE, false, true);
+      fileSystem.createNodeAtPath(_directoryB, NodeType.DIRECTORY, false, false);
+      fileSystem.createNodeAtPath(_copiedFile, NodeType.FILE, false, false);
+    }
+  }
+
+  @Benchmark
+  public FileSystemTreeNode getNodeAtPathTop(Session session) throws Exception {
+    return _fileSystem.getNodeAtPath(TREE, false);
+  }
+
+  @Benchmark
+  public FileSystemTreeNode getNodeAtPathLeaf(Session session) throws Exception {
+    return _fileSystem.getNodeAtPath(_leafPath, false);
+  }
+
+  @Benchmark
+  public boolean createAndRemoveNode(Session session) throws Exception {
+    _fileSystem.createNodeAtPath(session._createdFile, NodeType.FILE, false, false);
+    return _fileSystem.removeNodeAtPath(session._createdFile, false);
+  }
+
+  @Benchmark
+  public FileSystemTreeNode moveNodeTo(Session session) throws Exception {
+    Path from = session._inA ? session._movingFileInA : session._movingFileInB;
+    session._inA = !session._inA;
+    return _fileSystem.moveNodeTo(from, session._inA ? session._directoryA : session._directoryB, false, false, false);
+  }
+
+  @Benchmark
+  public FileSystemTreeNode copyFileOverFile(Session session) throws Exception {
+    return _fileSystem.copyNode(SOURCE_FILE, session._copiedFile, false, false, true);
+  }
+
+  @Benchmark
+  public boolean copyAndRemoveDirectory(Session session) throws Exception {
+    _fileSystem.copyNode(SOURCE_DIRECTORY, session._scratch, false, false, false);
+    return _fileSystem.removeNodeAtPath(session._copiedDirectory, false);
+  }
+
+  @Benchmark
+  public Collection<FileSystemTreeNode> findAllNodesMatching(Session session) {
+    return _fileSystem.findAllNodesMatching(FIND_PATTERN);
+  }
+}
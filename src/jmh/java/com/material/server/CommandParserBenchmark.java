@@ -0,0 +1,44 @@
+package com.material.server;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Measures the cost of parsing a single command line.
+ *
+ * Run with <pre>gradle jmh -Pjmh.includes=CommandParserBenchmark</pre>, add <pre>-prof gc</pre> to the JMH args to see
+ * the bytes allocated per parse.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParserBenchmark {
+  @Param({
+      "ls",
+      "mkDir /recipes/a/carrotCake -r",
+      "cp /recipes/a/carrotCake /recipes/b -f",
+      "write /a/b/file.txt 'hello world, this is some content' 0 -s",
+      "setUserPermission / USER 'READ,WRITE,DELETE' -rt"
+  })
+  public String _input;
+
+  private final CommandParser _parser = new CommandParser();
+
+  @Benchmark
+  public ClientCommand parse() {
+    return _parser.parse(_input);
+  }
+}
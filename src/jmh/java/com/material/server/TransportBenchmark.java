@@ -0,0 +1,143 @@
+package com.material.server;
+
+import com.material.client.SharedMemoryClient;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Compares a round trip to the {@link Server} over TCP loopback with one over a unix domain socket, and with one
+ * through a {@link SharedMemoryRegion}: a small command for the per request latency, and a read of a file for the
+ * throughput.
+ *
+ * Run with <pre>gradle jmh -Pjmh.includes=TransportBenchmark</pre>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportBenchmark {
+  private static final String FILE_PATH = "/benchmark.bin";
+
+  @Param({"tcp", "unix", "shm"})
+  public String _transport;
+
+  @Param({"65536"})
+  public int _fileSize;
+
+  private Thread _serverThread;
+  private Path _socketPath;
+  private SocketChannel _channel;
+  private SharedMemoryClient _sharedMemoryClient;
+  private InputStream _in;
+  private ByteBuffer _pwd;
+  private ByteBuffer _read;
+  private byte[] _content;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    int port;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    _socketPath = Files.createTempDirectory("fs-benchmark").resolve("server.sock");
+    _serverThread = new Thread(new Server(port, true, _socketPath), "benchmark-server");
+    _serverThread.setDaemon(true);
+    _serverThread.start();
+
+    for (int i = 0; _channel == null; i++) {
+      try {
+        _channel = "unix".equals(_transport) ? SocketChannel.open(UnixDomainSocketAddress.of(_socketPath))
+            : SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+      } catch (IOException ex) {
+        if (i == 50) {
+          throw ex;
+        }
+        Thread.sleep(100);
+      }
+    }
+    _in = new BufferedInputStream(Channels.newInputStream(_channel));
+    WireProtocol.readLine(_in);
+    if ("shm".equals(_transport)) {
+      _sharedMemoryClient = new SharedMemoryClient(UnixDomainSocketAddress.of(_socketPath),
+          _socketPath.resolveSibling("region.shm"), "admin", "1234", false);
+    }
+
+    request(ByteBuffer.wrap("login admin 1234\n".getBytes()));
+    request(ByteBuffer.wrap(("touch " + FILE_PATH + "\n").getBytes()));
+    request(ByteBuffer.wrap(("writeRandom " + FILE_PATH + " " + _fileSize + "\n").getBytes()));
+
+    _pwd = ByteBuffer.wrap("pwd\n".getBytes());
+    _read = ByteBuffer.wrap(("read " + FILE_PATH + "\n").getBytes());
+    _content = new byte[_fileSize];
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    if (_sharedMemoryClient != null) {
+      _sharedMemoryClient.close();
+    }
+    _channel.close();
+    _serverThread.interrupt();
+    Files.deleteIfExists(_socketPath);
+    Files.deleteIfExists(_socketPath.getParent());
+  }
+
+  @Benchmark
+  public String roundTrip() throws IOException {
+    if (_sharedMemoryClient != null) {
+      return _sharedMemoryClient.execute("pwd");
+    }
+    return request(_pwd.rewind());
+  }
+
+  @Benchmark
+  public byte[] readFile() throws IOException {
+    if (_sharedMemoryClient != null) {
+      _sharedMemoryClient.read(FILE_PATH).get(_content);
+      return _content;
+    }
+    String header = request(_read.rewind());
+    int length = (int) WireProtocol.parseBytesHeader(header);
+    if (_in.readNBytes(_content, 0, length) != length) {
+      throw new IOException("Server closed during a read");
+    }
+    return _content;
+  }
+
+  private String request(ByteBuffer command) throws IOException {
+    while (command.hasRemaining()) {
+      _channel.write(command);
+    }
+    String reply = WireProtocol.readLine(_in);
+    if (reply == null || reply.startsWith(WireProtocol.ERROR + " ")) {
+      throw new IOException("Request failed: " + reply);
+    }
+    return reply;
+  }
+}
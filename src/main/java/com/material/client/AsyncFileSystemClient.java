@@ -0,0 +1,397 @@
+package com.material.client;
+
+import com.material.server.CommandParser;
+import com.material.server.FileServer;
+import com.material.server.WireProtocol;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A programmatic, non blocking client for the {@link FileServer}. Every method returns a {@link CompletableFuture}
+ * completed by the connection threads, so calling threads never wait on the socket.
+ *
+ * Requests are spread over a pool of connections, each logged in as the same user, and pipelined on each connection.
+ * The server must allow duplicate sessions for a pool of more than one connection, see
+ * {@link FileServer#FileServer(int, boolean)}. Paths should be absolute, as the working directory of each connection
+ * is separate.
+ *
+ * A request which does not complete in time fails with a {@link TimeoutException}, and the connection it was sent on
+ * is closed. Requests which are safe to repeat are retried on another connection when they time out or their
+ * connection fails. A command the server rejects fails with a {@link RemoteCommandException}, and is never retried.
+ *
+ * Listings and small files can be cached with {@link #enableCache(long, int)}.
+ */
+public class AsyncFileSystemClient implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(AsyncFileSystemClient.class);
+  private static final int UPLOAD_CHUNK_SIZE = 256 * 1024;
+
+  private final String _hostName;
+  private final int _port;
+  private final String _username;
+  private final String _password;
+  private final long _timeoutMillis;
+  private final int _maxRetries;
+  private final AtomicReferenceArray<CompletableFuture<PooledConnection>> _pool;
+  private final AtomicInteger _nextConnection = new AtomicInteger();
+  private final ExecutorService _connectExecutor = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "fs-client-connect");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private volatile WatchedCache _cache = null;
+  private volatile boolean _closed = false;
+
+  public AsyncFileSystemClient(String hostName, int port, String username, String password, int poolSize) {
+    this(hostName, port, username, password, poolSize, 10000, 2);
+  }
+
+  /**
+   * Constructor, connections are opened when they are first needed.
+   *
+   * @param hostName the server host
+   * @param port the server port
+   * @param username the user every connection logs in as
+   * @param password the password of the user
+   * @param poolSize the number of connections
+   * @param timeoutMillis how long a request may take, including any time queued behind other requests
+   * @param maxRetries how many times a request which is safe to repeat is retried
+   */
+  public AsyncFileSystemClient(String hostName, int port, String username, String password, int poolSize,
+      long timeoutMillis, int maxRetries) {
+    if (poolSize < 1) {
+      throw new IllegalArgumentException("Pool size must be at least 1: " + poolSize);
+    }
+    _hostName = hostName;
+    _port = port;
+    _username = username;
+    _password = password;
+    _timeoutMillis = timeoutMillis;
+    _maxRetries = maxRetries;
+    _pool = new AtomicReferenceArray<>(poolSize);
+  }
+
+  /**
+   * Cache directory listings and file contents, so repeated reads are answered without a round trip. The client opens
+   * one more connection, on which the server reports every change to the tree, and drops cached entries as they
+   * change. An entry is served at most one lease after the server was last heard from, which bounds how stale it
+   * can be if the server stops reporting. Changes made through this client are always visible to its next read.
+   *
+   * @param leaseMillis how long cached entries stay valid without hearing from the server
+   * @param maxCachedFileBytes the largest file contents to cache
+   */
+  public synchronized void enableCache(long leaseMillis, int maxCachedFileBytes) {
+    if (_cache != null) {
+      throw new IllegalStateException("The cache is already enabled");
+    }
+    WatchedCache cache = new WatchedCache(_hostName, _port,
+        "login " + CommandParser.quote(_username) + " " + CommandParser.quote(_password), leaseMillis,
+        maxCachedFileBytes);
+    cache.start();
+    _cache = cache;
+  }
+
+  public CompletableFuture<byte[]> read(String path) {
+    WatchedCache cache = _cache;
+    String key = cache != null ? WatchedCache.cacheKey(path) : null;
+    if (key != null) {
+      byte[] contents = cache.getContents(key);
+      if (contents != null) {
+        return CompletableFuture.completedFuture(contents.clone());
+      }
+    }
+
+    long epoch = key != null ? cache.epoch() : 0;
+    return submit("read " + CommandParser.quote(path), true, reply -> {
+      if (reply instanceof byte[]) {
+        if (key != null) {
+          cache.putContents(key, (byte[]) reply, epoch);
+        }
+        return (byte[]) reply;
+      }
+      throw new RemoteCommandException("Expected file content, got: " + reply);
+    });
+  }
+
+  /**
+   * Replace the contents of a file with text. Use {@link #upload(String, byte[])} for binary or multi line content.
+   * @param path the file
+   * @param content the new contents, on a single line
+   * @return the reply of the server
+   */
+  public CompletableFuture<String> write(String path, String content) {
+    if (content.indexOf('\n') >= 0 || content.indexOf('\r') >= 0) {
+      throw new IllegalArgumentException("Content with line breaks must be uploaded");
+    }
+    return change(submit("write " + CommandParser.quote(path) + " " + CommandParser.quote(content), true,
+        String::valueOf), path);
+  }
+
+  /**
+   * Replace the contents of a file. An upload is resumable, so a retry continues from the bytes the server already
+   * acknowledged.
+   * @param path the file, which must exist
+   * @param contents the new contents
+   * @return the reply of the server
+   */
+  public CompletableFuture<String> upload(String path, byte[] contents) {
+    CompletableFuture<String> result = new CompletableFuture<>();
+    attempt(connection -> upload(connection, path, contents), _maxRetries, String::valueOf, result);
+    return change(result, path);
+  }
+
+  public CompletableFuture<String> touch(String path) {
+    return change(submit("touch " + CommandParser.quote(path), false, String::valueOf), path);
+  }
+
+  public CompletableFuture<String> mkdir(String path, boolean createParents) {
+    return change(submit("mkDir " + CommandParser.quote(path) + (createParents ? " -r" : ""), false,
+        String::valueOf), path);
+  }
+
+  public CompletableFuture<String> rm(String path) {
+    return change(submit("rm " + CommandParser.quote(path), false, String::valueOf), path);
+  }
+
+  public CompletableFuture<String> rmDir(String path, boolean recursive) {
+    return change(submit("rmDir " + CommandParser.quote(path) + (recursive ? " -r" : ""), false,
+        String::valueOf), path);
+  }
+
+  public CompletableFuture<String> mv(String source, String destination) {
+    return change(submit("mv " + CommandParser.quote(source) + " " + CommandParser.quote(destination), false,
+        String::valueOf), source, destination);
+  }
+
+  public CompletableFuture<String> cp(String source, String destination) {
+    return change(submit("cp " + CommandParser.quote(source) + " " + CommandParser.quote(destination), false,
+        String::valueOf), destination);
+  }
+
+  /**
+   * List a directory.
+   * @param path the directory
+   * @return the names of its children
+   */
+  public CompletableFuture<List<String>> ls(String path) {
+    WatchedCache cache = _cache;
+    String key = cache != null ? WatchedCache.cacheKey(path) : null;
+    if (key != null) {
+      List<String> names = cache.getListing(key);
+      if (names != null) {
+        return CompletableFuture.completedFuture(new ArrayList<>(names));
+      }
+    }
+
+    long epoch = key != null ? cache.epoch() : 0;
+    return submit("ls " + CommandParser.quote(path), true, reply -> {
+      List<String> names = toNames(reply);
+      names.remove("..");
+      if (key != null) {
+        cache.putListing(key, names, epoch);
+      }
+      return names;
+    });
+  }
+
+  /**
+   * Find files by path.
+   * @param regex matched against the path of each file
+   * @param all true to find all matches, rather than the first
+   * @return the absolute paths of the matching files
+   */
+  public CompletableFuture<List<String>> find(String regex, boolean all) {
+    return submit("find " + CommandParser.quote(regex) + (all ? " -a" : ""), true, AsyncFileSystemClient::toNames);
+  }
+
+  /**
+   * Send any command line.
+   * @param commandLine the command
+   * @param idempotent true if the command may be retried
+   * @return the reply of the server, multi line replies are joined with line breaks
+   */
+  public CompletableFuture<String> send(String commandLine, boolean idempotent) {
+    CompletableFuture<String> reply = submit(commandLine, idempotent, String::valueOf);
+    WatchedCache cache = _cache;
+    if (cache != null && !idempotent) {
+      // the paths the command changes are unknown
+      cache.invalidateAll();
+      reply.whenComplete((value, ex) -> cache.invalidateAll());
+    }
+    return reply;
+  }
+
+  @Override
+  public void close() {
+    _closed = true;
+    WatchedCache cache = _cache;
+    if (cache != null) {
+      cache.close();
+    }
+    for (int i = 0; i < _pool.length(); i++) {
+      CompletableFuture<PooledConnection> connection = _pool.getAndSet(i, null);
+      if (connection != null) {
+        connection.thenAccept(PooledConnection::close);
+      }
+    }
+    _connectExecutor.shutdown();
+  }
+
+  /**
+   * Drop the cached paths a change affects as it is sent and again once it completes, so neither a read in flight
+   * nor the server reporting the change late can leave this client reading what it changed from the cache.
+   */
+  private <T> CompletableFuture<T> change(CompletableFuture<T> reply, String... paths) {
+    WatchedCache cache = _cache;
+    if (cache != null) {
+      invalidate(cache, paths);
+      reply.whenComplete((value, ex) -> invalidate(cache, paths));
+    }
+    return reply;
+  }
+
+  private static void invalidate(WatchedCache cache, String... paths) {
+    for (String path : paths) {
+      String key = WatchedCache.cacheKey(path);
+      if (key != null) {
+        cache.invalidateTree(key);
+      } else {
+        cache.invalidateAll();
+      }
+    }
+  }
+
+  private <T> CompletableFuture<T> submit(String commandLine, boolean idempotent, Function<Object, T> mapper) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    attempt(connection -> connection.send(commandLine), idempotent ? _maxRetries : 0, mapper, result);
+    return result;
+  }
+
+  private <T> void attempt(Function<PooledConnection, CompletableFuture<Object>> request, int retriesLeft,
+      Function<Object, T> mapper, CompletableFuture<T> result) {
+    if (_closed) {
+      result.completeExceptionally(new IOException("Client closed"));
+      return;
+    }
+
+    connection().thenCompose(connection -> request.apply(connection)
+        .orTimeout(_timeoutMillis, TimeUnit.MILLISECONDS)
+        .whenComplete((reply, ex) -> {
+          if (unwrap(ex) instanceof TimeoutException) {
+            // a stuck connection delays every request behind it
+            connection.close(unwrap(ex));
+          }
+        }))
+        .thenApply(mapper)
+        .whenComplete((value, ex) -> {
+          Throwable cause = unwrap(ex);
+          if (cause == null) {
+            result.complete(value);
+          } else if (retriesLeft > 0 && (cause instanceof IOException || cause instanceof TimeoutException)) {
+            LOG.debug("Retrying failed request, " + retriesLeft + " retries left", cause);
+            attempt(request, retriesLeft - 1, mapper, result);
+          } else {
+            result.completeExceptionally(cause);
+          }
+        });
+  }
+
+  private CompletableFuture<PooledConnection> connection() {
+    int slot = Math.floorMod(_nextConnection.getAndIncrement(), _pool.length());
+    while (true) {
+      CompletableFuture<PooledConnection> current = _pool.get(slot);
+      if (current != null && !current.isCompletedExceptionally() && !(current.isDone() && current.join().isClosed())) {
+        return current;
+      }
+
+      CompletableFuture<PooledConnection> replacement = new CompletableFuture<>();
+      if (_pool.compareAndSet(slot, current, replacement)) {
+        _connectExecutor.execute(() -> {
+          try {
+            replacement.complete(openConnection());
+          } catch (Exception ex) {
+            replacement.completeExceptionally(ex);
+          }
+        });
+        return replacement;
+      }
+    }
+  }
+
+  private PooledConnection openConnection() throws IOException {
+    PooledConnection connection = PooledConnection.open(_hostName, _port, (int) _timeoutMillis);
+    try {
+      connection.send("login " + CommandParser.quote(_username) + " " + CommandParser.quote(_password))
+          .get(_timeoutMillis, TimeUnit.MILLISECONDS);
+      return connection;
+    } catch (Exception ex) {
+      connection.close(ex);
+      Throwable cause = unwrap(ex);
+      throw cause instanceof IOException ? (IOException) cause
+          : new IOException("Could not log in to " + _hostName + ":" + _port + " as " + _username, cause);
+    }
+  }
+
+  /**
+   * Upload on a single connection, so the chunks reach the server in order. Each chunk waits for the ack of the last.
+   */
+  private static CompletableFuture<Object> upload(PooledConnection connection, String path, byte[] contents) {
+    return connection.send("uploadOpen " + CommandParser.quote(path) + " " + contents.length).thenCompose(reply -> {
+      String[] upload = String.valueOf(reply).split(" ");
+      if (upload.length != 3 || !WireProtocol.UPLOAD.equals(upload[0])) {
+        throw new RemoteCommandException("Unexpected upload reply: " + reply);
+      }
+      return uploadFrom(connection, upload[1], Integer.parseInt(upload[2]), contents);
+    });
+  }
+
+  private static CompletableFuture<Object> uploadFrom(PooledConnection connection, String uploadId, int offset,
+      byte[] contents) {
+    if (offset >= contents.length) {
+      return connection.send("uploadCommit " + uploadId);
+    }
+
+    int length = Math.min(UPLOAD_CHUNK_SIZE, contents.length - offset);
+    byte[] chunk = Arrays.copyOfRange(contents, offset, offset + length);
+    return connection.send("uploadChunk " + uploadId + " " + offset + " " + length, chunk).thenCompose(reply -> {
+      String[] ack = String.valueOf(reply).split(" ");
+      if (ack.length != 3 || !WireProtocol.ACK.equals(ack[0])) {
+        throw new RemoteCommandException("Unexpected upload reply: " + reply);
+      }
+      return uploadFrom(connection, uploadId, Integer.parseInt(ack[2]), contents);
+    });
+  }
+
+  // listings separate names with whitespace
+  private static List<String> toNames(Object reply) {
+    List<String> names = new ArrayList<>();
+    for (String name : String.valueOf(reply).split("\\s+")) {
+      if (!name.isEmpty()) {
+        names.add(name);
+      }
+    }
+    return names;
+  }
+
+  private static Throwable unwrap(Throwable ex) {
+    while (ex instanceof CompletionException || ex instanceof ExecutionException) {
+      ex = ex.getCause();
+    }
+    return ex;
+  }
+}
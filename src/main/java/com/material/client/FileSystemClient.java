@@ -1,13 +1,27 @@
 package com.material.client;
 
+import com.material.server.ClientInputProcessor;
 import com.material.server.FileServer;
+import com.material.server.WireProtocol;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.net.Socket;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.UnixDomainSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,32 +31,67 @@ import org.slf4j.LoggerFactory;
  * are printed to the console.
  */
 public class FileSystemClient {
+  /**
+   * Handled by the client, e.g. <pre>upload LOCAL_DISK_FILE_NAME TO_FILE</pre> sends a local file to the server in
+   * chunks.
+   */
+  public static final String UPLOAD_COMMAND = "upload";
+  /**
+   * Handled by the client, e.g. <pre>downloadTo LOCAL_DISK_FILE_NAME FILE [FROM_POS] [TOTAL_BYTES]</pre> streams a
+   * range of a file from the server to a local file.
+   */
+  public static final String DOWNLOAD_TO_COMMAND = "downloadTo";
+  private static final String DOWNLOAD_COMMAND = "download";
+  private static final int UPLOAD_CHUNK_SIZE = 256 * 1024;
+  // chunks the server may send ahead of the client consuming them
+  private static final int DOWNLOAD_CREDITS = 4;
+
   final Logger LOG = LoggerFactory.getLogger(FileSystemClient.class);
   private final String _hostName;
   private final int _port;
+  private final Path _unixSocketPath;
   private final InputStream _inputStream;
 
   public FileSystemClient(InputStream inputStream, String hostName, int _port) {
     this._hostName = hostName;
     this._port = _port;
+    this._unixSocketPath = null;
     this._inputStream = inputStream;
   }
 
-  public static void main(String[] args) {
-    String hostName = args[0]; // e.g. 127.0.0.1
-    int portNumber = Integer.parseInt(args[1]); // e.g. 4959
+  /**
+   * Constructor, for a server on the same host listening on a unix domain socket.
+   * @param inputStream the user input
+   * @param unixSocketPath the path of the socket
+   */
+  public FileSystemClient(InputStream inputStream, Path unixSocketPath) {
+    this._hostName = unixSocketPath.toString();
+    this._port = -1;
+    this._unixSocketPath = unixSocketPath;
+    this._inputStream = inputStream;
+  }
 
-    FileSystemClient client = new FileSystemClient(System.in, hostName, portNumber);
+  public static void main(String[] args) {
+    FileSystemClient client;
+    if (args.length == 1) {
+      client = new FileSystemClient(System.in, Paths.get(args[0])); // e.g. /tmp/fileserver.sock
+    } else {
+      String hostName = args[0]; // e.g. 127.0.0.1
+      int portNumber = Integer.parseInt(args[1]); // e.g. 4959
+      client = new FileSystemClient(System.in, hostName, portNumber);
+    }
     client.connect();
   }
 
   public void connect() {
 
-    try (Socket serverConnection = new Socket(_hostName, _port);
-        PrintWriter out = new PrintWriter(serverConnection.getOutputStream(), true);
-        BufferedReader in = new BufferedReader(new InputStreamReader(serverConnection.getInputStream()))) {
+    try (ByteChannel serverConnection = openConnection();
+        OutputStream rawOut = Channels.newOutputStream(serverConnection);
+        PrintWriter out = new PrintWriter(rawOut, true);
+        InputStream in = new BufferedInputStream(Channels.newInputStream(serverConnection))) {
 
-      LOG.info("Starting file system client... connecting to server on " + _hostName + ":" + _port);
+      LOG.info("Starting file system client... connecting to server on " + _hostName
+          + (_unixSocketPath == null ? ":" + _port : ""));
 
       BufferedReader stdIn = new BufferedReader(new InputStreamReader(this._inputStream));
       String fromServer;
@@ -50,16 +99,28 @@ public class FileSystemClient {
 
       boolean readingLines = false;
       StringBuilder linesBuilder = new StringBuilder();
-      while ((fromServer = in.readLine()) != null) {
+      // a reply already read by a command the client handles itself
+      String pendingFromServer = null;
+      while ((fromServer = pendingFromServer != null ? pendingFromServer : WireProtocol.readLine(in)) != null) {
+        pendingFromServer = null;
 
-        if ("START_LINES".equals(fromServer)) {
+        long contentLength = WireProtocol.parseBytesHeader(fromServer);
+        if (contentLength >= 0) {
+          byte[] content = in.readNBytes((int) contentLength);
+          if (content.length < contentLength) {
+            throw new IOException("Server closed during a content transfer");
+          }
+          fromServer = new String(content);
+        }
+
+        if (WireProtocol.START_LINES.equals(fromServer)) {
           readingLines = true;
           linesBuilder = new StringBuilder();
           continue;
         }
 
         if (readingLines) {
-          if ("END_LINES".equals(fromServer)) {
+          if (WireProtocol.END_LINES.equals(fromServer)) {
             readingLines = false;
             LOG.info(linesBuilder.toString());
           } else {
@@ -70,8 +131,25 @@ public class FileSystemClient {
         LOG.info("> " + fromServer);
 
         fromUser = stdIn.readLine();
-        if (fromUser != null) {
+        if (fromUser != null && fromUser.startsWith(UPLOAD_COMMAND + " ")) {
+          pendingFromServer = upload(fromUser, out, rawOut, in);
+        } else if (fromUser != null && fromUser.startsWith(DOWNLOAD_TO_COMMAND + " ")) {
+          pendingFromServer = downloadTo(fromUser, out, in);
+        } else if (fromUser != null && fromUser.startsWith(DOWNLOAD_COMMAND + " ")) {
+          ByteArrayOutputStream content = new ByteArrayOutputStream();
+          String reply = download(fromUser, content, out, in);
+          pendingFromServer = reply != null && reply.startsWith(WireProtocol.END_DOWNLOAD + " ") ? content.toString()
+              : reply;
+        } else if (fromUser != null) {
           out.println(fromUser);
+
+          if (ClientInputProcessor.isBatchStart(fromUser)) {
+            // send the whole batch, the server replies once it has run every command
+            while ((fromUser = stdIn.readLine()) != null && !ClientInputProcessor.BATCH_END.equals(fromUser.trim())) {
+              out.println(fromUser);
+            }
+            out.println(ClientInputProcessor.BATCH_END);
+          }
         } else {
           LOG.info("Last user command read");
           break;
@@ -87,4 +165,154 @@ public class FileSystemClient {
       System.exit(1);
     }
   }
+
+  private ByteChannel openConnection() throws IOException {
+    if (_unixSocketPath != null) {
+      return SocketChannel.open(UnixDomainSocketAddress.of(_unixSocketPath));
+    }
+    InetSocketAddress address = new InetSocketAddress(_hostName, _port);
+    if (address.isUnresolved()) {
+      throw new UnknownHostException(_hostName);
+    }
+    return SocketChannel.open(address);
+  }
+
+  /**
+   * Upload a local file with <pre>uploadOpen</pre>, <pre>uploadChunk</pre> and <pre>uploadCommit</pre>. Each chunk
+   * waits for its ack before the next is sent, so the server never buffers more than one chunk. If an earlier
+   * upload of the same file was interrupted, it resumes from the offset the server acknowledged.
+   *
+   * @param userInput the upload command
+   * @param out the server command writer
+   * @param rawOut the server connection, for the chunk bytes
+   * @param in the server connection input
+   * @return the final reply of the server, or the reason the upload could not start
+   * @throws IOException if the local file or the connection cannot be read or written
+   */
+  private String upload(String userInput, PrintWriter out, OutputStream rawOut, InputStream in) throws IOException {
+    String[] args = userInput.trim().split("\\s+");
+    if (args.length < 3) {
+      return "Usage: upload LOCAL_DISK_FILE_NAME TO_FILE";
+    }
+    if (!new java.io.File(args[1]).canRead()) {
+      return "Could not read local file: " + args[1];
+    }
+
+    try (RandomAccessFile localFile = new RandomAccessFile(args[1], "r")) {
+      long totalBytes = localFile.length();
+      out.println("uploadOpen " + args[2] + " " + totalBytes);
+      String reply = WireProtocol.readLine(in);
+      if (reply == null || !reply.startsWith(WireProtocol.UPLOAD + " ")) {
+        return reply;
+      }
+
+      String[] upload = reply.split(" ");
+      String uploadId = upload[1];
+      long offset = Long.parseLong(upload[2]);
+      if (offset > 0) {
+        LOG.info("Resuming upload " + uploadId + " at " + offset + " of " + totalBytes + " bytes");
+      }
+
+      byte[] chunk = new byte[UPLOAD_CHUNK_SIZE];
+      localFile.seek(offset);
+      while (offset < totalBytes) {
+        int length = (int) Math.min(chunk.length, totalBytes - offset);
+        localFile.readFully(chunk, 0, length);
+        out.println("uploadChunk " + uploadId + " " + offset + " " + length);
+        rawOut.write(chunk, 0, length);
+        rawOut.flush();
+
+        reply = WireProtocol.readLine(in);
+        if (reply == null || !reply.startsWith(WireProtocol.ACK + " ")) {
+          return reply;
+        }
+        offset = Long.parseLong(reply.split(" ")[2]);
+      }
+
+      out.println("uploadCommit " + uploadId);
+      return WireProtocol.readLine(in);
+    }
+  }
+
+  /**
+   * Download a range of a file to a local file.
+   *
+   * @param userInput the downloadTo command
+   * @param out the server command writer
+   * @param in the server connection input
+   * @return a summary of the download, or the reply of the server if it failed
+   * @throws IOException if the local file or the connection cannot be read or written
+   */
+  private String downloadTo(String userInput, PrintWriter out, InputStream in) throws IOException {
+    String[] args = userInput.trim().split("\\s+");
+    if (args.length < 3) {
+      return "Usage: downloadTo LOCAL_DISK_FILE_NAME FILE [FROM_POS] [TOTAL_BYTES]";
+    }
+
+    String command = DOWNLOAD_COMMAND + " " + args[2] + " " + (args.length > 3 ? args[3] : "0") + " "
+        + (args.length > 4 ? args[4] : "-1");
+    try (OutputStream localFile = new BufferedOutputStream(new FileOutputStream(args[1]))) {
+      String reply = download(command, localFile, out, in);
+      if (reply != null && reply.startsWith(WireProtocol.END_DOWNLOAD + " ")) {
+        return "Downloaded " + reply.split(" ")[1] + " bytes to " + args[1];
+      }
+      return reply;
+    }
+  }
+
+  /**
+   * Send a download command and copy the streamed chunks to a sink. The server is granted a window of credits up front,
+   * and one more for every chunk written to the sink, until it has been granted a credit for every chunk.
+   *
+   * @param command the download command
+   * @param sink receives the downloaded bytes
+   * @param out the server command writer
+   * @param in the server connection input
+   * @return the END_DOWNLOAD line, or the reply of the server if the download did not start
+   * @throws IOException if the sink or the connection cannot be read or written
+   */
+  private String download(String command, OutputStream sink, PrintWriter out, InputStream in) throws IOException {
+    out.println(command);
+    String reply = WireProtocol.readLine(in);
+    if (reply == null || !reply.startsWith(WireProtocol.START_DOWNLOAD + " ")) {
+      return reply;
+    }
+
+    String[] header = reply.split(" ");
+    long totalBytes = Long.parseLong(header[1]);
+    int chunkSize = Integer.parseInt(header[2]);
+    long chunks = (totalBytes + chunkSize - 1) / chunkSize;
+    long granted = Math.min(DOWNLOAD_CREDITS, chunks);
+    if (granted > 0) {
+      out.println(WireProtocol.CREDIT + " " + granted);
+    }
+
+    byte[] buffer = new byte[Math.min(chunkSize, 64 * 1024)];
+    String line;
+    while ((line = WireProtocol.readLine(in)) != null) {
+      if (line.startsWith(WireProtocol.END_DOWNLOAD + " ")) {
+        return line;
+      }
+
+      long length = WireProtocol.parseBytesHeader(line);
+      if (length < 0) {
+        throw new IOException("Unexpected line during a download: " + line);
+      }
+
+      while (length > 0) {
+        int read = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+        if (read < 0) {
+          throw new IOException("Server closed during a download");
+        }
+        sink.write(buffer, 0, read);
+        length -= read;
+      }
+
+      if (granted < chunks) {
+        out.println(WireProtocol.CREDIT + " 1");
+        granted++;
+      }
+    }
+    throw new IOException("Server closed during a download");
+  }
 }
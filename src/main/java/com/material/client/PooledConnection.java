@@ -0,0 +1,237 @@
+package com.material.client;
+
+import com.material.server.WireProtocol;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A single connection of an {@link AsyncFileSystemClient}. Requests are pipelined: a writer thread sends them as soon
+ * as they are queued, and a reader thread completes them in order as the replies arrive, since the server replies to
+ * the requests of a connection in the order it received them. Callers never block on the socket.
+ */
+class PooledConnection implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(PooledConnection.class);
+
+  private final Socket _socket;
+  private final String _name;
+  private final BlockingQueue<Request> _outgoing = new LinkedBlockingQueue<>();
+  private final Queue<Request> _inFlight = new ConcurrentLinkedQueue<>();
+  private volatile IOException _closedCause;
+
+  private PooledConnection(Socket socket) {
+    _socket = socket;
+    _name = socket.getInetAddress().getHostAddress() + ":" + socket.getPort() + "/" + socket.getLocalPort();
+  }
+
+  /**
+   * Connect to the server, and start the threads serving the connection.
+   *
+   * @param hostName the server host
+   * @param port the server port
+   * @param connectTimeoutMillis how long to wait for the connection
+   * @return the connection
+   * @throws IOException if the server cannot be reached
+   */
+  static PooledConnection open(String hostName, int port, int connectTimeoutMillis) throws IOException {
+    Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(hostName, port), connectTimeoutMillis);
+      socket.setTcpNoDelay(true);
+      PooledConnection connection = new PooledConnection(socket);
+      connection.start();
+      return connection;
+    } catch (IOException ex) {
+      socket.close();
+      throw ex;
+    }
+  }
+
+  /**
+   * Queue a command line.
+   * @param commandLine the command
+   * @return the reply, a String or for raw byte replies a byte[]
+   */
+  CompletableFuture<Object> send(String commandLine) {
+    return send(commandLine, null);
+  }
+
+  /**
+   * Queue a command line, followed by raw bytes.
+   * @param commandLine the command
+   * @param payload the bytes to send after the command line, or null
+   * @return the reply, a String or for raw byte replies a byte[]
+   */
+  CompletableFuture<Object> send(String commandLine, byte[] payload) {
+    Request request = new Request(commandLine, payload);
+    _outgoing.add(request);
+    if (_closedCause != null) {
+      // raced with close, which may already have drained the queue
+      failAll(_closedCause);
+    }
+    return request._reply;
+  }
+
+  boolean isClosed() {
+    return _closedCause != null;
+  }
+
+  @Override
+  public void close() {
+    close(new IOException("Connection " + _name + " closed"));
+  }
+
+  /**
+   * Close the connection, failing every request which has not been replied to.
+   * @param cause why the connection was closed
+   */
+  void close(Throwable cause) {
+    synchronized (this) {
+      if (_closedCause != null) {
+        return;
+      }
+      _closedCause = cause instanceof IOException ? (IOException) cause
+          : new IOException("Connection " + _name + " closed: " + cause.getMessage(), cause);
+    }
+
+    LOG.debug("Closing connection " + _name, cause);
+    try {
+      _socket.close();
+    } catch (IOException ex) {
+      LOG.debug("Error closing connection " + _name, ex);
+    }
+    failAll(_closedCause);
+  }
+
+  private void failAll(IOException cause) {
+    Request request;
+    while ((request = _inFlight.poll()) != null) {
+      request._reply.completeExceptionally(cause);
+    }
+    while ((request = _outgoing.poll()) != null) {
+      request._reply.completeExceptionally(cause);
+    }
+  }
+
+  private void start() throws IOException {
+    InputStream in = new BufferedInputStream(_socket.getInputStream());
+    OutputStream out = new BufferedOutputStream(_socket.getOutputStream());
+
+    // the server greets every new connection
+    if (WireProtocol.readLine(in) == null) {
+      throw new EOFException("Server closed " + _name + " before greeting it");
+    }
+
+    Thread writer = new Thread(() -> writeLoop(out), "fs-client-writer-" + _name);
+    Thread reader = new Thread(() -> readLoop(in), "fs-client-reader-" + _name);
+    writer.setDaemon(true);
+    reader.setDaemon(true);
+    writer.start();
+    reader.start();
+  }
+
+  private void writeLoop(OutputStream out) {
+    try {
+      while (!isClosed()) {
+        Request request = _outgoing.take();
+        // in flight before it is written, so its reply always finds it
+        _inFlight.add(request);
+        if (isClosed()) {
+          failAll(_closedCause);
+          return;
+        }
+
+        out.write((request._commandLine + "\n").getBytes(Charset.defaultCharset()));
+        if (request._payload != null) {
+          out.write(request._payload);
+        }
+
+        // requests queued meanwhile share a flush
+        if (_outgoing.isEmpty()) {
+          out.flush();
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      close(ex);
+    } catch (IOException ex) {
+      close(ex);
+    }
+  }
+
+  private void readLoop(InputStream in) {
+    try {
+      String line;
+      while ((line = WireProtocol.readLine(in)) != null) {
+        Object reply = readReply(line, in);
+        Request request = _inFlight.poll();
+        if (request == null) {
+          throw new IOException("Unexpected reply on " + _name + ": " + line);
+        }
+
+        if (reply instanceof String && ((String) reply).startsWith(WireProtocol.ERROR + " ")) {
+          request._reply.completeExceptionally(
+              new RemoteCommandException(((String) reply).substring(WireProtocol.ERROR.length() + 1)));
+        } else {
+          request._reply.complete(reply);
+        }
+      }
+      close(new EOFException("Server closed " + _name));
+    } catch (IOException ex) {
+      close(ex);
+    }
+  }
+
+  private static Object readReply(String line, InputStream in) throws IOException {
+    long contentLength = WireProtocol.parseBytesHeader(line);
+    if (contentLength >= 0) {
+      byte[] content = in.readNBytes((int) contentLength);
+      if (content.length < contentLength) {
+        throw new EOFException("Server closed during a content transfer");
+      }
+      return content;
+    }
+
+    if (WireProtocol.START_LINES.equals(line)) {
+      StringBuilder lines = new StringBuilder();
+      while ((line = WireProtocol.readLine(in)) != null && !WireProtocol.END_LINES.equals(line)) {
+        if (lines.length() > 0) {
+          lines.append('\n');
+        }
+        lines.append(line);
+      }
+      if (line == null) {
+        throw new EOFException("Server closed during a multi line reply");
+      }
+      return lines.toString();
+    }
+
+    return line;
+  }
+
+  private static class Request {
+    private final String _commandLine;
+    private final byte[] _payload;
+    private final CompletableFuture<Object> _reply = new CompletableFuture<>();
+
+    Request(String commandLine, byte[] payload) {
+      _commandLine = commandLine;
+      _payload = payload;
+    }
+  }
+}
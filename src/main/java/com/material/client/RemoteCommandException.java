@@ -0,0 +1,10 @@
+package com.material.client;
+
+/**
+ * Thrown when the {@link com.material.server.FileServer} replies that a command failed.
+ */
+public class RemoteCommandException extends RuntimeException {
+  public RemoteCommandException(String message) {
+    super(message);
+  }
+}
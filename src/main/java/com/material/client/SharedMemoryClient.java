@@ -0,0 +1,177 @@
+package com.material.client;
+
+import com.material.server.CommandParser;
+import com.material.server.SharedMemoryRegion;
+import com.material.server.WireProtocol;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A client for a {@link com.material.server.FileServer} on the same host, which sends commands and receives replies
+ * through a memory mapped file instead of a socket, see {@link SharedMemoryRegion}. A request costs no system calls
+ * while both sides are spinning, and the bytes of a read are left in the shared data region for the caller, rather
+ * than being copied through the kernel.
+ *
+ * The connection used to set up the session stays open while the client is, so either side notices if the other goes
+ * away. The server maps the file for a logged in user only, so the client logs in on the connection first. The file
+ * must be in the directory the server maps regions from, by default its temporary directory. Requests are sent one at
+ * a time, as each response reuses the data region.
+ */
+public class SharedMemoryClient implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(SharedMemoryClient.class);
+  public static final int DEFAULT_RING_CAPACITY = 1024 * 1024;
+  public static final int DEFAULT_DATA_CAPACITY = 64 * 1024 * 1024;
+
+  private final Path _regionPath;
+  private final SharedMemoryRegion _region;
+  private final SocketChannel _connection;
+  private volatile boolean _serverGone = false;
+
+  public SharedMemoryClient(SocketAddress serverAddress, Path regionPath, String username, String password,
+      boolean busySpin) throws IOException {
+    this(serverAddress, regionPath, username, password, DEFAULT_RING_CAPACITY, DEFAULT_DATA_CAPACITY, busySpin);
+  }
+
+  /**
+   * Constructor, creates the shared file and hands it to the server.
+   *
+   * @param serverAddress the server, on a unix domain socket or a local port
+   * @param regionPath where to create the shared file, in the directory the server maps regions from
+   * @param username the user to log in as
+   * @param password the password of the user
+   * @param ringCapacity the bytes of the request and of the response ring, a power of 2
+   * @param dataCapacity the bytes of the data region, the largest read
+   * @param busySpin true for both sides to spin while waiting instead of parking, for the lowest latency
+   * @throws IOException if the server cannot be reached, refuses the login, or cannot map the file
+   */
+  public SharedMemoryClient(SocketAddress serverAddress, Path regionPath, String username, String password,
+      int ringCapacity, int dataCapacity, boolean busySpin) throws IOException {
+    _regionPath = regionPath;
+    _region = SharedMemoryRegion.create(regionPath, ringCapacity, dataCapacity, busySpin);
+    try {
+      _connection = SocketChannel.open(serverAddress);
+    } catch (IOException ex) {
+      Files.deleteIfExists(regionPath);
+      throw ex;
+    }
+
+    try {
+      InputStream in = new BufferedInputStream(Channels.newInputStream(_connection));
+      // the server greets every new connection
+      WireProtocol.readLine(in);
+      String login = "login " + CommandParser.quote(username) + " " + CommandParser.quote(password) + "\n";
+      _connection.write(ByteBuffer.wrap(login.getBytes(StandardCharsets.UTF_8)));
+      String loggedIn = WireProtocol.readLine(in);
+      if (loggedIn == null || loggedIn.startsWith(WireProtocol.ERROR + " ")) {
+        throw new IOException("Server refused the login of " + username + ": " + loggedIn);
+      }
+      String command = "sharedMemory " + CommandParser.quote(regionPath.toAbsolutePath().toString()) + "\n";
+      _connection.write(ByteBuffer.wrap(command.getBytes(StandardCharsets.UTF_8)));
+      String reply = WireProtocol.readLine(in);
+      if (reply == null || !reply.startsWith(WireProtocol.SHARED_MEMORY + " ")) {
+        throw new IOException("Server did not map " + regionPath + ": " + reply);
+      }
+
+      Thread presence = new Thread(() -> {
+        try {
+          // nothing more is sent on the connection, a read returns when the server goes away
+          WireProtocol.readLine(in);
+        } catch (IOException ex) {
+          LOG.debug("Shared memory server connection failed", ex);
+        }
+        _serverGone = true;
+      }, "fs-shared-memory-" + regionPath.getFileName());
+      presence.setDaemon(true);
+      presence.start();
+    } catch (IOException ex) {
+      close();
+      throw ex;
+    }
+  }
+
+  /**
+   * Run a command.
+   * @param commandLine the command
+   * @return the reply, multi line replies are separated with line breaks
+   * @throws IOException if the server went away
+   */
+  public String execute(String commandLine) throws IOException {
+    return execute(commandLine, null);
+  }
+
+  /**
+   * Run a command which reads raw bytes, e.g. <pre>uploadChunk</pre>. Batches are sent as the batch line, with the
+   * commands of the batch as the payload, one per line.
+   *
+   * @param commandLine the command
+   * @param payload the bytes the command reads, or null
+   * @return the reply, or for a reply of raw bytes, a {@link SharedMemoryRegion#SHARED_BYTES} line
+   * @throws IOException if the server went away
+   */
+  public synchronized String execute(String commandLine, byte[] payload) throws IOException {
+    byte[] line = (commandLine + "\n").getBytes(StandardCharsets.UTF_8);
+    byte[] request = line;
+    if (payload != null) {
+      request = new byte[line.length + payload.length];
+      System.arraycopy(line, 0, request, 0, line.length);
+      System.arraycopy(payload, 0, request, line.length, payload.length);
+    }
+
+    _region.getRequests().write(request, () -> _serverGone);
+    String reply = new String(_region.getResponses().read(() -> _serverGone), StandardCharsets.UTF_8);
+    if (reply.startsWith(WireProtocol.ERROR + " ")) {
+      throw new RemoteCommandException(reply.substring(WireProtocol.ERROR.length() + 1));
+    }
+    return reply;
+  }
+
+  /**
+   * Read a file. The contents are not copied: the buffer is a read only view of the shared data region, and is only
+   * valid until the next request of this client.
+   *
+   * @param path the file
+   * @return the contents
+   * @throws IOException if the server went away
+   */
+  public synchronized ByteBuffer read(String path) throws IOException {
+    String reply = execute("read " + CommandParser.quote(path));
+    String[] parts = reply.split(" ");
+    if (parts.length != 3 || !SharedMemoryRegion.SHARED_BYTES.equals(parts[0])) {
+      throw new RemoteCommandException("Expected file content, got: " + reply);
+    }
+    int offset = Integer.parseInt(parts[1]);
+    int length = Integer.parseInt(parts[2]);
+    return _region.getData().position(offset).limit(offset + length).slice().asReadOnlyBuffer();
+  }
+
+  /**
+   * Close the session, and remove the shared file.
+   */
+  @Override
+  public void close() {
+    try {
+      _connection.close();
+    } catch (IOException ex) {
+      LOG.debug("Error closing the shared memory connection", ex);
+    }
+
+    try {
+      // the mappings stay valid until collected, removing the file only unlinks it
+      Files.deleteIfExists(_regionPath);
+    } catch (IOException ex) {
+      LOG.warn("Could not remove " + _regionPath, ex);
+    }
+  }
+}
@@ -0,0 +1,265 @@
+package com.material.client;
+
+import com.material.server.WireProtocol;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Directory listings and small file contents cached by an {@link AsyncFileSystemClient}, kept consistent by a
+ * connection of its own on which the server sends the changes to the tree, see <pre>watch</pre> in
+ * {@link WireProtocol}.
+ *
+ * Entries are only served while the lease is current, i.e. the server was heard from within the last lease. If the
+ * watch connection stalls or fails, lookups miss and the client goes to the server, until a new watch connection
+ * is established with an empty cache.
+ *
+ * A reply is only cached if no invalidation arrived while it was being fetched, see {@link #epoch()}, so a change
+ * which raced with the request cannot leave a stale entry behind.
+ */
+class WatchedCache {
+  private static final Logger LOG = LoggerFactory.getLogger(WatchedCache.class);
+  private static final int MAX_ENTRIES = 10000;
+  private static final long RECONNECT_DELAY_MILLIS = 1000;
+
+  private final String _hostName;
+  private final int _port;
+  private final String _loginLine;
+  private final long _leaseMillis;
+  private final int _maxFileBytes;
+  private final Map<String, List<String>> _listings = new ConcurrentHashMap<>();
+  private final Map<String, byte[]> _contents = new ConcurrentHashMap<>();
+  // bumped by every invalidation
+  private final AtomicLong _epoch = new AtomicLong();
+  private volatile long _leaseExpiresAt = 0;
+  private volatile Socket _socket;
+  private volatile boolean _closed = false;
+
+  /**
+   * Constructor, call {@link #start()} to connect.
+   *
+   * @param hostName the server host
+   * @param port the server port
+   * @param loginLine the command the watch connection logs in with
+   * @param leaseMillis how long cached entries may be served after the server was last heard from
+   * @param maxFileBytes the largest file contents to cache
+   */
+  WatchedCache(String hostName, int port, String loginLine, long leaseMillis, int maxFileBytes) {
+    _hostName = hostName;
+    _port = port;
+    _loginLine = loginLine;
+    _leaseMillis = leaseMillis;
+    _maxFileBytes = maxFileBytes;
+  }
+
+  void start() {
+    Thread watcher = new Thread(this::watchLoop, "fs-client-watch-" + _hostName + ":" + _port);
+    watcher.setDaemon(true);
+    watcher.start();
+  }
+
+  void close() {
+    _closed = true;
+    _leaseExpiresAt = 0;
+    closeSocket();
+  }
+
+  /**
+   * Returns the current epoch, to read before sending a request whose reply may be cached.
+   * @return the epoch
+   */
+  long epoch() {
+    return _epoch.get();
+  }
+
+  List<String> getListing(String path) {
+    return isLeaseCurrent() ? _listings.get(path) : null;
+  }
+
+  byte[] getContents(String path) {
+    return isLeaseCurrent() ? _contents.get(path) : null;
+  }
+
+  void putListing(String path, List<String> names, long epoch) {
+    put(_listings, path, List.copyOf(names), epoch);
+  }
+
+  void putContents(String path, byte[] contents, long epoch) {
+    if (contents.length <= _maxFileBytes) {
+      put(_contents, path, contents.clone(), epoch);
+    }
+  }
+
+  /**
+   * Drop a node, and everything below it, e.g. when this client changed it and must read its own write.
+   * @param path the absolute path of the node
+   */
+  void invalidateTree(String path) {
+    _epoch.incrementAndGet();
+    String parent = parentOf(path);
+    if (parent != null) {
+      _listings.remove(parent);
+    }
+    removeTree(_listings, path);
+    removeTree(_contents, path);
+  }
+
+  void invalidateAll() {
+    _epoch.incrementAndGet();
+    _listings.clear();
+    _contents.clear();
+  }
+
+  /**
+   * Returns the key a path is cached under, or null if it cannot be cached because it is relative or not normalized.
+   * @param path a path as given to the client
+   * @return the absolute path without a trailing slash
+   */
+  static String cacheKey(String path) {
+    if (!path.startsWith("/")) {
+      return null;
+    }
+    int end = path.length();
+    while (end > 1 && path.charAt(end - 1) == '/') {
+      end--;
+    }
+    String key = path.substring(0, end);
+    // the server reports each node under one path, so only cache paths already in that form
+    if (key.contains("//") || key.contains("/./") || key.contains("/../") || key.endsWith("/.")
+        || key.endsWith("/..")) {
+      return null;
+    }
+    return key;
+  }
+
+  private <V> void put(Map<String, V> cache, String path, V value, long epoch) {
+    if (!isLeaseCurrent() || cache.size() >= MAX_ENTRIES) {
+      return;
+    }
+
+    cache.put(path, value);
+    if (_epoch.get() != epoch) {
+      // an invalidation arrived while the reply was in flight, it may cover this entry
+      cache.remove(path, value);
+    }
+  }
+
+  private boolean isLeaseCurrent() {
+    return System.currentTimeMillis() < _leaseExpiresAt;
+  }
+
+  private void watchLoop() {
+    while (!_closed) {
+      try {
+        watch();
+      } catch (IOException ex) {
+        LOG.debug("Watch connection to " + _hostName + ":" + _port + " failed", ex);
+      } finally {
+        _leaseExpiresAt = 0;
+        invalidateAll();
+        closeSocket();
+      }
+
+      try {
+        if (!_closed) {
+          Thread.sleep(RECONNECT_DELAY_MILLIS);
+        }
+      } catch (InterruptedException ex) {
+        return;
+      }
+    }
+  }
+
+  private void watch() throws IOException {
+    Socket socket = new Socket();
+    _socket = socket;
+    if (_closed) {
+      return;
+    }
+    socket.connect(new InetSocketAddress(_hostName, _port), (int) _leaseMillis);
+    // the server sends a line at least twice per lease, so a longer silence means the connection is gone
+    socket.setSoTimeout((int) (_leaseMillis * 2));
+    InputStream in = new BufferedInputStream(socket.getInputStream());
+    OutputStream out = socket.getOutputStream();
+
+    readExpected(in, null);
+    out.write((_loginLine + "\n").getBytes(Charset.defaultCharset()));
+    out.flush();
+    readExpected(in, null);
+    out.write(("watch " + _leaseMillis + "\n").getBytes(Charset.defaultCharset()));
+    out.flush();
+    readExpected(in, WireProtocol.WATCHING);
+    _leaseExpiresAt = System.currentTimeMillis() + _leaseMillis;
+    LOG.debug("Watching " + _hostName + ":" + _port + " with a lease of " + _leaseMillis + "ms");
+
+    String line;
+    while ((line = WireProtocol.readLine(in)) != null) {
+      // renewed after the invalidation is applied, so an entry is never served past a change the server reported
+      if (line.startsWith(WireProtocol.INVALIDATE_TREE + " ")) {
+        invalidateTree(line.substring(WireProtocol.INVALIDATE_TREE.length() + 1));
+      } else if (line.startsWith(WireProtocol.INVALIDATE + " ")) {
+        invalidate(line.substring(WireProtocol.INVALIDATE.length() + 1));
+      } else if (!line.startsWith(WireProtocol.LEASE + " ")) {
+        throw new IOException("Unexpected line on the watch connection: " + line);
+      }
+      _leaseExpiresAt = System.currentTimeMillis() + _leaseMillis;
+    }
+    throw new EOFException("Server closed the watch connection");
+  }
+
+  private void invalidate(String path) {
+    _epoch.incrementAndGet();
+    _listings.remove(path);
+    _contents.remove(path);
+  }
+
+  private static void readExpected(InputStream in, String prefix) throws IOException {
+    String line = WireProtocol.readLine(in);
+    if (line == null) {
+      throw new EOFException("Server closed the watch connection");
+    }
+    if (line.startsWith(WireProtocol.ERROR + " ") || (prefix != null && !line.startsWith(prefix + " "))) {
+      throw new IOException("Could not watch for changes: " + line);
+    }
+  }
+
+  private void closeSocket() {
+    Socket socket = _socket;
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException ex) {
+        LOG.debug("Error closing the watch connection", ex);
+      }
+    }
+  }
+
+  private static <V> void removeTree(Map<String, V> cache, String path) {
+    if ("/".equals(path)) {
+      cache.clear();
+      return;
+    }
+    String prefix = path + "/";
+    cache.keySet().removeIf(key -> key.equals(path) || key.startsWith(prefix));
+  }
+
+  private static String parentOf(String path) {
+    int slash = path.lastIndexOf('/');
+    if (slash < 0 || "/".equals(path)) {
+      return null;
+    }
+    return slash == 0 ? "/" : path.substring(0, slash);
+  }
+}
@@ -0,0 +1,52 @@
+package com.material.filesystem;
+
+import com.material.filesystem.user.User;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+
+/**
+ * Per-thread state for a batch of file system operations, see {@link FileSystem#beginBatch()}.
+ *
+ * Directories resolved while creating nodes are cached so later operations in the same directory skip the walk. No
+ * lock is held between operations, as the operations in between may wait on the locks of other directories.
+ */
+class BatchScope {
+  // keyed by the node the path was resolved from (working node or root), then by the directory path
+  private final Map<FileSystemTreeNode, Map<Path, FileSystemTreeNode>> _resolvedDirectories = new IdentityHashMap<>();
+  private long _structureVersion;
+  private long _permissionChanges;
+  private User _user;
+
+  /**
+   * Returns a previously resolved directory, or null. The cache is dropped if the tree structure changed, the
+   * permissions of any node changed, as they were checked while resolving, or a different user is now logged in on
+   * this thread.
+   *
+   * @param startNode the node the path is relative to
+   * @param directoryPath the path to the directory
+   * @param structureVersion the current structure version of the file system
+   * @param permissionChanges the number of permission changes made to the file system so far
+   * @param user the current user
+   * @return the cached directory node or null
+   */
+  FileSystemTreeNode getDirectory(FileSystemTreeNode startNode, Path directoryPath, long structureVersion,
+      long permissionChanges, User user) {
+    if (structureVersion != _structureVersion || permissionChanges != _permissionChanges || user != _user) {
+      _resolvedDirectories.clear();
+      _structureVersion = structureVersion;
+      _permissionChanges = permissionChanges;
+      _user = user;
+      return null;
+    }
+
+    Map<Path, FileSystemTreeNode> directories = _resolvedDirectories.get(startNode);
+    return directories == null ? null : directories.get(directoryPath);
+  }
+
+  void putDirectory(FileSystemTreeNode startNode, Path directoryPath, FileSystemTreeNode directory) {
+    _resolvedDirectories.computeIfAbsent(startNode, (n) -> new HashMap<>()).put(directoryPath, directory);
+  }
+}
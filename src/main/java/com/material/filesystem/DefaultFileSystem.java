@@ -1,11 +1,23 @@
 package com.material.filesystem;
 
+import com.material.filesystem.diagnostics.CopyEvent;
+import com.material.filesystem.diagnostics.CreateEvent;
+import com.material.filesystem.diagnostics.FileSystemOperationEvent;
+import com.material.filesystem.diagnostics.FindEvent;
+import com.material.filesystem.diagnostics.LookupEvent;
+import com.material.filesystem.diagnostics.MoveEvent;
+import com.material.filesystem.diagnostics.OperationTrace;
+import com.material.filesystem.diagnostics.RemoveEvent;
+import com.material.filesystem.journal.Journal;
+import com.material.filesystem.journal.JournalRecord;
 import com.material.filesystem.permissions.Permission;
+import com.material.filesystem.user.User;
 import com.material.filesystem.user.UserManager;
 import com.material.filesystem.user.UserType;
 import com.material.filesystem.util.FileSystemNodeHelper;
 import com.material.filesystem.util.FileSystemOperationInfo;
 import com.material.filesystem.util.NameCollisionResolver;
+import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.FileAlreadyExistsException;
@@ -14,10 +26,14 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.slf4j.Logger;
@@ -31,6 +47,35 @@ public class DefaultFileSystem implements FileSystem {
   private final ThreadLocal<FileSystemTreeNode> _workingNodeThreadLocal = ThreadLocal.withInitial(() -> _root);
   private final NameCollisionResolver _nameCollisionResolver = new NameCollisionResolver();
   private final UserManager _userManager;
+  // only set while the thread is running a batch, see beginBatch()
+  private final ThreadLocal<BatchScope> _batchScopeThreadLocal = new ThreadLocal<>();
+  // bumped whenever nodes may be moved or removed, so batches can tell their resolved directories are stale
+  private final AtomicLong _structureVersion = new AtomicLong();
+  // every node in the tree reports to the dispatcher, which fans out to the registered listeners, if there are any
+  private final List<FileSystemChangeListener> _changeListeners = new CopyOnWriteArrayList<>();
+  // counted incrementally as the tree changes, see FileSystemStats
+  private final FileSystemStats _stats = new FileSystemStats();
+  // every change is appended to it while the change holds its locks, if the file system has one, see setJournal()
+  private volatile Journal _journal = null;
+  // operations changing the structure of the tree pass it, so snapshots start between them, see snapshot()
+  private final SnapshotGate _snapshotGate = new SnapshotGate();
+  private final FileSystemChangeListener _changeDispatcher = new FileSystemChangeListener() {
+    @Override
+    public void onNodeChanged(String path) {
+      _changeListeners.forEach(listener -> listener.onNodeChanged(path));
+    }
+
+    @Override
+    public void onNodeRemoved(String path) {
+      _changeListeners.forEach(listener -> listener.onNodeRemoved(path));
+    }
+
+    @Override
+    public boolean isListening() {
+      // nodes skip building paths while nothing is registered
+      return !_changeListeners.isEmpty();
+    }
+  };
 
   public DefaultFileSystem(UserManager userManager) {
     _userManager = userManager;
@@ -48,6 +93,242 @@ public class DefaultFileSystem implements FileSystem {
 
     // default User type to read
     _root.setUserTypePermission(UserType.USER, Permission.READ, false);
+
+    _root.setChangeListener(_changeDispatcher);
+    ((DefaultFileSystemTreeNode) _root).countIn(_stats);
+    ((DefaultFileSystemTreeNode) _root).snapshotBy(_snapshotGate);
+  }
+
+  /**
+   * Returns the statistics of this file system, e.g. to register as an MBean.
+   * @return the statistics
+   */
+  public FileSystemStats getStats() {
+    return _stats;
+  }
+
+  /**
+   * Journal every change to this file system from now on, e.g. once the journal was replayed into it with
+   * {@link #replay(JournalRecord)}.
+   * @param journal the journal, or null to stop journaling
+   */
+  public void setJournal(Journal journal) {
+    _journal = journal;
+    ((DefaultFileSystemTreeNode) _root).journalTo(journal);
+  }
+
+  /**
+   * Start reading the tree as it is now, while it keeps changing. The snapshot starts once the moves, copies, creates
+   * and removes running finished, which wait meanwhile, and from then on each node keeps an image of itself as it was
+   * before it changes for the first time, until the snapshot read it. Changes to contents and permissions do not
+   * wait: those running while the snapshot starts may be in it or not, and are journaled after its journal position.
+   * @return the snapshot, which must be closed
+   * @throws IllegalStateException if a snapshot is already being taken
+   */
+  public TreeSnapshot snapshot() {
+    return _snapshotGate.begin(epoch -> {
+      Journal journal = _journal;
+      return new TreeSnapshot(_snapshotGate, epoch, (DefaultFileSystemTreeNode) _root,
+          journal == null ? 0 : journal.getPosition());
+    });
+  }
+
+  /**
+   * Make a node from an image read back from a snapshot. The node is not attached to the tree, so nodes can be
+   * restored by several threads at once, bottom up, before the nodes below the root are restored with
+   * {@link #restoreRoot(NodeImage, List)}.
+   * @param name the name of the node
+   * @param image the image
+   * @param children the nodes restored below a directory
+   * @return the node
+   */
+  public FileSystemTreeNode restoreNode(String name, NodeImage image, List<FileSystemTreeNode> children) {
+    DefaultFileSystemTreeNode node = new DefaultFileSystemTreeNode(
+        FileSystemNodeHelper.createFileSystemObject(name, image.getNodeType()), image.getNodeType());
+    node.restore(image, children);
+    // as if attached, so attaching the nodes below the root walks no further
+    node.setChangeListener(_changeDispatcher);
+    node.snapshotBy(_snapshotGate);
+    node.countIn(_stats);
+    return node;
+  }
+
+  /**
+   * Restore the root from an image read back from a snapshot, with the nodes restored below it, before the file system
+   * is used or journaled to.
+   * @param image the image of the root
+   * @param children the nodes below the root, made with {@link #restoreNode(String, NodeImage, List)}
+   * @throws IllegalStateException if the root already has nodes below it
+   */
+  public void restoreRoot(NodeImage image, List<FileSystemTreeNode> children) {
+    if (!_root.getChildren().isEmpty()) {
+      throw new IllegalStateException("Cannot restore a snapshot into a file system which is not empty");
+    }
+    ((DefaultFileSystemTreeNode) _root).restore(image, children);
+  }
+
+  /**
+   * Make a directory from an image read back from a snapshot, whose nodes below are loaded when first used, see
+   * {@link #restoreRootLazily(NodeImage, Supplier, long, long, long)}.
+   * @param name the name of the directory
+   * @param image the image
+   * @param children loads the nodes below, made with the restoreNodeLazily methods
+   * @return the node
+   */
+  public FileSystemTreeNode restoreNodeLazily(String name, NodeImage image,
+      Supplier<List<FileSystemTreeNode>> children) {
+    DefaultFileSystemTreeNode node = new DefaultFileSystemTreeNode(new Directory(name), NodeType.DIRECTORY);
+    node.restore(image, Collections.emptyList());
+    node.loadChildrenLazily(children);
+    return node;
+  }
+
+  /**
+   * Make a file from an image read back from a snapshot, whose contents are loaded when first used.
+   * @param name the name of the file
+   * @param image the image, without contents
+   * @param size the size of the contents
+   * @param contents loads the contents
+   * @return the node
+   */
+  public FileSystemTreeNode restoreNodeLazily(String name, NodeImage image, int size, Supplier<byte[]> contents) {
+    File file = new File(name);
+    DefaultFileSystemTreeNode node = new DefaultFileSystemTreeNode(file, NodeType.FILE);
+    node.restore(image, Collections.emptyList());
+    file.loadContentsLazily(size, contents);
+    return node;
+  }
+
+  /**
+   * Restore the root from an image read back from a snapshot, loading the nodes below it when they are first used,
+   * so the file system can be used right away however large the snapshot is. A node loaded takes the listener,
+   * journal and statistics of its parent, the nodes of the snapshot are counted at once, before the file system is
+   * used or journaled to.
+   * @param image the image of the root
+   * @param children loads the nodes below the root, made with the restoreNodeLazily methods
+   * @param directories the number of directories below the root
+   * @param files the number of files
+   * @param contentBytes the size of the contents of the files
+   * @throws IllegalStateException if the root already has nodes below it
+   */
+  public void restoreRootLazily(NodeImage image, Supplier<List<FileSystemTreeNode>> children, long directories,
+      long files, long contentBytes) {
+    restoreRoot(image, Collections.emptyList());
+    ((DefaultFileSystemTreeNode) _root).loadChildrenLazily(children);
+    _stats.recordNodes(directories, files, contentBytes);
+  }
+
+  /**
+   * Restore a directory of the tree from an image read back from a delta, with the nodes to be below it: those below
+   * it already which are to stay, and nodes made with {@link #restoreNode(String, NodeImage, List)}. The nodes no
+   * longer below it are dropped. Called before the file system is used or journaled to.
+   * @param directory the directory
+   * @param image the image
+   * @param children the nodes to be below it
+   */
+  public void restoreChanges(FileSystemTreeNode directory, NodeImage image, List<FileSystemTreeNode> children) {
+    ((DefaultFileSystemTreeNode) directory).restoreChanges(image, children);
+  }
+
+  @Override
+  public void commit() {
+    Journal journal = _journal;
+    if (journal != null) {
+      journal.commit();
+    }
+  }
+
+  /**
+   * Apply a change read back from a journal, without checking permissions. A change which does not apply, e.g. as its
+   * path does not resolve, is logged and skipped.
+   * @param record the change
+   */
+  public void replay(JournalRecord record) {
+    try {
+      applyJournalRecord(record);
+    } catch (IOException | RuntimeException ex) {
+      LOG.warn("Could not replay " + record + ": " + ex);
+    }
+  }
+
+  private void applyJournalRecord(JournalRecord record) throws IOException {
+    Path path = Paths.get(record.getPath());
+    FileSystemTreeNode node;
+    switch (record.getKind()) {
+      case CREATE:
+        node = getNodeAtPath(path.getParent(), false).createChildNode(path.getFileName().toString(),
+            record.getNodeType());
+        replayOwner(node, record.getUserName());
+        break;
+      case REMOVE:
+        node = getNodeAtPath(path, false);
+        if (node.isRootNode() || node.getParent().removeChild(node) == null) {
+          throw new FileNotFoundException("Could not remove " + path);
+        }
+        break;
+      case MOVE:
+        replayPlacement(getNodeAtPath(path, false), Paths.get(record.getTarget()));
+        break;
+      case COPY:
+        node = getNodeAtPath(path, false).copy();
+        replayOwner(node, record.getUserName());
+        replayPlacement(node, Paths.get(record.getTarget()));
+        break;
+      case SET_CONTENTS:
+        getFileAtPath(path).setContents(record.getBytes());
+        break;
+      case WRITE_CONTENTS:
+        getFileAtPath(path).writeContentStream(new ByteArrayInputStream(record.getBytes()), record.getOffset());
+        break;
+      case SET_USER_TYPE_PERMISSION:
+        getNodeAtPath(path, false).setUserTypePermission(record.getUserType(), record.getPermission(), false);
+        break;
+      case SET_USER_PERMISSION:
+        getNodeAtPath(path, false).setUserPermission(findUser(record.getUserName()), record.getPermission(), false);
+        break;
+      case CLEAR_USER_TYPE_PERMISSIONS:
+        getNodeAtPath(path, false).clearUserTypePermissions(record.getUserType());
+        break;
+      case CLEAR_USER_PERMISSIONS:
+        getNodeAtPath(path, false).clearUserPermissions(findUser(record.getUserName()));
+        break;
+      default:
+        throw new UnsupportedOperationException("Unknown journal record " + record.getKind());
+    }
+  }
+
+  private void replayPlacement(FileSystemTreeNode node, Path target) throws FileNotFoundException {
+    // the name collision was resolved when the change was made, anything at the target was replaced
+    getNodeAtPath(target.getParent(), false).replaceChild(node, target.getFileName().toString());
+  }
+
+  private void replayOwner(FileSystemTreeNode node, String userName) {
+    if (userName != null) {
+      node.setOwner(findUser(userName));
+    }
+  }
+
+  private User findUser(String userName) {
+    return Optional.ofNullable(_userManager.findUser(userName))
+        .orElseThrow(() -> new IllegalStateException("User " + userName + " was not found"));
+  }
+
+  private File getFileAtPath(Path path) throws FileNotFoundException {
+    FileSystemTreeNode node = getNodeAtPath(path, false);
+    if (node.getNodeType() != NodeType.FILE) {
+      throw new IllegalStateException(path + " is not a file");
+    }
+    return (File) node.getFileSystemObject();
+  }
+
+  @Override
+  public void addChangeListener(FileSystemChangeListener listener) {
+    _changeListeners.add(listener);
+  }
+
+  @Override
+  public void removeChangeListener(FileSystemChangeListener listener) {
+    _changeListeners.remove(listener);
   }
 
   @Override
@@ -85,6 +366,11 @@ public class DefaultFileSystem implements FileSystem {
     }
   }
 
+  @Override
+  public void resetWorkingNode() {
+    _workingNodeThreadLocal.remove();
+  }
+
   @Override
   public FileSystemTreeNode getWorkingNode() {
     FileSystemTreeNode node = _workingNodeThreadLocal.get();
@@ -102,6 +388,8 @@ public class DefaultFileSystem implements FileSystem {
   private FileSystemTreeNode findFirstMatchingNode(Pattern pattern, FileSystemTreeNode currentNode,
       String currentPath) {
 
+    OperationTrace.touchNodes(1);
+    _stats.recordFindNodeVisited();
     FileSystemNodeHelper.checkUserPermission(_userManager, currentNode, Permission.READ);
 
     // build up the path to the current node;
@@ -120,7 +408,13 @@ public class DefaultFileSystem implements FileSystem {
 
   @Override
   public FileSystemTreeNode findFirstNodeMatching(Pattern pattern) {
-    return findFirstMatchingNode(pattern, getWorkingNode(), getWorkingNode().getPath().toString());
+    return FileSystemOperationEvent.trace(new FindEvent(), pattern, null, () -> findFirstMatchingNode(pattern));
+  }
+
+  private FileSystemTreeNode findFirstMatchingNode(Pattern pattern) {
+    FileSystemTreeNode node = findFirstMatchingNode(pattern, getWorkingNode(), getWorkingNode().getPath().toString());
+    _stats.recordFind(node == null ? 0 : 1);
+    return node;
   }
 
   /**
@@ -133,6 +427,8 @@ public class DefaultFileSystem implements FileSystem {
   private void findAllNodesMatching(Pattern pattern, FileSystemTreeNode currentNode, String currentPath,
       List<FileSystemTreeNode> matchingNodes) {
     // build up the path to the current node;
+    OperationTrace.touchNodes(1);
+    _stats.recordFindNodeVisited();
     FileSystemNodeHelper.checkUserPermission(_userManager, currentNode, Permission.READ);
 
     if (pattern.matcher(currentPath).matches()) {
@@ -149,16 +445,50 @@ public class DefaultFileSystem implements FileSystem {
 
   @Override
   public Collection<FileSystemTreeNode> findAllNodesMatching(Pattern pattern) {
+    return FileSystemOperationEvent.trace(new FindEvent(), pattern, null, () -> findAllMatchingNodes(pattern));
+  }
+
+  private Collection<FileSystemTreeNode> findAllMatchingNodes(Pattern pattern) {
     List<FileSystemTreeNode> collectedMatchingNodes = new LinkedList<>();
     findAllNodesMatching(pattern, getWorkingNode(), getWorkingNode().getPath().toString(), collectedMatchingNodes);
+    _stats.recordFind(collectedMatchingNodes.size());
     return collectedMatchingNodes;
   }
 
   @Override
   public boolean removeNodeAtPath(Path path, boolean relative) throws FileNotFoundException {
-    FileSystemTreeNode node = FileSystemNodeHelper.walkToEndNodeInPath(path, relative ? getWorkingNode() : _root)
-        .orElseThrow(() -> new FileNotFoundException(
-            "Cannot remove node at " + path.toString() + " because one of the directories or files did not exist"));
+    _snapshotGate.enter();
+    try {
+      return FileSystemOperationEvent.trace(new RemoveEvent(), path, null, () -> removeNode(path, relative));
+    } finally {
+      _snapshotGate.exit();
+    }
+  }
+
+  private boolean removeNode(Path path, boolean relative) throws FileNotFoundException {
+    while (true) {
+      try {
+        return tryRemoveNode(path, relative);
+      } catch (StaleResolutionException ex) {
+        // another thread removed or replaced the node after the walk found it, walk again
+      }
+    }
+  }
+
+  private boolean tryRemoveNode(Path path, boolean relative) throws FileNotFoundException {
+    onStructureChange();
+    // a named node is looked up again in the directory the walk found it in, once that directory is locked
+    FileSystemTreeNode walkedParent = null;
+    Optional<FileSystemTreeNode> found;
+    if (isNamed(path)) {
+      walkedParent = getParentNodeOrNull(path, relative);
+      found = walkedParent == null ? Optional.empty()
+          : FileSystemNodeHelper.walkToEndNodeInPath(path.getFileName(), walkedParent);
+    } else {
+      found = FileSystemNodeHelper.walkToEndNodeInPath(path, relative ? getWorkingNode() : _root);
+    }
+    FileSystemTreeNode node = found.orElseThrow(() -> new FileNotFoundException(
+        "Cannot remove node at " + path.toString() + " because one of the directories or files did not exist"));
 
     if (node.isRootNode()) {
       throw new UnsupportedOperationException("Cannot delete the root node");
@@ -169,13 +499,16 @@ public class DefaultFileSystem implements FileSystem {
     // check if move is legal
     if (operationInfo.isOperationLegal(FileSystemOperationInfo.OperationType.DELETE)) {
 
-      FileSystemNodeHelper.checkUserPermission(_userManager, node.getParent(), Permission.WRITE);
+      // the node may have been removed or moved since the walk found it
+      FileSystemTreeNode parent = Optional.ofNullable(walkedParent == null ? node.getParent() : walkedParent)
+          .orElseThrow(StaleResolutionException::new);
+      FileSystemNodeHelper.checkUserPermission(_userManager, parent, Permission.WRITE);
 
       // pre-walk all nodes including and below 'node' to check if user can delete them.
       checkNodeSubtreePermissions(node, Permission.DELETE);
       if (FileSystemNodeHelper.isAncestorOf(node, _workingNodeThreadLocal.get())) {
         try {
-          selectWorkingNode(node.getParent().getPath(), false);
+          selectWorkingNode(parent.getPath(), false);
         } catch(IOException ex) {
           try {
             selectWorkingNode(Paths.get("/"), false);
@@ -185,7 +518,26 @@ public class DefaultFileSystem implements FileSystem {
           }
         }
       }
-      return node.getParent().removeChild(node) != null;
+      parent.retain();
+      try {
+        if ((!parent.isRootNode() && parent.getParent() == null)
+            || (walkedParent != null && parent.getChild(path.getFileName().toString()) != node)) {
+          // a move or remove got there first, the path may now name another node or none
+          throw new StaleResolutionException();
+        }
+        Journal journal = startPathChange();
+        try {
+          if (parent.removeChild(node) == null) {
+            throw new StaleResolutionException();
+          }
+          journalRemove(parent, node.getName());
+        } finally {
+          endPathChange(journal);
+        }
+        return true;
+      } finally {
+        parent.release();
+      }
     } else {
       throw new UnsupportedOperationException(
           "Move operation is not supported for " + operationInfo.getNodeTypeRelationship());
@@ -198,6 +550,7 @@ public class DefaultFileSystem implements FileSystem {
    * @param permissions  the permission to check
    */
   void checkNodeSubtreePermissions(FileSystemTreeNode nodeSubtree, Permission... permissions) {
+    OperationTrace.touchNodes(1);
     for (Permission perm : permissions) {
       FileSystemNodeHelper.checkUserPermission(_userManager, nodeSubtree, perm);
     }
@@ -225,20 +578,53 @@ public class DefaultFileSystem implements FileSystem {
 
   @Override
   public FileSystemTreeNode getNodeAtPath(Path path, boolean relative) throws FileNotFoundException {
-    return FileSystemNodeHelper.walkToEndNodeInPath(path, relative ? getWorkingNode() : _root)
+    return FileSystemOperationEvent.trace(new LookupEvent(), path, null, () -> lookupNode(path, relative));
+  }
+
+  private FileSystemTreeNode lookupNode(Path path, boolean relative) throws FileNotFoundException {
+    FileSystemTreeNode startNode = relative ? getWorkingNode() : _root;
+    FileSystemTreeNode parent = getBatchResolvedDirectory(startNode, path);
+    if (parent != null) {
+      return FileSystemNodeHelper.walkToEndNodeInPath(path.getFileName(), parent)
+          .orElseThrow(() -> new FileNotFoundException("Could not find node"));
+    }
+    return FileSystemNodeHelper.walkToEndNodeInPath(path, startNode)
         .orElseThrow(() -> new FileNotFoundException("Could not find node"));
   }
 
   @Override
   public FileSystemTreeNode createNodeAtPath(Path path, NodeType nodeType, boolean relative, boolean createNonLeafNodes)
       throws FileAlreadyExistsException, FileNotFoundException {
+    _snapshotGate.enter();
+    try {
+      // named, as inferred from the operation alone both exceptions would widen to IOException
+      return FileSystemOperationEvent.<FileSystemTreeNode, FileAlreadyExistsException, FileNotFoundException>trace(
+          new CreateEvent(), path, null, () -> createNode(path, nodeType, relative, createNonLeafNodes));
+    } finally {
+      _snapshotGate.exit();
+    }
+  }
+
+  private FileSystemTreeNode createNode(Path path, NodeType nodeType, boolean relative, boolean createNonLeafNodes)
+      throws FileAlreadyExistsException, FileNotFoundException {
 
-    FileSystemTreeNode node = relative ? getWorkingNode() : _root;
+    FileSystemTreeNode startNode = relative ? getWorkingNode() : _root;
+    BatchScope batchScope = _batchScopeThreadLocal.get();
+
+    FileSystemTreeNode resolvedParent = getBatchResolvedDirectory(startNode, path);
+    if (resolvedParent != null) {
+      // write permission on the directories above was checked when the parent was first resolved in this batch
+      FileSystemNodeHelper.checkUserPermission(_userManager, resolvedParent, Permission.WRITE);
+      return createLeafNode(resolvedParent, path, nodeType);
+    }
+
+    FileSystemTreeNode node = startNode;
     FileSystemTreeNode createdNode = null;
 
     Iterator<Path> pathIt = path.iterator();
     while (pathIt.hasNext()) {
       final String partName = pathIt.next().toString();
+      OperationTrace.touchNodes(1);
 
       // checks write permission at each node in the path
       FileSystemNodeHelper.checkUserPermission(_userManager, node, Permission.WRITE);
@@ -252,9 +638,8 @@ public class DefaultFileSystem implements FileSystem {
         if (nextNodeInPath == null) {
           // the directory doesn't exist, create it
           if (createNonLeafNodes) {
-            // create a child and use it for the next node
-            node = node.createChildNode(partName, NodeType.DIRECTORY);
-            node.setOwner(_userManager.currentUser());
+            // create a child and use it for the next node, or the one another thread created meanwhile
+            node = getOrCreateDirectory(node, partName);
           } else {
             throw new FileNotFoundException("Directory: " + partName + " does not exist");
           }
@@ -270,8 +655,10 @@ public class DefaultFileSystem implements FileSystem {
         if (nextNodeInPath != null) {
           throw new FileAlreadyExistsException("File " + path.toString() + " already exists");
         } else {
-          node = node.createChildNode(partName, nodeType);
-          node.setOwner(_userManager.currentUser());
+          if (batchScope != null && path.getParent() != null) {
+            batchScope.putDirectory(startNode, path.getParent(), node);
+          }
+          node = createChildNode(node, path, nodeType);
           createdNode = node;
         }
       }
@@ -280,6 +667,95 @@ public class DefaultFileSystem implements FileSystem {
     return createdNode;
   }
 
+  /**
+   * Create the last node of a path inside its already resolved parent directory.
+   * @param parent the parent directory
+   * @param path the full path being created
+   * @param nodeType the type of node to create
+   * @return the created node
+   * @throws FileAlreadyExistsException if the node already exists
+   */
+  private FileSystemTreeNode createLeafNode(FileSystemTreeNode parent, Path path, NodeType nodeType)
+      throws FileAlreadyExistsException {
+    OperationTrace.touchNodes(1);
+    return createChildNode(parent, path, nodeType);
+  }
+
+  private FileSystemTreeNode createChildNode(FileSystemTreeNode parent, Path path, NodeType nodeType)
+      throws FileAlreadyExistsException {
+    final String partName = path.getFileName().toString();
+    // checked and created in one transaction, so of two threads creating the same node one finds it exists
+    parent.retain();
+    try {
+      if (partName.equals("..") || parent.hasChild(partName)) {
+        throw new FileAlreadyExistsException("File " + path.toString() + " already exists");
+      }
+
+      journalCreate(parent, partName, nodeType);
+      FileSystemTreeNode node = parent.createChildNode(partName, nodeType);
+      node.setOwner(_userManager.currentUser());
+      return node;
+    } finally {
+      parent.release();
+    }
+  }
+
+  private FileSystemTreeNode getOrCreateDirectory(FileSystemTreeNode parent, String name) {
+    parent.retain();
+    try {
+      FileSystemTreeNode existing = parent.getChild(name);
+      if (existing != null) {
+        if (existing.getNodeType() != NodeType.DIRECTORY) {
+          throw new IllegalStateException("Current node is not a directory");
+        }
+        return existing;
+      }
+      journalCreate(parent, name, NodeType.DIRECTORY);
+      FileSystemTreeNode node = parent.createChildNode(name, NodeType.DIRECTORY);
+      node.setOwner(_userManager.currentUser());
+      return node;
+    } finally {
+      parent.release();
+    }
+  }
+
+  @Override
+  public void beginBatch() {
+    if (_batchScopeThreadLocal.get() != null) {
+      throw new IllegalStateException("A batch is already in progress on this thread");
+    }
+    _batchScopeThreadLocal.set(new BatchScope());
+  }
+
+  @Override
+  public void endBatch() {
+    _batchScopeThreadLocal.remove();
+  }
+
+  /**
+   * Returns the parent directory of <pre>path</pre> if it was already resolved by the batch running on this thread.
+   * @param startNode the node the path is relative to
+   * @param path the path
+   * @return the parent directory node, or null if there is no batch or it was not resolved yet
+   */
+  private FileSystemTreeNode getBatchResolvedDirectory(FileSystemTreeNode startNode, Path path) {
+    BatchScope batchScope = _batchScopeThreadLocal.get();
+    if (batchScope == null || path == null || path.getParent() == null) {
+      return null;
+    }
+    FileSystemTreeNode directory = batchScope.getDirectory(startNode, path.getParent(), _structureVersion.get(),
+        _stats.getPermissionChanges(), _userManager.currentUser());
+    _stats.recordBatchDirectoryLookup(directory != null);
+    return directory;
+  }
+
+  /**
+   * Must be called before anything is moved or removed from the tree.
+   */
+  private void onStructureChange() {
+    _structureVersion.incrementAndGet();
+  }
+
   private FileSystemTreeNode mergeDirectoryContents(FileSystemTreeNode sourceNode, FileSystemTreeNode targetNode,
       boolean overwriteExistingFiles) throws FileNotFoundException, FileAlreadyExistsException, UnsupportedOperationException {
     if (sourceNode.getNodeType() != NodeType.DIRECTORY || targetNode.getNodeType() != NodeType.DIRECTORY) {
@@ -304,28 +780,77 @@ public class DefaultFileSystem implements FileSystem {
     return targetNode;
   }
 
+  /**
+   * Copy a file node into a directory, holding the read lock of the source contents until the copy is placed, so no
+   * write to the source comes between copying its contents and the copy showing up.
+   * @param sourceNode the file node
+   * @param dirNode the directory
+   * @param name the name of the copy
+   * @param overwriteExistingNode true to replace a node of that name
+   * @return the copy
+   */
+  private FileSystemTreeNode copyFileNode(FileSystemTreeNode sourceNode, FileSystemTreeNode dirNode, String name,
+      boolean overwriteExistingNode) {
+    // a source replaced by its own copy is uncounted under the write lock of its contents, a read lock cannot upgrade
+    boolean replacesSource = overwriteExistingNode && dirNode.getChild(name) == sourceNode;
+    DefaultFileSystemObject contents = (DefaultFileSystemObject) sourceNode.getFileSystemObject();
+    if (replacesSource) {
+      contents.startWrite();
+    } else {
+      contents.startRead();
+    }
+    try {
+      FileSystemTreeNode copyNode = sourceNode.copy();
+      copyNode.setOwner(_userManager.currentUser());
+      if (!name.equals(copyNode.getName())) {
+        copyNode.getFileSystemObject().setName(name);
+      }
+      // the callers retain the directory, placing the copy retains it again without waiting
+      Journal journal = startPathChange();
+      try {
+        String sourcePath = journaledPath(sourceNode);
+        placeFileNodeInDirectoryNode(copyNode, dirNode, overwriteExistingNode);
+        journalCopy(sourcePath, copyNode);
+      } finally {
+        endPathChange(journal);
+      }
+      return copyNode;
+    } finally {
+      if (replacesSource) {
+        contents.completeWrite();
+      } else {
+        contents.completeRead();
+      }
+    }
+  }
+
   private FileSystemTreeNode placeFileNodeInDirectoryNode(FileSystemTreeNode fileNode, FileSystemTreeNode dirNode,
       boolean overwriteExistingNode) {
+    return placeFileNodeInDirectoryNode(fileNode, dirNode, fileNode.getName(), overwriteExistingNode);
+  }
+
+  private FileSystemTreeNode placeFileNodeInDirectoryNode(FileSystemTreeNode fileNode, FileSystemTreeNode dirNode,
+      String name, boolean overwriteExistingNode) {
     dirNode.retain();
+    Journal journal = startPathChange();
     try {
-      String destinationNodeName = fileNode.getName();
+      String destinationNodeName = name;
       if (!overwriteExistingNode) {
         // resolve the name collision
         while (dirNode.hasChild(destinationNodeName)) {
           destinationNodeName = _nameCollisionResolver.resolve(destinationNodeName);
         }
-        // rename the node
-        fileNode.setName(destinationNodeName);
+        journalMove(fileNode, dirNode, destinationNodeName);
+        // do the placement, renaming the node only once it left its current directory
+        dirNode.addChild(fileNode, destinationNodeName);
       } else {
-        if (dirNode.hasChild(destinationNodeName)) {
-          // file nodes must have a parent, add this new node, but remove the existing one
-          dirNode.removeChild(dirNode.getChild(destinationNodeName));
-        }
+        journalMove(fileNode, dirNode, destinationNodeName);
+        // file nodes must have a parent, add this new node in place of the existing one
+        dirNode.replaceChild(fileNode, destinationNodeName);
       }
-      // do the placement
-      dirNode.addChild(fileNode);
       return fileNode;
     } finally {
+      endPathChange(journal);
       dirNode.release();
     }
   }
@@ -346,13 +871,30 @@ public class DefaultFileSystem implements FileSystem {
 
         FileSystemTreeNode merged = mergeDirectoryContents(sourceNode, existingChild, overwriteExistingFiles);
         //  only do this if merge was successful. Otherwise, leave the files that weren't' moved under original section
-        if (sourceNode.getParent() != null) {
-          sourceNode.getParent().removeChild(sourceNode);
+        FileSystemTreeNode sourceParent = sourceNode.getParent();
+        Journal journal = startPathChange();
+        try {
+          if (sourceParent != null && sourceParent.removeChild(sourceNode) != null) {
+            // its children were journaled as moved one by one
+            journalRemove(sourceParent, sourceNode.getName());
+          }
+        } finally {
+          endPathChange(journal);
         }
 
         return merged;
       } else {
-        destinationNode.addChild(sourceNode);
+        Journal journal = startPathChange();
+        try {
+          String sourcePath = journaledPath(sourceNode);
+          destinationNode.addChild(sourceNode);
+          journal(() -> {
+            String target = attachedPath(sourceNode);
+            return sourcePath == null || target == null ? null : JournalRecord.move(sourcePath, target);
+          });
+        } finally {
+          endPathChange(journal);
+        }
         return destinationNode;
       }
     } finally {
@@ -360,6 +902,181 @@ public class DefaultFileSystem implements FileSystem {
     }
   }
 
+  /**
+   * Append a change to the journal, if there is one, while the change holds its locks, so changes to the same nodes
+   * are journaled in the order they were made, by the paths the nodes have while no path changes, see
+   * {@link Journal#appendByPath}.
+   * @param record makes the record, or returns null if the change was not made in the tree, e.g. in a removed directory
+   */
+  private void journal(Supplier<JournalRecord> record) {
+    Journal journal = _journal;
+    if (journal != null) {
+      journal.appendByPath(record);
+    }
+  }
+
+  /**
+   * Start moving, replacing or removing nodes, which changes the paths of the nodes below them, with the directories
+   * changed retained and no other directory retained until {@link #endPathChange}. The change is journaled before it
+   * ends, so no change journaled by path comes between the change and its record, see
+   * {@link Journal#getPathChangeLock()}.
+   * @return the journal to end the change with, or null if there is none
+   */
+  private Journal startPathChange() {
+    Journal journal = _journal;
+    if (journal != null) {
+      journal.getPathChangeLock().lock();
+    }
+    return journal;
+  }
+
+  private static void endPathChange(Journal journal) {
+    if (journal != null) {
+      journal.getPathChangeLock().unlock();
+    }
+  }
+
+  /**
+   * Journal a node about to be created, with its parent retained, so nothing can be journaled about it before.
+   */
+  private void journalCreate(FileSystemTreeNode parent, String name, NodeType nodeType) {
+    journal(() -> {
+      String path = childPath(parent, name);
+      User owner = _userManager.currentUser();
+      return path == null ? null : JournalRecord.create(path, nodeType, owner == null ? null : owner.getUsername());
+    });
+  }
+
+  private void journalRemove(FileSystemTreeNode parent, String name) {
+    journal(() -> {
+      String path = childPath(parent, name);
+      return path == null ? null : JournalRecord.remove(path);
+    });
+  }
+
+  /**
+   * Journal a node about to be placed in a directory, with the directory retained. A node not in the tree yet, a
+   * copy, is journaled once it was placed, see {@link #journalCopy}.
+   */
+  private void journalMove(FileSystemTreeNode node, FileSystemTreeNode directory, String name) {
+    journal(() -> {
+      String path = attachedPath(node);
+      String target = childPath(directory, name);
+      return path == null || target == null ? null : JournalRecord.move(path, target);
+    });
+  }
+
+  /**
+   * Journal a copy once it was placed.
+   * @param sourcePath the path of the source before the copy was placed, which may have replaced it
+   * @param copyNode the copy
+   */
+  private void journalCopy(String sourcePath, FileSystemTreeNode copyNode) {
+    journal(() -> {
+      String target = attachedPath(copyNode);
+      User owner = copyNode.getOwner();
+      return sourcePath == null || target == null ? null
+          : JournalRecord.copy(sourcePath, target, owner == null ? null : owner.getUsername());
+    });
+  }
+
+  /**
+   * Returns the path of a node to journal a change to it by, if there is a journal.
+   * @return the path, or null
+   */
+  private String journaledPath(FileSystemTreeNode node) {
+    return _journal == null ? null : attachedPath(node);
+  }
+
+  private static String attachedPath(FileSystemTreeNode node) {
+    return ((DefaultFileSystemTreeNode) node).getAttachedPath();
+  }
+
+  private static String childPath(FileSystemTreeNode parent, String name) {
+    String parentPath = attachedPath(parent);
+    if (parentPath == null) {
+      return null;
+    }
+    return parentPath.equals("/") ? "/" + name : parentPath + "/" + name;
+  }
+
+  /**
+   * Check, with the directory a move or copy places its node in retained, that the paths of the operation still
+   * resolve to the nodes they resolved to before the directory was locked.
+   * @param operationInfo the source and target node the paths resolved to
+   * @param directory the retained directory the node is placed in, the target node or its parent
+   * @param destPath the destination path
+   * @param sourceParent the retained directory the source was resolved in, which it must not have left
+   * @throws StaleResolutionException when another thread changed the tree in between
+   */
+  private void checkResolution(FileSystemOperationInfo operationInfo, FileSystemTreeNode directory, Path destPath,
+      FileSystemTreeNode sourceParent) {
+    if (!directory.isRootNode() && directory.getParent() == null) {
+      throw new StaleResolutionException();
+    }
+    FileSystemTreeNode source = operationInfo.getSourceNode();
+    if (!source.isRootNode() && source.getParent() != sourceParent) {
+      throw new StaleResolutionException();
+    }
+    if (!isNamed(destPath)) {
+      // only a named destination can be looked up again
+      return;
+    }
+    String name = destPath.getFileName().toString();
+    FileSystemTreeNode target = operationInfo.getTargetNode();
+    if (target == directory) {
+      // the directory itself was the destination, it must still be there under that name
+      if (!directory.getName().equals(name)) {
+        throw new StaleResolutionException();
+      }
+    } else if (directory.getChild(name) != target) {
+      throw new StaleResolutionException();
+    }
+  }
+
+  /**
+   * Check, before an operation fails or does nothing because of the nodes its paths resolved to, that they still
+   * resolve to them, as the paths are resolved one after the other.
+   * @throws StaleResolutionException when another thread changed the tree in between
+   */
+  private void checkStillResolves(FileSystemOperationInfo operationInfo, Path sourcePath, Path destPath,
+      boolean sourceRelative, boolean destinationRelative) {
+    if (getNodeAtPathOrNull(sourcePath, sourceRelative) != operationInfo.getSourceNode()
+        || getNodeAtPathOrNull(destPath, destinationRelative) != operationInfo.getTargetNode()) {
+      throw new StaleResolutionException();
+    }
+  }
+
+  /**
+   * Retain two nodes in an order every caller agrees on, so two operations retaining the same two cannot deadlock.
+   */
+  private static void retainBoth(FileSystemTreeNode node, FileSystemTreeNode other) {
+    if (System.identityHashCode(node) <= System.identityHashCode(other)) {
+      node.retain();
+      other.retain();
+    } else {
+      other.retain();
+      node.retain();
+    }
+  }
+
+  private static void releaseBoth(FileSystemTreeNode node, FileSystemTreeNode other) {
+    other.release();
+    node.release();
+  }
+
+  private static boolean isNamed(Path path) {
+    String name = path.getFileName() == null ? null : path.getFileName().toString();
+    return name != null && !name.equals(".") && !name.equals("..");
+  }
+
+  private FileSystemTreeNode getParentNodeOrNull(Path path, boolean relative) {
+    if (path.getParent() == null) {
+      return relative ? getWorkingNode() : _root;
+    }
+    return getNodeAtPathOrNull(path.getParent(), relative);
+  }
+
   private FileSystemTreeNode getNodeAtPathOrNull(Path sourcePath, boolean relative) {
     try {
       return getNodeAtPath(sourcePath, relative);
@@ -372,64 +1089,150 @@ public class DefaultFileSystem implements FileSystem {
   public FileSystemTreeNode moveNodeTo(Path sourcePath, Path destPath, boolean sourceRelative,
       boolean destinationRelative, boolean overwrite)
       throws FileAlreadyExistsException, FileNotFoundException, UnsupportedOperationException {
+    _snapshotGate.enter();
+    try {
+      return FileSystemOperationEvent.<FileSystemTreeNode, FileAlreadyExistsException, FileNotFoundException>trace(
+          new MoveEvent(), sourcePath, destPath,
+          () -> moveNode(sourcePath, destPath, sourceRelative, destinationRelative, overwrite));
+    } finally {
+      _snapshotGate.exit();
+    }
+  }
+
+  private FileSystemTreeNode moveNode(Path sourcePath, Path destPath, boolean sourceRelative,
+      boolean destinationRelative, boolean overwrite)
+      throws FileAlreadyExistsException, FileNotFoundException, UnsupportedOperationException {
+    while (true) {
+      try {
+        return tryMoveNode(sourcePath, destPath, sourceRelative, destinationRelative, overwrite);
+      } catch (StaleResolutionException ex) {
+        // another thread changed the tree between resolving the paths and locking the destination, resolve them again
+      }
+    }
+  }
 
+  private FileSystemTreeNode tryMoveNode(Path sourcePath, Path destPath, boolean sourceRelative,
+      boolean destinationRelative, boolean overwrite)
+      throws FileAlreadyExistsException, FileNotFoundException, UnsupportedOperationException {
+
+    onStructureChange();
+    // resolved before the source, so the source was its child unless another thread moved it in between
+    FileSystemTreeNode sourceParent = getParentNodeOrNull(sourcePath, sourceRelative);
     FileSystemOperationInfo operationInfo = new FileSystemOperationInfo(getNodeAtPathOrNull(sourcePath, sourceRelative),
         getNodeAtPathOrNull(destPath, destinationRelative));
 
     // base case
     if (operationInfo.getSourceNode() == operationInfo.getTargetNode()) {
+      checkStillResolves(operationInfo, sourcePath, destPath, sourceRelative, destinationRelative);
       LOG.warn("No Files were moved, source and target node are the same node");
       return operationInfo.getSourceNode();
     }
 
     // check if move is legal - NOTE Permissions not included here.
-    if (operationInfo.isOperationLegal(FileSystemOperationInfo.OperationType.MOVE)) {
+    if (!operationInfo.isOperationLegal(FileSystemOperationInfo.OperationType.MOVE)) {
+      checkStillResolves(operationInfo, sourcePath, destPath, sourceRelative, destinationRelative);
+      throw new UnsupportedOperationException(
+          "Move operation is not supported for " + operationInfo.getNodeTypeRelationship());
+    }
+
+    if (operationInfo.getSourceNode().isRootNode()) {
+      throw new UnsupportedOperationException("Cannot move the root node");
+    }
+
+    FileSystemTreeNode directory;
+    switch (operationInfo.getNodeTypeRelationship()) {
+      case FILE_TO_FILE:
+        directory = Optional.ofNullable(operationInfo.getTargetNode().getParent())
+            .orElseThrow(StaleResolutionException::new);
+        break;
+      case FILE_TO_DIR:
+      case DIR_TO_DIR:
+        directory = operationInfo.getTargetNode();
+        break;
+      case FILE_TO_NONE:
+        directory = getNodeAtPath(destPath.getParent(), destinationRelative);
+        break;
+      case DIR_TO_FILE:
+        throw new UnsupportedOperationException("Cannot move a directory into a file");
+      default:
+        throw new UnsupportedOperationException(
+            "Other unsupported operations: " + operationInfo.getNodeTypeRelationship());
+    }
+    if (!isNamed(sourcePath)) {
+      sourceParent = operationInfo.getSourceNode().getParent();
+    }
+    if (sourceParent == null) {
+      throw new StaleResolutionException();
+    }
+
+    retainBoth(directory, sourceParent);
+    try {
+      checkResolution(operationInfo, directory, destPath, sourceParent);
       switch (operationInfo.getNodeTypeRelationship()) {
-        case FILE_TO_FILE:
-          return placeFileNodeInDirectoryNode(operationInfo.getSourceNode(), operationInfo.getTargetNode().getParent(),
-              overwrite);
-        case FILE_TO_DIR:
-          return placeFileNodeInDirectoryNode(operationInfo.getSourceNode(), operationInfo.getTargetNode(), overwrite);
         case DIR_TO_DIR:
-          return placeDirectoryNodeInsideDirectoryNode(operationInfo.getSourceNode(), operationInfo.getTargetNode(),
-              overwrite);
+          return placeDirectoryNodeInsideDirectoryNode(operationInfo.getSourceNode(), directory, overwrite);
         case FILE_TO_NONE:
           // this is move and rename operation, ensure file name uses dest path file name
-          FileSystemTreeNode destinationParent = getNodeAtPath(destPath.getParent(), destinationRelative);
-          operationInfo.getSourceNode().retain();
-          try {
-            operationInfo.getSourceNode().setName(destPath.getFileName().toString());
-            return placeFileNodeInDirectoryNode(operationInfo.getSourceNode(), destinationParent, overwrite);
-          } finally {
-            operationInfo.getSourceNode().release();
-          }
-        case DIR_TO_FILE:
-          throw new UnsupportedOperationException("Cannot move a directory into a file");
+          return placeFileNodeInDirectoryNode(operationInfo.getSourceNode(), directory,
+              destPath.getFileName().toString(), overwrite);
         default:
-          throw new UnsupportedOperationException(
-              "Other unsupported operations: " + operationInfo.getNodeTypeRelationship());
+          return placeFileNodeInDirectoryNode(operationInfo.getSourceNode(), directory, overwrite);
       }
-    } else {
-      throw new UnsupportedOperationException(
-          "Move operation is not supported for " + operationInfo.getNodeTypeRelationship());
+    } finally {
+      releaseBoth(directory, sourceParent);
     }
   }
 
   @Override
   public FileSystemTreeNode copyNode(Path sourcePath, Path destPath, boolean sourceRelative,
       boolean destinationRelative, boolean overwrite) throws FileNotFoundException {
+    _snapshotGate.enter();
+    try {
+      return FileSystemOperationEvent.trace(new CopyEvent(), sourcePath, destPath,
+          () -> copyNodeTo(sourcePath, destPath, sourceRelative, destinationRelative, overwrite));
+    } finally {
+      _snapshotGate.exit();
+    }
+  }
+
+  private FileSystemTreeNode copyNodeTo(Path sourcePath, Path destPath, boolean sourceRelative,
+      boolean destinationRelative, boolean overwrite) throws FileNotFoundException {
+    while (true) {
+      try {
+        return tryCopyNode(sourcePath, destPath, sourceRelative, destinationRelative, overwrite);
+      } catch (StaleResolutionException ex) {
+        // another thread changed the tree between resolving the paths and locking the destination, resolve them again
+      }
+    }
+  }
+
+  private FileSystemTreeNode tryCopyNode(Path sourcePath, Path destPath, boolean sourceRelative,
+      boolean destinationRelative, boolean overwrite) throws FileNotFoundException {
 
+    // copies can overwrite existing nodes
+    onStructureChange();
+    FileSystemTreeNode sourceParent = getParentNodeOrNull(sourcePath, sourceRelative);
     FileSystemOperationInfo operationInfo = new FileSystemOperationInfo(getNodeAtPathOrNull(sourcePath, sourceRelative),
         getNodeAtPathOrNull(destPath, destinationRelative));
 
     // check if move is legal
     if (!operationInfo.isOperationLegal(FileSystemOperationInfo.OperationType.COPY)) {
+      checkStillResolves(operationInfo, sourcePath, destPath, sourceRelative, destinationRelative);
       throw new UnsupportedOperationException(
           "Move operation is not supported for " + operationInfo.getNodeTypeRelationship());
     }
 
     // get source and destination nodes.
     FileSystemTreeNode sourceNode = operationInfo.getSourceNode();
+    if (sourceNode.isRootNode()) {
+      // the root node is copied from itself
+      sourceParent = sourceNode;
+    } else if (!isNamed(sourcePath)) {
+      sourceParent = sourceNode.getParent();
+    }
+    if (sourceParent == null) {
+      throw new StaleResolutionException();
+    }
 
     FileSystemNodeHelper.checkUserPermission(_userManager, sourceNode, Permission.READ);
     Optional<FileSystemTreeNode> maybeDestinationNode = Optional.ofNullable(operationInfo.getTargetNode());
@@ -452,49 +1255,44 @@ public class DefaultFileSystem implements FileSystem {
 
         try {
           // start a transaction here, so no writes can take place on the destination directory node
-          destinationParentDirectory.retain();
-          copyNode = sourceNode.copy();
-          copyNode.setOwner(_userManager.currentUser());
-          if (!sourcePath.getFileName().equals(destPath.getFileName())) {
-            copyNode.getFileSystemObject().setName(destPath.getFileName().toString());
-          }
-          return placeFileNodeInDirectoryNode(copyNode, destinationParentDirectory, overwrite);
+          retainBoth(destinationParentDirectory, sourceParent);
+          checkResolution(operationInfo, destinationParentDirectory, destPath, sourceParent);
+          return copyFileNode(sourceNode, destinationParentDirectory, destPath.getFileName().toString(), overwrite);
         } finally {
-          destinationParentDirectory.retain();
+          releaseBoth(destinationParentDirectory, sourceParent);
         }
       case FILE_TO_DIR:
         destinationNode = maybeDestinationNode.orElseThrow(() -> new IllegalStateException(
             "Destination node was null, but file operation expects that it was not null"));
 
-        destinationNode.retain();
+        retainBoth(destinationNode, sourceParent);
         try {
-          // copy the file and put it inside the destination directory, update the name to the destination name
-          copyNode = sourceNode.copy();
-          copyNode.setOwner(_userManager.currentUser());
-          return placeFileNodeInDirectoryNode(copyNode, destinationNode, overwrite);
+          checkResolution(operationInfo, destinationNode, destPath, sourceParent);
+          // copy the file and put it inside the destination directory
+          return copyFileNode(sourceNode, destinationNode, sourceNode.getName(), overwrite);
         } finally {
-          destinationNode.release();
+          releaseBoth(destinationNode, sourceParent);
         }
       case FILE_TO_NONE:
         // check if the parent path is found. It means we're copying to a file destination which doesn't yet exist.
         // If not found, this will throw another FileNotFoundException and exit here.
         FileSystemTreeNode destinationParent = getNodeAtPath(destPath.getParent(), false);
-        destinationParent.retain();
+        retainBoth(destinationParent, sourceParent);
         try {
-          // copy the file and put it inside the destination directory, update the name to the destination name
-          copyNode = sourceNode.copy();
-          copyNode.setOwner(_userManager.currentUser());
-          return placeFileNodeInDirectoryNode(copyNode, destinationParent, overwrite);
+          checkResolution(operationInfo, destinationParent, destPath, sourceParent);
+          // copy the file and put it inside the destination directory
+          return copyFileNode(sourceNode, destinationParent, sourceNode.getName(), overwrite);
         } finally {
-          destinationParent.release();
+          releaseBoth(destinationParent, sourceParent);
         }
 
       case DIR_TO_DIR:
         destinationNode = maybeDestinationNode.orElseThrow(() -> new IllegalStateException(
             "Destination node was null, but file operation expects that it was not null"));
-        destinationNode.retain();
+        retainBoth(destinationNode, sourceParent);
         sourceNode.retain();
         try {
+          checkResolution(operationInfo, destinationNode, destPath, sourceParent);
           if (nodeExists(Paths.get(destinationNode.getPath().toString(), sourceNode.getName()))) {
             // if the destination directory already contains a node with matching name
             // it must be a directory, and we'll merge it.
@@ -515,15 +1313,31 @@ public class DefaultFileSystem implements FileSystem {
           } else {
             copyNode = sourceNode.copy();
             copyNode.setOwner(_userManager.currentUser());
-            destinationNode.addChild(copyNode);
+            Journal journal = startPathChange();
+            try {
+              String copiedPath = journaledPath(sourceNode);
+              destinationNode.addChild(copyNode);
+              journalCopy(copiedPath, copyNode);
+            } finally {
+              endPathChange(journal);
+            }
             return copyNode;
           }
         } finally {
-          destinationNode.release();
           sourceNode.release();
+          releaseBoth(destinationNode, sourceParent);
         }
     }
 
     return null;
   }
+
+  /**
+   * Thrown when the nodes a move or copy resolved its paths to changed before it locked them, to resolve them again.
+   */
+  private static class StaleResolutionException extends RuntimeException {
+    StaleResolutionException() {
+      super(null, null, false, false);
+    }
+  }
 }
@@ -1,9 +1,15 @@
 package com.material.filesystem;
 
+import com.material.filesystem.diagnostics.LockKind;
+import com.material.filesystem.diagnostics.LockProfiler;
 import java.util.Objects;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
 
 
 /**
@@ -12,29 +18,39 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 public abstract class DefaultFileSystemObject implements FileSystemObject {
   private final ReadWriteLock _readWriteLock = new ReentrantReadWriteLock();
   private final Lock _readLock = _readWriteLock.readLock();
-  private final Lock _writeLock = _readWriteLock.readLock();
-  private final long _createdTime = System.currentTimeMillis();
+  private final Lock _writeLock = _readWriteLock.writeLock();
+  private long _createdTime = System.currentTimeMillis();
   private long _lastUpdatedTime = System.currentTimeMillis();
   private volatile String _name;
+  // runs after every update, e.g. to notify the tree node holding this object
+  private volatile Runnable _changeHook = null;
+  // supplies the path locks are profiled under, set by the tree node holding this object
+  private volatile Supplier<String> _lockPath = null;
+  // told how much the contents grew or shrank, set by the tree node holding this object
+  private volatile LongConsumer _resizeHook = null;
+  // told what each write wrote, set by the tree node holding this object
+  private volatile ObjIntConsumer<byte[]> _writeHook = null;
+  // supplies the epoch of the snapshot being taken of the tree, set by the tree node holding this object
+  private volatile LongSupplier _snapshotEpoch = null;
 
   public DefaultFileSystemObject(String name) {
     _name = name;
   }
 
   protected void startRead() {
-    _readLock.lock();
+    LockProfiler.lock(_readLock, LockKind.OBJECT_READ, _lockPath);
   }
 
   protected void completeRead() {
-    _readLock.unlock();
+    LockProfiler.unlock(_readLock);
   }
 
   protected void startWrite() {
-    _writeLock.lock();
+    LockProfiler.lock(_writeLock, LockKind.OBJECT_WRITE, _lockPath);
   }
 
   protected void completeWrite() {
-    _writeLock.unlock();
+    LockProfiler.unlock(_writeLock);
   }
 
   public String getName() {
@@ -54,6 +70,70 @@ public abstract class DefaultFileSystemObject implements FileSystemObject {
   @Override
   public void setLastUpdatedTime() {
     _lastUpdatedTime = System.currentTimeMillis();
+    Runnable changeHook = _changeHook;
+    if (changeHook != null) {
+      changeHook.run();
+    }
+  }
+
+  void setChangeHook(Runnable changeHook) {
+    _changeHook = changeHook;
+  }
+
+  void setLockPath(Supplier<String> lockPath) {
+    _lockPath = lockPath;
+  }
+
+  void setResizeHook(LongConsumer resizeHook) {
+    _resizeHook = resizeHook;
+  }
+
+  void setWriteHook(ObjIntConsumer<byte[]> writeHook) {
+    _writeHook = writeHook;
+  }
+
+  void setSnapshotEpoch(LongSupplier snapshotEpoch) {
+    _snapshotEpoch = snapshotEpoch;
+  }
+
+  /**
+   * Returns the epoch of the snapshot being taken of the tree holding this object, see {@link SnapshotGate}.
+   * @return the epoch, or 0 if none is being taken
+   */
+  protected long getSnapshotEpoch() {
+    LongSupplier snapshotEpoch = _snapshotEpoch;
+    return snapshotEpoch == null ? 0 : snapshotEpoch.getAsLong();
+  }
+
+  /**
+   * Set the times of an object restored from a snapshot, before it is shared.
+   */
+  void restoreTimes(long createdTime, long lastUpdatedTime) {
+    _createdTime = createdTime;
+    _lastUpdatedTime = lastUpdatedTime;
+  }
+
+  /**
+   * Report a change in the size of the contents, called while holding the write lock.
+   * @param deltaBytes the number of bytes the contents grew by, negative if they shrank
+   */
+  protected void contentResized(long deltaBytes) {
+    LongConsumer resizeHook = _resizeHook;
+    if (resizeHook != null && deltaBytes != 0) {
+      resizeHook.accept(deltaBytes);
+    }
+  }
+
+  /**
+   * Report what a write wrote, called while holding the write lock.
+   * @param bytes the bytes written, which must not be changed afterwards
+   * @param offset the index the bytes were written at, or -1 if they replaced the contents
+   */
+  protected void contentWritten(byte[] bytes, int offset) {
+    ObjIntConsumer<byte[]> writeHook = _writeHook;
+    if (writeHook != null) {
+      writeHook.accept(bytes, offset);
+    }
   }
 
   @Override
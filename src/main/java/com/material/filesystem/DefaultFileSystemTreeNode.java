@@ -1,5 +1,10 @@
 package com.material.filesystem;
 
+import com.material.filesystem.diagnostics.LockKind;
+import com.material.filesystem.diagnostics.LockProfiler;
+import com.material.filesystem.diagnostics.OperationTrace;
+import com.material.filesystem.journal.Journal;
+import com.material.filesystem.journal.JournalRecord;
 import com.material.filesystem.permissions.Permission;
 import com.material.filesystem.user.DefaultUserManager;
 import com.material.filesystem.user.User;
@@ -10,15 +15,25 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,6 +42,8 @@ public class DefaultFileSystemTreeNode implements FileSystemTreeNode {
   private static final Logger LOG = LoggerFactory.getLogger(DefaultFileSystemTreeNode.class);
   private final List<FileSystemTreeNode> _children = new CopyOnWriteArrayList<>();
   private final Map<String, FileSystemTreeNode> _childMap = new ConcurrentHashMap<>();
+  // loads the nodes below a directory restored lazily from a snapshot when they are first used, null once loaded
+  private volatile Supplier<List<FileSystemTreeNode>> _childLoader = null;
 
   // NOTE - chose to keep these Node local to reduce any contention under stress
   private final Map<User, Set<Permission>> _userPermissions = new ConcurrentHashMap<>();
@@ -47,7 +64,24 @@ public class DefaultFileSystemTreeNode implements FileSystemTreeNode {
 
   // file associated with this tree node, can be a directory.
   private final FileSystemObject _fileSystemObject;
-  private DefaultFileSystemTreeNode _parent = null;
+  private volatile DefaultFileSystemTreeNode _parent = null;
+  private volatile FileSystemChangeListener _changeListener = null;
+  // the path locks of this node are profiled under, see LockProfiler
+  private final Supplier<String> _lockPath = () -> getAttachedPath(null);
+  // the statistics this node is counted in, those of the file system whose tree it is attached to
+  private volatile FileSystemStats _stats = null;
+  // the journal of the file system whose tree this node is attached to, if it has one
+  private volatile Journal _journal = null;
+  // the gate of the file system whose tree this node is attached to, see SnapshotGate
+  private volatile SnapshotGate _snapshotGate = null;
+  // this node as it was when the snapshot of the epoch started, kept once it changed
+  private NodeImage _image = null;
+  private volatile long _imageEpoch = 0;
+  // the generations this node or a node below it last changed in, and this node was last attached in, see SnapshotGate
+  private volatile long _changedIn = 0;
+  private volatile long _attachedIn = 0;
+  private static final AtomicLongFieldUpdater<DefaultFileSystemTreeNode> CHANGED_IN =
+      AtomicLongFieldUpdater.newUpdater(DefaultFileSystemTreeNode.class, "_changedIn");
 
   /**
    * Root Constructor
@@ -61,13 +95,24 @@ public class DefaultFileSystemTreeNode implements FileSystemTreeNode {
     _fileSystemObject = fileSystemObject;
     _nodeType = nodeType;
     _isRootNode = _nodeType == NodeType.DIRECTORY && _fileSystemObject.getName().equals("/");
+    if (_fileSystemObject instanceof DefaultFileSystemObject) {
+      // content writes go straight to the object, it reports them through this node
+      ((DefaultFileSystemObject) _fileSystemObject).setChangeHook(this::notifyChanged);
+      ((DefaultFileSystemObject) _fileSystemObject).setLockPath(_lockPath);
+      ((DefaultFileSystemObject) _fileSystemObject).setResizeHook(this::onContentResized);
+      ((DefaultFileSystemObject) _fileSystemObject).setWriteHook(this::onContentWritten);
+      ((DefaultFileSystemObject) _fileSystemObject).setSnapshotEpoch(this::getSnapshotEpoch);
+    }
   }
 
   @Override
   public void setOwner(User owner) {
     startWrite();
+    keepImage();
     _owner = owner;
+    markChanged();
     completeWrite();
+    notifyChanged();
   }
 
   @Override
@@ -92,22 +137,36 @@ public class DefaultFileSystemTreeNode implements FileSystemTreeNode {
 
   @Override
   public void clearUserPermissions(User user) {
-    startWrite();
-    try {
-      _userPermissions.computeIfAbsent(user, (u) -> new HashSet<>()).clear();
-    } finally {
-      completeWrite();
-    }
+    changeThenJournal(changed -> {
+      startWrite();
+      try {
+        keepImage();
+        _userPermissions.computeIfAbsent(user, (u) -> new HashSet<>()).clear();
+        markChanged();
+        changed.add(this);
+      } finally {
+        completeWrite();
+      }
+      onPermissionsChanged();
+      notifyChanged();
+    }, path -> JournalRecord.clearUserPermissions(path, user.getUsername()));
   }
 
   @Override
   public void clearUserTypePermissions(UserType userType) {
-    startWrite();
-    try {
-      _userTypePermissions.computeIfAbsent(userType, (u) -> new HashSet<>()).clear();
-    } finally {
-      completeWrite();
-    }
+    changeThenJournal(changed -> {
+      startWrite();
+      try {
+        keepImage();
+        _userTypePermissions.computeIfAbsent(userType, (u) -> new HashSet<>()).clear();
+        markChanged();
+        changed.add(this);
+      } finally {
+        completeWrite();
+      }
+      onPermissionsChanged();
+      notifyChanged();
+    }, path -> JournalRecord.clearUserTypePermissions(path, userType));
   }
 
   @Override
@@ -123,17 +182,30 @@ public class DefaultFileSystemTreeNode implements FileSystemTreeNode {
 
   @Override
   public void setUserPermission(User user, Permission permission, boolean recursive) {
+    // each node of a recursive change is journaled on its own
+    changeThenJournal(changed -> addUserPermission(user, permission, recursive, changed),
+        path -> JournalRecord.setUserPermission(path, user.getUsername(), permission));
+  }
+
+  private void addUserPermission(User user, Permission permission, boolean recursive,
+      List<DefaultFileSystemTreeNode> changed) {
     startWrite();
     try {
+      keepImage();
       _userPermissions.computeIfAbsent(user, (u) -> new HashSet<>());
       _userPermissions.get(user).add(permission);
+      markChanged();
+      changed.add(this);
 
       if (recursive) {
-        _children.forEach(child -> child.setUserPermission(user, permission, true));
+        children().forEach(child ->
+            ((DefaultFileSystemTreeNode) child).addUserPermission(user, permission, true, changed));
       }
     } finally {
       completeWrite();
     }
+    onPermissionsChanged();
+    notifyChanged();
   }
 
   @Override
@@ -149,27 +221,40 @@ public class DefaultFileSystemTreeNode implements FileSystemTreeNode {
 
   @Override
   public void setUserTypePermission(UserType userType, Permission permission, boolean recursive) {
+    // each node of a recursive change is journaled on its own
+    changeThenJournal(changed -> addUserTypePermission(userType, permission, recursive, changed),
+        path -> JournalRecord.setUserTypePermission(path, userType, permission));
+  }
+
+  private void addUserTypePermission(UserType userType, Permission permission, boolean recursive,
+      List<DefaultFileSystemTreeNode> changed) {
     startWrite();
     try {
+      keepImage();
       _userTypePermissions.computeIfAbsent(userType, (ut) -> new HashSet<>());
       _userTypePermissions.get(userType).add(permission);
+      markChanged();
+      changed.add(this);
 
       if (recursive) {
-        _children.forEach(child -> child.setUserTypePermission(userType, permission, true));
+        children().forEach(child ->
+            ((DefaultFileSystemTreeNode) child).addUserTypePermission(userType, permission, true, changed));
       }
     } finally {
       completeWrite();
     }
+    onPermissionsChanged();
+    notifyChanged();
   }
 
   @Override
   public void retain() {
-    _transactionLock.lock();
+    LockProfiler.lock(_transactionLock, LockKind.NODE_TRANSACTION, _lockPath);
   }
 
   @Override
   public void release() {
-    _transactionLock.unlock();
+    LockProfiler.unlock(_transactionLock);
   }
 
   /**
@@ -192,16 +277,42 @@ public class DefaultFileSystemTreeNode implements FileSystemTreeNode {
 
   @Override
   public void setName(String name) {
+    String oldName;
+    DefaultFileSystemTreeNode parent;
     startRead();
     try {
+      oldName = internalGetName();
+      parent = _parent;
       _fileSystemObject.setName(name);
     } finally {
       completeRead();
     }
+
+    if (parent != null && !oldName.equals(name)) {
+      // as if attached again, under the new name
+      markAttached();
+      parent.markChanged();
+      parent.notifyRemoved(oldName);
+      parent.notifyChanged();
+    }
   }
 
   @Override
   public void addChild(FileSystemTreeNode child) {
+    addChild(child, child.getName());
+  }
+
+  @Override
+  public void addChild(FileSystemTreeNode child, String childName) {
+    attachChild(child, childName, false);
+  }
+
+  @Override
+  public FileSystemTreeNode replaceChild(FileSystemTreeNode child, String childName) {
+    return attachChild(child, childName, true);
+  }
+
+  private FileSystemTreeNode attachChild(FileSystemTreeNode child, String childName, boolean replace) {
     if (_nodeType != NodeType.DIRECTORY) {
       throw new UnsupportedOperationException("Only directory nodes can have children");
     }
@@ -210,64 +321,128 @@ public class DefaultFileSystemTreeNode implements FileSystemTreeNode {
       throw new UnsupportedOperationException("Cannot add a node that is in the parent path as a child");
     }
 
-    String childName = child.getName();
-    if (!_childMap.containsKey(childName)) {
-      startWrite();
-
-      try {
-        // first try setting the parent
-        DefaultFileSystemTreeNode currentParent = (DefaultFileSystemTreeNode) child.getParent();
-        ((DefaultFileSystemTreeNode) child).setParent(this);
-
-        // then try removing the child link via the old parent
-        if (currentParent != null && currentParent != this) {
-          currentParent.removeChild(child);
+    FileSystemTreeNode replaced = null;
+    startWrite();
+    try {
+      keepImage();
+      // checked under the lock, so two children of the same name cannot both be added
+      FileSystemTreeNode existing = childMap().get(childName);
+      if (existing != null && existing != child) {
+        if (!replace) {
+          throw new UnsupportedOperationException(childName + " is already a child of " + internalGetName());
         }
-        // if successful, then add to the child map
-        _children.add(child);
-        _childMap.put(childName, child);
-      } finally {
-        completeWrite();
+        replaced = unlinkChildLocked(existing);
       }
-    } else {
-      throw new UnsupportedOperationException(child.getName() + " is already a child of " + getName());
+
+      // first remove the child link via the old parent, a move within the tree stays counted in its stats. This
+      // parent too, as a child renamed in place is still linked under its old name
+      DefaultFileSystemTreeNode currentParent = (DefaultFileSystemTreeNode) child.getParent();
+      if (currentParent == this) {
+        unlinkChildLocked(child);
+      } else if (currentParent != null) {
+        currentParent.unlinkChild(child, false);
+      }
+      // then set the parent, which fails for the root node
+      ((DefaultFileSystemTreeNode) child).setParent(this);
+      if (!childName.equals(child.getName())) {
+        // no parent is told, it has none while this node holds it
+        child.getFileSystemObject().setName(childName);
+      }
+
+      // if successful, then add to the child map
+      _children.add(child);
+      _childMap.put(childName, child);
+      ((DefaultFileSystemTreeNode) child).inheritChangeListener(_changeListener);
+      ((DefaultFileSystemTreeNode) child).journalTo(_journal);
+      ((DefaultFileSystemTreeNode) child).snapshotBy(_snapshotGate);
+      ((DefaultFileSystemTreeNode) child).markAttached();
+      markChanged();
+      ((DefaultFileSystemTreeNode) child).countIn(_stats);
+    } finally {
+      completeWrite();
+    }
+    if (replaced != null) {
+      ((DefaultFileSystemTreeNode) replaced).countIn(null);
     }
+    notifyChanged();
+    return replaced;
   }
 
   @Override
   public FileSystemTreeNode removeChild(FileSystemTreeNode child) {
+    return unlinkChild(child, true);
+  }
+
+  /**
+   * Remove a child node.
+   * @param child the child
+   * @param uncount true if the child leaves the tree, so it and the nodes below it are no longer counted in its stats
+   * @return the removed child, or null if it was not a child of this node
+   */
+  private FileSystemTreeNode unlinkChild(FileSystemTreeNode child, boolean uncount) {
     if (_nodeType != NodeType.DIRECTORY) {
       throw new UnsupportedOperationException("Cannot remove children from a non-directory node");
     }
 
-    String existingName = child.getName();
+    FileSystemTreeNode removed;
+    startWrite();
+    try {
+      removed = unlinkChildLocked(child);
+    } finally {
+      completeWrite();
+    }
+    // uncounted once the write lock is released, as it walks the nodes below the child
+    if (removed != null && uncount) {
+      ((DefaultFileSystemTreeNode) removed).countIn(null);
+    }
+    return removed;
+  }
 
-    if (_childMap.containsKey(existingName)) {
-      try {
-        startWrite();
-        //first try setting the parent (this will fail if the child is immutable
-        ((DefaultFileSystemTreeNode) child).setParent(null);
-        FileSystemTreeNode removedChild = _childMap.remove(existingName);
-        if (!_children.remove(removedChild)) {
-          LOG.warn("Did not remove child node: " + existingName + " from " + internalGetName());
-        }
-        return removedChild;
-      } finally {
-        completeWrite();
+  private FileSystemTreeNode unlinkChildLocked(FileSystemTreeNode child) {
+    // checked under the lock and by identity, as the child may have been renamed or replaced by another node
+    String existingName = child.getName();
+    if (childMap().get(existingName) != child) {
+      existingName = _childMap.entrySet().stream()
+          .filter(entry -> entry.getValue() == child)
+          .map(Map.Entry::getKey)
+          .findFirst()
+          .orElse(null);
+      if (existingName == null) {
+        return null;
       }
     }
 
-    return null;
+    keepImage();
+    ((DefaultFileSystemTreeNode) child).setParent(null);
+    _childMap.remove(existingName);
+    if (!_children.remove(child)) {
+      LOG.warn("Did not remove child node: " + existingName + " from " + internalGetName());
+    }
+    markChanged();
+    notifyRemoved(existingName);
+    notifyChanged();
+    return child;
   }
 
   @Override
   public boolean hasChild(String name) {
-    return _childMap.containsKey(name);
+    startRead();
+    try {
+      return childMap().containsKey(name);
+    } finally {
+      completeRead();
+    }
   }
 
   @Override
   public FileSystemTreeNode getChild(String name) {
-    return _childMap.getOrDefault(name, null);
+    // under the read lock, so a node moving between two directories is never seen in both or in neither
+    startRead();
+    try {
+      return childMap().getOrDefault(name, null);
+    } finally {
+      completeRead();
+    }
   }
 
   @Override
@@ -313,7 +488,7 @@ public class DefaultFileSystemTreeNode implements FileSystemTreeNode {
       startRead();
       try {
         // return a copy so it cannot modify the original
-        return new ArrayList<>(_children);
+        return new ArrayList<>(children());
       } finally {
         completeRead();
       }
@@ -339,7 +514,8 @@ public class DefaultFileSystemTreeNode implements FileSystemTreeNode {
     if (_nodeType == NodeType.DIRECTORY) {
       startRead();
       try {
-        return _children.size() + _children.stream().map(FileSystemTreeNode::getSize).reduce(0, Integer::sum);
+        List<FileSystemTreeNode> children = children();
+        return children.size() + children.stream().map(FileSystemTreeNode::getSize).reduce(0, Integer::sum);
       } finally {
         completeRead();
       }
@@ -350,6 +526,7 @@ public class DefaultFileSystemTreeNode implements FileSystemTreeNode {
 
   @Override
   public FileSystemTreeNode copy() {
+    OperationTrace.touchNodes(1);
     startRead();
     try {
       // base cases
@@ -367,6 +544,428 @@ public class DefaultFileSystemTreeNode implements FileSystemTreeNode {
     }
   }
 
+  @Override
+  public void setChangeListener(FileSystemChangeListener listener) {
+    inheritChangeListener(listener);
+  }
+
+  private void inheritChangeListener(FileSystemChangeListener listener) {
+    // nodes created in the tree already share its listener, only moved in or copied subtrees are walked
+    if (_changeListener != listener) {
+      _changeListener = listener;
+      if (_nodeType == NodeType.DIRECTORY) {
+        forEachLoadedChild(child -> child.inheritChangeListener(listener));
+      }
+    }
+  }
+
+  /**
+   * Journal the changes to this node and the nodes below it, which the node makes itself: those to permissions and
+   * contents. Like the change listener, only subtrees moved in or copied in are walked.
+   * @param journal the journal, or null to stop journaling
+   */
+  void journalTo(Journal journal) {
+    if (_journal != journal) {
+      _journal = journal;
+      if (_nodeType == NodeType.DIRECTORY) {
+        forEachLoadedChild(child -> child.journalTo(journal));
+      }
+    }
+  }
+
+  /**
+   * Keep images of this node and the nodes below it for the snapshots of a file system. Nodes new to the tree take no
+   * image for the snapshot being taken, which started before they were in the tree. Like the change listener, only
+   * subtrees moved in or copied in are walked.
+   * @param gate the gate of the file system
+   */
+  void snapshotBy(SnapshotGate gate) {
+    if (_snapshotGate != gate) {
+      _snapshotGate = gate;
+      if (gate != null) {
+        long epoch = gate.getEpoch();
+        _imageEpoch = epoch;
+        if (_fileSystemObject instanceof File) {
+          ((File) _fileSystemObject).skipImage(epoch);
+        }
+      }
+      if (_nodeType == NodeType.DIRECTORY) {
+        forEachLoadedChild(child -> child.snapshotBy(gate));
+      }
+    }
+  }
+
+  private long getSnapshotEpoch() {
+    SnapshotGate gate = _snapshotGate;
+    return gate == null ? 0 : gate.getEpoch();
+  }
+
+  /**
+   * Keep this node for the snapshot being taken, before it changes for the first time since the snapshot started.
+   * Called while holding the write lock.
+   */
+  private void keepImage() {
+    long epoch = getSnapshotEpoch();
+    if (epoch != 0 && _imageEpoch != epoch) {
+      _image = takeImage();
+      _imageEpoch = epoch;
+    }
+  }
+
+  long getChangedIn() {
+    return _changedIn;
+  }
+
+  long getAttachedIn() {
+    return _attachedIn;
+  }
+
+  /**
+   * Mark this node and the nodes above it changed in the current generation, after the change and before it is
+   * journaled, while holding the lock of the change. Nodes are marked from the root down, so a node marked implies its
+   * parents are, and marked again if a snapshot started meanwhile, as it may have passed the path before it was marked:
+   * the change is then either journaled after the position of that snapshot, or marked for the next one.
+   */
+  private void markChanged() {
+    SnapshotGate gate = _snapshotGate;
+    if (gate == null) {
+      return;
+    }
+    long marked = 0;
+    for (long generation = gate.getGeneration(); generation > marked; generation = gate.getGeneration()) {
+      if (_changedIn < generation) {
+        markFromRoot(this, generation);
+      }
+      marked = generation;
+    }
+  }
+
+  private static void markFromRoot(DefaultFileSystemTreeNode node, long generation) {
+    DefaultFileSystemTreeNode parent = node._parent;
+    if (parent != null) {
+      markFromRoot(parent, generation);
+    }
+    CHANGED_IN.accumulateAndGet(node, generation, Math::max);
+  }
+
+  /**
+   * Mark this node attached in the current generation, so a snapshot since an earlier one writes it and the nodes
+   * below it whole, as they moved, or are new, since the earlier one.
+   */
+  private void markAttached() {
+    SnapshotGate gate = _snapshotGate;
+    if (gate != null) {
+      _attachedIn = gate.getGeneration();
+    }
+  }
+
+  /**
+   * Returns this node as it was when the snapshot of an epoch started, once per epoch.
+   * @param epoch the epoch of the snapshot
+   * @return the image
+   */
+  NodeImage getImage(long epoch) {
+    NodeImage image;
+    startRead();
+    try {
+      image = _imageEpoch == epoch && _image != null ? _image : takeImage();
+      // read once, nothing needs to be kept for the snapshot anymore
+      _image = null;
+      _imageEpoch = epoch;
+    } finally {
+      completeRead();
+    }
+    if (_fileSystemObject instanceof File) {
+      image = ((File) _fileSystemObject).completeImage(epoch, image);
+    }
+    return image;
+  }
+
+  /**
+   * Take an image of this node as it is now, called while holding a lock.
+   */
+  private NodeImage takeImage() {
+    Map<String, FileSystemTreeNode> children = new LinkedHashMap<>();
+    children().forEach(child -> children.put(((DefaultFileSystemTreeNode) child).internalGetName(), child));
+    return new NodeImage(_nodeType, _owner, _fileSystemObject.getCreationTime(),
+        _fileSystemObject.getLastUpdatedTime(), copyPermissions(_userTypePermissions),
+        copyPermissions(_userPermissions), null, children);
+  }
+
+  private static <K> Map<K, Set<Permission>> copyPermissions(Map<K, Set<Permission>> permissions) {
+    Map<K, Set<Permission>> copy = new HashMap<>();
+    permissions.forEach((key, granted) -> {
+      if (!granted.isEmpty()) {
+        copy.put(key, EnumSet.copyOf(granted));
+      }
+    });
+    return copy;
+  }
+
+  /**
+   * Restore this node from an image, with the nodes restored below it, before it is shared. The nodes below must
+   * already be journaled, counted and listened to like this node, see {@link DefaultFileSystem#restoreNode}.
+   * @param image the image
+   * @param children the nodes below, named as they are to be
+   */
+  void restore(NodeImage image, List<FileSystemTreeNode> children) {
+    _owner = image.getOwner();
+    _userTypePermissions.clear();
+    image.getUserTypePermissions().forEach((userType, granted) ->
+        _userTypePermissions.put(userType, new HashSet<>(granted)));
+    _userPermissions.clear();
+    image.getUserPermissions().forEach((user, granted) -> _userPermissions.put(user, new HashSet<>(granted)));
+    if (_fileSystemObject instanceof File && image.getContents() != null) {
+      ((File) _fileSystemObject).setContents(image.getContents());
+    }
+    ((DefaultFileSystemObject) _fileSystemObject).restoreTimes(image.getCreationTime(), image.getLastUpdatedTime());
+    for (FileSystemTreeNode child : children) {
+      ((DefaultFileSystemTreeNode) child)._parent = this;
+      _childMap.put(child.getName(), child);
+    }
+    // added at once, each add copies the list
+    _children.addAll(children);
+  }
+
+  /**
+   * Restore this directory from an image, with the nodes to be below it, some of them below it already and the others
+   * restored, before the file system is used or journaled to. The nodes no longer below it are dropped.
+   * @param image the image
+   * @param children the nodes below, named as they are to be
+   */
+  void restoreChanges(NodeImage image, List<FileSystemTreeNode> children) {
+    Set<FileSystemTreeNode> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+    kept.addAll(children);
+    for (FileSystemTreeNode child : children()) {
+      if (!kept.contains(child)) {
+        ((DefaultFileSystemTreeNode) child).countIn(null);
+        ((DefaultFileSystemTreeNode) child)._parent = null;
+      }
+    }
+    _childMap.clear();
+    _children.clear();
+    restore(image, children);
+  }
+
+  /**
+   * Load the nodes below this directory from elsewhere when they are first used, e.g. from a mapped snapshot, instead
+   * of holding them. Called before the node is shared, once it is journaled, counted and listened to.
+   * @param loader loads the nodes below, detached, named as they are to be, and counted with this node, see
+   *               {@link DefaultFileSystem#restoreRootLazily}
+   */
+  void loadChildrenLazily(Supplier<List<FileSystemTreeNode>> loader) {
+    _childLoader = loader;
+  }
+
+  /**
+   * Returns whether the nodes below this node were loaded, see {@link #loadChildrenLazily(Supplier)}.
+   * @return true unless they are still to be loaded
+   */
+  public boolean isLoaded() {
+    return _childLoader == null;
+  }
+
+  private List<FileSystemTreeNode> children() {
+    loadChildren();
+    return _children;
+  }
+
+  private Map<String, FileSystemTreeNode> childMap() {
+    loadChildren();
+    return _childMap;
+  }
+
+  /**
+   * Load the nodes below this node, if they were not yet. They take the listener, journal, snapshot gate and
+   * statistics this node has now, the walks which change those of this node do not walk nodes not loaded yet.
+   */
+  private void loadChildren() {
+    if (_childLoader == null) {
+      return;
+    }
+    synchronized (_children) {
+      Supplier<List<FileSystemTreeNode>> loader = _childLoader;
+      if (loader == null) {
+        return;
+      }
+      List<FileSystemTreeNode> children = loader.get();
+      for (FileSystemTreeNode child : children) {
+        DefaultFileSystemTreeNode node = (DefaultFileSystemTreeNode) child;
+        node._parent = this;
+        node._changeListener = _changeListener;
+        node._journal = _journal;
+        // not new to the tree, so they keep their images for a snapshot being taken
+        node._snapshotGate = _snapshotGate;
+        node._stats = _stats;
+        _childMap.put(node.internalGetName(), node);
+      }
+      _children.addAll(children);
+      _childLoader = null;
+    }
+  }
+
+  /**
+   * Walk the nodes below this node which were loaded. Nodes loaded from now on take what the walk changed on this
+   * node, as the walk waits for loading in progress.
+   */
+  private void forEachLoadedChild(Consumer<DefaultFileSystemTreeNode> action) {
+    synchronized (_children) {
+      if (_childLoader != null) {
+        return;
+      }
+    }
+    _children.forEach(child -> action.accept((DefaultFileSystemTreeNode) child));
+  }
+
+  /**
+   * Count this node and the nodes below it in the statistics of a file system, instead of the statistics they were
+   * counted in, if any. Like the change listener, only subtrees moved in from elsewhere, copied in or removed from the
+   * tree are walked.
+   * @param stats the statistics, or null when the node is detached from the tree
+   */
+  void countIn(FileSystemStats stats) {
+    if (_stats == stats) {
+      return;
+    }
+
+    if (_fileSystemObject instanceof File) {
+      // the contents cannot be resized between reading their size and switching the stats they are counted in
+      ((File) _fileSystemObject).withSize(size -> switchStats(stats, size));
+    } else {
+      switchStats(stats, 0);
+    }
+
+    if (_nodeType == NodeType.DIRECTORY) {
+      // loaded, as the nodes not loaded yet are counted too
+      children().forEach(child -> ((DefaultFileSystemTreeNode) child).countIn(stats));
+    }
+  }
+
+  private void switchStats(FileSystemStats stats, long contentBytes) {
+    FileSystemStats previous = _stats;
+    if (previous != null) {
+      previous.recordNode(_nodeType, contentBytes, -1);
+    }
+    _stats = stats;
+    if (stats != null) {
+      stats.recordNode(_nodeType, contentBytes, 1);
+    }
+  }
+
+  private void onContentResized(long deltaBytes) {
+    FileSystemStats stats = _stats;
+    if (stats != null) {
+      stats.recordContentResized(deltaBytes);
+    }
+  }
+
+  private void onPermissionsChanged() {
+    FileSystemStats stats = _stats;
+    if (stats != null) {
+      // batches drop the directories they resolved, see FileSystem#beginBatch()
+      stats.recordPermissionChange();
+    }
+  }
+
+  private void onContentWritten(byte[] bytes, int offset) {
+    markChanged();
+    journal(path -> offset < 0
+        ? JournalRecord.setContents(path, bytes)
+        : JournalRecord.writeContents(path, offset, bytes));
+  }
+
+  /**
+   * Append a change to the journal, while holding the lock of the change or {@link Journal#getDeferredChangeLock()},
+   * so changes to this node are journaled in the order they were made, by the path this node has while no path
+   * changes, see {@link Journal#appendByPath}.
+   * @param record makes the record from the path of this node
+   */
+  private void journal(Function<String, JournalRecord> record) {
+    Journal journal = _journal;
+    if (journal != null) {
+      journal.appendByPath(() -> {
+        String path = getAttachedPath(null);
+        return path == null ? null : record.apply(path);
+      });
+    }
+  }
+
+  /**
+   * Make a change to this node, and maybe the nodes below it, then journal it for each node changed once their locks
+   * are released: a move or remove holds the directories it changes before it waits for no path to be journaled, see
+   * {@link Journal#getDeferredChangeLock()}.
+   * @param change makes the change, adding the nodes it changed to the list
+   * @param record makes the record of a node changed from its path
+   */
+  private void changeThenJournal(Consumer<List<DefaultFileSystemTreeNode>> change,
+      Function<String, JournalRecord> record) {
+    Journal journal = _journal;
+    if (journal == null) {
+      change.accept(new ArrayList<>());
+      return;
+    }
+
+    journal.getDeferredChangeLock().lock();
+    try {
+      List<DefaultFileSystemTreeNode> changed = new ArrayList<>();
+      change.accept(changed);
+      changed.forEach(node -> node.journal(record));
+    } finally {
+      journal.getDeferredChangeLock().unlock();
+    }
+  }
+
+  private void notifyChanged() {
+    FileSystemChangeListener listener = _changeListener;
+    if (listener != null && listener.isListening()) {
+      String path = getAttachedPath(null);
+      if (path != null) {
+        listener.onNodeChanged(path);
+      }
+    }
+  }
+
+  private void notifyRemoved(String childName) {
+    FileSystemChangeListener listener = _changeListener;
+    if (listener != null && listener.isListening()) {
+      String path = getAttachedPath(childName);
+      if (path != null) {
+        listener.onNodeRemoved(path);
+      }
+    }
+  }
+
+  /**
+   * Returns the absolute path of this node, built without locking, e.g. to journal a change while holding locks.
+   * @return the path, or null if this node is not attached to the root
+   */
+  String getAttachedPath() {
+    return getAttachedPath(null);
+  }
+
+  /**
+   * Build the absolute path of this node, or of a child of it, without locking, as notifications are sent while
+   * locks on the tree are held.
+   * @param childName the child to build the path of, or null for this node
+   * @return the path, or null if this node is not attached to the root
+   */
+  private String getAttachedPath(String childName) {
+    LinkedList<String> names = new LinkedList<>();
+    if (childName != null) {
+      names.addFirst(childName);
+    }
+
+    DefaultFileSystemTreeNode node = this;
+    while (!node._isRootNode) {
+      names.addFirst(node.internalGetName());
+      node = node._parent;
+      if (node == null) {
+        return null;
+      }
+    }
+    return names.isEmpty() ? "/" : "/" + String.join("/", names);
+  }
+
   @Override
   public FileSystemTreeNode createChildNode(String name, NodeType nodeType) {
     DefaultFileSystemTreeNode node =
@@ -431,29 +1030,25 @@ public class DefaultFileSystemTreeNode implements FileSystemTreeNode {
   }
 
   private void startRead() {
-    _readLock.lock();
+    LockProfiler.lock(_readLock, LockKind.NODE_READ, _lockPath);
   }
 
   private void completeRead() {
-    _readLock.unlock();
+    LockProfiler.unlock(_readLock);
   }
 
   private void startWrite() {
     // writing is protected by the transaction lock
     retain();
     try {
-      _writeLock.lock();
+      LockProfiler.lock(_writeLock, LockKind.NODE_WRITE, _lockPath);
     } finally {
       release();
     }
   }
 
   private void completeWrite() {
-    retain();
-    try {
-      _writeLock.unlock();
-    } finally {
-      release();
-    }
+    // not under the transaction lock, which a writer waiting in startWrite holds while the write lock is held here
+    LockProfiler.unlock(_writeLock);
   }
 }
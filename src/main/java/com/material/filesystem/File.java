@@ -1,17 +1,34 @@
 package com.material.filesystem;
 
+import com.material.filesystem.diagnostics.OperationTrace;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
 
 
+/**
+ * A file with byte contents. Writes always replace the contents array rather than modifying it in place, so a
+ * contents array, or a view over it, is never changed once it has been handed out.
+ */
 public class File extends DefaultFileSystemObject {
 
   private byte[] _contents = new byte[0];
+  // loads the contents of a file restored lazily from a snapshot when they are first used, null once loaded
+  private volatile Supplier<byte[]> _contentLoader = null;
+  private int _unloadedSize = 0;
 
   private int _chunkSize = 4;
 
+  // the contents and update time as they were when the snapshot of the epoch started, kept once they changed, see
+  // SnapshotGate
+  private byte[] _imageContents = null;
+  private long _imageLastUpdatedTime = 0;
+  private volatile long _imageEpoch = 0;
+
   public File(String name) {
     super(name);
   }
@@ -19,12 +36,76 @@ public class File extends DefaultFileSystemObject {
   public int size() {
     startRead();
     try {
-      return _contents.length;
+      return internalSize();
     } finally {
       completeRead();
     }
   }
 
+  /**
+   * Load the contents from elsewhere when they are first used, e.g. from a mapped snapshot, instead of holding them.
+   * Called before the file is shared.
+   * @param size the size of the contents
+   * @param loader loads the contents, which must not be changed afterwards
+   */
+  void loadContentsLazily(int size, Supplier<byte[]> loader) {
+    _contents = null;
+    _unloadedSize = size;
+    _contentLoader = loader;
+  }
+
+  /**
+   * Returns whether the contents were loaded, see {@link #loadContentsLazily(int, Supplier)}.
+   * @return true unless they are still to be loaded
+   */
+  public boolean isLoaded() {
+    return _contentLoader == null;
+  }
+
+  /**
+   * Returns the contents, loading them if they were not yet. Called while holding a lock, or to compare files.
+   */
+  private byte[] contents() {
+    if (_contentLoader != null) {
+      synchronized (this) {
+        Supplier<byte[]> loader = _contentLoader;
+        if (loader != null) {
+          _contents = loader.get();
+          _contentLoader = null;
+        }
+      }
+    }
+    return _contents;
+  }
+
+  private int internalSize() {
+    return _contentLoader != null ? _unloadedSize : _contents.length;
+  }
+
+  /**
+   * Replace the contents, whether they were loaded or not, and report the change in size. Called while holding the
+   * write lock.
+   */
+  private void replaceContents(byte[] contents) {
+    synchronized (this) {
+      contentResized(contents.length - internalSize());
+      _contents = contents;
+      _contentLoader = null;
+    }
+  }
+
+  /**
+   * Run an action with the size of the contents, which are not resized until it returns. Unlike {@link #size()}, no
+   * lock of the contents is taken, so a move or remove holding the paths of the journal never waits on a write which
+   * journals, see {@link com.material.filesystem.journal.Journal#getPathChangeLock()}.
+   * @param action takes the size
+   */
+  void withSize(IntConsumer action) {
+    synchronized (this) {
+      action.accept(internalSize());
+    }
+  }
+
   public void setChunkSize(int chunkSize) {
     startWrite();
     try {
@@ -38,24 +119,51 @@ public class File extends DefaultFileSystemObject {
   public byte[] getContentRange(int start, int length) {
     startRead();
     try {
-      return Arrays.copyOfRange(_contents, start, Math.max(start + length, _contents.length));
+      byte[] contents = contents();
+      return Arrays.copyOfRange(contents, start, Math.max(start + length, contents.length));
     } finally {
       completeRead();
     }
   }
 
+  /**
+   * Returns read only views over a range of the contents without copying them. Each view covers at most
+   * <pre>sliceSize</pre> bytes, so a large range can be sent with a gathering write without the transport staging
+   * it all at once.
+   *
+   * @param start the first byte of the range
+   * @param length the number of bytes in the range
+   * @param sliceSize the maximum number of bytes per view
+   * @return the views, in order
+   * @throws IndexOutOfBoundsException if the range is not within the contents
+   */
+  public ByteBuffer[] getContentBuffers(int start, int length, int sliceSize) {
+    byte[] contents = getContents();
+    if (start < 0 || length < 0 || start + length > contents.length) {
+      throw new IndexOutOfBoundsException(
+          "Range " + start + " - " + (start + length) + " is outside of the file size " + contents.length);
+    }
+
+    ByteBuffer[] buffers = new ByteBuffer[Math.max(1, (length + sliceSize - 1) / sliceSize)];
+    for (int i = 0; i < buffers.length; i++) {
+      int offset = start + i * sliceSize;
+      buffers[i] = ByteBuffer.wrap(contents, offset, Math.min(sliceSize, start + length - offset)).asReadOnlyBuffer();
+    }
+    return buffers;
+  }
+
   public void readContentStream(ByteArrayOutputStream buffer) throws IOException {
     readContentStream(new FileStreamReader(buffer, _chunkSize));
   }
 
   public void readContentStream(FileStreamReader streamReader) throws IOException {
-    readContentStream(streamReader, 0, _contents.length);
+    readContentStream(streamReader, 0, size());
   }
 
   public void readContentStream(FileStreamReader streamReader, int offset, int length) throws IOException {
     startRead();
     try {
-      streamReader.read(new ByteArrayInputStream(_contents, offset, length));
+      streamReader.read(new ByteArrayInputStream(contents(), offset, length));
     } finally {
       completeRead();
     }
@@ -74,8 +182,12 @@ public class File extends DefaultFileSystemObject {
     startWrite();
     try {
       ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-      writer.write(buffer, _contents);
-      _contents = writer.getBytesWritten();
+      byte[] contents = contents();
+      writer.write(buffer, contents);
+      byte[] written = writer.getBytesWritten();
+      keepImage();
+      replaceContents(written);
+      contentWritten(writer.getWriteContents(), writer.getContentWriteStartIdx());
       setLastUpdatedTime();
     } finally {
       completeWrite();
@@ -89,7 +201,7 @@ public class File extends DefaultFileSystemObject {
   public byte[] getContents() {
     startRead();
     try {
-      return _contents;
+      return contents();
     } finally {
       completeRead();
     }
@@ -98,13 +210,59 @@ public class File extends DefaultFileSystemObject {
   public void setContents(byte[] bytes) {
     startWrite();
     try {
-      _contents = bytes;
+      keepImage();
+      replaceContents(bytes);
+      contentWritten(bytes, -1);
       setLastUpdatedTime();
     } finally {
       completeWrite();
     }
   }
 
+  /**
+   * Completes the image of the node holding this file with the contents as they were when the snapshot of an epoch
+   * started, once per epoch.
+   * @param epoch the epoch of the snapshot
+   * @param image the image of the node
+   * @return the image with the contents and update time of this file
+   */
+  NodeImage completeImage(long epoch, NodeImage image) {
+    startRead();
+    try {
+      NodeImage completed = _imageEpoch == epoch && _imageContents != null
+          ? image.withContents(_imageContents, _imageLastUpdatedTime)
+          : image.withContents(contents(), getLastUpdatedTime());
+      // read once, nothing needs to be kept for the snapshot anymore
+      _imageContents = null;
+      _imageEpoch = epoch;
+      return completed;
+    } finally {
+      completeRead();
+    }
+  }
+
+  /**
+   * Take no image of the contents for the snapshot of an epoch, e.g. as the file was created since it started.
+   * @param epoch the epoch of the snapshot
+   */
+  void skipImage(long epoch) {
+    _imageEpoch = epoch;
+  }
+
+  /**
+   * Keep the contents for the snapshot being taken, before they change for the first time since it started. Called
+   * while holding the write lock.
+   */
+  private void keepImage() {
+    long epoch = getSnapshotEpoch();
+    if (epoch != 0 && _imageEpoch != epoch) {
+      // contents are never changed in place, so the array is the image
+      _imageContents = contents();
+      _imageLastUpdatedTime = getLastUpdatedTime();
+      _imageEpoch = epoch;
+    }
+  }
+
   @Override
   public File copy() {
     startRead();
@@ -112,6 +270,7 @@ public class File extends DefaultFileSystemObject {
       File copy = new File(getName());
       byte[] contents = getContents();
       copy.setContents(Arrays.copyOf(contents, contents.length));
+      OperationTrace.recordBytesCopied(contents.length);
       copy.setChunkSize(_chunkSize);
       return copy;
     } finally {
@@ -128,11 +287,11 @@ public class File extends DefaultFileSystemObject {
       return false;
     }
     File file = (File) o;
-    return super.equals(o) && Arrays.equals(_contents, file._contents);
+    return super.equals(o) && Arrays.equals(contents(), file.contents());
   }
 
   @Override
   public int hashCode() {
-    return Arrays.hashCode(_contents);
+    return Arrays.hashCode(contents());
   }
 }
@@ -13,6 +13,7 @@ public class FileStreamWriter {
   private final int _contentWriteStartIdx;
   private final int _chunkSize;
   private byte[] _bytesWritten;
+  private byte[] _writeContents;
 
   /**
    * Constructor
@@ -43,6 +44,7 @@ public class FileStreamWriter {
 
     buffer.flush();
     byte[] writeContents = buffer.toByteArray();
+    _writeContents = writeContents;
 
     if (_contentWriteStartIdx > existingBytes.length) {
       throw new ArrayIndexOutOfBoundsException("Write index must be within content bounds");
@@ -77,4 +79,16 @@ public class FileStreamWriter {
   public byte[] getBytesWritten() {
     return _bytesWritten;
   }
+
+  /**
+   * Returns the bytes read from the input stream, which were written at the start index.
+   * @return the bytes
+   */
+  public byte[] getWriteContents() {
+    return _writeContents;
+  }
+
+  public int getContentWriteStartIdx() {
+    return _contentWriteStartIdx;
+  }
 }
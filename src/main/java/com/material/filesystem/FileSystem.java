@@ -18,6 +18,11 @@ public interface FileSystem {
    */
   void selectWorkingNode(Path path, boolean relative) throws IOException;
 
+  /**
+   * Make the root the working node of the current thread again, e.g. when the thread finishes serving a client.
+   */
+  void resetWorkingNode();
+
   /**
    * Get the current working node, for the current thread.
    * @return FileSystemTreeNode
@@ -125,4 +130,36 @@ public interface FileSystem {
    */
   FileSystemTreeNode copyNode(Path sourcePath, Path destPath, boolean sourceRelative, boolean destinationRelative,
       boolean overwrite) throws FileNotFoundException;
+
+  /**
+   * Start a batch of operations on the current thread. Until {@link #endBatch()} is called, directories resolved by
+   * earlier operations are reused, until a move, copy or remove changes the structure of the tree or the permissions of
+   * a node change.
+   * @throws IllegalStateException if a batch is already in progress on this thread
+   */
+  void beginBatch();
+
+  /**
+   * Complete the batch started on the current thread. Does nothing if no batch is in progress.
+   */
+  void endBatch();
+
+  /**
+   * Wait until the changes the current thread made are durable, as far as the journal of the file system promises.
+   * Does nothing if the file system has no journal.
+   * @throws java.io.UncheckedIOException if the journal could not be written
+   */
+  void commit();
+
+  /**
+   * Register a listener for changes to any node in the file system.
+   * @param listener the listener
+   */
+  void addChangeListener(FileSystemChangeListener listener);
+
+  /**
+   * Remove a listener added with {@link #addChangeListener}.
+   * @param listener the listener
+   */
+  void removeChangeListener(FileSystemChangeListener listener);
 }
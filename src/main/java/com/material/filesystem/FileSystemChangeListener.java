@@ -0,0 +1,30 @@
+package com.material.filesystem;
+
+/**
+ * Notified of changes to the nodes of a {@link FileSystem}, see {@link FileSystem#addChangeListener}. Paths are
+ * absolute, e.g. /a/b, and nodes not attached to the root (e.g. a copy being built) are not reported.
+ *
+ * Notifications are delivered on the thread making the change, often while it holds locks on the tree, so a listener
+ * must return quickly and must not call back into the file system.
+ */
+public interface FileSystemChangeListener {
+  /**
+   * The contents, metadata, permissions or children of a node changed.
+   * @param path the path of the node
+   */
+  void onNodeChanged(String path);
+
+  /**
+   * A node, and every node below it, is no longer at its path. It was removed, moved or renamed.
+   * @param path the path the node had
+   */
+  void onNodeRemoved(String path);
+
+  /**
+   * Whether the listener wants to be notified at the moment, so nodes build no paths for it while it does not.
+   * @return true by default
+   */
+  default boolean isListening() {
+    return true;
+  }
+}
@@ -0,0 +1,131 @@
+package com.material.filesystem;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Counters describing the contents of a {@link DefaultFileSystem} and the work done on it. They are updated as nodes
+ * are attached to and detached from the tree and as file contents change, so reading them never walks the tree.
+ */
+public class FileSystemStats implements FileSystemStatsMXBean {
+  private final LongAdder _files = new LongAdder();
+  private final LongAdder _directories = new LongAdder();
+  private final LongAdder _contentBytes = new LongAdder();
+  private final LongAdder _batchDirectoryCacheHits = new LongAdder();
+  private final LongAdder _batchDirectoryCacheMisses = new LongAdder();
+  private final LongAdder _finds = new LongAdder();
+  private final LongAdder _findNodesVisited = new LongAdder();
+  private final LongAdder _findMatches = new LongAdder();
+  // read by batches as a version, so not a LongAdder: a batch must see every change made before it reads it
+  private final AtomicLong _permissionChanges = new AtomicLong();
+
+  /**
+   * Count a node attached to, or detached from, the tree.
+   * @param nodeType the type of node
+   * @param contentBytes the size of its contents
+   * @param sign 1 when attached, -1 when detached
+   */
+  void recordNode(NodeType nodeType, long contentBytes, int sign) {
+    if (nodeType == NodeType.DIRECTORY) {
+      _directories.add(sign);
+    } else {
+      _files.add(sign);
+      _contentBytes.add(sign * contentBytes);
+    }
+  }
+
+  /**
+   * Count the nodes of a tree restored lazily at once, before they are loaded.
+   */
+  void recordNodes(long directories, long files, long contentBytes) {
+    _directories.add(directories);
+    _files.add(files);
+    _contentBytes.add(contentBytes);
+  }
+
+  void recordContentResized(long deltaBytes) {
+    _contentBytes.add(deltaBytes);
+  }
+
+  void recordBatchDirectoryLookup(boolean hit) {
+    if (hit) {
+      _batchDirectoryCacheHits.increment();
+    } else {
+      _batchDirectoryCacheMisses.increment();
+    }
+  }
+
+  void recordFind(int matches) {
+    _finds.increment();
+    _findMatches.add(matches);
+  }
+
+  void recordFindNodeVisited() {
+    _findNodesVisited.increment();
+  }
+
+  /**
+   * Count a change to the permissions of a node, once it was made.
+   */
+  void recordPermissionChange() {
+    _permissionChanges.incrementAndGet();
+  }
+
+  @Override
+  public long getNodeCount() {
+    return _files.sum() + _directories.sum();
+  }
+
+  @Override
+  public long getFileCount() {
+    return _files.sum();
+  }
+
+  @Override
+  public long getDirectoryCount() {
+    return _directories.sum();
+  }
+
+  @Override
+  public long getContentBytes() {
+    return _contentBytes.sum();
+  }
+
+  @Override
+  public long getBatchDirectoryCacheHits() {
+    return _batchDirectoryCacheHits.sum();
+  }
+
+  @Override
+  public long getBatchDirectoryCacheMisses() {
+    return _batchDirectoryCacheMisses.sum();
+  }
+
+  @Override
+  public double getBatchDirectoryCacheHitRate() {
+    long hits = _batchDirectoryCacheHits.sum();
+    long lookups = hits + _batchDirectoryCacheMisses.sum();
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+
+  @Override
+  public long getFindCount() {
+    return _finds.sum();
+  }
+
+  @Override
+  public long getFindNodesVisited() {
+    return _findNodesVisited.sum();
+  }
+
+  @Override
+  public long getFindMatches() {
+    return _findMatches.sum();
+  }
+
+  @Override
+  public long getPermissionChanges() {
+    return _permissionChanges.get();
+  }
+}
@@ -0,0 +1,52 @@
+package com.material.filesystem;
+
+/**
+ * JMX view of the {@link FileSystemStats} of a {@link DefaultFileSystem}.
+ */
+public interface FileSystemStatsMXBean {
+  /**
+   * Returns the number of nodes in the tree, including the root.
+   * @return the number of files and directories
+   */
+  long getNodeCount();
+
+  long getFileCount();
+
+  long getDirectoryCount();
+
+  /**
+   * Returns the size of the contents of every file in the tree.
+   * @return the number of content bytes
+   */
+  long getContentBytes();
+
+  /**
+   * Returns how often a batch found the parent directory of a path among the directories it already resolved.
+   * @return the number of hits
+   */
+  long getBatchDirectoryCacheHits();
+
+  long getBatchDirectoryCacheMisses();
+
+  /**
+   * Returns the hit rate of the batch directory cache.
+   * @return hits divided by lookups, or 0 before any lookup
+   */
+  double getBatchDirectoryCacheHitRate();
+
+  long getFindCount();
+
+  /**
+   * Returns the number of nodes finds have matched their pattern against.
+   * @return the number of nodes visited
+   */
+  long getFindNodesVisited();
+
+  long getFindMatches();
+
+  /**
+   * Returns the number of changes to the permissions of nodes, counting each node of a recursive change.
+   * @return the number of permission changes
+   */
+  long getPermissionChanges();
+}
@@ -93,6 +93,25 @@ public interface FileSystemTreeNode {
    */
   void addChild(FileSystemTreeNode child);
 
+  /**
+   * Add a child node to this node under a new name. The child is renamed once it left its old parent, so it is never
+   * seen under the new name in the old parent, or under the old name in this one.
+   *
+   * @param child the {@link FileSystemTreeNode} to add
+   * @param name the name of the child in this node
+   */
+  void addChild(FileSystemTreeNode child, String name);
+
+  /**
+   * Add a child node to this node under a name, removing the child of that name if there is one. No one sees this node
+   * without a child of that name in between.
+   *
+   * @param child the {@link FileSystemTreeNode} to add
+   * @param name the name of the child in this node
+   * @return the replaced {@link FileSystemTreeNode} or null
+   */
+  FileSystemTreeNode replaceChild(FileSystemTreeNode child, String name);
+
   /**
    * Removes a direct child from this node.
    * @param child the child to remove.
@@ -161,6 +180,12 @@ public interface FileSystemTreeNode {
    */
   void release();
 
+  /**
+   * Set the listener notified of changes to this node. Children added to this node inherit it.
+   * @param listener the listener, or null
+   */
+  void setChangeListener(FileSystemChangeListener listener);
+
   /**
    * Creates a new child node (only when creating, not when re-parenting). Permissions are copied at this time.
    * @param name the name of the child node to create
@@ -0,0 +1,109 @@
+package com.material.filesystem;
+
+import com.material.filesystem.permissions.Permission;
+import com.material.filesystem.user.User;
+import com.material.filesystem.user.UserType;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * What a node of the tree holds, apart from the nodes below it: its type, owner, times, permissions and, for a file,
+ * its contents. Images of the nodes of a tree are read by a {@link TreeSnapshot}, and a node is restored from an image
+ * with {@link DefaultFileSystem#restoreNode(String, NodeImage, java.util.List)}.
+ */
+public class NodeImage {
+  private final NodeType _nodeType;
+  private final User _owner;
+  private final long _creationTime;
+  private final long _lastUpdatedTime;
+  private final Map<UserType, Set<Permission>> _userTypePermissions;
+  private final Map<User, Set<Permission>> _userPermissions;
+  private final byte[] _contents;
+  // the nodes below a directory by name, in the order they were added, for images read from the tree
+  private final Map<String, FileSystemTreeNode> _children;
+
+  /**
+   * Constructor
+   *
+   * @param nodeType the type of node
+   * @param owner the owner, or null
+   * @param creationTime when the node was created
+   * @param lastUpdatedTime when the node was last changed
+   * @param userTypePermissions the permissions of each user type, which must not be changed afterwards
+   * @param userPermissions the permissions of each user, which must not be changed afterwards
+   * @param contents the contents of a file, which must not be changed afterwards, or null for a directory
+   */
+  public NodeImage(NodeType nodeType, User owner, long creationTime, long lastUpdatedTime,
+      Map<UserType, Set<Permission>> userTypePermissions, Map<User, Set<Permission>> userPermissions,
+      byte[] contents) {
+    this(nodeType, owner, creationTime, lastUpdatedTime, userTypePermissions, userPermissions, contents,
+        Collections.emptyMap());
+  }
+
+  NodeImage(NodeType nodeType, User owner, long creationTime, long lastUpdatedTime,
+      Map<UserType, Set<Permission>> userTypePermissions, Map<User, Set<Permission>> userPermissions,
+      byte[] contents, Map<String, FileSystemTreeNode> children) {
+    _nodeType = nodeType;
+    _owner = owner;
+    _creationTime = creationTime;
+    _lastUpdatedTime = lastUpdatedTime;
+    _userTypePermissions = userTypePermissions;
+    _userPermissions = userPermissions;
+    _contents = contents;
+    _children = children;
+  }
+
+  /**
+   * Returns a copy of this image with the contents of a file, and the time they were last changed.
+   * @param contents the contents, which must not be changed afterwards
+   * @param lastUpdatedTime when the contents were last changed
+   * @return the copy
+   */
+  public NodeImage withContents(byte[] contents, long lastUpdatedTime) {
+    return new NodeImage(_nodeType, _owner, _creationTime, lastUpdatedTime, _userTypePermissions, _userPermissions,
+        contents, _children);
+  }
+
+  public NodeType getNodeType() {
+    return _nodeType;
+  }
+
+  public User getOwner() {
+    return _owner;
+  }
+
+  public long getCreationTime() {
+    return _creationTime;
+  }
+
+  public long getLastUpdatedTime() {
+    return _lastUpdatedTime;
+  }
+
+  public Map<UserType, Set<Permission>> getUserTypePermissions() {
+    return Collections.unmodifiableMap(_userTypePermissions);
+  }
+
+  public Map<User, Set<Permission>> getUserPermissions() {
+    return Collections.unmodifiableMap(_userPermissions);
+  }
+
+  /**
+   * Returns the contents of a file.
+   * @return the contents, which must not be changed, or null for a directory
+   */
+  public byte[] getContents() {
+    return _contents;
+  }
+
+  /**
+   * Returns the nodes below a directory, as they were when the image was read from the tree. Read their images with
+   * the same {@link TreeSnapshot}.
+   * @return the nodes by name, empty for a file or an image which was not read from a tree
+   */
+  public Map<String, FileSystemTreeNode> getChildren() {
+    return Collections.unmodifiableMap(_children);
+  }
+}
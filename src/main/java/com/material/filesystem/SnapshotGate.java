@@ -0,0 +1,86 @@
+package com.material.filesystem;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongFunction;
+
+
+/**
+ * Lets a snapshot read the tree as it was at one point while the tree keeps changing, see
+ * {@link DefaultFileSystem#snapshot()}.
+ *
+ * Operations which change the structure of the tree pass the gate while they run, and a snapshot closes it only for
+ * the instant it takes to start a new epoch, so every snapshot starts between two such operations. From then on each
+ * node and file keeps an image of itself as it was, before it changes for the first time in the epoch, and the
+ * snapshot reads the images instead of the nodes.
+ *
+ * Each change also marks the node it changed, and the nodes above it, with the generation it belongs to, the epoch of
+ * the next snapshot to start, so a snapshot can tell which subtrees changed since an earlier one started.
+ */
+class SnapshotGate {
+  private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+  private volatile long _lastEpoch = 0;
+  // the epoch of the snapshot being taken, 0 while there is none
+  private volatile long _epoch = 0;
+
+  /**
+   * Returns the epoch of the snapshot being taken.
+   * @return the epoch, or 0 if no snapshot is being taken
+   */
+  long getEpoch() {
+    return _epoch;
+  }
+
+  /**
+   * Returns the generation of the changes made now, those made since the snapshot of the previous epoch started.
+   * @return the epoch of the next snapshot to start
+   */
+  long getGeneration() {
+    return _lastEpoch + 1;
+  }
+
+  /**
+   * Pass the gate, waiting while a snapshot starts. Passing it again while passing it never waits.
+   */
+  void enter() {
+    _lock.readLock().lock();
+  }
+
+  void exit() {
+    _lock.readLock().unlock();
+  }
+
+  /**
+   * Start the epoch of a snapshot, once the operations passing the gate finished.
+   * @param start makes the snapshot from its epoch, while nothing passes the gate
+   * @return the snapshot
+   * @throws IllegalStateException if a snapshot is already being taken
+   */
+  <T> T begin(LongFunction<T> start) {
+    _lock.writeLock().lock();
+    try {
+      long epoch;
+      synchronized (this) {
+        if (_epoch != 0) {
+          throw new IllegalStateException("A snapshot is already being taken");
+        }
+        epoch = ++_lastEpoch;
+      }
+      T snapshot = start.apply(epoch);
+      // only once the snapshot started, what changes from now on keeps its image
+      _epoch = epoch;
+      return snapshot;
+    } finally {
+      _lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * End the epoch of a snapshot, without waiting for anything, nothing keeps its image from now on.
+   * @param epoch the epoch
+   */
+  synchronized void end(long epoch) {
+    if (_epoch == epoch) {
+      _epoch = 0;
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package com.material.filesystem;
+
+import java.io.Closeable;
+
+
+/**
+ * The tree of a {@link DefaultFileSystem} as it was when the snapshot started, read node by node while the tree keeps
+ * changing, see {@link DefaultFileSystem#snapshot()}. Read the image of the root, then the images of the nodes below
+ * it, each node once. Close the snapshot when done, nodes stop keeping their images for it.
+ */
+public class TreeSnapshot implements Closeable {
+  private final SnapshotGate _gate;
+  private final long _epoch;
+  private final DefaultFileSystemTreeNode _root;
+  private final long _journalPosition;
+
+  TreeSnapshot(SnapshotGate gate, long epoch, DefaultFileSystemTreeNode root, long journalPosition) {
+    _gate = gate;
+    _epoch = epoch;
+    _root = root;
+    _journalPosition = journalPosition;
+  }
+
+  /**
+   * Returns where the journal of the file system continues after the changes in this snapshot, so it can be replayed
+   * from there onto the restored snapshot.
+   * @return the position in the journal, or 0 if the file system had no journal
+   */
+  public long getJournalPosition() {
+    return _journalPosition;
+  }
+
+  /**
+   * Returns the epoch of this snapshot, which later snapshots tell the changes since this one started by, see
+   * {@link #getChangedIn(FileSystemTreeNode)}.
+   * @return the epoch
+   */
+  public long getEpoch() {
+    return _epoch;
+  }
+
+  /**
+   * Returns whether the tree changed since an earlier snapshot started.
+   * @param epoch the epoch of the earlier snapshot, or 0 for since the tree was restored
+   * @return true if it changed
+   */
+  public boolean hasChangedSince(long epoch) {
+    return _root.getChangedIn() > epoch;
+  }
+
+  /**
+   * Returns the generation of the last change to a node or the nodes below it, the epoch of the first snapshot which
+   * started after it.
+   * @param node a node of the snapshot
+   * @return the generation, 0 if the node did not change since it was restored or created
+   */
+  public long getChangedIn(FileSystemTreeNode node) {
+    return ((DefaultFileSystemTreeNode) node).getChangedIn();
+  }
+
+  /**
+   * Returns the generation a node was last attached to its parent in, by being created, moved, copied or renamed.
+   * @param node a node of the snapshot
+   * @return the generation, 0 if it was attached where it is by a restore
+   */
+  public long getAttachedIn(FileSystemTreeNode node) {
+    return ((DefaultFileSystemTreeNode) node).getAttachedIn();
+  }
+
+  public NodeImage getRootImage() {
+    return getImage(_root);
+  }
+
+  /**
+   * Returns the image of a node as it was when the snapshot started.
+   * @param node the root or a node of the {@link NodeImage#getChildren()} of an image read before
+   * @return the image
+   */
+  public NodeImage getImage(FileSystemTreeNode node) {
+    return ((DefaultFileSystemTreeNode) node).getImage(_epoch);
+  }
+
+  @Override
+  public void close() {
+    _gate.end(_epoch);
+  }
+}
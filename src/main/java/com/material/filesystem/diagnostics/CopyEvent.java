@@ -0,0 +1,12 @@
+package com.material.filesystem.diagnostics;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+@Name("com.material.filesystem.Copy")
+@Label("File System Copy")
+@Description("Copy a file or directory, with its contents")
+public class CopyEvent extends FileSystemOperationEvent {
+}
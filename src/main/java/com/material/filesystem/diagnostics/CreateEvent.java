@@ -0,0 +1,14 @@
+package com.material.filesystem.diagnostics;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+
+@Name("com.material.filesystem.Create")
+@Label("File System Create")
+@Description("Create a file or directory, and any missing directories above it")
+@Threshold("1 ms")
+public class CreateEvent extends FileSystemOperationEvent {
+}
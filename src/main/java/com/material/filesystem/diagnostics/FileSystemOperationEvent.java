@@ -0,0 +1,108 @@
+package com.material.filesystem.diagnostics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Timespan;
+
+
+/**
+ * A Java Flight Recorder event for one operation of the {@link com.material.filesystem.FileSystem}, recording what the
+ * operation touched so a slow one can be explained, e.g. by a large subtree or by waiting for locks.
+ *
+ * Run the operation through {@link #trace}: while no recording enables the event, the check is constant and the
+ * operation runs untraced.
+ * <pre>
+ *   return FileSystemOperationEvent.trace(new LookupEvent(), path, null, () -&gt; lookup(path));
+ * </pre>
+ */
+@Category({"In-Memory File System", "Operations"})
+public abstract class FileSystemOperationEvent extends Event {
+  @Label("Path")
+  String path;
+
+  @Label("Target Path")
+  String targetPath;
+
+  @Label("Nodes Touched")
+  int nodesTouched;
+
+  @Label("Bytes Copied")
+  @DataAmount
+  long bytesCopied;
+
+  @Label("Lock Wait")
+  @Timespan
+  long lockWait;
+
+  @Label("Succeeded")
+  boolean succeeded;
+
+  // not recorded
+  private transient OperationTrace _trace;
+
+  /**
+   * An operation run by {@link #trace}, throwing up to two kinds of checked exceptions.
+   * @param <T> the result of the operation
+   * @param <E1> an exception the operation throws
+   * @param <E2> another exception the operation throws
+   */
+  @FunctionalInterface
+  public interface Operation<T, E1 extends Exception, E2 extends Exception> {
+    T run() throws E1, E2;
+  }
+
+  /**
+   * Run an operation, timing and tracing it in the event if a recording enables the event.
+   * @param event the event of the operation
+   * @param operationPath the path the operation is on as given, or the pattern of a find
+   * @param operationTargetPath the destination of a move or copy, or null
+   * @param operation the operation
+   * @return the result of the operation
+   */
+  public static <T, E1 extends Exception, E2 extends Exception> T trace(FileSystemOperationEvent event,
+      Object operationPath, Object operationTargetPath, Operation<T, E1, E2> operation) throws E1, E2 {
+    if (!event.isEnabled()) {
+      return operation.run();
+    }
+    event.start(operationPath, operationTargetPath);
+    try {
+      T result = operation.run();
+      event.setSucceeded();
+      return result;
+    } finally {
+      event.finish();
+    }
+  }
+
+  /**
+   * Start timing and tracing the operation.
+   * @param operationPath the path the operation is on as given, or the pattern of a find
+   * @param operationTargetPath the destination of a move or copy, or null
+   */
+  public void start(Object operationPath, Object operationTargetPath) {
+    path = String.valueOf(operationPath);
+    targetPath = operationTargetPath == null ? null : operationTargetPath.toString();
+    _trace = OperationTrace.begin();
+    begin();
+  }
+
+  public void setSucceeded() {
+    succeeded = true;
+  }
+
+  /**
+   * Stop tracing, and commit the event if it passes the recording's threshold.
+   */
+  public void finish() {
+    end();
+    _trace.end();
+    if (shouldCommit()) {
+      nodesTouched = _trace.getNodesTouched();
+      bytesCopied = _trace.getBytesCopied();
+      lockWait = _trace.getLockWaitNanos();
+      commit();
+    }
+  }
+}
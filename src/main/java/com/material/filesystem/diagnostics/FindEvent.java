@@ -0,0 +1,12 @@
+package com.material.filesystem.diagnostics;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+@Name("com.material.filesystem.Find")
+@Label("File System Find")
+@Description("Find the nodes below the working directory matching a pattern")
+public class FindEvent extends FileSystemOperationEvent {
+}
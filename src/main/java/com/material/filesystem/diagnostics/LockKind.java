@@ -0,0 +1,28 @@
+package com.material.filesystem.diagnostics;
+
+/**
+ * The locks of the file system tree, as reported by the {@link LockProfiler}.
+ */
+public enum LockKind {
+  /**
+   * The read lock of a tree node, taken to read its name, parent, children or permissions.
+   */
+  NODE_READ,
+  /**
+   * The write lock of a tree node, taken to change its children, owner or permissions.
+   */
+  NODE_WRITE,
+  /**
+   * The transaction lock of a tree node, held while a node is the target of a move or copy, and briefly around every
+   * acquisition and release of its write lock.
+   */
+  NODE_TRANSACTION,
+  /**
+   * The read lock of a file or directory object, taken to read its contents.
+   */
+  OBJECT_READ,
+  /**
+   * The write lock of a file or directory object, taken to change its contents.
+   */
+  OBJECT_WRITE
+}
@@ -0,0 +1,284 @@
+package com.material.filesystem.diagnostics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Optional profiling of the locks of the file system tree: how often each kind of lock is acquired, and how long it
+ * is waited for and held, both by the depth of its node below the root and by the path of its node, to find the hot
+ * spots, e.g. directories near the root under concurrent creates.
+ *
+ * Profiling is off by default, and until it is turned on, acquiring a lock through the profiler costs one volatile
+ * read. While on, every acquisition builds the path of its node and updates shared counters, so it slows the file
+ * system down and is meant to be turned on while looking for contention, not left on.
+ *
+ * The profiler is global to the JVM, as locks do not know which file system they belong to.
+ */
+public final class LockProfiler implements LockProfilerMXBean {
+  private static final Logger LOG = LoggerFactory.getLogger(LockProfiler.class);
+  public static final String OBJECT_NAME = "com.material.filesystem:type=LockProfiler";
+  private static final LockProfiler INSTANCE = new LockProfiler();
+  // bounds the memory used for paths, the locks of further paths are counted together
+  private static final int MAX_TRACKED_PATHS = 10000;
+  private static final String OTHER_PATHS = "(other)";
+  private static final String DETACHED = "(detached)";
+
+  private volatile boolean _enabled = false;
+  // bumped by every reset, so holds from before it are not recorded against the new counters
+  private volatile long _generation = 0;
+  private final Map<Integer, LockStats[]> _statsByDepth = new ConcurrentHashMap<>();
+  private final Map<String, LockStats[]> _statsByPath = new ConcurrentHashMap<>();
+  private final ThreadLocal<HeldLocks> _heldLocks = ThreadLocal.withInitial(HeldLocks::new);
+
+  private LockProfiler() {
+  }
+
+  public static LockProfiler getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Register the profiler with the platform MBean server, once per JVM.
+   */
+  public static void registerMBean() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+    } catch (InstanceAlreadyExistsException ex) {
+      // registered by another server in this JVM
+    } catch (JMException ex) {
+      LOG.warn("Could not register " + OBJECT_NAME, ex);
+    }
+  }
+
+  /**
+   * Acquire a lock of a node.
+   *
+   * @param lock the lock
+   * @param kind which lock of the node it is
+   * @param path supplies the path of the node without locking, or null if it is not in the tree
+   */
+  public static void lock(Lock lock, LockKind kind, Supplier<String> path) {
+    if (!INSTANCE._enabled) {
+      OperationTrace.lock(lock);
+      return;
+    }
+    INSTANCE.profiledLock(lock, kind, path);
+  }
+
+  /**
+   * Release a lock acquired with {@link #lock}.
+   * @param lock the lock
+   */
+  public static void unlock(Lock lock) {
+    if (INSTANCE._enabled) {
+      INSTANCE.recordRelease(lock);
+    }
+    lock.unlock();
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return _enabled;
+  }
+
+  @Override
+  public synchronized void setEnabled(boolean enabled) {
+    if (enabled && !_enabled) {
+      // locks still held from an earlier profiling period may have been released unseen
+      _generation++;
+    }
+    _enabled = enabled;
+  }
+
+  @Override
+  public synchronized void reset() {
+    _generation++;
+    _statsByDepth.clear();
+    _statsByPath.clear();
+  }
+
+  @Override
+  public List<LockStatsSnapshot> getStatsByDepth() {
+    List<LockStatsSnapshot> snapshots = new ArrayList<>();
+    _statsByDepth.forEach((depth, stats) -> addSnapshots(snapshots, depth, null, stats));
+    snapshots.sort(Comparator.comparingInt(LockStatsSnapshot::getDepth)
+        .thenComparing(snapshot -> LockKind.valueOf(snapshot.getLockKind())));
+    return snapshots;
+  }
+
+  @Override
+  public List<LockStatsSnapshot> getHotPaths(int limit) {
+    List<LockStatsSnapshot> snapshots = new ArrayList<>();
+    _statsByPath.forEach((path, stats) -> addSnapshots(snapshots, depthOf(path), path, stats));
+    snapshots.sort(Comparator.comparingLong(LockStatsSnapshot::getTotalWaitNanos)
+        .thenComparingLong(LockStatsSnapshot::getAcquisitions)
+        .reversed());
+    return new ArrayList<>(snapshots.subList(0, Math.min(limit, snapshots.size())));
+  }
+
+  /**
+   * Returns a report of the statistics by depth, followed by the hot paths.
+   * @param hotPaths the number of hot paths to report
+   * @return the report, one line per entry
+   */
+  public String formatReport(int hotPaths) {
+    StringBuilder report = new StringBuilder("lock profiling is " + (_enabled ? "on" : "off"));
+    report.append("\nby depth:");
+    getStatsByDepth().forEach(snapshot -> report.append('\n').append(snapshot));
+    report.append("\nhot paths by wait:");
+    getHotPaths(hotPaths).forEach(snapshot -> report.append('\n').append(snapshot));
+    return report.toString();
+  }
+
+  private void profiledLock(Lock lock, LockKind kind, Supplier<String> pathSupplier) {
+    long startNanos = System.nanoTime();
+    lock.lock();
+    long acquiredNanos = System.nanoTime();
+    long waitNanos = acquiredNanos - startNanos;
+    OperationTrace.recordLockWait(waitNanos);
+
+    String path = pathSupplier == null ? null : pathSupplier.get();
+    LockStats depthStats = statsFor(_statsByDepth, path == null ? -1 : depthOf(path), kind);
+    LockStats pathStats = statsForPath(path == null ? DETACHED : path, kind);
+    depthStats.recordAcquired(waitNanos);
+    pathStats.recordAcquired(waitNanos);
+
+    HeldLocks held = _heldLocks.get();
+    if (held._generation != _generation) {
+      held._holds.clear();
+      held._generation = _generation;
+    }
+    held._holds.computeIfAbsent(lock, key -> new ArrayDeque<>())
+        .push(new Hold(acquiredNanos, depthStats, pathStats));
+  }
+
+  private void recordRelease(Lock lock) {
+    HeldLocks held = _heldLocks.get();
+    if (held._generation != _generation) {
+      return;
+    }
+    ArrayDeque<Hold> holds = held._holds.get(lock);
+    // the lock was acquired before profiling was turned on
+    if (holds == null || holds.isEmpty()) {
+      return;
+    }
+
+    Hold hold = holds.pop();
+    if (holds.isEmpty()) {
+      held._holds.remove(lock);
+    }
+    long holdNanos = System.nanoTime() - hold._acquiredNanos;
+    hold._depthStats.recordReleased(holdNanos);
+    hold._pathStats.recordReleased(holdNanos);
+  }
+
+  private LockStats statsForPath(String path, LockKind kind) {
+    LockStats[] stats = _statsByPath.get(path);
+    if (stats == null && _statsByPath.size() >= MAX_TRACKED_PATHS) {
+      path = OTHER_PATHS;
+    }
+    return statsFor(_statsByPath, path, kind);
+  }
+
+  private static <K> LockStats statsFor(Map<K, LockStats[]> statsMap, K key, LockKind kind) {
+    LockStats[] stats = statsMap.get(key);
+    if (stats == null) {
+      stats = statsMap.computeIfAbsent(key, k -> newStats());
+    }
+    return stats[kind.ordinal()];
+  }
+
+  private static LockStats[] newStats() {
+    LockStats[] stats = new LockStats[LockKind.values().length];
+    for (int i = 0; i < stats.length; i++) {
+      stats[i] = new LockStats();
+    }
+    return stats;
+  }
+
+  private static void addSnapshots(List<LockStatsSnapshot> snapshots, int depth, String path, LockStats[] stats) {
+    for (LockKind kind : LockKind.values()) {
+      LockStats kindStats = stats[kind.ordinal()];
+      long acquisitions = kindStats._acquisitions.sum();
+      if (acquisitions > 0) {
+        snapshots.add(new LockStatsSnapshot(kind.name(), depth, path, acquisitions, kindStats._waitNanos.sum(),
+            kindStats._maxWaitNanos.get(), kindStats._holdNanos.sum(), kindStats._maxHoldNanos.get()));
+      }
+    }
+  }
+
+  private static int depthOf(String path) {
+    if (!path.startsWith("/")) {
+      return -1;
+    }
+    if (path.equals("/")) {
+      return 0;
+    }
+    int depth = 0;
+    for (int i = 0; i < path.length(); i++) {
+      if (path.charAt(i) == '/') {
+        depth++;
+      }
+    }
+    return depth;
+  }
+
+  private static class LockStats {
+    private final LongAdder _acquisitions = new LongAdder();
+    private final LongAdder _waitNanos = new LongAdder();
+    private final LongAdder _holdNanos = new LongAdder();
+    private final AtomicLong _maxWaitNanos = new AtomicLong();
+    private final AtomicLong _maxHoldNanos = new AtomicLong();
+
+    void recordAcquired(long waitNanos) {
+      _acquisitions.increment();
+      _waitNanos.add(waitNanos);
+      if (waitNanos > _maxWaitNanos.get()) {
+        _maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+      }
+    }
+
+    void recordReleased(long holdNanos) {
+      _holdNanos.add(holdNanos);
+      if (holdNanos > _maxHoldNanos.get()) {
+        _maxHoldNanos.accumulateAndGet(holdNanos, Math::max);
+      }
+    }
+  }
+
+  /**
+   * An acquisition not yet released, kept per lock, as locks are not always released in reverse order.
+   */
+  private static class Hold {
+    private final long _acquiredNanos;
+    private final LockStats _depthStats;
+    private final LockStats _pathStats;
+
+    Hold(long acquiredNanos, LockStats depthStats, LockStats pathStats) {
+      _acquiredNanos = acquiredNanos;
+      _depthStats = depthStats;
+      _pathStats = pathStats;
+    }
+  }
+
+  private static class HeldLocks {
+    private final Map<Lock, ArrayDeque<Hold>> _holds = new IdentityHashMap<>();
+    private long _generation = 0;
+  }
+}
@@ -0,0 +1,32 @@
+package com.material.filesystem.diagnostics;
+
+import java.util.List;
+
+
+/**
+ * JMX view of the {@link LockProfiler}, registered as {@value LockProfiler#OBJECT_NAME}.
+ */
+public interface LockProfilerMXBean {
+  boolean isEnabled();
+
+  /**
+   * Turn profiling on or off. Statistics are kept until {@link #reset()}.
+   * @param enabled true to profile every lock acquisition
+   */
+  void setEnabled(boolean enabled);
+
+  void reset();
+
+  /**
+   * Returns the statistics of each kind of lock at each depth of the tree, the root being depth 0.
+   * @return the statistics, ordered by depth then lock kind
+   */
+  List<LockStatsSnapshot> getStatsByDepth();
+
+  /**
+   * Returns the statistics of the node locks with the longest total wait.
+   * @param limit the number to return
+   * @return the statistics, longest wait first
+   */
+  List<LockStatsSnapshot> getHotPaths(int limit);
+}
@@ -0,0 +1,78 @@
+package com.material.filesystem.diagnostics;
+
+/**
+ * The lock statistics of one kind of lock, at one tree depth or on one node, as reported by the {@link LockProfiler}.
+ */
+public class LockStatsSnapshot {
+  private final String _lockKind;
+  private final int _depth;
+  private final String _path;
+  private final long _acquisitions;
+  private final long _totalWaitNanos;
+  private final long _maxWaitNanos;
+  private final long _totalHoldNanos;
+  private final long _maxHoldNanos;
+
+  /**
+   * Constructor
+   *
+   * @param lockKind the {@link LockKind} name
+   * @param depth the depth of the nodes below the root, -1 for nodes not in the tree
+   * @param path the path of the node, or null for the totals of a depth
+   * @param acquisitions the times the locks were acquired
+   * @param totalWaitNanos the time spent waiting to acquire them
+   * @param maxWaitNanos the longest wait
+   * @param totalHoldNanos the time they were held
+   * @param maxHoldNanos the longest hold
+   */
+  public LockStatsSnapshot(String lockKind, int depth, String path, long acquisitions, long totalWaitNanos,
+      long maxWaitNanos, long totalHoldNanos, long maxHoldNanos) {
+    _lockKind = lockKind;
+    _depth = depth;
+    _path = path;
+    _acquisitions = acquisitions;
+    _totalWaitNanos = totalWaitNanos;
+    _maxWaitNanos = maxWaitNanos;
+    _totalHoldNanos = totalHoldNanos;
+    _maxHoldNanos = maxHoldNanos;
+  }
+
+  public String getLockKind() {
+    return _lockKind;
+  }
+
+  public int getDepth() {
+    return _depth;
+  }
+
+  public String getPath() {
+    return _path;
+  }
+
+  public long getAcquisitions() {
+    return _acquisitions;
+  }
+
+  public long getTotalWaitNanos() {
+    return _totalWaitNanos;
+  }
+
+  public long getMaxWaitNanos() {
+    return _maxWaitNanos;
+  }
+
+  public long getTotalHoldNanos() {
+    return _totalHoldNanos;
+  }
+
+  public long getMaxHoldNanos() {
+    return _maxHoldNanos;
+  }
+
+  @Override
+  public String toString() {
+    return (_path == null ? "depth=" + _depth : _path) + " " + _lockKind + " acquisitions=" + _acquisitions
+        + " waitTotal=" + _totalWaitNanos / 1000 + "us waitMax=" + _maxWaitNanos / 1000 + "us holdTotal="
+        + _totalHoldNanos / 1000 + "us holdMax=" + _maxHoldNanos / 1000 + "us";
+  }
+}
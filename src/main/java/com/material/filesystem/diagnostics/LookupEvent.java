@@ -0,0 +1,15 @@
+package com.material.filesystem.diagnostics;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+
+@Name("com.material.filesystem.Lookup")
+@Label("File System Lookup")
+@Description("Resolve a path to a node")
+// lookups are the most frequent operation, only slow ones are recorded unless a recording lowers the threshold
+@Threshold("1 ms")
+public class LookupEvent extends FileSystemOperationEvent {
+}
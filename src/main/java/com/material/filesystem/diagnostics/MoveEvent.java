@@ -0,0 +1,12 @@
+package com.material.filesystem.diagnostics;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+@Name("com.material.filesystem.Move")
+@Label("File System Move")
+@Description("Move or rename a file or directory")
+public class MoveEvent extends FileSystemOperationEvent {
+}
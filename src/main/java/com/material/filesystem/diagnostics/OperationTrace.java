@@ -0,0 +1,144 @@
+package com.material.filesystem.diagnostics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+
+/**
+ * Counts the work of the file system operation running on the current thread: the tree nodes it touched, the content
+ * bytes it copied, and the time it spent resolving paths, checking permissions and waiting for locks. A trace is only
+ * started while a {@link FileSystemOperationEvent} is enabled or a server traces its requests, and until one is, each
+ * recording method costs a single volatile read.
+ *
+ * Operations nest, e.g. a directory move moves each child, and the counts of a nested trace are added to the trace
+ * it ran in when it ends.
+ */
+public final class OperationTrace {
+  private static final ThreadLocal<OperationTrace> CURRENT = new ThreadLocal<>();
+  // traces in progress on any thread
+  private static final AtomicInteger ACTIVE_TRACES = new AtomicInteger();
+
+  private final OperationTrace _outer;
+  private int _nodesTouched = 0;
+  private long _bytesCopied = 0;
+  private long _lockWaitNanos = 0;
+  private long _resolveNanos = 0;
+  private long _permissionNanos = 0;
+
+  private OperationTrace(OperationTrace outer) {
+    _outer = outer;
+  }
+
+  /**
+   * Start tracing an operation on the current thread, call {@link #end()} when it completes.
+   * @return the trace
+   */
+  public static OperationTrace begin() {
+    OperationTrace trace = new OperationTrace(CURRENT.get());
+    CURRENT.set(trace);
+    ACTIVE_TRACES.incrementAndGet();
+    return trace;
+  }
+
+  public void end() {
+    ACTIVE_TRACES.decrementAndGet();
+    if (_outer == null) {
+      CURRENT.remove();
+    } else {
+      CURRENT.set(_outer);
+      _outer._nodesTouched += _nodesTouched;
+      _outer._bytesCopied += _bytesCopied;
+      _outer._lockWaitNanos += _lockWaitNanos;
+      _outer._resolveNanos += _resolveNanos;
+      _outer._permissionNanos += _permissionNanos;
+    }
+  }
+
+  /**
+   * Returns true if an operation is traced on any thread, so the caller should time the work it records.
+   * @return true while any trace is in progress
+   */
+  public static boolean isTracing() {
+    return ACTIVE_TRACES.get() != 0;
+  }
+
+  public static void touchNodes(int count) {
+    if (ACTIVE_TRACES.get() != 0) {
+      OperationTrace trace = CURRENT.get();
+      if (trace != null) {
+        trace._nodesTouched += count;
+      }
+    }
+  }
+
+  public static void recordBytesCopied(long bytes) {
+    if (ACTIVE_TRACES.get() != 0) {
+      OperationTrace trace = CURRENT.get();
+      if (trace != null) {
+        trace._bytesCopied += bytes;
+      }
+    }
+  }
+
+  /**
+   * Acquire a lock, adding the time spent waiting for it to the trace of the current thread, if any.
+   * @param lock the lock
+   */
+  public static void lock(Lock lock) {
+    if (ACTIVE_TRACES.get() == 0) {
+      lock.lock();
+      return;
+    }
+
+    long startNanos = System.nanoTime();
+    lock.lock();
+    recordLockWait(System.nanoTime() - startNanos);
+  }
+
+  public static void recordLockWait(long nanos) {
+    if (ACTIVE_TRACES.get() != 0) {
+      OperationTrace trace = CURRENT.get();
+      if (trace != null) {
+        trace._lockWaitNanos += nanos;
+      }
+    }
+  }
+
+  public static void recordResolve(long nanos) {
+    if (ACTIVE_TRACES.get() != 0) {
+      OperationTrace trace = CURRENT.get();
+      if (trace != null) {
+        trace._resolveNanos += nanos;
+      }
+    }
+  }
+
+  public static void recordPermissionCheck(long nanos) {
+    if (ACTIVE_TRACES.get() != 0) {
+      OperationTrace trace = CURRENT.get();
+      if (trace != null) {
+        trace._permissionNanos += nanos;
+      }
+    }
+  }
+
+  public int getNodesTouched() {
+    return _nodesTouched;
+  }
+
+  public long getBytesCopied() {
+    return _bytesCopied;
+  }
+
+  public long getLockWaitNanos() {
+    return _lockWaitNanos;
+  }
+
+  public long getResolveNanos() {
+    return _resolveNanos;
+  }
+
+  public long getPermissionNanos() {
+    return _permissionNanos;
+  }
+}
@@ -0,0 +1,12 @@
+package com.material.filesystem.diagnostics;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+@Name("com.material.filesystem.Remove")
+@Label("File System Remove")
+@Description("Remove a file or directory, and everything below it")
+public class RemoveEvent extends FileSystemOperationEvent {
+}
@@ -0,0 +1,499 @@
+package com.material.filesystem.journal;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A write-ahead journal of the changes to a file system, so they survive a restart. Start the server with
+ * <pre>-Dfileserver.journal=PATH [-Dfileserver.journal.sync=always|interval|none]
+ * [-Dfileserver.journal.syncIntervalMillis=100]</pre>, see {@link SyncPolicy}.
+ *
+ * The journal is a binary file, a {@value #MAGIC} header followed by one record per change:
+ * <pre>
+ * LENGTH(4 bytes) CRC32(4 bytes) RECORD(LENGTH bytes)
+ * </pre>
+ * see {@link JournalRecord#encode()}. Opening a journal replays its records, and cuts off a last record which was
+ * only partly written, or anything after a record whose checksum does not match, before appending to it. A journal
+ * restored onto a snapshot is replayed from the {@link #getPosition()} the snapshot was taken at.
+ *
+ * Records are appended to a buffer while the change they record still holds its locks on the tree, so changes to the
+ * same nodes are journaled in the order they were made, or once it released them while holding
+ * {@link #getDeferredChangeLock()}. Records name nodes by their paths, which a move or remove
+ * of a node above them changes without taking their locks: the paths are found and appended while no path changes,
+ * see {@link #getPathChangeLock()}, so each record is appended before or after a change of paths, with the paths the
+ * nodes had then. A thread commits what it appended with {@link #commit()}:
+ * the first to commit writes everything appended so far and forces it to disk, while the threads committing
+ * meanwhile wait and the next of them writes everything appended in the meantime, so concurrent commits share one
+ * write and one force.
+ */
+public class Journal implements Closeable {
+  /**
+   * System property with the path of the journal.
+   */
+  public static final String PATH_PROPERTY = "fileserver.journal";
+  /**
+   * System property with the {@link SyncPolicy}, always by default.
+   */
+  public static final String SYNC_PROPERTY = "fileserver.journal.sync";
+  /**
+   * System property with the milliseconds between forces of the interval policy.
+   */
+  public static final String SYNC_INTERVAL_PROPERTY = "fileserver.journal.syncIntervalMillis";
+  public static final int MAGIC = 0x46534a4e;
+  private static final long DEFAULT_SYNC_INTERVAL_MILLIS = 100;
+  private static final Logger LOG = LoggerFactory.getLogger(Journal.class);
+
+  /**
+   * When commits force the journal to disk.
+   */
+  public enum SyncPolicy {
+    /**
+     * A commit returns once its changes were forced to disk.
+     */
+    ALWAYS,
+    /**
+     * A commit returns right away, its changes are written and forced with the others of the interval by a
+     * background thread, so at most an interval of changes is lost when the host fails.
+     */
+    INTERVAL,
+    /**
+     * A commit returns once its changes were written to the file, they are lost only when the host fails.
+     */
+    NONE
+  }
+
+  private final Path _path;
+  private final FileChannel _channel;
+  private final SyncPolicy _syncPolicy;
+  // writes and forces the journal with the interval policy, or null
+  private final ScheduledExecutorService _syncer;
+  // held shared to find paths and append records naming nodes by them, and exclusively to change paths
+  private final ReentrantReadWriteLock _pathLock = new ReentrantReadWriteLock();
+  // held by changes journaled once their locks on the tree are released, so they are appended in the order made
+  private final ReentrantLock _deferredChangeLock = new ReentrantLock();
+  // the sequence number of the last record each thread appended
+  private final ThreadLocal<long[]> _lastAppended = ThreadLocal.withInitial(() -> new long[1]);
+  // the records appended and not written yet, and the sequence number of the last of them
+  private final ByteArrayOutputStream _pending = new ByteArrayOutputStream();
+  private long _appended = 0;
+  // the position in the file after the last record appended
+  private long _position;
+  // the sequence numbers of the last records written and forced
+  private volatile long _written = 0;
+  private volatile long _synced = 0;
+  // while a thread writes, the others wait for it
+  private boolean _writing = false;
+  private long _writes = 0;
+  private long _syncs = 0;
+  // once a write failed, nothing is durable anymore
+  private IOException _failure = null;
+  private boolean _closed = false;
+
+  /**
+   * Open a journal, creating it if it does not exist.
+   *
+   * @param path the journal
+   * @param syncPolicy when commits force the journal to disk
+   * @param syncIntervalMillis the milliseconds between forces of the interval policy
+   * @param replay receives the records already in the journal, in order, before anything can be appended
+   * @throws IOException if the journal cannot be opened or read
+   */
+  public Journal(Path path, SyncPolicy syncPolicy, long syncIntervalMillis, Consumer<JournalRecord> replay)
+      throws IOException {
+    this(path, syncPolicy, syncIntervalMillis, 0, replay);
+  }
+
+  /**
+   * Open a journal, creating it if it does not exist, and replay it from a position.
+   *
+   * @param path the journal
+   * @param syncPolicy when commits force the journal to disk
+   * @param syncIntervalMillis the milliseconds between forces of the interval policy
+   * @param replayFrom the position of the first record to replay, e.g. that of a snapshot, or 0 to replay all
+   * @param replay receives the records already in the journal from the position, in order, before anything can be
+   *               appended
+   * @throws IOException if the journal cannot be opened or read
+   */
+  public Journal(Path path, SyncPolicy syncPolicy, long syncIntervalMillis, long replayFrom,
+      Consumer<JournalRecord> replay) throws IOException {
+    _path = path;
+    _syncPolicy = syncPolicy;
+    _channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      long end = replay(replayFrom, replay);
+      if (end < _channel.size()) {
+        LOG.warn("Cutting off the last " + (_channel.size() - end) + " bytes of the journal " + path
+            + ", which do not hold a whole record");
+        _channel.truncate(end);
+      }
+      _channel.position(end);
+      _position = end;
+    } catch (IOException | RuntimeException ex) {
+      _channel.close();
+      throw ex;
+    }
+
+    if (syncPolicy == SyncPolicy.INTERVAL) {
+      _syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "journal-sync");
+        thread.setDaemon(true);
+        return thread;
+      });
+      _syncer.scheduleWithFixedDelay(this::syncAppended, syncIntervalMillis, syncIntervalMillis,
+          TimeUnit.MILLISECONDS);
+    } else {
+      _syncer = null;
+    }
+    LOG.info("Journaling to " + path + ", syncing " + syncPolicy.name().toLowerCase(Locale.ROOT));
+  }
+
+  /**
+   * Opens the journal of the {@value #PATH_PROPERTY} system property, if it is set.
+   * @param replayFrom the position of the first record to replay, or 0 to replay all
+   * @param replay receives the records already in the journal
+   * @return the journal, or null
+   * @throws UncheckedIOException if the journal cannot be opened, as changes would not be durable
+   */
+  public static Journal fromSystemProperties(long replayFrom, Consumer<JournalRecord> replay) {
+    String path = System.getProperty(PATH_PROPERTY);
+    if (path == null || path.isEmpty()) {
+      return null;
+    }
+    SyncPolicy syncPolicy =
+        SyncPolicy.valueOf(System.getProperty(SYNC_PROPERTY, SyncPolicy.ALWAYS.name()).toUpperCase(Locale.ROOT));
+    try {
+      return new Journal(Paths.get(path), syncPolicy, Long.getLong(SYNC_INTERVAL_PROPERTY,
+          DEFAULT_SYNC_INTERVAL_MILLIS), replayFrom, replay);
+    } catch (IOException ex) {
+      throw new UncheckedIOException("Cannot open the journal " + path, ex);
+    }
+  }
+
+  /**
+   * Append a record, to be written by the next commit of any thread. Records appended once the journal closed or
+   * failed are dropped, a failure is reported by {@link #commit()}.
+   * @param record the record
+   */
+  public void append(JournalRecord record) {
+    byte[] bytes = record.encode();
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    synchronized (this) {
+      if (_closed || _failure != null) {
+        return;
+      }
+      writeInt(_pending, bytes.length);
+      writeInt(_pending, (int) crc.getValue());
+      _pending.write(bytes, 0, bytes.length);
+      _position += 2 * Integer.BYTES + bytes.length;
+      _lastAppended.get()[0] = ++_appended;
+    }
+  }
+
+  /**
+   * Append a record naming nodes by their paths, found while no path changes, see {@link #getPathChangeLock()}.
+   * @param record finds the paths and makes the record, or returns null if there is nothing to journal, e.g. as a node
+   *               was removed
+   */
+  public void appendByPath(Supplier<JournalRecord> record) {
+    _pathLock.readLock().lock();
+    try {
+      JournalRecord journalRecord = record.get();
+      if (journalRecord != null) {
+        append(journalRecord);
+      }
+    } finally {
+      _pathLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the lock to hold from before a change is made until it is appended, for changes which are appended once
+   * their locks on the tree are released, as a move or remove holds the directories it changes before it takes
+   * {@link #getPathChangeLock()}. Such changes are appended in the order they were made. Take it before any lock of
+   * the tree.
+   * @return the lock
+   */
+  public Lock getDeferredChangeLock() {
+    return _deferredChangeLock;
+  }
+
+  /**
+   * Returns the lock to hold while moving, replacing or removing nodes and appending the record of it, once the
+   * directories changed are retained. No record naming a node by path is appended meanwhile.
+   * @return the lock
+   */
+  public Lock getPathChangeLock() {
+    return _pathLock.writeLock();
+  }
+
+  /**
+   * Wait until the records the current thread appended are as durable as the {@link SyncPolicy} promises.
+   * @throws UncheckedIOException if the journal could not be written
+   */
+  public void commit() {
+    long sequence = _lastAppended.get()[0];
+    switch (_syncPolicy) {
+      case ALWAYS:
+        if (_synced < sequence) {
+          write(sequence, true);
+        }
+        break;
+      case NONE:
+        if (_written < sequence) {
+          write(sequence, false);
+        }
+        break;
+      default:
+        synchronized (this) {
+          checkNotFailed();
+        }
+    }
+  }
+
+  /**
+   * Returns the number of records appended since the journal was opened.
+   * @return the number of records
+   */
+  public synchronized long getAppendedCount() {
+    return _appended;
+  }
+
+  /**
+   * Returns the position in the journal after the last record appended, where a journal restored onto a snapshot of
+   * the tree as it is now is replayed from.
+   * @return the position
+   */
+  public synchronized long getPosition() {
+    return _position;
+  }
+
+  /**
+   * Returns the number of writes to the file, each of them holding the records of all commits waiting for it.
+   * @return the number of writes
+   */
+  public synchronized long getWriteCount() {
+    return _writes;
+  }
+
+  /**
+   * Returns the number of times the journal was forced to disk.
+   * @return the number of forces
+   */
+  public synchronized long getSyncCount() {
+    return _syncs;
+  }
+
+  /**
+   * Write and force everything appended, and close the file. Records appended from now on are dropped.
+   */
+  @Override
+  public void close() {
+    long sequence;
+    synchronized (this) {
+      if (_closed) {
+        return;
+      }
+      _closed = true;
+      sequence = _appended;
+    }
+    if (_syncer != null) {
+      // not interrupted, an interrupt while writing would close the channel
+      _syncer.shutdown();
+      try {
+        _syncer.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    try {
+      write(sequence, true);
+    } catch (UncheckedIOException ex) {
+      // already logged by the failed write
+    }
+    try {
+      _channel.close();
+    } catch (IOException ex) {
+      LOG.warn("Could not close the journal " + _path, ex);
+    }
+  }
+
+  /**
+   * Write and force everything appended by any thread, e.g. before a snapshot which holds its changes is published.
+   * @throws UncheckedIOException if the journal could not be written
+   */
+  public void sync() {
+    long sequence;
+    synchronized (this) {
+      sequence = _appended;
+    }
+    write(sequence, true);
+  }
+
+  private void syncAppended() {
+    try {
+      sync();
+    } catch (UncheckedIOException ex) {
+      // already logged by the failed write, commits report it
+    }
+  }
+
+  /**
+   * Write, and force if asked, everything appended, unless another thread does so already and its write holds the
+   * record of a sequence number.
+   */
+  private void write(long sequence, boolean force) {
+    byte[] batch;
+    long batchEnd;
+    synchronized (this) {
+      while (true) {
+        checkNotFailed();
+        if ((force ? _synced : _written) >= sequence) {
+          return;
+        }
+        if (!_writing) {
+          break;
+        }
+        try {
+          wait();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("Interrupted while committing to the journal " + _path, ex);
+        }
+      }
+      _writing = true;
+      batch = _pending.toByteArray();
+      _pending.reset();
+      batchEnd = _appended;
+    }
+
+    IOException failure = null;
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(batch);
+      while (buffer.hasRemaining()) {
+        _channel.write(buffer);
+      }
+      if (force) {
+        _channel.force(false);
+      }
+    } catch (IOException ex) {
+      failure = ex;
+      LOG.error("Could not write the journal " + _path + ", changes are no longer durable", ex);
+    }
+
+    synchronized (this) {
+      _writing = false;
+      if (failure != null) {
+        _failure = failure;
+      } else {
+        _writes++;
+        _written = batchEnd;
+        if (force) {
+          _syncs++;
+          _synced = batchEnd;
+        }
+      }
+      notifyAll();
+      checkNotFailed();
+    }
+  }
+
+  private void checkNotFailed() {
+    if (_failure != null) {
+      throw new UncheckedIOException("Could not write the journal " + _path, _failure);
+    }
+  }
+
+  /**
+   * Read the records of the journal, writing the header of a new one.
+   * @return the position after the last whole record
+   */
+  private long replay(long replayFrom, Consumer<JournalRecord> replay) throws IOException {
+    if (_channel.size() < Integer.BYTES) {
+      // new, or the header was not completely written
+      if (replayFrom > Integer.BYTES) {
+        LOG.warn("The journal " + _path + " is new, but is to be replayed from " + replayFrom
+            + ", changes since were lost");
+      }
+      _channel.truncate(0);
+      ByteBuffer header = ByteBuffer.allocate(Integer.BYTES).putInt(MAGIC);
+      header.flip();
+      while (header.hasRemaining()) {
+        _channel.write(header);
+      }
+      _channel.force(false);
+      return Integer.BYTES;
+    }
+
+    // not closed, it would close the channel
+    DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(_channel), 64 * 1024));
+    if (in.readInt() != MAGIC) {
+      throw new IOException(_path + " is not a journal");
+    }
+
+    long end = Integer.BYTES;
+    long records = 0;
+    while (true) {
+      byte[] bytes;
+      try {
+        int length = in.readInt();
+        int checksum = in.readInt();
+        if (length <= 0 || length > _channel.size() - end - 2 * Integer.BYTES) {
+          break;
+        }
+        bytes = new byte[length];
+        in.readFully(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        if ((int) crc.getValue() != checksum) {
+          break;
+        }
+      } catch (EOFException ex) {
+        break;
+      }
+      // records before the position are still read, to find where the journal ends
+      if (end >= replayFrom) {
+        replay.accept(JournalRecord.decode(ByteBuffer.wrap(bytes)));
+        records++;
+      }
+      end += 2 * Integer.BYTES + bytes.length;
+    }
+    if (end < replayFrom) {
+      LOG.warn("The journal " + _path + " ends at " + end + ", before the position " + replayFrom
+          + " to replay it from, changes since were lost");
+    }
+    LOG.info("Replayed " + records + " records of the journal " + _path);
+    return end;
+  }
+
+  private static void writeInt(ByteArrayOutputStream out, int value) {
+    out.write(value >>> 24);
+    out.write(value >>> 16);
+    out.write(value >>> 8);
+    out.write(value);
+  }
+}
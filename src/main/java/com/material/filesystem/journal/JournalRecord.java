@@ -0,0 +1,306 @@
+package com.material.filesystem.journal;
+
+import com.material.filesystem.NodeType;
+import com.material.filesystem.permissions.Permission;
+import com.material.filesystem.user.UserType;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * A change to a file system, as written to a {@link Journal}. Paths are absolute, e.g. /a/b, and name the nodes as
+ * they were when the change was made, so the records of a journal replay in order onto the tree they were made on.
+ *
+ * Moves and copies are journaled by where the node ended up, after any name collision was resolved, and replace
+ * whatever is at that path when replayed. A directory merged into another is journaled as the moves or copies of its
+ * children.
+ */
+public class JournalRecord {
+  /**
+   * The kinds of changes.
+   */
+  public enum Kind {
+    CREATE,
+    REMOVE,
+    MOVE,
+    COPY,
+    SET_CONTENTS,
+    WRITE_CONTENTS,
+    SET_USER_TYPE_PERMISSION,
+    SET_USER_PERMISSION,
+    CLEAR_USER_TYPE_PERMISSIONS,
+    CLEAR_USER_PERMISSIONS;
+
+    boolean hasTarget() {
+      return this == MOVE || this == COPY;
+    }
+
+    boolean hasUserName() {
+      return this == CREATE || this == COPY || this == SET_USER_PERMISSION || this == CLEAR_USER_PERMISSIONS;
+    }
+
+    boolean hasUserType() {
+      return this == SET_USER_TYPE_PERMISSION || this == CLEAR_USER_TYPE_PERMISSIONS;
+    }
+
+    boolean hasPermission() {
+      return this == SET_USER_TYPE_PERMISSION || this == SET_USER_PERMISSION;
+    }
+
+    boolean hasBytes() {
+      return this == SET_CONTENTS || this == WRITE_CONTENTS;
+    }
+  }
+
+  private final Kind _kind;
+  private final String _path;
+  // where a node was moved or copied to
+  private final String _target;
+  private final NodeType _nodeType;
+  // the owner of a created node or copy, or the user of a permission
+  private final String _userName;
+  private final UserType _userType;
+  private final Permission _permission;
+  private final int _offset;
+  private final byte[] _bytes;
+
+  private JournalRecord(Kind kind, String path, String target, NodeType nodeType, String userName, UserType userType,
+      Permission permission, int offset, byte[] bytes) {
+    _kind = kind;
+    _path = path;
+    _target = target;
+    _nodeType = nodeType;
+    _userName = userName;
+    _userType = userType;
+    _permission = permission;
+    _offset = offset;
+    _bytes = bytes;
+  }
+
+  public static JournalRecord create(String path, NodeType nodeType, String owner) {
+    return new JournalRecord(Kind.CREATE, path, null, nodeType, owner, null, null, 0, null);
+  }
+
+  public static JournalRecord remove(String path) {
+    return new JournalRecord(Kind.REMOVE, path, null, null, null, null, null, 0, null);
+  }
+
+  public static JournalRecord move(String path, String target) {
+    return new JournalRecord(Kind.MOVE, path, target, null, null, null, null, 0, null);
+  }
+
+  public static JournalRecord copy(String path, String target, String owner) {
+    return new JournalRecord(Kind.COPY, path, target, null, owner, null, null, 0, null);
+  }
+
+  public static JournalRecord setContents(String path, byte[] contents) {
+    return new JournalRecord(Kind.SET_CONTENTS, path, null, null, null, null, null, 0, contents);
+  }
+
+  public static JournalRecord writeContents(String path, int offset, byte[] bytes) {
+    return new JournalRecord(Kind.WRITE_CONTENTS, path, null, null, null, null, null, offset, bytes);
+  }
+
+  public static JournalRecord setUserTypePermission(String path, UserType userType, Permission permission) {
+    return new JournalRecord(Kind.SET_USER_TYPE_PERMISSION, path, null, null, null, userType, permission, 0, null);
+  }
+
+  public static JournalRecord setUserPermission(String path, String userName, Permission permission) {
+    return new JournalRecord(Kind.SET_USER_PERMISSION, path, null, null, userName, null, permission, 0, null);
+  }
+
+  public static JournalRecord clearUserTypePermissions(String path, UserType userType) {
+    return new JournalRecord(Kind.CLEAR_USER_TYPE_PERMISSIONS, path, null, null, null, userType, null, 0, null);
+  }
+
+  public static JournalRecord clearUserPermissions(String path, String userName) {
+    return new JournalRecord(Kind.CLEAR_USER_PERMISSIONS, path, null, null, userName, null, null, 0, null);
+  }
+
+  public Kind getKind() {
+    return _kind;
+  }
+
+  public String getPath() {
+    return _path;
+  }
+
+  /**
+   * Returns the path a node was moved or copied to.
+   * @return the path, or null
+   */
+  public String getTarget() {
+    return _target;
+  }
+
+  public NodeType getNodeType() {
+    return _nodeType;
+  }
+
+  /**
+   * Returns the name of the owner of a created node or copy, or of the user of a permission.
+   * @return the name, or null
+   */
+  public String getUserName() {
+    return _userName;
+  }
+
+  public UserType getUserType() {
+    return _userType;
+  }
+
+  public Permission getPermission() {
+    return _permission;
+  }
+
+  /**
+   * Returns the index the bytes of a {@link Kind#WRITE_CONTENTS} record were written at.
+   * @return the offset
+   */
+  public int getOffset() {
+    return _offset;
+  }
+
+  /**
+   * Returns the new contents of a file, or the bytes written to them.
+   * @return the bytes, or null
+   */
+  public byte[] getBytes() {
+    return _bytes;
+  }
+
+  /**
+   * Encode the record: its kind, followed by the fields of that kind in the order they are declared, strings and byte
+   * arrays as a varint length and their bytes, enums and offsets as varints.
+   * @return the bytes
+   */
+  byte[] encode() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(32 + (_bytes == null ? 0 : _bytes.length));
+    out.write(_kind.ordinal());
+    writeString(out, _path);
+    if (_kind.hasTarget()) {
+      writeString(out, _target);
+    }
+    if (_kind == Kind.CREATE) {
+      writeVarInt(out, _nodeType.ordinal());
+    }
+    if (_kind.hasUserName()) {
+      // no owner is written as an empty name
+      writeString(out, _userName == null ? "" : _userName);
+    }
+    if (_kind.hasUserType()) {
+      writeVarInt(out, _userType.ordinal());
+    }
+    if (_kind.hasPermission()) {
+      writeVarInt(out, _permission.ordinal());
+    }
+    if (_kind == Kind.WRITE_CONTENTS) {
+      writeVarInt(out, _offset);
+    }
+    if (_kind.hasBytes()) {
+      writeVarInt(out, _bytes.length);
+      out.write(_bytes, 0, _bytes.length);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Decode a record written by {@link #encode()}.
+   * @param in the bytes of the record
+   * @return the record
+   * @throws IOException if the bytes are not a record
+   */
+  static JournalRecord decode(ByteBuffer in) throws IOException {
+    try {
+      Kind kind = valueOf(Kind.values(), in.get());
+      String path = readString(in);
+      String target = kind.hasTarget() ? readString(in) : null;
+      NodeType nodeType = kind == Kind.CREATE ? valueOf(NodeType.values(), readVarInt(in)) : null;
+      String userName = kind.hasUserName() ? readString(in) : null;
+      UserType userType = kind.hasUserType() ? valueOf(UserType.values(), readVarInt(in)) : null;
+      Permission permission = kind.hasPermission() ? valueOf(Permission.values(), readVarInt(in)) : null;
+      int offset = kind == Kind.WRITE_CONTENTS ? readVarInt(in) : 0;
+      byte[] bytes = null;
+      if (kind.hasBytes()) {
+        bytes = new byte[readVarInt(in)];
+        in.get(bytes);
+      }
+      if (in.hasRemaining()) {
+        throw new IOException("Journal record of kind " + kind + " has " + in.remaining() + " bytes too many");
+      }
+      return new JournalRecord(kind, path, target, nodeType, userName != null && userName.isEmpty() ? null : userName,
+          userType, permission, offset, bytes);
+    } catch (BufferUnderflowException | NegativeArraySizeException ex) {
+      throw new IOException("Journal record ends early", ex);
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder text = new StringBuilder(_kind.name()).append(' ').append(_path);
+    if (_kind.hasTarget()) {
+      text.append(' ').append(_target);
+    }
+    if (_kind == Kind.CREATE) {
+      text.append(' ').append(_nodeType);
+    }
+    if (_kind.hasUserName()) {
+      text.append(' ').append(_userName);
+    }
+    if (_kind.hasUserType()) {
+      text.append(' ').append(_userType);
+    }
+    if (_kind.hasPermission()) {
+      text.append(' ').append(_permission);
+    }
+    if (_kind == Kind.WRITE_CONTENTS) {
+      text.append(" at ").append(_offset);
+    }
+    if (_kind.hasBytes()) {
+      text.append(", ").append(_bytes.length).append(" bytes");
+    }
+    return text.toString();
+  }
+
+  private static <T> T valueOf(T[] values, int ordinal) throws IOException {
+    if (ordinal < 0 || ordinal >= values.length) {
+      throw new IOException("Unknown value " + ordinal + " in journal record");
+    }
+    return values[ordinal];
+  }
+
+  private static void writeString(ByteArrayOutputStream out, String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeVarInt(out, bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static String readString(ByteBuffer in) throws IOException {
+    byte[] bytes = new byte[readVarInt(in)];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeVarInt(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  private static int readVarInt(ByteBuffer in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = in.get();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint in journal record");
+  }
+}
@@ -0,0 +1,41 @@
+package com.material.filesystem.snapshot;
+
+/**
+ * What was restored from a snapshot and the deltas following it, so the journal is replayed from where they end and
+ * the next delta follows the last of them, see {@link Snapshotter#restoreFromSystemProperties}.
+ */
+public class Checkpoint {
+  /**
+   * Nothing was restored.
+   */
+  public static final Checkpoint NONE = new Checkpoint(0, 0, 0);
+
+  private final long _id;
+  private final long _journalPosition;
+  private final int _deltas;
+
+  /**
+   * Constructor
+   *
+   * @param id the ID of the snapshot or delta restored last, or 0 if none
+   * @param journalPosition the position to replay the journal from
+   * @param deltas the number of deltas restored after the snapshot
+   */
+  public Checkpoint(long id, long journalPosition, int deltas) {
+    _id = id;
+    _journalPosition = journalPosition;
+    _deltas = deltas;
+  }
+
+  public long getId() {
+    return _id;
+  }
+
+  public long getJournalPosition() {
+    return _journalPosition;
+  }
+
+  public int getDeltas() {
+    return _deltas;
+  }
+}
@@ -0,0 +1,562 @@
+package com.material.filesystem.snapshot;
+
+import com.material.filesystem.DefaultFileSystem;
+import com.material.filesystem.FileSystemTreeNode;
+import com.material.filesystem.NodeImage;
+import com.material.filesystem.NodeType;
+import com.material.filesystem.permissions.Permission;
+import com.material.filesystem.user.User;
+import com.material.filesystem.user.UserManager;
+import com.material.filesystem.user.UserType;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Reads a snapshot written by {@link SnapshotWriter} back into an empty file system, and the deltas following it.
+ *
+ * The file is mapped into memory rather than read. {@link #read} restores the whole tree: the nodes below a directory
+ * are split into runs of siblings of at least {@value #SPLIT_BYTES} bytes, found by skipping over their subtrees,
+ * which are decoded in parallel. Nodes are restored bottom up while detached, so no locks are contended, and the nodes
+ * below the root are attached last. {@link #map} restores only the root, the nodes below a directory are decoded when
+ * the directory is first used, and the contents of a file are copied out of the snapshot when they are first used.
+ * {@link #readDelta} restores the changes of a delta into the tree restored from what it follows.
+ */
+public class SnapshotReader {
+  private static final Logger LOG = LoggerFactory.getLogger(SnapshotReader.class);
+  // mapped in regions, a mapping holds at most 2GB
+  private static final int REGION_BYTES = 1 << 30;
+  private static final long SPLIT_BYTES = 256 * 1024;
+  private static final int HEADER_BYTES = 2 * Integer.BYTES + 3 * Long.BYTES;
+  private static final int TRAILER_BYTES = 4 * Long.BYTES + Integer.BYTES;
+
+  private final Path _path;
+  private final DefaultFileSystem _fileSystem;
+  private final MappedByteBuffer[] _regions;
+  // the users by their index in the snapshot, null where the user is not known
+  private final List<User> _users = new ArrayList<>();
+  private long _journalPosition;
+  private long _baseId;
+  private long _directories;
+  private long _files;
+  private long _contentBytes;
+
+  private SnapshotReader(Path path, DefaultFileSystem fileSystem, MappedByteBuffer[] regions) {
+    _path = path;
+    _fileSystem = fileSystem;
+    _regions = regions;
+  }
+
+  /**
+   * Restore the tree of a snapshot into a file system, before it is used or journaled to.
+   * @param path the snapshot
+   * @param fileSystem the file system, which must be empty
+   * @param userManager finds the owners of nodes and the users of permissions by name, those of users not found are
+   *                    dropped
+   * @param parallelism the number of threads to decode the snapshot with
+   * @return the position to replay the journal of the file system from
+   * @throws IOException if the snapshot cannot be read or is not a complete snapshot
+   */
+  public static long read(Path path, DefaultFileSystem fileSystem, UserManager userManager, int parallelism)
+      throws IOException {
+    long start = System.nanoTime();
+    SnapshotReader reader = openSnapshot(path, fileSystem, userManager);
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      pool.invoke(reader.new RootTask());
+    } catch (RuntimeException ex) {
+      throw new IOException(path + " is not a valid snapshot", ex);
+    } finally {
+      pool.shutdown();
+    }
+    LOG.info("Read " + (reader._directories + reader._files + 1) + " nodes of the snapshot " + path + " in "
+        + (System.nanoTime() - start) / 1000000 + "ms with " + parallelism + " threads");
+    return reader._journalPosition;
+  }
+
+  /**
+   * Restore the root of a snapshot into a file system, before it is used or journaled to, loading the nodes below it
+   * from the snapshot when they are first used. The snapshot must not be changed in place while the file system uses
+   * it, a snapshot replaced by {@link SnapshotWriter} stays readable until the file system no longer needs it.
+   * @param path the snapshot
+   * @param fileSystem the file system, which must be empty
+   * @param userManager finds the owners of nodes and the users of permissions by name, those of users not found are
+   *                    dropped
+   * @return the position to replay the journal of the file system from
+   * @throws IOException if the snapshot cannot be read or is not a complete snapshot, a node found not to be valid
+   *                     once it is loaded throws an {@link IllegalStateException}
+   */
+  public static long map(Path path, DefaultFileSystem fileSystem, UserManager userManager) throws IOException {
+    long start = System.nanoTime();
+    SnapshotReader reader = openSnapshot(path, fileSystem, userManager);
+    try {
+      Cursor in = reader.new Cursor(HEADER_BYTES);
+      NodeType nodeType = NodeType.values()[in.readByte()];
+      in.readString();
+      NodeImage image = reader.readHeader(in, nodeType);
+      int count = in.readVarInt();
+      in.readLong();
+      long children = in._position;
+      fileSystem.restoreRootLazily(image, () -> reader.loadSiblings(children, count), reader._directories,
+          reader._files, reader._contentBytes);
+    } catch (RuntimeException ex) {
+      throw new IOException(path + " is not a valid snapshot", ex);
+    }
+    LOG.info("Mapped the snapshot " + path + " of " + (reader._directories + reader._files + 1) + " nodes in "
+        + (System.nanoTime() - start) / 1000000 + "ms");
+    return reader._journalPosition;
+  }
+
+  /**
+   * Restore the changes of a delta into the tree restored from the snapshot or delta it follows, before the file system
+   * is used or journaled to.
+   * @param path the delta
+   * @param fileSystem the file system
+   * @param userManager finds the owners of nodes and the users of permissions by name, those of users not found are
+   *                    dropped
+   * @param baseId the ID of the snapshot or delta restored last, see {@link #readId(Path)}
+   * @param parallelism the number of threads to decode the nodes written whole with
+   * @return the position to replay the journal of the file system from, or -1 if the delta does not follow what was
+   *         restored last, the tree is then left as it was
+   * @throws IOException if the delta cannot be read or is not a complete delta, the tree may be partly changed
+   */
+  public static long readDelta(Path path, DefaultFileSystem fileSystem, UserManager userManager, long baseId,
+      int parallelism) throws IOException {
+    long start = System.nanoTime();
+    SnapshotReader reader = open(path, fileSystem, userManager);
+    if (reader._baseId == 0 || reader._baseId != baseId) {
+      return -1;
+    }
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      pool.invoke(reader.new DeltaTask());
+    } catch (RuntimeException ex) {
+      throw new IOException(path + " is not a valid delta", ex);
+    } finally {
+      pool.shutdown();
+    }
+    LOG.info("Read " + (reader._directories + reader._files + 1) + " nodes of the delta " + path + " in "
+        + (System.nanoTime() - start) / 1000000 + "ms");
+    return reader._journalPosition;
+  }
+
+  /**
+   * Returns the ID of a snapshot or delta, which the next delta follows.
+   * @param path the snapshot or delta
+   * @return the ID
+   * @throws IOException if it cannot be read
+   */
+  public static long readId(Path path) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      int read;
+      do {
+        read = channel.read(header);
+      } while (read >= 0 && header.hasRemaining());
+    }
+    if (header.hasRemaining() || header.getInt(0) != SnapshotWriter.MAGIC) {
+      throw new IOException(path + " is not a complete snapshot");
+    }
+    return header.getLong(2 * Integer.BYTES + Long.BYTES);
+  }
+
+  /**
+   * Open a snapshot, which is not a delta.
+   */
+  private static SnapshotReader openSnapshot(Path path, DefaultFileSystem fileSystem, UserManager userManager)
+      throws IOException {
+    SnapshotReader reader = open(path, fileSystem, userManager);
+    if (reader._baseId != 0) {
+      throw new IOException(path + " is a delta, not a snapshot");
+    }
+    return reader;
+  }
+
+  /**
+   * Map a snapshot or delta, and read its header, trailer and users.
+   */
+  private static SnapshotReader open(Path path, DefaultFileSystem fileSystem, UserManager userManager)
+      throws IOException {
+    SnapshotReader reader;
+    long size;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      size = channel.size();
+      // the mappings stay valid once the channel is closed
+      MappedByteBuffer[] regions = new MappedByteBuffer[(int) ((size + REGION_BYTES - 1) / REGION_BYTES)];
+      for (int i = 0; i < regions.length; i++) {
+        long position = (long) i * REGION_BYTES;
+        regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(REGION_BYTES, size - position));
+      }
+      reader = new SnapshotReader(path, fileSystem, regions);
+    }
+
+    if (size < HEADER_BYTES + TRAILER_BYTES || reader.getInt(0) != SnapshotWriter.MAGIC
+        || reader.getInt(size - Integer.BYTES) != SnapshotWriter.MAGIC) {
+      throw new IOException(path + " is not a complete snapshot");
+    }
+    if (reader.getInt(Integer.BYTES) != SnapshotWriter.VERSION) {
+      throw new IOException(path + " is a snapshot of version " + reader.getInt(Integer.BYTES) + ", not "
+          + SnapshotWriter.VERSION);
+    }
+    reader._journalPosition = reader.getLong(2 * Integer.BYTES);
+    reader._baseId = reader.getLong(2 * Integer.BYTES + 2 * Long.BYTES);
+    long trailer = size - TRAILER_BYTES;
+    reader._directories = reader.getLong(trailer + Long.BYTES);
+    reader._files = reader.getLong(trailer + 2 * Long.BYTES);
+    reader._contentBytes = reader.getLong(trailer + 3 * Long.BYTES);
+    try {
+      reader.readUsers(reader.getLong(trailer), userManager);
+    } catch (RuntimeException ex) {
+      throw new IOException(path + " is not a valid snapshot", ex);
+    }
+    return reader;
+  }
+
+  private void readUsers(long position, UserManager userManager) {
+    Cursor in = new Cursor(position);
+    int count = in.readVarInt();
+    for (int i = 0; i < count; i++) {
+      String userName = in.readString();
+      User user = userManager.findUser(userName);
+      if (user == null) {
+        LOG.warn("User " + userName + " of the snapshot was not found, dropping what they own and may do");
+      }
+      _users.add(user);
+    }
+  }
+
+  /**
+   * Restores the root, the nodes below it are restored by the thread of the pool which runs it.
+   */
+  private class RootTask extends RecursiveTask<Void> {
+    @Override
+    protected Void compute() {
+      Cursor in = new Cursor(HEADER_BYTES);
+      NodeType nodeType = NodeType.values()[in.readByte()];
+      // the root keeps its name
+      in.readString();
+      List<FileSystemTreeNode> children = new ArrayList<>();
+      _fileSystem.restoreRoot(readImage(in, nodeType, children), children);
+      return null;
+    }
+  }
+
+  /**
+   * Restores the changes of a delta, from its root down.
+   */
+  private class DeltaTask extends RecursiveTask<Void> {
+    @Override
+    protected Void compute() {
+      Cursor in = new Cursor(HEADER_BYTES);
+      if (in.readByte() != (SnapshotWriter.CHANGED | NodeType.DIRECTORY.ordinal())) {
+        throw new IllegalStateException("The root of a delta must be a changed directory");
+      }
+      in.readString();
+      restoreChanges(in, _fileSystem.getRoot());
+      return null;
+    }
+  }
+
+  /**
+   * Read what follows the type and name of a changed directory of a delta, and restore the changes to it and below.
+   * @param in positioned after the name of the directory, and after the directory once read
+   * @param directory the directory in the tree
+   */
+  private void restoreChanges(Cursor in, FileSystemTreeNode directory) {
+    NodeImage image = readHeader(in, NodeType.DIRECTORY);
+    int count = in.readVarInt();
+    in.readLong();
+    List<FileSystemTreeNode> children = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      int type = in.readByte();
+      String name = in.readString();
+      if (type == SnapshotWriter.UNCHANGED || type == (SnapshotWriter.CHANGED | NodeType.DIRECTORY.ordinal())) {
+        FileSystemTreeNode child = directory.getChild(name);
+        if (child == null || (type != SnapshotWriter.UNCHANGED && child.getNodeType() != NodeType.DIRECTORY)) {
+          throw new IllegalStateException("The delta does not follow the tree, " + name + " of "
+              + directory.getName() + " is not there");
+        }
+        if (type != SnapshotWriter.UNCHANGED) {
+          restoreChanges(in, child);
+        }
+        children.add(child);
+      } else {
+        NodeType nodeType = NodeType.values()[type];
+        List<FileSystemTreeNode> grandchildren = new ArrayList<>();
+        children.add(_fileSystem.restoreNode(name, readImage(in, nodeType, grandchildren), grandchildren));
+      }
+    }
+    _fileSystem.restoreChanges(directory, image, children);
+  }
+
+  /**
+   * Restores a run of sibling nodes.
+   */
+  private class SiblingsTask extends RecursiveTask<List<FileSystemTreeNode>> {
+    private final long _position;
+    private final int _count;
+
+    SiblingsTask(long position, int count) {
+      _position = position;
+      _count = count;
+    }
+
+    @Override
+    protected List<FileSystemTreeNode> compute() {
+      return restoreSiblings(new Cursor(_position), _count);
+    }
+  }
+
+  private List<FileSystemTreeNode> restoreSiblings(Cursor in, int count) {
+    List<FileSystemTreeNode> nodes = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      NodeType nodeType = NodeType.values()[in.readByte()];
+      String name = in.readString();
+      List<FileSystemTreeNode> children = new ArrayList<>();
+      NodeImage image = readImage(in, nodeType, children);
+      nodes.add(_fileSystem.restoreNode(name, image, children));
+    }
+    return nodes;
+  }
+
+  /**
+   * Read what follows the type and name of a node, and restore the nodes below it.
+   * @param in positioned after the name of the node, and after the node once read
+   * @param nodeType the type of the node
+   * @param children receives the nodes restored below a directory
+   * @return the image of the node
+   */
+  private NodeImage readImage(Cursor in, NodeType nodeType, List<FileSystemTreeNode> children) {
+    NodeImage image = readHeader(in, nodeType);
+    if (nodeType == NodeType.FILE) {
+      return image.withContents(in.readBytes(in.readVarInt()), image.getLastUpdatedTime());
+    }
+    int count = in.readVarInt();
+    long length = in.readLong();
+    long end = in._position + length;
+    children.addAll(restoreChildren(in._position, length, count));
+    in._position = end;
+    return image;
+  }
+
+  /**
+   * Read the owner, times and permissions of a node.
+   * @param in positioned after the name of the node, and before its contents or the nodes below it once read
+   * @param nodeType the type of the node
+   * @return the image of the node, without contents
+   */
+  private NodeImage readHeader(Cursor in, NodeType nodeType) {
+    int owner = in.readVarInt();
+    long creationTime = in.readLong();
+    long lastUpdatedTime = in.readLong();
+
+    Map<UserType, Set<Permission>> userTypePermissions = new EnumMap<>(UserType.class);
+    for (int i = in.readVarInt(); i > 0; i--) {
+      UserType userType = UserType.values()[in.readVarInt()];
+      userTypePermissions.put(userType, permissions(in.readByte()));
+    }
+    Map<User, Set<Permission>> userPermissions = new HashMap<>();
+    for (int i = in.readVarInt(); i > 0; i--) {
+      User user = _users.get(in.readVarInt());
+      Set<Permission> permissions = permissions(in.readByte());
+      if (user != null) {
+        userPermissions.put(user, permissions);
+      }
+    }
+
+    return new NodeImage(nodeType, owner == 0 ? null : _users.get(owner - 1), creationTime, lastUpdatedTime,
+        userTypePermissions, userPermissions, null);
+  }
+
+  /**
+   * Make a run of sibling nodes which load the nodes below them and their contents when they are first used.
+   */
+  private List<FileSystemTreeNode> loadSiblings(long position, int count) {
+    try {
+      Cursor in = new Cursor(position);
+      List<FileSystemTreeNode> nodes = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        NodeType nodeType = NodeType.values()[in.readByte()];
+        String name = in.readString();
+        NodeImage image = readHeader(in, nodeType);
+        if (nodeType == NodeType.FILE) {
+          int size = in.readVarInt();
+          long contents = in._position;
+          in.skip(size);
+          nodes.add(_fileSystem.restoreNodeLazily(name, image, size, () -> new Cursor(contents).readBytes(size)));
+        } else {
+          int childCount = in.readVarInt();
+          long length = in.readLong();
+          long children = in._position;
+          in.skip(length);
+          nodes.add(_fileSystem.restoreNodeLazily(name, image, () -> loadSiblings(children, childCount)));
+        }
+      }
+      return nodes;
+    } catch (RuntimeException ex) {
+      throw new IllegalStateException(_path + " is not a valid snapshot", ex);
+    }
+  }
+
+  /**
+   * Restore the nodes below a directory, splitting them into runs of siblings restored in parallel if they are large.
+   */
+  private List<FileSystemTreeNode> restoreChildren(long position, long length, int count) {
+    if (length < SPLIT_BYTES) {
+      return restoreSiblings(new Cursor(position), count);
+    }
+
+    List<SiblingsTask> tasks = new ArrayList<>();
+    Cursor in = new Cursor(position);
+    int remaining = count;
+    while (remaining > 0) {
+      long runStart = in._position;
+      int runCount = 0;
+      while (remaining > 0 && in._position - runStart < SPLIT_BYTES) {
+        skipNode(in);
+        runCount++;
+        remaining--;
+      }
+      tasks.add(new SiblingsTask(runStart, runCount));
+    }
+    if (tasks.size() == 1) {
+      return tasks.get(0).compute();
+    }
+
+    List<FileSystemTreeNode> nodes = new ArrayList<>(count);
+    RecursiveTask.invokeAll(tasks).forEach(task -> nodes.addAll(task.join()));
+    return nodes;
+  }
+
+  /**
+   * Move past a node and the nodes below it, reading only what tells how long it is.
+   */
+  private void skipNode(Cursor in) {
+    NodeType nodeType = NodeType.values()[in.readByte()];
+    in.skip(in.readVarInt());
+    in.readVarInt();
+    in.skip(2 * Long.BYTES);
+    for (int i = in.readVarInt(); i > 0; i--) {
+      in.readVarInt();
+      in.skip(1);
+    }
+    for (int i = in.readVarInt(); i > 0; i--) {
+      in.readVarInt();
+      in.skip(1);
+    }
+    if (nodeType == NodeType.FILE) {
+      in.skip(in.readVarInt());
+    } else {
+      in.readVarInt();
+      in.skip(in.readLong());
+    }
+  }
+
+  private static Set<Permission> permissions(int mask) {
+    Set<Permission> permissions = EnumSet.noneOf(Permission.class);
+    for (Permission permission : Permission.values()) {
+      if ((mask & (1 << permission.ordinal())) != 0) {
+        permissions.add(permission);
+      }
+    }
+    return permissions;
+  }
+
+  private byte getByte(long position) {
+    return _regions[(int) (position / REGION_BYTES)].get((int) (position % REGION_BYTES));
+  }
+
+  private int getInt(long position) {
+    int value = 0;
+    for (int i = 0; i < Integer.BYTES; i++) {
+      value = (value << 8) | (getByte(position + i) & 0xFF);
+    }
+    return value;
+  }
+
+  private long getLong(long position) {
+    int region = (int) (position / REGION_BYTES);
+    int index = (int) (position % REGION_BYTES);
+    if (index + Long.BYTES <= _regions[region].limit()) {
+      return _regions[region].getLong(index);
+    }
+    // spans two regions
+    return ((long) getInt(position) << 32) | (getInt(position + Integer.BYTES) & 0xFFFFFFFFL);
+  }
+
+  private void getBytes(long position, byte[] bytes) {
+    int copied = 0;
+    while (copied < bytes.length) {
+      long at = position + copied;
+      MappedByteBuffer region = _regions[(int) (at / REGION_BYTES)];
+      int index = (int) (at % REGION_BYTES);
+      int length = Math.min(bytes.length - copied, region.limit() - index);
+      region.get(index, bytes, copied, length);
+      copied += length;
+    }
+  }
+
+  /**
+   * A position in the snapshot, read forward by one thread.
+   */
+  private class Cursor {
+    private long _position;
+
+    Cursor(long position) {
+      _position = position;
+    }
+
+    int readByte() {
+      return getByte(_position++) & 0xFF;
+    }
+
+    void skip(long length) {
+      _position += length;
+    }
+
+    long readLong() {
+      long value = getLong(_position);
+      _position += Long.BYTES;
+      return value;
+    }
+
+    int readVarInt() {
+      int value = 0;
+      for (int shift = 0; shift < 32; shift += 7) {
+        int b = readByte();
+        value |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IllegalStateException("Malformed varint at " + _position);
+    }
+
+    byte[] readBytes(int length) {
+      byte[] bytes = new byte[length];
+      getBytes(_position, bytes);
+      _position += length;
+      return bytes;
+    }
+
+    String readString() {
+      return new String(readBytes(readVarInt()), StandardCharsets.UTF_8);
+    }
+  }
+}
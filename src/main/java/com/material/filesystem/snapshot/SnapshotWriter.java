@@ -0,0 +1,291 @@
+package com.material.filesystem.snapshot;
+
+import com.material.filesystem.FileSystemTreeNode;
+import com.material.filesystem.NodeImage;
+import com.material.filesystem.NodeType;
+import com.material.filesystem.TreeSnapshot;
+import com.material.filesystem.permissions.Permission;
+import com.material.filesystem.user.User;
+import com.material.filesystem.user.UserType;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Writes the tree of a {@link TreeSnapshot} to a snapshot file, read back by {@link SnapshotReader}, or only what
+ * changed since an earlier snapshot to a delta file.
+ *
+ * A snapshot is a binary file, a header, the nodes of the tree depth first from the root, and a trailer:
+ * <pre>
+ * HEADER:      MAGIC(4 bytes) VERSION(4 bytes) JOURNAL_POSITION(8 bytes) ID(8 bytes) BASE_ID(8 bytes)
+ * NODE:        TYPE(1 byte) NAME OWNER(varint) CREATED(8 bytes) UPDATED(8 bytes) PERMISSIONS (FILE | DIRECTORY)
+ * PERMISSIONS: COUNT(varint) [USER_TYPE(varint) MASK(1 byte)]... COUNT(varint) [USER(varint) MASK(1 byte)]...
+ * FILE:        LENGTH(varint) CONTENTS
+ * DIRECTORY:   COUNT(varint) LENGTH(8 bytes) NODE... (the COUNT nodes below it, LENGTH bytes in all)
+ * TRAILER:     COUNT(varint) NAME... USERS_POSITION(8 bytes) DIRECTORIES(8 bytes) FILES(8 bytes) CONTENT_BYTES(8 bytes)
+ *              MAGIC(4 bytes)
+ * </pre>
+ * Names are a varint length and UTF-8 bytes. Owners and users are indexes into the names of users in the trailer,
+ * owners counting from 1, 0 for none, and a mask has a bit per {@link Permission}. As each directory starts with the
+ * length of the nodes below it, a reader can skip over a subtree without decoding it, and decode subtrees in
+ * parallel or only once they are used. The trailer counts the nodes below the root and the bytes of their contents.
+ *
+ * A delta has the ID of the snapshot or delta it follows as its BASE_ID, 0 for a snapshot. Its root is a directory with
+ * the {@value #CHANGED} bit set in its TYPE, and so is each directory which changed, or has nodes below it which
+ * changed, since that one started. The nodes below such a directory are all listed: whole where they are files which
+ * changed or were created, moved, copied or renamed since, as a TYPE of {@value #UNCHANGED} and a NAME where nothing
+ * in them changed. The trailer of a delta counts the nodes written.
+ *
+ * The snapshot is written next to its path and moved there once complete, so the path always holds a whole snapshot.
+ */
+public class SnapshotWriter {
+  public static final int MAGIC = 0x46535350;
+  public static final int VERSION = 3;
+  public static final int CHANGED = 0x80;
+  public static final int UNCHANGED = 0x40;
+  private static final int BUFFER_SIZE = 1024 * 1024;
+
+  private final TreeSnapshot _snapshot;
+  // the epoch of the snapshot a delta follows, or -1 for a snapshot
+  private final long _since;
+  private final FileChannel _channel;
+  private final ByteBuffer _buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  // the position in the file of the start of the buffer
+  private long _flushed = 0;
+  private final Map<String, Integer> _users = new LinkedHashMap<>();
+  private long _directories = 0;
+  private long _files = 0;
+  private long _contentBytes = 0;
+
+  private SnapshotWriter(TreeSnapshot snapshot, long since, FileChannel channel) {
+    _snapshot = snapshot;
+    _since = since;
+    _channel = channel;
+  }
+
+  /**
+   * Write the tree of a snapshot, replacing the snapshot at a path once it is complete and forced to disk.
+   * @param snapshot the snapshot, which is read once, and not closed
+   * @param path the path
+   * @return the number of nodes written
+   * @throws IOException if the snapshot could not be written, the snapshot at the path is left as it was
+   */
+  public static long write(TreeSnapshot snapshot, Path path) throws IOException {
+    return write(snapshot, path, 0, -1, 0);
+  }
+
+  /**
+   * Write what changed in the tree of a snapshot since an earlier snapshot started, replacing the delta at a path
+   * once it is complete and forced to disk.
+   * @param snapshot the snapshot, which is read once, and not closed
+   * @param path the path
+   * @param id identifies the delta, for the next delta to follow
+   * @param since the epoch of the earlier snapshot, see {@link TreeSnapshot#getEpoch()}, or 0 for changes since the
+   *              tree was restored
+   * @param baseId the ID of the snapshot or delta the earlier snapshot was written to
+   * @return the number of nodes written
+   * @throws IOException if the delta could not be written, the delta at the path is left as it was
+   */
+  public static long writeDelta(TreeSnapshot snapshot, Path path, long id, long since, long baseId)
+      throws IOException {
+    return write(snapshot, path, id, since, baseId);
+  }
+
+  /**
+   * Write the tree of a snapshot identified for deltas to follow it.
+   * @param snapshot the snapshot, which is read once, and not closed
+   * @param path the path
+   * @param id identifies the snapshot, for the next delta to follow
+   * @return the number of nodes written
+   * @throws IOException if the snapshot could not be written, the snapshot at the path is left as it was
+   */
+  public static long write(TreeSnapshot snapshot, Path path, long id) throws IOException {
+    return write(snapshot, path, id, -1, 0);
+  }
+
+  private static long write(TreeSnapshot snapshot, Path path, long id, long since, long baseId) throws IOException {
+    Path partial = path.resolveSibling(path.getFileName() + ".partial");
+    long nodes;
+    try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      SnapshotWriter writer = new SnapshotWriter(snapshot, since, channel);
+      writer.writeSnapshot(id, baseId);
+      channel.force(false);
+      nodes = writer._directories + writer._files;
+    } catch (IOException | RuntimeException ex) {
+      Files.deleteIfExists(partial);
+      throw ex;
+    }
+    Files.move(partial, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return nodes;
+  }
+
+  private void writeSnapshot(long id, long baseId) throws IOException {
+    writeInt(MAGIC);
+    writeInt(VERSION);
+    writeLong(_snapshot.getJournalPosition());
+    writeLong(id);
+    writeLong(baseId);
+    writeNode("/", _snapshot.getRootImage(), _since >= 0);
+
+    long usersPosition = position();
+    writeVarInt(_users.size());
+    for (String userName : _users.keySet()) {
+      writeString(userName);
+    }
+    writeLong(usersPosition);
+    // not counting the root
+    writeLong(_directories - 1);
+    writeLong(_files);
+    writeLong(_contentBytes);
+    writeInt(MAGIC);
+    flush();
+  }
+
+  /**
+   * Write a node and the nodes below it.
+   * @param changed true to write a directory of a delta, listing the nodes below as changed, whole or unchanged
+   */
+  private void writeNode(String name, NodeImage image, boolean changed) throws IOException {
+    writeByte(image.getNodeType().ordinal() | (changed ? CHANGED : 0));
+    writeString(name);
+    writeVarInt(image.getOwner() == null ? 0 : userIndex(image.getOwner()) + 1);
+    writeLong(image.getCreationTime());
+    writeLong(image.getLastUpdatedTime());
+    writeVarInt(image.getUserTypePermissions().size());
+    for (Map.Entry<UserType, Set<Permission>> entry : image.getUserTypePermissions().entrySet()) {
+      writeVarInt(entry.getKey().ordinal());
+      writeByte(mask(entry.getValue()));
+    }
+    writeVarInt(image.getUserPermissions().size());
+    for (Map.Entry<User, Set<Permission>> entry : image.getUserPermissions().entrySet()) {
+      writeVarInt(userIndex(entry.getKey()));
+      writeByte(mask(entry.getValue()));
+    }
+
+    if (image.getNodeType() == NodeType.FILE) {
+      byte[] contents = image.getContents();
+      _files++;
+      _contentBytes += contents.length;
+      writeVarInt(contents.length);
+      writeBytes(contents);
+    } else {
+      Map<String, FileSystemTreeNode> children = image.getChildren();
+      _directories++;
+      writeVarInt(children.size());
+      long lengthPosition = position();
+      writeLong(0);
+      for (Map.Entry<String, FileSystemTreeNode> child : children.entrySet()) {
+        FileSystemTreeNode node = child.getValue();
+        boolean attached = !changed || _snapshot.getAttachedIn(node) > _since;
+        if (attached || _snapshot.getChangedIn(node) > _since) {
+          NodeImage childImage = _snapshot.getImage(node);
+          writeNode(child.getKey(), childImage, !attached && childImage.getNodeType() == NodeType.DIRECTORY);
+        } else {
+          writeByte(UNCHANGED);
+          writeString(child.getKey());
+        }
+      }
+      patchLong(lengthPosition, position() - lengthPosition - Long.BYTES);
+    }
+  }
+
+  private int userIndex(User user) {
+    return _users.computeIfAbsent(user.getUsername(), (name) -> _users.size());
+  }
+
+  private static int mask(Set<Permission> permissions) {
+    int mask = 0;
+    for (Permission permission : permissions) {
+      mask |= 1 << permission.ordinal();
+    }
+    return mask;
+  }
+
+  private long position() {
+    return _flushed + _buffer.position();
+  }
+
+  private void writeByte(int value) throws IOException {
+    ensureRemaining(1);
+    _buffer.put((byte) value);
+  }
+
+  private void writeInt(int value) throws IOException {
+    ensureRemaining(Integer.BYTES);
+    _buffer.putInt(value);
+  }
+
+  private void writeLong(long value) throws IOException {
+    ensureRemaining(Long.BYTES);
+    _buffer.putLong(value);
+  }
+
+  private void writeVarInt(int value) throws IOException {
+    ensureRemaining(5);
+    while ((value & ~0x7F) != 0) {
+      _buffer.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    _buffer.put((byte) value);
+  }
+
+  private void writeString(String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeVarInt(bytes.length);
+    writeBytes(bytes);
+  }
+
+  private void writeBytes(byte[] bytes) throws IOException {
+    ensureRemaining(Math.min(bytes.length, BUFFER_SIZE));
+    if (bytes.length <= _buffer.remaining()) {
+      _buffer.put(bytes);
+      return;
+    }
+    // large contents go to the file as they are, not through the buffer
+    flush();
+    ByteBuffer contents = ByteBuffer.wrap(bytes);
+    while (contents.hasRemaining()) {
+      _channel.write(contents);
+    }
+    _flushed += bytes.length;
+  }
+
+  /**
+   * Overwrite a long written before, e.g. the length of the nodes below a directory once they are written.
+   */
+  private void patchLong(long position, long value) throws IOException {
+    if (position >= _flushed) {
+      _buffer.putLong((int) (position - _flushed), value);
+      return;
+    }
+    ByteBuffer patch = ByteBuffer.allocate(Long.BYTES).putLong(value);
+    patch.flip();
+    while (patch.hasRemaining()) {
+      _channel.write(patch, position + patch.position());
+    }
+  }
+
+  private void ensureRemaining(int bytes) throws IOException {
+    if (_buffer.remaining() < bytes) {
+      flush();
+    }
+  }
+
+  private void flush() throws IOException {
+    _buffer.flip();
+    while (_buffer.hasRemaining()) {
+      _flushed += _channel.write(_buffer);
+    }
+    _buffer.clear();
+  }
+}
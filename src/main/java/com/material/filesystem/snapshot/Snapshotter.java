@@ -0,0 +1,252 @@
+package com.material.filesystem.snapshot;
+
+import com.material.filesystem.DefaultFileSystem;
+import com.material.filesystem.TreeSnapshot;
+import com.material.filesystem.journal.Journal;
+import com.material.filesystem.user.UserManager;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Snapshots the tree of a file system periodically, so a restart restores the last snapshot and replays only the
+ * journal after it. Start the server with <pre>-Dfileserver.snapshot=PATH</pre>, along with a journal.
+ *
+ * Between snapshots, only what changed since the last snapshot or delta is written, to a delta next to the snapshot,
+ * PATH.delta.1, PATH.delta.2 and so on, so the writes follow the rate of changes rather than the size of the tree.
+ * A restart restores the snapshot and then the deltas in turn. Every {@value #DELTAS_PROPERTY} deltas the whole tree
+ * is written again, and the deltas deleted, so a restart restores at most that many.
+ */
+public class Snapshotter implements Closeable {
+  /**
+   * System property with the path of the snapshot.
+   */
+  public static final String PATH_PROPERTY = "fileserver.snapshot";
+  /**
+   * System property with the seconds between snapshots.
+   */
+  public static final String INTERVAL_PROPERTY = "fileserver.snapshot.intervalSeconds";
+  /**
+   * System property, true to restore the snapshot lazily, loading nodes and contents from it when first used.
+   */
+  public static final String LAZY_PROPERTY = "fileserver.snapshot.lazy";
+  /**
+   * System property with the number of deltas written between snapshots of the whole tree, 0 to always write it whole.
+   */
+  public static final String DELTAS_PROPERTY = "fileserver.snapshot.deltas";
+  private static final long DEFAULT_INTERVAL_SECONDS = 300;
+  private static final int DEFAULT_DELTAS = 10;
+  private static final Logger LOG = LoggerFactory.getLogger(Snapshotter.class);
+
+  private final DefaultFileSystem _fileSystem;
+  private final Journal _journal;
+  private final Path _path;
+  private final int _maxDeltas;
+  private final ScheduledExecutorService _writer;
+  // the ID of the snapshot or delta written or restored last, 0 if none, and the epoch changes are written since
+  private long _lastId;
+  private long _since = 0;
+  private int _deltas;
+
+  /**
+   * Constructor
+   *
+   * @param fileSystem the file system
+   * @param journal the journal of the file system, or null
+   * @param path the snapshot
+   * @param intervalSeconds the seconds between snapshots
+   */
+  public Snapshotter(DefaultFileSystem fileSystem, Journal journal, Path path, long intervalSeconds) {
+    this(fileSystem, journal, path, intervalSeconds, Checkpoint.NONE, 0);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param fileSystem the file system
+   * @param journal the journal of the file system, or null
+   * @param path the snapshot
+   * @param intervalSeconds the seconds between snapshots
+   * @param checkpoint what the file system was restored from, the next delta follows it
+   * @param maxDeltas the number of deltas written between snapshots of the whole tree
+   */
+  public Snapshotter(DefaultFileSystem fileSystem, Journal journal, Path path, long intervalSeconds,
+      Checkpoint checkpoint, int maxDeltas) {
+    _fileSystem = fileSystem;
+    _journal = journal;
+    _path = path;
+    _maxDeltas = maxDeltas;
+    _lastId = checkpoint.getId();
+    _deltas = checkpoint.getDeltas();
+    _writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "snapshot-writer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    _writer.scheduleWithFixedDelay(this::snapshotQuietly, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    LOG.info("Snapshotting to " + path + " every " + intervalSeconds + "s");
+  }
+
+  /**
+   * Returns a snapshotter if the {@value #PATH_PROPERTY} system property is set.
+   * @param fileSystem the file system
+   * @param journal the journal of the file system, or null
+   * @param checkpoint what the file system was restored from
+   * @return the snapshotter, or null
+   */
+  public static Snapshotter fromSystemProperties(DefaultFileSystem fileSystem, Journal journal,
+      Checkpoint checkpoint) {
+    String path = System.getProperty(PATH_PROPERTY);
+    if (path == null || path.isEmpty()) {
+      return null;
+    }
+    return new Snapshotter(fileSystem, journal, Paths.get(path),
+        Long.getLong(INTERVAL_PROPERTY, DEFAULT_INTERVAL_SECONDS), checkpoint,
+        Integer.getInteger(DELTAS_PROPERTY, DEFAULT_DELTAS));
+  }
+
+  /**
+   * Restores the snapshot of the {@value #PATH_PROPERTY} system property into an empty file system, if it is set and
+   * a snapshot was written there, lazily if the {@value #LAZY_PROPERTY} system property is true, and the deltas
+   * following it.
+   * @param fileSystem the file system
+   * @param userManager finds the users of the snapshot
+   * @return what was restored, {@link Checkpoint#NONE} if there is no snapshot
+   * @throws UncheckedIOException if the snapshot cannot be read, as replaying the journal alone would lose changes
+   */
+  public static Checkpoint restoreFromSystemProperties(DefaultFileSystem fileSystem, UserManager userManager) {
+    String path = System.getProperty(PATH_PROPERTY);
+    if (path == null || path.isEmpty() || !Files.exists(Paths.get(path))) {
+      return Checkpoint.NONE;
+    }
+    return restore(Paths.get(path), fileSystem, userManager, Boolean.getBoolean(LAZY_PROPERTY));
+  }
+
+  /**
+   * Restores a snapshot into an empty file system, and the deltas following it, up to the first delta missing or not
+   * following the one before, left from before the last snapshot of the whole tree.
+   * @param path the snapshot
+   * @param fileSystem the file system
+   * @param userManager finds the users of the snapshot
+   * @param lazy true to load the nodes of the snapshot when first used
+   * @return what was restored
+   * @throws UncheckedIOException if the snapshot or a delta cannot be read
+   */
+  public static Checkpoint restore(Path path, DefaultFileSystem fileSystem, UserManager userManager, boolean lazy) {
+    int parallelism = Runtime.getRuntime().availableProcessors();
+    Path restoring = path;
+    try {
+      long id = SnapshotReader.readId(path);
+      long journalPosition = lazy
+          ? SnapshotReader.map(path, fileSystem, userManager)
+          : SnapshotReader.read(path, fileSystem, userManager, parallelism);
+      int deltas = 0;
+      for (restoring = deltaPath(path, 1); Files.exists(restoring); restoring = deltaPath(path, deltas + 1)) {
+        long position = SnapshotReader.readDelta(restoring, fileSystem, userManager, id, parallelism);
+        if (position < 0) {
+          LOG.warn("Ignoring " + restoring + " and the deltas after it, it does not follow the one before");
+          break;
+        }
+        id = SnapshotReader.readId(restoring);
+        journalPosition = position;
+        deltas++;
+      }
+      return new Checkpoint(id, journalPosition, deltas);
+    } catch (IOException ex) {
+      throw new UncheckedIOException("Cannot restore the snapshot " + restoring, ex);
+    }
+  }
+
+  /**
+   * Snapshot the tree now, unless a snapshot is already being taken, writing only what changed since the last
+   * snapshot or delta unless it is time to write the whole tree.
+   * @return the number of nodes written
+   * @throws IOException if the snapshot could not be written, the last snapshot is left as it was
+   */
+  public synchronized long snapshot() throws IOException {
+    long start = System.nanoTime();
+    long nodes;
+    Path path;
+    try (TreeSnapshot snapshot = _fileSystem.snapshot()) {
+      if (_journal != null) {
+        // the journal must hold everything before the snapshot's position, so changes appended after a restart
+        // start past it
+        _journal.sync();
+      }
+      long id = newId();
+      if (_lastId == 0 || _deltas >= _maxDeltas) {
+        path = _path;
+        nodes = SnapshotWriter.write(snapshot, path, id);
+        // the deltas left no longer follow the snapshot, so a crash before they are all deleted is harmless
+        deleteDeltas();
+        _deltas = 0;
+      } else if (!snapshot.hasChangedSince(_since)) {
+        return 0;
+      } else {
+        path = deltaPath(_path, _deltas + 1);
+        nodes = SnapshotWriter.writeDelta(snapshot, path, id, _since, _lastId);
+        _deltas++;
+      }
+      _lastId = id;
+      _since = snapshot.getEpoch();
+    }
+    LOG.info("Wrote " + nodes + " nodes to the snapshot " + path + " in " + (System.nanoTime() - start) / 1000000
+        + "ms");
+    return nodes;
+  }
+
+  /**
+   * Returns the path of a delta following a snapshot.
+   * @param path the snapshot
+   * @param delta the number of the delta, from 1
+   * @return the path
+   */
+  public static Path deltaPath(Path path, int delta) {
+    return path.resolveSibling(path.getFileName() + ".delta." + delta);
+  }
+
+  private void deleteDeltas() throws IOException {
+    for (int delta = 1; Files.deleteIfExists(deltaPath(_path, delta)); delta++) {
+      LOG.debug("Deleted " + deltaPath(_path, delta));
+    }
+  }
+
+  private static long newId() {
+    long id = 0;
+    while (id == 0) {
+      id = ThreadLocalRandom.current().nextLong();
+    }
+    return id;
+  }
+
+  private void snapshotQuietly() {
+    try {
+      snapshot();
+    } catch (IOException | RuntimeException ex) {
+      LOG.error("Could not write the snapshot " + _path, ex);
+    }
+  }
+
+  /**
+   * Stop snapshotting, waiting for a snapshot being written.
+   */
+  @Override
+  public void close() {
+    _writer.shutdown();
+    try {
+      _writer.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
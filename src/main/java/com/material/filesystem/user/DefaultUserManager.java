@@ -10,6 +10,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import org.apache.commons.codec.digest.DigestUtils;
@@ -24,16 +25,25 @@ import org.slf4j.LoggerFactory;
  * NOTE: Security is low here due to time constraints.
  * NOTE: User Groups not supported yet due to time constraints
  */
-public class DefaultUserManager implements UserManager {
+public class DefaultUserManager implements UserManager, UserManagerMXBean {
   public static final User GUEST_USER = new User("guest", "", UserType.GUEST);
   private static final Logger LOG = LoggerFactory.getLogger(DefaultUserManager.class);
   public static User ROOT_USER;
+  private static final int LOGIN_RATE_WINDOW_SECONDS = 60;
   private final ThreadLocal<User> _currentUser = ThreadLocal.withInitial(() -> GUEST_USER);
   private final Map<String, User> _userDb = new HashMap<>();
   private final Map<String, User> _loggedInUsers = new HashMap<>();
 
   private final Lock _loggedInUsersLock = new ReentrantLock();
 
+  // session counters, guarded by _loggedInUsersLock
+  private int _activeSessions = 0;
+  private long _logins = 0;
+  private long _failedLogins = 0;
+  // the logins in each of the last seconds, indexed by the second modulo the window
+  private final long[] _loginsInSecond = new long[LOGIN_RATE_WINDOW_SECONDS];
+  private final long[] _loginSecond = new long[LOGIN_RATE_WINDOW_SECONDS];
+
   // demonstration purpose only
   private final boolean _allowDuplicateSessions;
 
@@ -102,15 +112,19 @@ public class DefaultUserManager implements UserManager {
             if (passwordMd5.equals(user.getPasswordHash())) {
               _currentUser.set(user);
               _loggedInUsers.put(username, user);
+              recordLogin();
             } else {
+              _failedLogins++;
               throw new UserSecurityException("Username and/or password was invalid");
             }
           } else {
+            _failedLogins++;
             throw new UserSecurityException("User " + username
                 + " is already logged in in another terminal, logout first, or enable multiple sessions");
           }
           return user;
         } else {
+          _failedLogins++;
           throw new UserSecurityException("Username and/or password was invalid");
         }
       } finally {
@@ -131,11 +145,13 @@ public class DefaultUserManager implements UserManager {
         User user = _currentUser.get();
 
         if (user != GUEST_USER) {
-          if (_loggedInUsers.get(user.getUsername()) != user) {
+          // with duplicate sessions another session of the user may have logged out already
+          if (!_allowDuplicateSessions && _loggedInUsers.get(user.getUsername()) != user) {
             throw new UserSecurityException(
                 "User objects are not the same for " + user.getUsername() + " someone is trying to hack!");
           }
           _loggedInUsers.remove(user.getUsername());
+          _activeSessions--;
           _currentUser.set(GUEST_USER);
           LOG.info("User " + user.getUsername() + " is logged out");
         } else {
@@ -147,6 +163,69 @@ public class DefaultUserManager implements UserManager {
     }
   }
 
+  private void recordLogin() {
+    _activeSessions++;
+    _logins++;
+    long second = currentSecond();
+    int slot = (int) Math.floorMod(second, (long) LOGIN_RATE_WINDOW_SECONDS);
+    if (_loginSecond[slot] != second) {
+      _loginSecond[slot] = second;
+      _loginsInSecond[slot] = 0;
+    }
+    _loginsInSecond[slot]++;
+  }
+
+  private static long currentSecond() {
+    return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+  }
+
+  @Override
+  public int getActiveSessions() {
+    _loggedInUsersLock.lock();
+    try {
+      return _activeSessions;
+    } finally {
+      _loggedInUsersLock.unlock();
+    }
+  }
+
+  @Override
+  public long getLoginCount() {
+    _loggedInUsersLock.lock();
+    try {
+      return _logins;
+    } finally {
+      _loggedInUsersLock.unlock();
+    }
+  }
+
+  @Override
+  public long getFailedLoginCount() {
+    _loggedInUsersLock.lock();
+    try {
+      return _failedLogins;
+    } finally {
+      _loggedInUsersLock.unlock();
+    }
+  }
+
+  @Override
+  public double getLoginsPerSecond() {
+    long second = currentSecond();
+    long logins = 0;
+    _loggedInUsersLock.lock();
+    try {
+      for (int slot = 0; slot < LOGIN_RATE_WINDOW_SECONDS; slot++) {
+        if (second - _loginSecond[slot] < LOGIN_RATE_WINDOW_SECONDS) {
+          logins += _loginsInSecond[slot];
+        }
+      }
+    } finally {
+      _loggedInUsersLock.unlock();
+    }
+    return (double) logins / LOGIN_RATE_WINDOW_SECONDS;
+  }
+
   @Override
   public void checkLoggedIn() throws UserSecurityException {
     if (_currentUser.get() == GUEST_USER) {
@@ -173,4 +252,9 @@ public class DefaultUserManager implements UserManager {
 
     return _userDb.get(userName);
   }
+
+  @Override
+  public User findUser(String userName) {
+    return _userDb.get(userName);
+  }
 }
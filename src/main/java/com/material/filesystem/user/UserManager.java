@@ -39,4 +39,11 @@ public interface UserManager {
    * @throws UserSecurityException if the user is not found
    */
   User getUser(String userName) throws UserSecurityException;
+
+  /**
+   * Find a user by name whoever the current user is, e.g. to restore the owner of a node from a journal.
+   * @param userName a Username to find.
+   * @return the user, or null if there is none of that name
+   */
+  User findUser(String userName);
 }
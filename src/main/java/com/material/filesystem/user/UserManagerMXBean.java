@@ -0,0 +1,26 @@
+package com.material.filesystem.user;
+
+/**
+ * JMX view of the sessions of a {@link DefaultUserManager}.
+ */
+public interface UserManagerMXBean {
+  /**
+   * Returns the number of logins not yet logged out. With duplicate sessions a user can account for several.
+   * @return the number of logged in sessions
+   */
+  int getActiveSessions();
+
+  long getLoginCount();
+
+  /**
+   * Returns the number of logins refused for a bad username or password, or a user already logged in elsewhere.
+   * @return the number of failed logins
+   */
+  long getFailedLoginCount();
+
+  /**
+   * Returns the rate of successful logins over the last minute.
+   * @return logins per second
+   */
+  double getLoginsPerSecond();
+}
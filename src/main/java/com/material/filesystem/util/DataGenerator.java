@@ -1,13 +1,94 @@
 package com.material.filesystem.util;
 
-import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
 
 
+/**
+ * Generates file contents for tests and benchmarks. Contents are filled in blocks of {@value #BLOCK_SIZE} bytes, in
+ * parallel once there are enough of them, and each block has a random source of its own derived from the seed, so the
+ * same seed gives the same contents whatever the number of threads.
+ */
 public class DataGenerator {
+  public static final int BLOCK_SIZE = 4096;
+  // below this many blocks the fork / join overhead outweighs filling on one thread
+  private static final int PARALLEL_BLOCKS = 64;
+  // the blocks which duplicated blocks copy, a small pool so each of them is repeated often
+  private static final int DUPLICATE_POOL = 16;
 
   public static byte[] randomArray(int size) {
-    byte[] randomA = new byte[size];
-    new Random().nextBytes(randomA);
-    return randomA;
+    return randomArray(size, ThreadLocalRandom.current().nextLong());
+  }
+
+  /**
+   * Returns incompressible random bytes.
+   * @param size the number of bytes
+   * @param seed the seed, the same seed gives the same bytes
+   * @return the bytes
+   */
+  public static byte[] randomArray(int size, long seed) {
+    return contentArray(size, seed, 0, 0);
+  }
+
+  /**
+   * Returns bytes which compress and deduplicate about as well as asked. Each block starts with random bytes and ends
+   * with zeros, the zeros making up <pre>compressibility</pre> of the block. A <pre>duplication</pre> share of the
+   * blocks copy one of a few shared blocks instead of having contents of their own, so that share of the blocks is
+   * found again elsewhere when deduplicating by block.
+   *
+   * @param size the number of bytes
+   * @param seed the seed, the same seed gives the same bytes
+   * @param compressibility from 0 for random bytes to 1 for zeros
+   * @param duplication from 0 for no repeated blocks to 1 for blocks which all repeat the shared ones
+   * @return the bytes
+   */
+  public static byte[] contentArray(int size, long seed, double compressibility, double duplication) {
+    if (compressibility < 0 || compressibility > 1 || duplication < 0 || duplication > 1) {
+      throw new IllegalArgumentException("compressibility and duplication must be between 0 and 1");
+    }
+    byte[] bytes = new byte[size];
+    int blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    int randomBytesPerBlock = (int) Math.round(BLOCK_SIZE * (1 - compressibility));
+    IntStream blockIndexes = IntStream.range(0, blocks);
+    if (blocks >= PARALLEL_BLOCKS) {
+      blockIndexes = blockIndexes.parallel();
+    }
+    blockIndexes.forEach(block -> {
+      SplittableRandom random = new SplittableRandom(seed ^ mix(block));
+      // duplicated blocks use the seed of a shared block, which gives them the same bytes
+      long contentSeed = random.nextDouble() < duplication
+          ? seed ^ mix(-1 - random.nextInt(DUPLICATE_POOL)) : random.nextLong();
+      int start = block * BLOCK_SIZE;
+      fillRandom(bytes, start, Math.min(randomBytesPerBlock, size - start), new SplittableRandom(contentSeed));
+    });
+    return bytes;
+  }
+
+  private static void fillRandom(byte[] bytes, int offset, int length, SplittableRandom random) {
+    int end = offset + length;
+    int i = offset;
+    for (; i + Long.BYTES <= end; i += Long.BYTES) {
+      long value = random.nextLong();
+      for (int b = 0; b < Long.BYTES; b++) {
+        bytes[i + b] = (byte) (value >>> (b * 8));
+      }
+    }
+    if (i < end) {
+      long value = random.nextLong();
+      for (; i < end; i++, value >>>= 8) {
+        bytes[i] = (byte) value;
+      }
+    }
+  }
+
+  /**
+   * Spread an index over all the bits of a seed, the finalizer of SplitMix64.
+   */
+  private static long mix(long index) {
+    long z = (index + 1) * 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
   }
 }
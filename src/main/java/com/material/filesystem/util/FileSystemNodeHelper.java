@@ -5,6 +5,7 @@ import com.material.filesystem.File;
 import com.material.filesystem.FileSystemObject;
 import com.material.filesystem.FileSystemTreeNode;
 import com.material.filesystem.NodeType;
+import com.material.filesystem.diagnostics.OperationTrace;
 import com.material.filesystem.permissions.InsufficientPermissionException;
 import com.material.filesystem.permissions.Permission;
 import com.material.filesystem.user.UserManager;
@@ -44,6 +45,19 @@ public class FileSystemNodeHelper {
   }
 
   public static Optional<FileSystemTreeNode> walkToEndNodeInPath(Path path, FileSystemTreeNode startNode) {
+    if (!OperationTrace.isTracing()) {
+      return walkPath(path, startNode);
+    }
+
+    long startNanos = System.nanoTime();
+    try {
+      return walkPath(path, startNode);
+    } finally {
+      OperationTrace.recordResolve(System.nanoTime() - startNanos);
+    }
+  }
+
+  private static Optional<FileSystemTreeNode> walkPath(Path path, FileSystemTreeNode startNode) {
     if (path == null) {
       return Optional.empty();
     }
@@ -55,6 +69,7 @@ public class FileSystemNodeHelper {
     while (node != null && pathIt.hasNext()) {
       Path part = pathIt.next();
       String partName = part.toString();
+      OperationTrace.touchNodes(1);
       node = partName.equals("..") ? (node.isRootNode() ? node : node.getParent()) : node.getChild(part.toString());
     }
 
@@ -108,6 +123,20 @@ public class FileSystemNodeHelper {
    */
   public static void checkUserPermission(UserManager userManager, FileSystemTreeNode node, Permission permission)
       throws InsufficientPermissionException {
+    if (!OperationTrace.isTracing()) {
+      checkPermission(userManager, node, permission);
+      return;
+    }
+
+    long startNanos = System.nanoTime();
+    try {
+      checkPermission(userManager, node, permission);
+    } finally {
+      OperationTrace.recordPermissionCheck(System.nanoTime() - startNanos);
+    }
+  }
+
+  private static void checkPermission(UserManager userManager, FileSystemTreeNode node, Permission permission) {
     userManager.checkLoggedIn();
     // owner always has privileges
     if (node.getOwner() != userManager.currentUser() && !node.getUserTypePermissions(
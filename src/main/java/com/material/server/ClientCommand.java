@@ -37,6 +37,18 @@ public class ClientCommand {
     _commandArgs.add(arg);
   }
 
+  /**
+   * Add an argument exactly as the {@link CommandParser} tokenized it, with quotes and escapes already removed.
+   * @param arg the argument
+   */
+  void addParsedArgument(String arg) {
+    _commandArgs.add(arg);
+  }
+
+  void addOpt(char opt) {
+    _commandOpts.add(opt);
+  }
+
   public void addOpts(String opts) {
     if (opts == null) {
       return;
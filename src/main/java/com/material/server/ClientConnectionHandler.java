@@ -1,13 +1,23 @@
 package com.material.server;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Function;
+import java.util.function.LongConsumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,64 +28,293 @@ import org.slf4j.LoggerFactory;
 public class ClientConnectionHandler implements Runnable {
   private static final Logger LOG = LoggerFactory.getLogger(ClientConnectionHandler.class);
   private static final AtomicInteger numConnections = new AtomicInteger(0);
+  private static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
 
-  private final Socket _clientSocket;
-  private final Function<String, String> _inputProcessor;
-  private final Runnable _onCloseHandler;
+  private final SocketChannel _clientChannel;
+  private final ClientInputProcessor _inputProcessor;
+  private final ServerMetrics _metrics;
+  private final WorkloadRecorder _recorder;
+  private final String _clientName;
+  // a unix domain socket channel has no socket adaptor, its streams are only used from the handler thread
+  private final boolean _unixSocket;
 
   /**
    * Constructor
    *
-   * @param clientSocket the connected server socket.
+   * @param clientChannel the connected client channel, in blocking mode.
+   * @param inputProcessor processes the commands sent by the client
+   * @throws IOException if the remote address of the client cannot be read
    */
-  public ClientConnectionHandler(Socket clientSocket, Function<String, String> inputProcessor,
-      Runnable onCloseHandler) {
-    _clientSocket = clientSocket;
+  public ClientConnectionHandler(SocketChannel clientChannel, ClientInputProcessor inputProcessor) throws IOException {
+    this(clientChannel, inputProcessor, null);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param clientChannel the connected client channel, in blocking mode.
+   * @param inputProcessor processes the commands sent by the client
+   * @param recorder records the input of the client, or null
+   * @throws IOException if the remote address of the client cannot be read
+   */
+  public ClientConnectionHandler(SocketChannel clientChannel, ClientInputProcessor inputProcessor,
+      WorkloadRecorder recorder) throws IOException {
+    _clientChannel = clientChannel;
     _inputProcessor = inputProcessor;
-    _onCloseHandler = onCloseHandler;
+    _metrics = inputProcessor.getMetrics();
+    _recorder = recorder;
+    _clientName = String.valueOf(clientChannel.getRemoteAddress());
+    _unixSocket = clientChannel.getLocalAddress() instanceof UnixDomainSocketAddress;
   }
 
   @Override
   public void run() {
     numConnections.incrementAndGet();
-    LOG.info("ClientConnectionHandler started: " + _clientSocket.getPort() + ", active connections: "
-        + numConnections.get());
-    try (PrintWriter out = new PrintWriter(_clientSocket.getOutputStream(), true);
-        BufferedReader in = new BufferedReader(new InputStreamReader(_clientSocket.getInputStream()))) {
+    _metrics.onSessionOpened();
+    LOG.info("ClientConnectionHandler started: " + _clientName + ", active connections: " + numConnections.get());
+    WorkloadRecorder.Session recording = _recorder == null ? null : _recorder.openSession();
+    // bytes are counted as they are encoded on the wire, below the writer and the buffer
+    try (PrintWriter out = new PrintWriter(new CountingOutputStream(
+        _unixSocket ? Channels.newOutputStream(_clientChannel) : _clientChannel.socket().getOutputStream(),
+        _metrics::recordBytesOut), true);
+        InputStream in = new BufferedInputStream(new CountingInputStream(
+            _unixSocket ? Channels.newInputStream(_clientChannel) : _clientChannel.socket().getInputStream(),
+            _metrics::recordBytesIn))) {
 
       // con
-      out.println("connected on: " + _clientSocket.getPort());
+      out.println("connected on: " + (_unixSocket ? _clientChannel.getLocalAddress()
+          : String.valueOf(_clientChannel.socket().getPort())));
 
+      ContentChannel contentChannel = new SocketContentChannel(out, in, recording);
       String inputLine;
 
-      while ((inputLine = in.readLine()) != null) {
-        LOG.debug(_clientSocket.getInetAddress().getHostName() + ":" + _clientSocket.getPort() + " <-- " + inputLine);
+      while ((inputLine = WireProtocol.readLine(in)) != null) {
+        LOG.debug("{} <-- {}", _clientName, inputLine);
+        if (recording != null) {
+          recording.command(inputLine);
+        }
         try {
-          String response = _inputProcessor.apply(inputLine);
-          LOG.debug(_clientSocket.getInetAddress().getHostName() + ":" + _clientSocket.getPort() + " --> " + response);
+          String response;
+          if (ClientInputProcessor.isBatchStart(inputLine)) {
+            response = _inputProcessor.processBatch(inputLine, readBatch(in, recording));
+          } else if (SharedMemorySession.isSharedMemoryStart(inputLine)) {
+            SharedMemorySession.serve(inputLine, _inputProcessor, contentChannel);
+            response = null;
+          } else {
+            response = _inputProcessor.processInput(inputLine, contentChannel);
+          }
 
+          if (response == null) {
+            // already written to the channel
+            continue;
+          }
+          LOG.debug("{} --> {}", _clientName, response);
+
+          long writeStartNanos = System.nanoTime();
           if (response.contains("\n")) {
             String[] lines = response.split("\n");
-            out.println("START_LINES");
+            out.println(WireProtocol.START_LINES);
             Arrays.stream(lines).forEach(out::println);
-            out.println("END_LINES");
+            out.println(WireProtocol.END_LINES);
           } else {
             out.println(response);
           }
+          _inputProcessor.onResponseWritten(System.nanoTime() - writeStartNanos);
+        } catch (ClientProtocolException e) {
+          LOG.warn("Closing client " + _clientName + " out of step: " + e.getMessage());
+          String errorLine = WireProtocol.errorLine(e.getMessage());
+          out.println(errorLine);
+          break;
         } catch (Exception e) {
           LOG.error("Error processing client input", e);
           // TODO - obviously redact any sensitive data before sending to the server
-          out.println(e.getMessage());
+          String errorLine = WireProtocol.errorLine(e.getMessage());
+          out.println(errorLine);
+        } finally {
+          if (recording != null) {
+            recording.replied();
+          }
         }
       }
 
-      _onCloseHandler.run();
-      LOG.warn("Closing Client: " + _clientSocket.getPort());
-      _clientSocket.close();
+      _inputProcessor.onClientClosed();
+      LOG.warn("Closing Client: " + _clientName);
+      _clientChannel.close();
       numConnections.decrementAndGet();
       LOG.info("Closed, active connections... " + numConnections.get());
     } catch (IOException ex) {
-      LOG.error("Error received for client: " + _clientSocket.getPort(), ex);
+      LOG.error("Error received for client: " + _clientName, ex);
+    } finally {
+      _metrics.onSessionClosed();
+      if (recording != null) {
+        recording.close();
+      }
+    }
+  }
+
+  /**
+   * Read the command lines of a batch, up to and excluding the batch end line.
+   * @param in the client input
+   * @param recording records the lines, or null
+   * @return the command lines
+   * @throws IOException if the client disconnects before the batch ends
+   */
+  private List<String> readBatch(InputStream in, WorkloadRecorder.Session recording) throws IOException {
+    List<String> commandInputs = new ArrayList<>();
+    String inputLine;
+    while ((inputLine = WireProtocol.readLine(in)) != null) {
+      if (recording != null) {
+        recording.continuationLine(inputLine);
+      }
+      if (ClientInputProcessor.BATCH_END.equals(inputLine.trim())) {
+        return commandInputs;
+      }
+      commandInputs.add(inputLine);
+    }
+    throw new IOException("Client closed before the batch ended");
+  }
+
+  /**
+   * Writes content straight to the socket channel. Text written through the {@link PrintWriter} is flushed first so
+   * lines and raw bytes reach the client in order. Raw bytes from the client are read from the same buffered stream
+   * as the command lines, and recorded as part of the command reading them.
+   */
+  private class SocketContentChannel implements ContentChannel {
+    private final PrintWriter _out;
+    private final InputStream _in;
+    private final WorkloadRecorder.Session _recording;
+
+    SocketContentChannel(PrintWriter out, InputStream in, WorkloadRecorder.Session recording) {
+      _out = out;
+      _in = in;
+      _recording = recording;
+    }
+
+    @Override
+    public void writeLine(String line) throws IOException {
+      LOG.debug("{} --> {}", _clientName, line);
+      _out.println(line);
+      // a PrintWriter swallows write failures, a long running command needs to see the client has gone
+      if (_out.checkError()) {
+        throw new IOException("Client " + _clientName + " closed");
+      }
+    }
+
+    @Override
+    public long write(ByteBuffer[] buffers) throws IOException {
+      _out.flush();
+      long remaining = 0;
+      for (ByteBuffer buffer : buffers) {
+        remaining += buffer.remaining();
+      }
+
+      long written = 0;
+      while (written < remaining) {
+        written += _clientChannel.write(buffers);
+      }
+      // straight to the channel, past the counting stream
+      _metrics.recordBytesOut(written);
+      return written;
+    }
+
+    @Override
+    public void readFully(byte[] bytes, int offset, int length) throws IOException {
+      int read = _in.readNBytes(bytes, offset, length);
+      if (read < length) {
+        throw new EOFException("Client closed after " + read + " of " + length + " bytes");
+      }
+      if (_recording != null) {
+        _recording.continuationBytes(bytes, offset, length);
+      }
+    }
+
+    @Override
+    public void skip(long length) throws IOException {
+      if (_recording != null) {
+        // a replay sends the same bytes
+        readFully(new byte[Math.toIntExact(length)], 0, Math.toIntExact(length));
+        return;
+      }
+      _in.skipNBytes(length);
+    }
+
+    @Override
+    public String readLine() throws IOException {
+      String line = WireProtocol.readLine(_in);
+      if (_recording != null && line != null) {
+        _recording.continuationLine(line);
+      }
+      return line;
+    }
+
+    @Override
+    public int getChunkSize() {
+      try {
+        return _clientChannel.getOption(StandardSocketOptions.SO_SNDBUF);
+      } catch (IOException ex) {
+        return DEFAULT_CHUNK_SIZE;
+      }
+    }
+  }
+
+  /**
+   * Counts the bytes written to the client.
+   */
+  private static class CountingOutputStream extends FilterOutputStream {
+    private final LongConsumer _counter;
+
+    CountingOutputStream(OutputStream out, LongConsumer counter) {
+      super(out);
+      _counter = counter;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      _counter.accept(1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      out.write(bytes, offset, length);
+      _counter.accept(length);
+    }
+  }
+
+  /**
+   * Counts the bytes read, or skipped, from the client.
+   */
+  private static class CountingInputStream extends FilterInputStream {
+    private final LongConsumer _counter;
+
+    CountingInputStream(InputStream in, LongConsumer counter) {
+      super(in);
+      _counter = counter;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b >= 0) {
+        _counter.accept(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      int read = in.read(bytes, offset, length);
+      if (read > 0) {
+        _counter.accept(read);
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long length) throws IOException {
+      long skipped = in.skip(length);
+      _counter.accept(skipped);
+      return skipped;
     }
   }
 }
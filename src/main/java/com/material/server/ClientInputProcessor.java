@@ -1,6 +1,11 @@
 package com.material.server;
 
+import com.material.filesystem.FileSystem;
+import com.material.filesystem.user.User;
+import com.material.filesystem.user.UserManager;
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
 import org.slf4j.Logger;
@@ -8,32 +13,239 @@ import org.slf4j.LoggerFactory;
 
 
 public class ClientInputProcessor {
+  /**
+   * Starts a batch, e.g. <pre>batch -e</pre>. Every following line up to {@link #BATCH_END} is a command in the batch.
+   */
+  public static final String BATCH_COMMAND = "batch";
+  public static final String BATCH_END = "endBatch";
 
   private static final Logger LOG = LoggerFactory.getLogger(ClientInputProcessor.class);
 
   public Map<String, Function<ClientCommand, String>> _fileSystemHandlerMap = new HashMap<>();
+  private final Map<String, ContentCommand> _contentHandlerMap = new HashMap<>();
+  private final CommandParser _commandParser = new CommandParser();
+  private final FileSystem _fileSystem;
+  private final UserManager _userManager;
+  private final ServerMetrics _metrics;
+  private final SlowOperationLog _slowOperationLog;
+  // the trace of a request whose text response the transport is writing, see onResponseWritten
+  private final ThreadLocal<RequestTrace> _unwrittenTrace = new ThreadLocal<>();
 
   public ClientInputProcessor(FileSystemCommandMapBuilder commandMapBuilder) {
     _fileSystemHandlerMap.putAll(commandMapBuilder.build());
+    _contentHandlerMap.putAll(commandMapBuilder.buildContentCommands());
+    _fileSystem = commandMapBuilder.getFileSystem();
+    _userManager = commandMapBuilder.getUserManager();
+    _metrics = commandMapBuilder.getMetrics();
+    _slowOperationLog = commandMapBuilder.getSlowOperationLog();
+  }
+
+  public ServerMetrics getMetrics() {
+    return _metrics;
+  }
+
+  public UserManager getUserManager() {
+    return _userManager;
+  }
+
+  public SlowOperationLog getSlowOperationLog() {
+    return _slowOperationLog;
+  }
+
+  /**
+   * Returns true if the input line starts a batch of commands.
+   * @param clientInput a line of client input
+   * @return true if the line is a batch command
+   */
+  public static boolean isBatchStart(String clientInput) {
+    String input = clientInput.trim();
+    return input.equals(BATCH_COMMAND) || input.startsWith(BATCH_COMMAND + " ");
   }
 
   public void onClientClosed() {
     // Naive way to ensure we logout the current user thread before we die.
-    processInput("logout");
+    try {
+      processInput("logout");
+    } catch (RuntimeException ex) {
+      // e.g. nobody logged in on this connection
+      LOG.debug("Logout on close failed: " + ex.getMessage());
+    }
+    // the thread may serve another client next
+    _fileSystem.resetWorkingNode();
   }
 
   public String processInput(String clientInput) {
-    CommandParser parser = new CommandParser();
-    ClientCommand command = parser.parse(clientInput);
+    try {
+      return processInput(clientInput, null);
+    } catch (IOException ex) {
+      // only content commands do I/O, and they are not used without a channel
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+   * Process a line of client input. If the command has a {@link ContentCommand}, it writes its response directly to
+   * the channel.
+   *
+   * @param clientInput the line of input
+   * @param channel the client connection, or null if the caller can only handle text responses
+   * @return the text response, or null if the response was already written to the channel
+   * @throws IOException if writing to the channel fails
+   */
+  public String processInput(String clientInput, ContentChannel channel) throws IOException {
+    return processInput(clientInput, channel, true);
+  }
+
+  /**
+   * Process a line of client input.
+   * @param commit true to commit the changes of the command before replying, false if the caller commits them later
+   */
+  private String processInput(String clientInput, ContentChannel channel, boolean commit) throws IOException {
+    completeUnwrittenTrace();
+    User user = _userManager.currentUser();
+    RequestTrace trace = _slowOperationLog.begin(clientInput, user == null ? null : user.getUsername());
+    if (trace != null && channel != null) {
+      channel = trace.traceWrites(channel);
+    }
+    long startNanos = System.nanoTime();
+    String metricName = ServerMetrics.UNKNOWN_COMMAND;
+    boolean failed = true;
+    String response = null;
+    try {
+      ClientCommand command = _commandParser.parse(clientInput);
+      if (trace != null) {
+        trace.parsed(command.getName());
+      }
+      LOG.debug("Client Command: {} - {}", command.getUserInput(), command);
+
+      Function<ClientCommand, String> handler = _fileSystemHandlerMap.get(command.getName());
+      ContentCommand contentCommand = channel == null ? null : _contentHandlerMap.get(command.getName());
+      if (handler != null || contentCommand != null) {
+        metricName = command.getName();
+      }
 
-    LOG.debug("Client Command: " + command.getUserInput() + " - " + command.toString());
+      if (contentCommand != null && contentCommand.execute(command, channel)) {
+        failed = false;
+        return null;
+      }
+
+      if (handler != null) {
+        response = handler.apply(command);
+        if (commit) {
+          // the reply tells the client its changes are durable
+          _fileSystem.commit();
+        }
+        failed = false;
+        return response;
+      } else {
+        throw new IllegalArgumentException(
+            "Command (" + command.getName() + ") was not a valid command, check your input and try again: '"
+                + command.getUserInput() + "'");
+      }
+    } finally {
+      _metrics.recordCommand(metricName, System.nanoTime() - startNanos, failed);
+      if (trace != null) {
+        trace.executed(failed);
+        if (channel != null && response != null) {
+          // the transport writes the response, and reports when it is done
+          _unwrittenTrace.set(trace);
+        } else {
+          _slowOperationLog.complete(trace);
+        }
+      }
+    }
+  }
+
+  /**
+   * Called by a transport once it wrote the text response returned by {@link #processInput(String, ContentChannel)},
+   * to add the time the write took to the trace of the request.
+   * @param writeNanos the time the write took
+   */
+  public void onResponseWritten(long writeNanos) {
+    RequestTrace trace = _unwrittenTrace.get();
+    if (trace != null) {
+      _unwrittenTrace.remove();
+      trace.responseWritten(writeNanos);
+      _slowOperationLog.complete(trace);
+    }
+  }
+
+  /**
+   * Complete the trace of a previous request whose transport did not report writing its response.
+   */
+  private void completeUnwrittenTrace() {
+    RequestTrace trace = _unwrittenTrace.get();
+    if (trace != null) {
+      _unwrittenTrace.remove();
+      _slowOperationLog.complete(trace);
+    }
+  }
+
+  /**
+   * Run a batch of commands in a single call, and return one result line per command.
+   *
+   * The commands run in order on the current thread inside a {@link FileSystem#beginBatch()} scope, so commands
+   * touching the same directory share its path resolution.
+   *
+   * @param batchInput the batch command line, pass <pre>-e</pre> to stop at the first failing command
+   * @param commandInputs the lines of the commands in the batch
+   * @return a summary line, followed by the result of each command prefixed with its index and its number of lines,
+   *         see {@link #appendBatchResult}
+   */
+  public String processBatch(String batchInput, List<String> commandInputs) {
+    long startNanos = System.nanoTime();
+    ClientCommand batchCommand = _commandParser.parse(batchInput);
+    boolean stopOnFirstError = batchCommand.hasOpt('e');
+
+    StringBuilder results = new StringBuilder();
+    int succeeded = 0;
+    int failed = 0;
+
+    _fileSystem.beginBatch();
+    try {
+      for (int i = 0; i < commandInputs.size(); i++) {
+        String commandInput = commandInputs.get(i);
+        try {
+          if (isBatchStart(commandInput)) {
+            throw new IllegalArgumentException("Batches cannot be nested");
+          }
+          // committed once for the whole batch
+          String response = processInput(commandInput, null, false);
+          appendBatchResult(results, i, "OK", response);
+          succeeded++;
+        } catch (Exception ex) {
+          LOG.debug("Batch command " + i + " failed: " + commandInput, ex);
+          appendBatchResult(results, i, "ERROR", ex.getMessage());
+          failed++;
+
+          if (stopOnFirstError) {
+            break;
+          }
+        }
+      }
+      _fileSystem.commit();
+    } finally {
+      _fileSystem.endBatch();
+      // each command of the batch is also recorded on its own
+      _metrics.recordCommand(BATCH_COMMAND, System.nanoTime() - startNanos, failed > 0);
+    }
+
+    int skipped = commandInputs.size() - succeeded - failed;
+    return "batch of " + commandInputs.size() + " commands: " + succeeded + " succeeded, " + failed + " failed, "
+        + skipped + " skipped" + results;
+  }
 
-    if (_fileSystemHandlerMap.containsKey(command.getName())) {
-      return _fileSystemHandlerMap.get(command.getName()).apply(command);
-    } else {
-      throw new IllegalArgumentException(
-          "Command (" + command.getName() + ") was not a valid command, check your input and try again: '"
-              + command.getUserInput() + "'");
+  /**
+   * Append the result of a command of a batch as <pre>[INDEX] LINES STATUS TEXT</pre>, where LINES counts the lines of
+   * the text, so the results of commands replying with many lines, e.g. ls or find, can be told apart.
+   */
+  private static void appendBatchResult(StringBuilder results, int index, String status, String text) {
+    String result = String.valueOf(text);
+    int lines = 1;
+    for (int i = result.indexOf('\n'); i >= 0; i = result.indexOf('\n', i + 1)) {
+      lines++;
     }
+    results.append('\n').append('[').append(index).append("] ").append(lines).append(' ').append(status).append(' ')
+        .append(result);
   }
 }
@@ -0,0 +1,14 @@
+package com.material.server;
+
+import java.io.IOException;
+
+
+/**
+ * Thrown when a client sent input the connection cannot be read past, e.g. raw bytes of a length which is not valid,
+ * so the rest of its input is not in step with the commands. The connection is closed after the error is sent.
+ */
+public class ClientProtocolException extends IOException {
+  public ClientProtocolException(String message) {
+    super(message);
+  }
+}
@@ -1,98 +1,153 @@
 package com.material.server;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-
 /**
- * This is a naive parser which matches the following types of commands
- * 1. command [-opts]
- * 2. command "/path/arg/1" path/arg/2 [-opts]
- * 3. command "/path/arg/1" [-opts]
- * 4. command "/path" start end [-opts]
+ * A single pass tokenizer for command lines of the form
+ * <pre>command [ARG | -OPTS]...</pre>
  *
+ * 1. the command name is made of word characters, e.g. mkDir
+ * 2. an argument is a run of non whitespace characters, or a string quoted with ' or "
+ * 3. outside of quotes a backslash only escapes whitespace or a quote, inside quotes it only escapes the quote or
+ *    another backslash, other backslashes are kept, so a\ b is "a b", 'it\'s' is it's and a regex like ^.*\.txt$
+ *    is unchanged quoted or not
+ * 4. a token starting with '-' and a letter is a group of options, e.g. -rf. Groups may appear anywhere after the
+ *    name, and -1 is an argument
  *
  * so we can have commands
  * ls
  * touch file1.txt [-f]
  * mkDir dir1.txt [-fr]
  * mv a/b c/d [-f]
- * rm a/b [-f]
- * rmDir a/b [-rf]
- * cd a/b/c
+ * write a/b 'hello world' -s
  * cd ../../
+ *
+ * A parser holds no state for a single parse, so one instance can be shared by all connections.
  */
 public class CommandParser {
-  final String tripleArgRegex =
-      "^([\\w]+)[ ]+(?:('.*?')|([^\\s]*))[ ]+(?:('.*?')|([^\\s]*))[ ]+(?:('.*?')|([^\\s]*))(?:(?:[ ]+?)(\\-[\\w]+))?$";
-  final String doubleArgRegex = "^([\\w]+)[ ]+(?:('.*?')|([^\\s]*))[ ]+(?:('.*?')|([^\\s]*))(?:(?:[ ]+?)(\\-[\\w]+))?$";
-  final String singleArgRegex = "^([\\w]+)[ ]+(?:('.*?')|([^\\s]*))(?:(?:[ ]+?)(\\-[\\w]+))?$";
-  final String zeroArgRegex = "^([\\w]+)(([ ]+?)(\\-[\\w]+))?$";
-
-  private final Pattern tripleArgCommandWithOpts = Pattern.compile(tripleArgRegex);
-  private final Pattern doubleArgCommandWithOpts = Pattern.compile(doubleArgRegex);
-  private final Pattern singleArgCommandWithOpts = Pattern.compile(singleArgRegex);
-  private final Pattern zerArgCommandWithOpts = Pattern.compile(zeroArgRegex);
-
   public ClientCommand parse(String input) {
     ClientCommand command = new ClientCommand();
     command.setUserInput(input);
-    Matcher tripleArgMatcher = tripleArgCommandWithOpts.matcher(input);
-    Matcher doubleArgMatcher = doubleArgCommandWithOpts.matcher(input);
-    Matcher singleArgMatcher = singleArgCommandWithOpts.matcher(input);
-    Matcher zeroArgMatcher = zerArgCommandWithOpts.matcher(input);
 
-    List<Matcher> matchers = new ArrayList<>();
-    matchers.add(zeroArgMatcher);
-    matchers.add(singleArgMatcher);
-    matchers.add(doubleArgMatcher);
-    matchers.add(tripleArgMatcher);
+    int length = input.length();
+    int pos = skipWhitespace(input, 0);
+    int nameStart = pos;
+    while (pos < length && isWordChar(input.charAt(pos))) {
+      pos++;
+    }
 
-    int expectedArgs = 0;
-    boolean matched = false;
-    for (Matcher matcher : matchers) {
-      if (matcher.matches()) {
-        matched = true;
+    if (pos == nameStart || (pos < length && !Character.isWhitespace(input.charAt(pos)))) {
+      throw malformed(input, "expected a command name");
+    }
+    command.setName(input.substring(nameStart, pos));
+
+    while ((pos = skipWhitespace(input, pos)) < length) {
+      char c = input.charAt(pos);
+      if (c == '-' && pos + 1 < length && Character.isLetter(input.charAt(pos + 1))) {
+        pos = parseOpts(input, pos + 1, command);
+      } else if (c == '\'' || c == '"') {
+        pos = parseQuotedArgument(input, pos, command);
+      } else {
+        pos = parseArgument(input, pos, command);
+      }
+    }
 
-        List<String> commandParts = new ArrayList<>();
+    return command;
+  }
 
-        for (int i = 1; i <= matcher.groupCount(); i++) {
-          String match = matcher.group(i);
+  /**
+   * Quote an argument so it parses back to exactly the same string, whatever characters it has.
+   * @param arg the argument
+   * @return the quoted argument
+   */
+  public static String quote(String arg) {
+    return "'" + arg.replace("\\", "\\\\").replace("'", "\\'") + "'";
+  }
 
-          if (match == null || "".equals(match)) {
-            continue;
-          }
+  private static int parseOpts(String input, int pos, ClientCommand command) {
+    int length = input.length();
+    for (; pos < length && !Character.isWhitespace(input.charAt(pos)); pos++) {
+      char opt = input.charAt(pos);
+      if (!isWordChar(opt)) {
+        throw malformed(input, "unexpected option character '" + opt + "'");
+      }
+      command.addOpt(opt);
+    }
+    return pos;
+  }
 
-          commandParts.add(matcher.group(i));
+  private static int parseQuotedArgument(String input, int pos, ClientCommand command) {
+    int length = input.length();
+    char quote = input.charAt(pos);
+    int start = ++pos;
+    StringBuilder escaped = null;
+
+    for (; pos < length; pos++) {
+      char c = input.charAt(pos);
+      if (c == quote) {
+        command.addParsedArgument(escaped == null ? input.substring(start, pos) : escaped.toString());
+        if (pos + 1 < length && !Character.isWhitespace(input.charAt(pos + 1))) {
+          throw malformed(input, "expected whitespace after a quoted argument");
         }
+        return pos + 1;
+      }
 
-        if (commandParts.isEmpty()) {
-          throw new IllegalArgumentException("Expected at least one argument for a command");
+      if (c == '\\' && pos + 1 < length && (input.charAt(pos + 1) == quote || input.charAt(pos + 1) == '\\')) {
+        if (escaped == null) {
+          escaped = new StringBuilder(input.length() - start).append(input, start, pos);
         }
+        c = input.charAt(++pos);
+      }
 
-        command.setName(commandParts.get(0));
+      if (escaped != null) {
+        escaped.append(c);
+      }
+    }
 
-        int i = 1;
-        for (; i <= expectedArgs && i < commandParts.size(); i++) {
-          command.addArgument(commandParts.get(i));
-        }
+    throw malformed(input, "unterminated quote");
+  }
 
-        // naive way to add opts
-        if (commandParts.size() > i) {
-          command.addOpts(commandParts.get(i));
-        }
+  private static int parseArgument(String input, int pos, ClientCommand command) {
+    int length = input.length();
+    int start = pos;
+    StringBuilder escaped = null;
+
+    for (; pos < length; pos++) {
+      char c = input.charAt(pos);
+      if (Character.isWhitespace(c)) {
         break;
       }
 
-      expectedArgs++;
+      if (c == '\\' && pos + 1 < length && isEscapedOutsideQuotes(input.charAt(pos + 1))) {
+        if (escaped == null) {
+          escaped = new StringBuilder(input.length() - start).append(input, start, pos);
+        }
+        c = input.charAt(++pos);
+      }
+
+      if (escaped != null) {
+        escaped.append(c);
+      }
     }
 
-    if (!matched) {
-      throw new IllegalArgumentException("Command " + input + " was malformed");
+    command.addParsedArgument(escaped == null ? input.substring(start, pos) : escaped.toString());
+    return pos;
+  }
+
+  private static boolean isEscapedOutsideQuotes(char c) {
+    return Character.isWhitespace(c) || c == '\'' || c == '"';
+  }
+
+  private static int skipWhitespace(String input, int pos) {
+    while (pos < input.length() && Character.isWhitespace(input.charAt(pos))) {
+      pos++;
     }
+    return pos;
+  }
 
-    return command;
+  private static boolean isWordChar(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+  }
+
+  private static IllegalArgumentException malformed(String input, String reason) {
+    return new IllegalArgumentException("Command " + input + " was malformed, " + reason);
   }
 }
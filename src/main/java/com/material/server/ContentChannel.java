@@ -0,0 +1,59 @@
+package com.material.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * The client connection a {@link ContentCommand} transfers file content over, in either direction.
+ */
+public interface ContentChannel {
+  /**
+   * Write a line of text to the client.
+   * @param line the line, without a line terminator
+   * @throws IOException if the write fails
+   */
+  void writeLine(String line) throws IOException;
+
+  /**
+   * Write all remaining bytes of the buffers to the client, using gathering writes where the transport supports it.
+   * The buffers are written as they are, without being copied into an intermediate array first.
+   *
+   * @param buffers the buffers to write, in order
+   * @return the number of bytes written
+   * @throws IOException if the write fails
+   */
+  long write(ByteBuffer[] buffers) throws IOException;
+
+  /**
+   * Read exactly <pre>length</pre> raw bytes sent by the client after the command line.
+   *
+   * @param bytes the array to read into
+   * @param offset the offset in the array to read to
+   * @param length the number of bytes to read
+   * @throws java.io.EOFException if the client disconnects before all bytes arrive
+   * @throws IOException if the read fails
+   */
+  void readFully(byte[] bytes, int offset, int length) throws IOException;
+
+  /**
+   * Discard exactly <pre>length</pre> raw bytes sent by the client after the command line.
+   * @param length the number of bytes to discard
+   * @throws IOException if the read fails
+   */
+  void skip(long length) throws IOException;
+
+  /**
+   * Read a line of text sent by the client, e.g. a flow control message during a transfer.
+   * @return the line, without its line terminator, or null if the client disconnected
+   * @throws IOException if the read fails
+   */
+  String readLine() throws IOException;
+
+  /**
+   * Returns the preferred size of a raw chunk for this connection, matched to the transport send buffer so a chunk
+   * can be handed to the transport in one write.
+   * @return the chunk size in bytes
+   */
+  int getChunkSize();
+}
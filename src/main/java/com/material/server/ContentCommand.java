@@ -0,0 +1,21 @@
+package com.material.server;
+
+import java.io.IOException;
+
+
+/**
+ * A command which writes its response, usually file content, directly to the client connection instead of returning
+ * it as a String.
+ */
+@FunctionalInterface
+public interface ContentCommand {
+  /**
+   * Execute the command.
+   *
+   * @param command the parsed command
+   * @param channel the connection to write the response to
+   * @return true if the response was written, false if the text command of the same name should handle it instead
+   * @throws IOException if writing to the connection fails
+   */
+  boolean execute(ClientCommand command, ContentChannel channel) throws IOException;
+}
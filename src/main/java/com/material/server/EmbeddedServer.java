@@ -0,0 +1,69 @@
+package com.material.server;
+
+import com.material.filesystem.DefaultFileSystem;
+import com.material.filesystem.FileSystem;
+import com.material.filesystem.user.DefaultUserManager;
+import com.material.filesystem.user.UserManager;
+
+
+/**
+ * Runs the commands of the {@link FileServer} in process, for tests, benchmarks and services in the same JVM. Commands
+ * go straight to a {@link ClientInputProcessor} on the calling thread, without a socket, a handler thread or reply
+ * framing, and their failures are thrown as they were raised rather than turned into ERROR lines.
+ *
+ * The file system keeps the logged in user and working directory of a connection on the thread serving it, so an
+ * {@link EmbeddedSession} is bound to the thread which opened it, and a thread has at most one open session.
+ */
+public class EmbeddedServer {
+  private final ClientInputProcessor _inputProcessor;
+  private final ThreadLocal<EmbeddedSession> _openSession = new ThreadLocal<>();
+
+  /**
+   * Constructor, with a new file system.
+   * @param allowDuplicateSessions true to let a user log in on several sessions at once
+   */
+  public EmbeddedServer(boolean allowDuplicateSessions) {
+    this(newInputProcessor(allowDuplicateSessions));
+  }
+
+  /**
+   * Constructor, sharing the file system of an input processor, e.g. the one of a {@link Server} so in process and
+   * remote clients see the same files.
+   * @param inputProcessor runs the commands
+   */
+  public EmbeddedServer(ClientInputProcessor inputProcessor) {
+    _inputProcessor = inputProcessor;
+  }
+
+  public ClientInputProcessor getInputProcessor() {
+    return _inputProcessor;
+  }
+
+  /**
+   * Open a session on the current thread, as the guest user in the root directory. Log in with
+   * <pre>login USER PASS</pre>.
+   * @return the session
+   * @throws IllegalStateException if the current thread already has an open session
+   */
+  public EmbeddedSession openSession() {
+    if (_openSession.get() != null) {
+      throw new IllegalStateException("Thread " + Thread.currentThread().getName() + " already has an open session");
+    }
+
+    EmbeddedSession session = new EmbeddedSession(this, _inputProcessor);
+    _openSession.set(session);
+    return session;
+  }
+
+  void onSessionClosed(EmbeddedSession session) {
+    if (_openSession.get() == session) {
+      _openSession.remove();
+    }
+  }
+
+  private static ClientInputProcessor newInputProcessor(boolean allowDuplicateSessions) {
+    UserManager um = new DefaultUserManager(allowDuplicateSessions);
+    FileSystem fs = new DefaultFileSystem(um);
+    return new ClientInputProcessor(new FileSystemCommandMapBuilder(fs, um));
+  }
+}
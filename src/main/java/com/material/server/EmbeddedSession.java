@@ -0,0 +1,202 @@
+package com.material.server;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * A session of an {@link EmbeddedServer}, the in process equivalent of a client connection. Every method runs the
+ * command on the calling thread, which must be the thread that opened the session.
+ */
+public class EmbeddedSession implements Closeable {
+  // the largest chunk the server accepts before it acks
+  private static final int UPLOAD_CHUNK_SIZE = 1024 * 1024;
+
+  private final EmbeddedServer _server;
+  private final ClientInputProcessor _inputProcessor;
+  private final Thread _thread = Thread.currentThread();
+  private final InMemoryContentChannel _channel = new InMemoryContentChannel();
+  private boolean _closed = false;
+
+  EmbeddedSession(EmbeddedServer server, ClientInputProcessor inputProcessor) {
+    _server = server;
+    _inputProcessor = inputProcessor;
+    _inputProcessor.getMetrics().onSessionOpened();
+  }
+
+  /**
+   * Run a command line, as a client would send it.
+   * @param commandLine the command
+   * @return the reply, multi line replies are separated with line breaks
+   */
+  public String execute(String commandLine) {
+    checkOpen();
+    if (ClientInputProcessor.isBatchStart(commandLine)) {
+      throw new IllegalArgumentException("Use executeBatch to run a batch");
+    }
+    return _inputProcessor.processInput(commandLine);
+  }
+
+  /**
+   * Run commands as a batch, see {@link ClientInputProcessor#processBatch}.
+   * @param commandLines the commands
+   * @param stopOnFirstError true to skip the commands after a failing one
+   * @return the summary and result lines of the batch
+   */
+  public String executeBatch(List<String> commandLines, boolean stopOnFirstError) {
+    checkOpen();
+    return _inputProcessor.processBatch(ClientInputProcessor.BATCH_COMMAND + (stopOnFirstError ? " -e" : ""),
+        commandLines);
+  }
+
+  /**
+   * Read the contents of a file. The content views of the file are copied once, into the returned array.
+   * @param path the file
+   * @return the contents
+   * @throws IOException if the file cannot be read
+   */
+  public byte[] read(String path) throws IOException {
+    checkOpen();
+    _channel.reset(null);
+    String reply = _inputProcessor.processInput("read " + CommandParser.quote(path), _channel);
+    return reply != null ? reply.getBytes() : _channel.takeContent();
+  }
+
+  /**
+   * Replace the contents of an existing file, with the upload commands a remote client uses.
+   * @param path the file
+   * @param contents the new contents
+   * @return the reply to the commit of the upload
+   * @throws IOException if the upload fails
+   */
+  public String upload(String path, byte[] contents) throws IOException {
+    checkOpen();
+    String[] upload =
+        _inputProcessor.processInput("uploadOpen " + CommandParser.quote(path) + " " + contents.length).split(" ");
+    String uploadId = upload[1];
+    int offset = Integer.parseInt(upload[2]);
+
+    while (offset < contents.length) {
+      int length = Math.min(UPLOAD_CHUNK_SIZE, contents.length - offset);
+      _channel.reset(Arrays.copyOfRange(contents, offset, offset + length));
+      _inputProcessor.processInput("uploadChunk " + uploadId + " " + offset + " " + length, _channel);
+      offset = Integer.parseInt(_channel.takeLastLine().split(" ")[2]);
+    }
+    return _inputProcessor.processInput("uploadCommit " + uploadId);
+  }
+
+  /**
+   * Close the session, logging out its user.
+   */
+  @Override
+  public void close() {
+    if (!_closed) {
+      checkOpen();
+      _closed = true;
+      _inputProcessor.onClientClosed();
+      _inputProcessor.getMetrics().onSessionClosed();
+      _server.onSessionClosed(this);
+    }
+  }
+
+  private void checkOpen() {
+    if (_closed) {
+      throw new IllegalStateException("Session closed");
+    }
+    if (Thread.currentThread() != _thread) {
+      throw new IllegalStateException(
+          "Session of thread " + _thread.getName() + " used from thread " + Thread.currentThread().getName());
+    }
+  }
+
+  /**
+   * Collects what a {@link ContentCommand} writes, and feeds it the raw bytes of a request.
+   */
+  private static class InMemoryContentChannel implements ContentChannel {
+    private String _lastLine;
+    private byte[] _content;
+    private int _contentLength;
+    private byte[] _payload;
+    private int _payloadPosition;
+
+    void reset(byte[] payload) {
+      _lastLine = null;
+      _content = null;
+      _contentLength = 0;
+      _payload = payload;
+      _payloadPosition = 0;
+    }
+
+    String takeLastLine() {
+      String lastLine = _lastLine;
+      _lastLine = null;
+      return lastLine;
+    }
+
+    byte[] takeContent() throws IOException {
+      if (_content == null || _contentLength < _content.length) {
+        throw new EOFException("Expected content, got: " + _lastLine);
+      }
+      byte[] content = _content;
+      _content = null;
+      return content;
+    }
+
+    @Override
+    public void writeLine(String line) {
+      long contentLength = WireProtocol.parseBytesHeader(line);
+      if (contentLength >= 0) {
+        _content = new byte[(int) contentLength];
+        _contentLength = 0;
+      }
+      _lastLine = line;
+    }
+
+    @Override
+    public long write(ByteBuffer[] buffers) throws IOException {
+      long written = 0;
+      for (ByteBuffer buffer : buffers) {
+        int length = buffer.remaining();
+        if (_content == null || _contentLength + length > _content.length) {
+          throw new IOException("Content written without a bytes header");
+        }
+        buffer.get(_content, _contentLength, length);
+        _contentLength += length;
+        written += length;
+      }
+      return written;
+    }
+
+    @Override
+    public void readFully(byte[] bytes, int offset, int length) throws IOException {
+      if (_payload == null || _payloadPosition + length > _payload.length) {
+        throw new EOFException("Request has fewer than " + length + " bytes left");
+      }
+      System.arraycopy(_payload, _payloadPosition, bytes, offset, length);
+      _payloadPosition += length;
+    }
+
+    @Override
+    public void skip(long length) throws IOException {
+      if (_payload == null || _payloadPosition + length > _payload.length) {
+        throw new EOFException("Request has fewer than " + length + " bytes left");
+      }
+      _payloadPosition += (int) length;
+    }
+
+    @Override
+    public String readLine() {
+      // nothing is sent during a command
+      return null;
+    }
+
+    @Override
+    public int getChunkSize() {
+      return UPLOAD_CHUNK_SIZE;
+    }
+  }
+}
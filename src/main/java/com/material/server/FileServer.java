@@ -1,5 +1,7 @@
 package com.material.server;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
@@ -19,13 +21,39 @@ public class FileServer {
 
   private final ExecutorService _serverExecutor = Executors.newSingleThreadExecutor();
   private final int _portNumber;
+  private final boolean _allowDuplicateSessions;
+  private final Path _unixSocketPath;
 
   public FileServer() {
     this(0);
   }
 
   public FileServer(int portNumber) {
+    this(portNumber, false);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param portNumber the port to listen on
+   * @param allowDuplicateSessions true to let a user log in on several connections at once, which the
+   *                               {@link com.material.client.AsyncFileSystemClient} needs to pool connections
+   */
+  public FileServer(int portNumber, boolean allowDuplicateSessions) {
+    this(portNumber, allowDuplicateSessions, null);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param portNumber the port to listen on
+   * @param allowDuplicateSessions true to let a user log in on several connections at once
+   * @param unixSocketPath if not null, also listen on a unix domain socket at this path
+   */
+  public FileServer(int portNumber, boolean allowDuplicateSessions, Path unixSocketPath) {
     _portNumber = portNumber;
+    _allowDuplicateSessions = allowDuplicateSessions;
+    _unixSocketPath = unixSocketPath;
   }
 
   /**
@@ -37,8 +65,10 @@ public class FileServer {
       throw new IllegalArgumentException("You must specify a port on which to launch the Server");
     }
     int portNumber = Integer.parseInt(args[0]);
+    boolean allowDuplicateSessions = args.length > 1 && Boolean.parseBoolean(args[1]);
+    Path unixSocketPath = args.length > 2 ? Paths.get(args[2]) : null;
 
-    FileServer fileServer = new FileServer(portNumber);
+    FileServer fileServer = new FileServer(portNumber, allowDuplicateSessions, unixSocketPath);
     Runtime.getRuntime().addShutdownHook(new Thread(fileServer::shutdown));
     LOG.info("Starting file server on port: " + portNumber);
     fileServer.start();
@@ -48,7 +78,7 @@ public class FileServer {
     CompletionService<Void> service = new ExecutorCompletionService<>(_serverExecutor);
 
     service.submit(() -> {
-      new Server(_portNumber).run();
+      new Server(_portNumber, _allowDuplicateSessions, _unixSocketPath).run();
       return null;
     });
 
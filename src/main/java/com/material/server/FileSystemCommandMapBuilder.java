@@ -3,8 +3,10 @@ package com.material.server;
 import com.material.filesystem.File;
 import com.material.filesystem.FileStreamReader;
 import com.material.filesystem.FileSystem;
+import com.material.filesystem.FileSystemChangeListener;
 import com.material.filesystem.FileSystemTreeNode;
 import com.material.filesystem.NodeType;
+import com.material.filesystem.diagnostics.LockProfiler;
 import com.material.filesystem.permissions.Permission;
 import com.material.filesystem.user.User;
 import com.material.filesystem.user.UserManager;
@@ -14,9 +16,11 @@ import com.material.filesystem.util.DataGenerator;
 import com.material.filesystem.util.FileSystemNodeHelper;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileSystemException;
@@ -29,8 +33,14 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
 import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 
 /**
@@ -41,8 +51,25 @@ import java.util.regex.Pattern;
  * if the action does not exist, an error is printed.
  */
 public class FileSystemCommandMapBuilder {
+  private static final Logger LOG = LoggerFactory.getLogger(FileSystemCommandMapBuilder.class);
+  // bounds the staging buffer the socket uses per view when writing heap contents
+  private static final int CONTENT_SLICE_SIZE = 64 * 1024;
+  // the largest chunk a client may send before it waits for an ack
+  private static final int MAX_UPLOAD_CHUNK_SIZE = 1024 * 1024;
+  // the largest upload, whose contents are held in one array
+  private static final long MAX_UPLOAD_SIZE = Integer.MAX_VALUE - 8;
+  private static final long UPLOAD_IDLE_TIMEOUT_MILLIS = 10 * 60 * 1000;
+  private static final long DEFAULT_WATCH_LEASE_MILLIS = 10 * 1000;
+  // invalidations a watcher may fall behind by before it is told to drop everything
+  private static final int MAX_PENDING_INVALIDATIONS = 1024;
+  private static final int DEFAULT_LOCK_STATS_HOT_PATHS = 10;
+
   private final FileSystem _fileSystem;
   private final UserManager _userManager;
+  private final ServerMetrics _metrics = new ServerMetrics();
+  private final SlowOperationLog _slowOperationLog = new SlowOperationLog();
+  private final UploadSessions _uploadSessions =
+      new UploadSessions(Runtime.getRuntime().maxMemory() / 4, UPLOAD_IDLE_TIMEOUT_MILLIS);
 
   private final HashMap<String, String> _helpMap = new HashMap<>();
 
@@ -60,6 +87,8 @@ public class FileSystemCommandMapBuilder {
     buildWriteCommand(map);
     buildWriteRandomCommand(map);
     buildWriteFromFileCommand(map);
+    buildUploadCommands(map);
+    buildDownloadCommand(map);
     buildMoveCommand(map);
     buildCopyCommand(map);
     buildRmCommand(map);
@@ -71,9 +100,44 @@ public class FileSystemCommandMapBuilder {
     buildPwdCommand(map);
     buildHelpCommand(map);
     buildSetUserPermissionCommand(map);
+    buildBatchCommand(map);
+    buildWatchCommand(map);
+    buildStatsCommand(map);
+    buildLockStatsCommand(map);
+    buildSlowLogCommand(map);
     return map;
   }
 
+  /**
+   * Build the commands which write file content directly to the client connection. A command in this map takes
+   * precedence over the text command of the same name whenever the client has a {@link ContentChannel}.
+   * @return a Map of command name to {@link ContentCommand}
+   */
+  public Map<String, ContentCommand> buildContentCommands() {
+    Map<String, ContentCommand> map = new HashMap<>();
+    buildReadContentCommand(map);
+    buildUploadChunkContentCommand(map);
+    buildDownloadContentCommand(map);
+    buildWatchContentCommand(map);
+    return map;
+  }
+
+  public FileSystem getFileSystem() {
+    return _fileSystem;
+  }
+
+  public UserManager getUserManager() {
+    return _userManager;
+  }
+
+  public ServerMetrics getMetrics() {
+    return _metrics;
+  }
+
+  public SlowOperationLog getSlowOperationLog() {
+    return _slowOperationLog;
+  }
+
   private void buildLoginCommand(Map<String, Function<ClientCommand, String>> commandMap) {
     if (!commandMap.containsKey("login")) {
       _helpMap.put("login", "login USER PASS - Login as a user");
@@ -129,7 +193,7 @@ public class FileSystemCommandMapBuilder {
             // get the end position
             int len = command.hasArgAt(2) ? Integer.parseInt(command.getArg(2)) : file.size();
 
-            // TODO NOTE: this is naive to return the entire stream to the client caller, can be improved
+            // NOTE: this buffers the entire range for the caller, use download to stream a large range in chunks
             if (command.hasOpt('s')) {
               try {
                 FileStreamReader reader = new FileStreamReader(new ByteArrayOutputStream(file.size()), 4);
@@ -160,6 +224,52 @@ public class FileSystemCommandMapBuilder {
     }
   }
 
+  private void buildReadContentCommand(Map<String, ContentCommand> commandMap) {
+    if (!commandMap.containsKey("read")) {
+      commandMap.put("read", (command, channel) -> {
+        // streamed and truncated reads keep their text responses
+        if (command.hasOpt('s') || command.hasOpt('t')) {
+          return false;
+        }
+
+        validateCommandCountAtLeast(command, 1);
+        String arg1 = command.getArg(0);
+        FileSystemTreeNode node;
+        try {
+          node = _fileSystem.getNodeAtPath(Paths.get(arg1), !arg1.startsWith("/"));
+        } catch (FileNotFoundException ex) {
+          throw new RuntimeException(ex);
+        }
+
+        if (node.getNodeType() != NodeType.FILE) {
+          throw new UnsupportedOperationException("Cannot read contents of a directory");
+        }
+
+        File file = (File) node.getFileSystemObject();
+        int start = command.hasArgAt(1) ? Integer.parseInt(command.getArg(1)) : 0;
+        int len = command.hasArgAt(2) ? Integer.parseInt(command.getArg(2)) : file.size();
+
+        if (start + len > file.size()) {
+          throw new IllegalArgumentException("File size " + file.size() + " was less than the length to read: " + len);
+        }
+
+        // views over the file contents, written to the socket without intermediate copies
+        ByteBuffer[] contents = file.getContentBuffers(start, len, CONTENT_SLICE_SIZE);
+        long bytesCopied = 0;
+        for (ByteBuffer buffer : contents) {
+          // the socket copies heap buffers into a direct buffer before writing them
+          bytesCopied += buffer.isDirect() ? 0 : buffer.remaining();
+        }
+
+        channel.writeLine(WireProtocol.bytesHeader(len));
+        long bytesSent = channel.write(contents);
+        _metrics.recordContentTransfer(bytesSent, bytesCopied);
+        LOG.debug("Sent " + bytesSent + " bytes of /" + node.getPath() + ", " + bytesCopied + " bytes copied");
+        return true;
+      });
+    }
+  }
+
   private void buildWriteCommand(Map<String, Function<ClientCommand, String>> commandMap) {
     if (!commandMap.containsKey("write")) {
       _helpMap.put("write",
@@ -283,6 +393,262 @@ public class FileSystemCommandMapBuilder {
     }
   }
 
+  private void buildUploadCommands(Map<String, Function<ClientCommand, String>> commandMap) {
+    if (!commandMap.containsKey("uploadOpen")) {
+      _helpMap.put("uploadOpen", "uploadOpen TO_FILE TOTAL_BYTES - Open a chunked upload replacing the contents of a "
+          + "file. Replies UPLOAD ID OFFSET, reopening an unfinished upload of the same file and size returns its ID and "
+          + "the offset to resume from");
+      commandMap.put("uploadOpen", (command) -> {
+        // uploads are found by their owner's name, which every guest shares
+        if (_userManager.currentUser().getUserType() == UserType.GUEST) {
+          throw new UserSecurityException("Login to upload");
+        }
+        validateCommandCountAtLeast(command, 2);
+        String arg1 = command.getArg(0);
+        long totalBytes = Long.parseLong(command.getArg(1));
+        if (totalBytes < 0 || totalBytes > MAX_UPLOAD_SIZE) {
+          throw new IllegalArgumentException("Upload size " + totalBytes + " must be between 0 and " + MAX_UPLOAD_SIZE);
+        }
+
+        try {
+          FileSystemTreeNode node = _fileSystem.getNodeAtPath(Paths.get(arg1), !arg1.startsWith("/"));
+          if (node.getNodeType() != NodeType.FILE) {
+            throw new UnsupportedOperationException("Cannot write contents to  Directory, only Files");
+          }
+
+          UploadSession session =
+              _uploadSessions.open(_userManager.currentUser(), "/" + node.getPath().toString(), (int) totalBytes);
+          return WireProtocol.UPLOAD + " " + session.getId() + " " + session.getAcknowledgedOffset();
+        } catch (FileNotFoundException ex) {
+          throw new RuntimeException(ex);
+        }
+      });
+    }
+
+    if (!commandMap.containsKey("uploadChunk")) {
+      _helpMap.put("uploadChunk", "uploadChunk ID OFFSET LENGTH - Followed by LENGTH raw bytes of the upload, at most "
+          + MAX_UPLOAD_CHUNK_SIZE + ". Replies ACK ID OFFSET once the bytes are stored");
+      commandMap.put("uploadChunk", (command) -> {
+        throw new UnsupportedOperationException("uploadChunk needs a client connection to read the chunk bytes from");
+      });
+    }
+
+    if (!commandMap.containsKey("uploadCommit")) {
+      _helpMap.put("uploadCommit", "uploadCommit ID - Replace the file contents with a completed upload");
+      commandMap.put("uploadCommit", (command) -> {
+        validateCommandCountAtLeast(command, 1);
+        UploadSession session = _uploadSessions.get(Long.parseLong(command.getArg(0)), _userManager.currentUser());
+        byte[] contents = session.getCompletedContents();
+
+        try {
+          FileSystemTreeNode node = _fileSystem.getNodeAtPath(Paths.get(session.getPath()), false);
+          if (node.getNodeType() != NodeType.FILE) {
+            throw new UnsupportedOperationException("Cannot write contents to  Directory, only Files");
+          }
+
+          // the staged array becomes the contents, it is not copied
+          ((File) node.getFileSystemObject()).setContents(contents);
+          return "Uploaded " + contents.length + " bytes to " + session.getPath();
+        } catch (FileNotFoundException ex) {
+          throw new RuntimeException(ex);
+        } finally {
+          _uploadSessions.close(session);
+        }
+      });
+    }
+
+    if (!commandMap.containsKey("uploadAbort")) {
+      _helpMap.put("uploadAbort", "uploadAbort ID - Discard an upload");
+      commandMap.put("uploadAbort", (command) -> {
+        validateCommandCountAtLeast(command, 1);
+        UploadSession session = _uploadSessions.get(Long.parseLong(command.getArg(0)), _userManager.currentUser());
+        _uploadSessions.close(session);
+        return "Aborted upload " + session.getId() + " to " + session.getPath();
+      });
+    }
+  }
+
+  private void buildUploadChunkContentCommand(Map<String, ContentCommand> commandMap) {
+    if (!commandMap.containsKey("uploadChunk")) {
+      commandMap.put("uploadChunk", (command, channel) -> {
+        // without a valid length the chunk bytes cannot be skipped, and the connection cannot be read in step
+        int length;
+        try {
+          validateCommandCountAtLeast(command, 3);
+          length = Integer.parseInt(command.getArg(2));
+        } catch (RuntimeException ex) {
+          throw new ClientProtocolException("Chunk length missing or not a number: " + ex.getMessage());
+        }
+        if (length < 0 || length > MAX_UPLOAD_CHUNK_SIZE) {
+          throw new ClientProtocolException(
+              "Chunk length " + length + " must be between 0 and " + MAX_UPLOAD_CHUNK_SIZE);
+        }
+
+        UploadSession session;
+        int offset;
+        try {
+          session = _uploadSessions.get(Long.parseLong(command.getArg(0)), _userManager.currentUser());
+          offset = Integer.parseInt(command.getArg(1));
+        } catch (RuntimeException ex) {
+          // keep the connection in step, the chunk bytes are not commands
+          channel.skip(length);
+          throw ex;
+        }
+
+        int acknowledgedOffset = session.receiveChunk(channel, offset, length);
+        channel.writeLine(WireProtocol.ACK + " " + session.getId() + " " + acknowledgedOffset);
+        return true;
+      });
+    }
+  }
+
+  private void buildDownloadCommand(Map<String, Function<ClientCommand, String>> commandMap) {
+    if (!commandMap.containsKey("download")) {
+      _helpMap.put("download", "download FILE [FROM_POS] [TOTAL_BYTES] - Stream a range of a file in chunks sized to the "
+          + "connection, TOTAL_BYTES -1 streams to the end of the file. After the START_DOWNLOAD reply the server sends "
+          + "one chunk per credit, granted by the client with 'credit COUNT' lines");
+      commandMap.put("download", (command) -> {
+        throw new UnsupportedOperationException("download needs a client connection to stream the chunks to");
+      });
+    }
+  }
+
+  private void buildDownloadContentCommand(Map<String, ContentCommand> commandMap) {
+    if (!commandMap.containsKey("download")) {
+      commandMap.put("download", (command, channel) -> {
+        validateCommandCountAtLeast(command, 1);
+        String arg1 = command.getArg(0);
+        FileSystemTreeNode node;
+        try {
+          node = _fileSystem.getNodeAtPath(Paths.get(arg1), !arg1.startsWith("/"));
+        } catch (FileNotFoundException ex) {
+          throw new RuntimeException(ex);
+        }
+
+        if (node.getNodeType() != NodeType.FILE) {
+          throw new UnsupportedOperationException("Cannot read contents of a directory");
+        }
+
+        File file = (File) node.getFileSystemObject();
+        int chunkSize = channel.getChunkSize();
+        int start = command.hasArgAt(1) ? Integer.parseInt(command.getArg(1)) : 0;
+        int size = file.size();
+        int len = command.hasArgAt(2) ? Integer.parseInt(command.getArg(2)) : -1;
+        if (len == -1) {
+          len = size - start;
+        }
+
+        if (start < 0 || len < 0 || start + len > size) {
+          throw new IllegalArgumentException("File size " + size + " was less than the range to download: " + start
+              + " - " + (start + len));
+        }
+
+        // views over the contents when the download starts, later writes replace the array and do not affect them
+        ByteBuffer[] chunks = file.getContentBuffers(start, len, chunkSize);
+        channel.writeLine(WireProtocol.START_DOWNLOAD + " " + len + " " + chunkSize);
+
+        long bytesSent = 0;
+        long bytesCopied = 0;
+        long credits = 0;
+        for (int i = 0; i < chunks.length && bytesSent < len; i++) {
+          while (credits <= 0) {
+            String creditLine = channel.readLine();
+            if (creditLine == null) {
+              throw new EOFException("Client closed during a download");
+            }
+            credits += parseCredit(creditLine);
+          }
+
+          ByteBuffer chunk = chunks[i];
+          channel.writeLine(WireProtocol.bytesHeader(chunk.remaining()));
+          // the socket stages a heap chunk through a direct buffer of the chunk size
+          bytesCopied += chunk.isDirect() ? 0 : chunk.remaining();
+          bytesSent += channel.write(new ByteBuffer[]{chunk});
+          credits--;
+        }
+
+        channel.writeLine(WireProtocol.END_DOWNLOAD + " " + bytesSent);
+        _metrics.recordContentTransfer(bytesSent, bytesCopied);
+        LOG.debug("Streamed " + bytesSent + " bytes of /" + node.getPath() + " in " + chunks.length + " chunks");
+        return true;
+      });
+    }
+  }
+
+  private void buildWatchCommand(Map<String, Function<ClientCommand, String>> commandMap) {
+    if (!commandMap.containsKey("watch")) {
+      _helpMap.put("watch", "watch [LEASE_MILLIS] - Turn this connection into a feed of changes, for clients caching "
+          + "listings or contents. The server replies WATCHING, then sends INVALIDATE PATH or INVALIDATE_TREE PATH "
+          + "lines as nodes change, and a LEASE heartbeat twice per lease, until the client disconnects");
+      commandMap.put("watch", (command) -> {
+        throw new UnsupportedOperationException("watch needs a client connection to send changes to");
+      });
+    }
+  }
+
+  private void buildWatchContentCommand(Map<String, ContentCommand> commandMap) {
+    if (!commandMap.containsKey("watch")) {
+      commandMap.put("watch", (command, channel) -> {
+        if (_userManager.currentUser().getUserType() == UserType.GUEST) {
+          throw new UserSecurityException("Login to watch for changes");
+        }
+        long leaseMillis = command.hasArgAt(0) ? Long.parseLong(command.getArg(0)) : DEFAULT_WATCH_LEASE_MILLIS;
+        if (leaseMillis < 2) {
+          throw new IllegalArgumentException("Lease must be at least 2 millis: " + leaseMillis);
+        }
+
+        // listeners run on the threads changing the tree, so they only queue the change for this thread to send
+        BlockingQueue<String> invalidations = new ArrayBlockingQueue<>(MAX_PENDING_INVALIDATIONS);
+        AtomicBoolean overflowed = new AtomicBoolean();
+        FileSystemChangeListener listener = new FileSystemChangeListener() {
+          @Override
+          public void onNodeChanged(String path) {
+            if (!invalidations.offer(WireProtocol.INVALIDATE + " " + path)) {
+              overflowed.set(true);
+            }
+          }
+
+          @Override
+          public void onNodeRemoved(String path) {
+            if (!invalidations.offer(WireProtocol.INVALIDATE_TREE + " " + path)) {
+              overflowed.set(true);
+            }
+          }
+        };
+
+        _fileSystem.addChangeListener(listener);
+        try {
+          channel.writeLine(WireProtocol.WATCHING + " " + leaseMillis);
+          while (true) {
+            String invalidation = invalidations.poll(leaseMillis / 2, TimeUnit.MILLISECONDS);
+            if (overflowed.getAndSet(false)) {
+              invalidations.clear();
+              invalidation = WireProtocol.INVALIDATE_TREE + " /";
+            }
+            channel.writeLine(invalidation != null ? invalidation : WireProtocol.LEASE + " " + leaseMillis);
+          }
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException(ex);
+        } finally {
+          _fileSystem.removeChangeListener(listener);
+        }
+      });
+    }
+  }
+
+  private static int parseCredit(String creditLine) {
+    String[] parts = creditLine.trim().split(" ");
+    if (parts.length != 2 || !WireProtocol.CREDIT.equals(parts[0])) {
+      throw new IllegalArgumentException("Expected '" + WireProtocol.CREDIT + " COUNT' during a download: " + creditLine);
+    }
+    int count = Integer.parseInt(parts[1]);
+    if (count <= 0) {
+      throw new IllegalArgumentException("A " + WireProtocol.CREDIT + " count must be positive: " + creditLine);
+    }
+    return count;
+  }
+
   private void buildMoveCommand(Map<String, Function<ClientCommand, String>> commandMap) {
     if (!commandMap.containsKey("mv")) {
       _helpMap.put("mv", "mv SOURCE DEST [-OPT] - Move a file or folder from SOURCE to DEST"
@@ -514,6 +880,70 @@ public class FileSystemCommandMapBuilder {
     }
   }
 
+  private void buildStatsCommand(Map<String, Function<ClientCommand, String>> commandMap) {
+    if (!commandMap.containsKey("stats")) {
+      _helpMap.put("stats", "stats - Show the server totals, then the count, errors, ops/sec and p50 / p99 / p999 "
+          + "latencies of each command since the server started");
+      commandMap.put("stats", (command) -> _metrics.formatStats());
+    }
+  }
+
+  private void buildLockStatsCommand(Map<String, Function<ClientCommand, String>> commandMap) {
+    if (!commandMap.containsKey("lockStats")) {
+      _helpMap.put("lockStats", "lockStats [on | off | reset | HOT_PATHS] - Turn lock profiling on or off, clear its "
+          + "statistics, or show the acquisitions, wait and hold times of the tree locks by depth, followed by the "
+          + "HOT_PATHS (default " + DEFAULT_LOCK_STATS_HOT_PATHS + ") node paths with the longest wait. Profiling "
+          + "slows every lock down while on");
+      commandMap.put("lockStats", (command) -> {
+        LockProfiler profiler = LockProfiler.getInstance();
+        String arg = command.hasArgAt(0) ? command.getArg(0) : null;
+        if (arg == null || Character.isDigit(arg.charAt(0))) {
+          return profiler.formatReport(arg == null ? DEFAULT_LOCK_STATS_HOT_PATHS : Integer.parseInt(arg));
+        }
+
+        UserType userType = _userManager.currentUser().getUserType();
+        if (userType != UserType.ADMIN && userType != UserType.ROOT) {
+          throw new UserSecurityException("Only admin and root users can change lock profiling");
+        }
+        switch (arg) {
+          case "on":
+            profiler.setEnabled(true);
+            return "Lock profiling on";
+          case "off":
+            profiler.setEnabled(false);
+            return "Lock profiling off";
+          case "reset":
+            profiler.reset();
+            return "Lock statistics cleared";
+          default:
+            throw new IllegalArgumentException("Unknown lockStats argument: " + arg);
+        }
+      });
+    }
+  }
+
+  private void buildSlowLogCommand(Map<String, Function<ClientCommand, String>> commandMap) {
+    if (!commandMap.containsKey("slowLog")) {
+      _helpMap.put("slowLog", "slowLog [MILLIS | off] - Show the slow operation log threshold, or log the requests "
+          + "which take longer than MILLIS to " + SlowOperationLog.LOGGER_NAME + ", with their trace id, user and "
+          + "timing breakdown");
+      commandMap.put("slowLog", (command) -> {
+        if (command.hasArgAt(0)) {
+          UserType userType = _userManager.currentUser().getUserType();
+          if (userType != UserType.ADMIN && userType != UserType.ROOT) {
+            throw new UserSecurityException("Only admin and root users can change the slow operation log");
+          }
+          String arg = command.getArg(0);
+          _slowOperationLog.setThresholdMillis(arg.equals("off") ? -1 : Long.parseLong(arg));
+        }
+
+        return _slowOperationLog.isEnabled() ? "Logging operations slower than "
+            + _slowOperationLog.getThresholdMillis() + "ms, " + _slowOperationLog.getSlowOperationCount()
+            + " logged" : "Slow operation log off, " + _slowOperationLog.getSlowOperationCount() + " logged";
+      });
+    }
+  }
+
   private void buildPwdCommand(Map<String, Function<ClientCommand, String>> commandMap) {
     if (!commandMap.containsKey("pwd")) {
       _helpMap.put("pwd", "pwd - Print the working directory");
@@ -584,6 +1014,19 @@ public class FileSystemCommandMapBuilder {
     }
   }
 
+  private void buildBatchCommand(Map<String, Function<ClientCommand, String>> commandMap) {
+    if (!commandMap.containsKey(ClientInputProcessor.BATCH_COMMAND)) {
+      _helpMap.put(ClientInputProcessor.BATCH_COMMAND, "batch [-OPT] - Run every following command up to '"
+          + ClientInputProcessor.BATCH_END + "' in one round trip, with a result per command"
+          + "\n Options: \n\t -e -- stop at the first command that fails");
+      // batches are framed by the connection, a lone batch line never reaches a command
+      commandMap.put(ClientInputProcessor.BATCH_COMMAND, (command) -> {
+        throw new IllegalArgumentException(
+            "batch must be followed by its commands and terminated by " + ClientInputProcessor.BATCH_END);
+      });
+    }
+  }
+
   private void validateCommandCountAtLeast(ClientCommand command, int count) {
     if (!command.hasArgAt(count - 1)) {
       throw new RuntimeException("Input required " + count + " args, command: " + command.getUserInput());
@@ -0,0 +1,104 @@
+package com.material.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * A histogram of latencies in nanoseconds, recorded without locking. Buckets are log scaled in the style of an HDR
+ * histogram: each power of 2 is split into {@link #SUB_BUCKETS} linear sub buckets, so a percentile is reported
+ * within about 3% of the recorded value, from a nanosecond up to {@link #MAX_TRACKABLE_NANOS}, in a fixed ~9KB.
+ *
+ * Percentiles read while values are being recorded may miss the values in flight, but never block a recording thread.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // values below this each have their own bucket
+  private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+  /**
+   * Larger values are recorded as this, about 18 minutes.
+   */
+  public static final long MAX_TRACKABLE_NANOS = (1L << 40) - 1;
+  private static final int MAX_SHIFT = 63 - Long.numberOfLeadingZeros(MAX_TRACKABLE_NANOS) - SUB_BUCKET_BITS;
+
+  private final AtomicLongArray _counts = new AtomicLongArray(LINEAR_LIMIT + MAX_SHIFT * SUB_BUCKETS);
+  private final LongAdder _count = new LongAdder();
+  private final LongAdder _totalNanos = new LongAdder();
+  private final AtomicLong _maxNanos = new AtomicLong();
+
+  /**
+   * Record a latency.
+   * @param nanos the latency, negative values are recorded as 0
+   */
+  public void record(long nanos) {
+    long value = Math.min(Math.max(nanos, 0), MAX_TRACKABLE_NANOS);
+    _counts.incrementAndGet(bucketIndex(value));
+    _count.increment();
+    _totalNanos.add(value);
+    if (value > _maxNanos.get()) {
+      _maxNanos.accumulateAndGet(value, Math::max);
+    }
+  }
+
+  public long getCount() {
+    return _count.sum();
+  }
+
+  public long getMaxNanos() {
+    return _maxNanos.get();
+  }
+
+  public double getMeanNanos() {
+    long count = _count.sum();
+    return count == 0 ? 0 : (double) _totalNanos.sum() / count;
+  }
+
+  /**
+   * Returns the latency at a percentile, as the highest value of the bucket it falls in, so the reported value is
+   * never below the real one.
+   *
+   * @param percentile the percentile, e.g. 99.9
+   * @return the latency in nanoseconds, or 0 if nothing was recorded
+   */
+  public long getValueAtPercentile(double percentile) {
+    long[] counts = new long[_counts.length()];
+    long total = 0;
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = _counts.get(i);
+      total += counts[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+
+    long rank = Math.max(1, (long) Math.ceil(total * Math.min(percentile, 100.0) / 100.0));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(highestValueInBucket(i), _maxNanos.get());
+      }
+    }
+    return _maxNanos.get();
+  }
+
+  static int bucketIndex(long value) {
+    if (value < LINEAR_LIMIT) {
+      return (int) value;
+    }
+    // the shift keeps the top SUB_BUCKET_BITS + 1 bits, a sub bucket in [SUB_BUCKETS, 2 * SUB_BUCKETS)
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+  }
+
+  static long highestValueInBucket(int index) {
+    if (index < LINEAR_LIMIT) {
+      return index;
+    }
+    int shift = (index - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+    long subBucket = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+    return ((subBucket + 1) << shift) - 1;
+  }
+}
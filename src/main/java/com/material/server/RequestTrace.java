@@ -0,0 +1,158 @@
+package com.material.server;
+
+import com.material.filesystem.diagnostics.OperationTrace;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The timing of one request processed by a {@link ClientInputProcessor}, from parsing its command line to writing its
+ * response, see {@link SlowOperationLog}.
+ */
+class RequestTrace {
+  // commands whose arguments carry credentials, logged by name only
+  private static final Set<String> CREDENTIAL_COMMANDS = Collections.singleton("login");
+  private final String _id;
+  private final String _input;
+  private final String _user;
+  private final String _thread = Thread.currentThread().getName();
+  private final long _startNanos = System.nanoTime();
+  private final OperationTrace _operationTrace = OperationTrace.begin();
+  private String _command = ServerMetrics.UNKNOWN_COMMAND;
+  private long _parseNanos = 0;
+  private long _executeNanos = 0;
+  private long _writeNanos = 0;
+  private long _totalNanos = 0;
+  private boolean _failed = true;
+
+  RequestTrace(long id, String input, String user) {
+    _id = Long.toHexString(id);
+    _input = input;
+    _user = user;
+  }
+
+  String getId() {
+    return _id;
+  }
+
+  long getTotalNanos() {
+    return _totalNanos;
+  }
+
+  void parsed(String command) {
+    _parseNanos = System.nanoTime() - _startNanos;
+    _command = command;
+  }
+
+  /**
+   * End the execution of the command. Responses a content command wrote to the client while executing count as
+   * writes, not as execution.
+   * @param failed true if the command threw
+   */
+  void executed(boolean failed) {
+    _operationTrace.end();
+    _failed = failed;
+    _executeNanos = System.nanoTime() - _startNanos - _parseNanos - _writeNanos;
+    _totalNanos = System.nanoTime() - _startNanos;
+  }
+
+  /**
+   * Complete the trace with the time the transport took to write the text response after the command executed.
+   * @param writeNanos the time taken
+   */
+  void responseWritten(long writeNanos) {
+    _writeNanos += writeNanos;
+    _totalNanos = System.nanoTime() - _startNanos;
+  }
+
+  /**
+   * Returns a channel which adds the time spent writing to the client to this trace.
+   * @param channel the client channel
+   * @return the traced channel
+   */
+  ContentChannel traceWrites(ContentChannel channel) {
+    return new TracedContentChannel(channel);
+  }
+
+  String format() {
+    return "traceId=" + _id + " user=" + _user + " thread=" + _thread + " command=" + _command + " failed=" + _failed
+        + " total=" + formatMicros(_totalNanos) + " parse=" + formatMicros(_parseNanos) + " execute="
+        + formatMicros(_executeNanos) + " (resolve=" + formatMicros(_operationTrace.getResolveNanos())
+        + " permission=" + formatMicros(_operationTrace.getPermissionNanos()) + " lockWait="
+        + formatMicros(_operationTrace.getLockWaitNanos()) + ") write=" + formatMicros(_writeNanos)
+        + " nodesTouched=" + _operationTrace.getNodesTouched() + " bytesCopied=" + _operationTrace.getBytesCopied()
+        + " input='" + redactedInput() + "'";
+  }
+
+  /**
+   * Returns the request line, or only its command if its arguments carry credentials. The first word is checked too,
+   * in case the line failed to parse.
+   */
+  private String redactedInput() {
+    String input = _input.trim();
+    int nameEnd = 0;
+    while (nameEnd < input.length() && !Character.isWhitespace(input.charAt(nameEnd))) {
+      nameEnd++;
+    }
+    String name = input.substring(0, nameEnd);
+    if (CREDENTIAL_COMMANDS.contains(_command) || CREDENTIAL_COMMANDS.contains(name)) {
+      return name + " <redacted>";
+    }
+    return _input;
+  }
+
+  private static String formatMicros(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos) + "us";
+  }
+
+  private class TracedContentChannel implements ContentChannel {
+    private final ContentChannel _channel;
+
+    TracedContentChannel(ContentChannel channel) {
+      _channel = channel;
+    }
+
+    @Override
+    public void writeLine(String line) throws IOException {
+      long startNanos = System.nanoTime();
+      try {
+        _channel.writeLine(line);
+      } finally {
+        _writeNanos += System.nanoTime() - startNanos;
+      }
+    }
+
+    @Override
+    public long write(ByteBuffer[] buffers) throws IOException {
+      long startNanos = System.nanoTime();
+      try {
+        return _channel.write(buffers);
+      } finally {
+        _writeNanos += System.nanoTime() - startNanos;
+      }
+    }
+
+    @Override
+    public void readFully(byte[] bytes, int offset, int length) throws IOException {
+      _channel.readFully(bytes, offset, length);
+    }
+
+    @Override
+    public void skip(long length) throws IOException {
+      _channel.skip(length);
+    }
+
+    @Override
+    public String readLine() throws IOException {
+      return _channel.readLine();
+    }
+
+    @Override
+    public int getChunkSize() {
+      return _channel.getChunkSize();
+    }
+  }
+}
@@ -1,63 +1,275 @@
 package com.material.server;
 
 import com.material.filesystem.DefaultFileSystem;
-import com.material.filesystem.FileSystem;
+import com.material.filesystem.diagnostics.LockProfiler;
+import com.material.filesystem.journal.Journal;
+import com.material.filesystem.snapshot.Checkpoint;
+import com.material.filesystem.snapshot.Snapshotter;
 import com.material.filesystem.user.DefaultUserManager;
-import com.material.filesystem.user.UserManager;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.ExecutorService;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
-public class Server implements Runnable {
+public class Server implements Runnable, ServerMXBean {
   private static final Logger LOG = LoggerFactory.getLogger(Server.class);
+  private static final long METRICS_LOG_PERIOD_SECONDS = 60;
+  public static final String OBJECT_NAME_PREFIX = "com.material.server:type=Server,port=";
+  public static final String FILE_SYSTEM_OBJECT_NAME_PREFIX = "com.material.filesystem:type=FileSystem,port=";
+  public static final String USER_MANAGER_OBJECT_NAME_PREFIX = "com.material.filesystem:type=UserManager,port=";
   // TODO - this composition approach could be done differently, but it is simple for demo purpose
   public final ClientInputProcessor _cliServer;
   AtomicBoolean running = new AtomicBoolean(true);
-  // handle client connections
-  ExecutorService _requestHandler = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+  // handle client connections, a handler blocks on its connection until it closes, so each needs its own thread
+  ThreadPoolExecutor _requestHandler = (ThreadPoolExecutor) Executors.newCachedThreadPool();
   private int _portNumber = 0;
+  private final Path _unixSocketPath;
+  // records what clients send when the server is started with -Dfileserver.recordTo=PATH, or null
+  private final WorkloadRecorder _recorder = WorkloadRecorder.fromSystemProperty();
+  // journals the changes to the file system when started with -Dfileserver.journal=PATH, or null
+  private final Journal _journal;
+  // snapshots the file system when started with -Dfileserver.snapshot=PATH, or null
+  private final Snapshotter _snapshotter;
+  // registered while the server runs, by object name
+  private final Map<String, Object> _mbeans = new LinkedHashMap<>();
 
   public Server(int portNumber) {
+    this(portNumber, false);
+  }
+
+  public Server(int portNumber, boolean allowDuplicateSessions) {
+    this(portNumber, allowDuplicateSessions, null);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param portNumber the port to listen on
+   * @param allowDuplicateSessions true to let a user log in on several connections at once, e.g. from a pooling client
+   * @param unixSocketPath if not null, also listen on a unix domain socket at this path, for clients on the same host
+   */
+  public Server(int portNumber, boolean allowDuplicateSessions, Path unixSocketPath) {
     _portNumber = portNumber;
-    UserManager um = new DefaultUserManager();
-    FileSystem fs = new DefaultFileSystem(um);
+    _unixSocketPath = unixSocketPath;
+    DefaultUserManager um = new DefaultUserManager(allowDuplicateSessions);
+    DefaultFileSystem fs = new DefaultFileSystem(um);
+    // restore the last snapshot and what was journaled after it before the server last stopped, then journal from there
+    Checkpoint checkpoint = Snapshotter.restoreFromSystemProperties(fs, um);
+    long journalPosition = checkpoint.getJournalPosition();
+    _journal = Journal.fromSystemProperties(journalPosition, fs::replay);
+    fs.setJournal(_journal);
+    _snapshotter = Snapshotter.fromSystemProperties(fs, _journal, checkpoint);
+    if (_snapshotter != null && _journal != null && _journal.getPosition() < journalPosition) {
+      // the journal lost records the snapshot holds, what is journaled from now on would be skipped by the next restart
+      try {
+        _snapshotter.snapshot();
+      } catch (IOException ex) {
+        throw new UncheckedIOException("Cannot snapshot the restored file system", ex);
+      }
+    }
     _cliServer = new ClientInputProcessor(new FileSystemCommandMapBuilder(fs, um));
+    LockProfiler.registerMBean();
+    _mbeans.put(OBJECT_NAME_PREFIX + portNumber, this);
+    _mbeans.put(FILE_SYSTEM_OBJECT_NAME_PREFIX + portNumber, fs.getStats());
+    _mbeans.put(USER_MANAGER_OBJECT_NAME_PREFIX + portNumber, um);
   }
 
-  private void spawnClientHandler(Socket clientSocket) {
-    LOG.info("Handling client: " + clientSocket.getPort());
-    _requestHandler.submit(
-        new ClientConnectionHandler(clientSocket, _cliServer::processInput, _cliServer::onClientClosed));
+  private void spawnClientHandler(SocketChannel clientChannel) throws IOException {
+    LOG.info("Handling client: " + clientChannel.getRemoteAddress());
+    _cliServer.getMetrics().recordConnectionAccepted();
+    try {
+      _requestHandler.submit(new ClientConnectionHandler(clientChannel, _cliServer, _recorder));
+    } catch (RejectedExecutionException ex) {
+      LOG.warn("Rejected client: " + clientChannel.getRemoteAddress() + ", the server is shutting down");
+      _cliServer.getMetrics().recordConnectionRejected();
+      clientChannel.close();
+    }
   }
 
-  private Socket getClientSocket(ServerSocket serverSocket) throws IOException {
+  private SocketChannel getClientChannel(ServerSocketChannel serverChannel) throws IOException {
     LOG.info("Waiting for client connection...");
-    Socket clientSocket = serverSocket.accept();
-    LOG.info("Client connected " + clientSocket.getPort() + " : " + clientSocket.getLocalPort());
-    return clientSocket;
+    // blocking accept, content commands write to the channel directly
+    SocketChannel clientChannel = serverChannel.accept();
+    LOG.info("Client connected " + clientChannel.getRemoteAddress() + " : " + clientChannel.getLocalAddress());
+    return clientChannel;
+  }
+
+  /**
+   * Listen on the unix domain socket, until its channel is closed. A socket file left by a server which did not shut
+   * down cleanly is replaced.
+   */
+  private ServerSocketChannel listenOnUnixSocket() throws IOException {
+    Files.deleteIfExists(_unixSocketPath);
+    ServerSocketChannel unixChannel =
+        ServerSocketChannel.open(StandardProtocolFamily.UNIX).bind(UnixDomainSocketAddress.of(_unixSocketPath));
+    LOG.info("Started server on unix socket: " + _unixSocketPath);
+
+    _requestHandler.submit(() -> {
+      try {
+        while (running.get()) {
+          spawnClientHandler(getClientChannel(unixChannel));
+        }
+      } catch (IOException ex) {
+        LOG.info("Stopped listening on unix socket " + _unixSocketPath + ": " + ex);
+      }
+    });
+    return unixChannel;
   }
 
   @Override
   public void run() {
     // run the server
     LOG.info("Started server on port: " + _portNumber);
+    registerMBeans();
+    ServerSocketChannel unixChannel = null;
+    ScheduledExecutorService metricsLogger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "server-metrics-" + _portNumber);
+      thread.setDaemon(true);
+      return thread;
+    });
+    metricsLogger.scheduleAtFixedRate(_cliServer.getMetrics()::logSummary, METRICS_LOG_PERIOD_SECONDS,
+        METRICS_LOG_PERIOD_SECONDS, TimeUnit.SECONDS);
     try {
-      ServerSocket serverSocket = new ServerSocket(_portNumber);
+      ServerSocketChannel serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(_portNumber));
+      if (_unixSocketPath != null) {
+        unixChannel = listenOnUnixSocket();
+      }
       while (running.get()) {
-        spawnClientHandler(getClientSocket(serverSocket));
+        spawnClientHandler(getClientChannel(serverChannel));
       }
     } catch (IOException ex) {
       LOG.error("IOException", ex);
       // could not get connection
       running.set(false);
+    } finally {
+      closeUnixSocket(unixChannel);
+      metricsLogger.shutdownNow();
+      unregisterMBeans();
+      if (_recorder != null) {
+        _recorder.close();
+      }
+      if (_snapshotter != null) {
+        _snapshotter.close();
+      }
+      if (_journal != null) {
+        _journal.close();
+      }
     }
 
     _requestHandler.shutdown();
   }
+
+  /**
+   * Register the MBeans of this server with the platform MBean server. A server started again on the same port, e.g.
+   * in tests, replaces the MBeans of the previous one.
+   */
+  private void registerMBeans() {
+    MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    _mbeans.forEach((name, mbean) -> {
+      try {
+        ObjectName objectName = new ObjectName(name);
+        try {
+          mbeanServer.registerMBean(mbean, objectName);
+        } catch (InstanceAlreadyExistsException ex) {
+          mbeanServer.unregisterMBean(objectName);
+          mbeanServer.registerMBean(mbean, objectName);
+        }
+      } catch (JMException ex) {
+        LOG.warn("Could not register " + name, ex);
+      }
+    });
+  }
+
+  private void unregisterMBeans() {
+    MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    _mbeans.keySet().forEach(name -> {
+      try {
+        mbeanServer.unregisterMBean(new ObjectName(name));
+      } catch (InstanceNotFoundException ex) {
+        // replaced by another server on the same port
+      } catch (JMException ex) {
+        LOG.warn("Could not unregister " + name, ex);
+      }
+    });
+  }
+
+  @Override
+  public int getActiveConnections() {
+    return _cliServer.getMetrics().getActiveSessions();
+  }
+
+  @Override
+  public long getAcceptedConnections() {
+    return _cliServer.getMetrics().getAcceptedConnections();
+  }
+
+  @Override
+  public long getRejectedConnections() {
+    return _cliServer.getMetrics().getRejectedConnections();
+  }
+
+  @Override
+  public int getHandlerThreads() {
+    return _requestHandler.getActiveCount();
+  }
+
+  @Override
+  public int getRequestQueueDepth() {
+    return _requestHandler.getQueue().size();
+  }
+
+  @Override
+  public long getCommandCount() {
+    return _cliServer.getMetrics().getAllCommandMetrics().getLatencies().getCount();
+  }
+
+  @Override
+  public long getCommandErrors() {
+    return _cliServer.getMetrics().getAllCommandMetrics().getErrors();
+  }
+
+  @Override
+  public long getBytesIn() {
+    return _cliServer.getMetrics().getBytesIn();
+  }
+
+  @Override
+  public long getBytesOut() {
+    return _cliServer.getMetrics().getBytesOut();
+  }
+
+  private void closeUnixSocket(ServerSocketChannel unixChannel) {
+    if (unixChannel == null) {
+      return;
+    }
+
+    try {
+      unixChannel.close();
+      Files.deleteIfExists(_unixSocketPath);
+    } catch (IOException ex) {
+      LOG.warn("Could not remove unix socket " + _unixSocketPath, ex);
+    }
+  }
 }
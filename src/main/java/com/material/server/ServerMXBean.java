@@ -0,0 +1,40 @@
+package com.material.server;
+
+/**
+ * JMX view of a {@link Server}, registered as {@value Server#OBJECT_NAME_PREFIX} followed by its port.
+ */
+public interface ServerMXBean {
+  /**
+   * Returns the number of client sessions open, over sockets, shared memory or in process.
+   * @return the number of sessions
+   */
+  int getActiveConnections();
+
+  long getAcceptedConnections();
+
+  /**
+   * Returns the number of accepted connections closed because no handler could be started for them.
+   * @return the number of rejected connections
+   */
+  long getRejectedConnections();
+
+  /**
+   * Returns the number of threads handling clients, including the unix socket listener.
+   * @return the number of busy handler threads
+   */
+  int getHandlerThreads();
+
+  /**
+   * Returns the number of connections waiting for a handler thread.
+   * @return the request queue depth
+   */
+  int getRequestQueueDepth();
+
+  long getCommandCount();
+
+  long getCommandErrors();
+
+  long getBytesIn();
+
+  long getBytesOut();
+}
@@ -0,0 +1,210 @@
+package com.material.server;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Counters describing the work done by the {@link Server}. Counters are updated without locking and can be read at
+ * any time.
+ */
+public class ServerMetrics {
+  private static final Logger LOG = LoggerFactory.getLogger(ServerMetrics.class);
+  /**
+   * The name commands which do not exist are recorded under, so bad input cannot grow the metrics without bound.
+   */
+  public static final String UNKNOWN_COMMAND = "(unknown)";
+
+  private final LongAdder _contentRequests = new LongAdder();
+  private final LongAdder _contentBytesSent = new LongAdder();
+  private final LongAdder _contentBytesCopied = new LongAdder();
+  private final LongAdder _bytesIn = new LongAdder();
+  private final LongAdder _bytesOut = new LongAdder();
+  private final LongAdder _acceptedConnections = new LongAdder();
+  private final LongAdder _rejectedConnections = new LongAdder();
+  private final AtomicInteger _activeSessions = new AtomicInteger();
+  private final Map<String, CommandMetrics> _commands = new ConcurrentHashMap<>();
+  private final CommandMetrics _allCommands = new CommandMetrics();
+  private final long _startNanos = System.nanoTime();
+  // the previous periodic log, for the rate over its interval
+  private long _lastLogNanos = _startNanos;
+  private long _lastLogCount = 0;
+
+  /**
+   * The latencies and failures of one command.
+   */
+  public static class CommandMetrics {
+    private final LatencyHistogram _latencies = new LatencyHistogram();
+    private final LongAdder _errors = new LongAdder();
+
+    public LatencyHistogram getLatencies() {
+      return _latencies;
+    }
+
+    public long getErrors() {
+      return _errors.sum();
+    }
+  }
+
+  /**
+   * Record file content sent to a client by a {@link ContentCommand}.
+   * @param bytesSent the number of content bytes sent
+   * @param bytesCopied the number of bytes copied on the way to the socket, excluding the kernel copy
+   */
+  public void recordContentTransfer(long bytesSent, long bytesCopied) {
+    _contentRequests.increment();
+    _contentBytesSent.add(bytesSent);
+    _contentBytesCopied.add(bytesCopied);
+  }
+
+  /**
+   * Record a command having run.
+   *
+   * @param name the command name, or {@link #UNKNOWN_COMMAND}
+   * @param nanos how long it took, including writing any reply it streamed to the client
+   * @param failed true if it threw
+   */
+  public void recordCommand(String name, long nanos, boolean failed) {
+    CommandMetrics command = _commands.get(name);
+    if (command == null) {
+      command = _commands.computeIfAbsent(name, key -> new CommandMetrics());
+    }
+    command._latencies.record(nanos);
+    _allCommands._latencies.record(nanos);
+    if (failed) {
+      command._errors.increment();
+      _allCommands._errors.increment();
+    }
+  }
+
+  public void recordBytesIn(long bytes) {
+    _bytesIn.add(bytes);
+  }
+
+  public void recordBytesOut(long bytes) {
+    _bytesOut.add(bytes);
+  }
+
+  public void recordConnectionAccepted() {
+    _acceptedConnections.increment();
+  }
+
+  public void recordConnectionRejected() {
+    _rejectedConnections.increment();
+  }
+
+  public void onSessionOpened() {
+    _activeSessions.incrementAndGet();
+  }
+
+  public void onSessionClosed() {
+    _activeSessions.decrementAndGet();
+  }
+
+  public long getContentRequests() {
+    return _contentRequests.sum();
+  }
+
+  public long getContentBytesSent() {
+    return _contentBytesSent.sum();
+  }
+
+  public long getContentBytesCopied() {
+    return _contentBytesCopied.sum();
+  }
+
+  public long getBytesIn() {
+    return _bytesIn.sum();
+  }
+
+  public long getBytesOut() {
+    return _bytesOut.sum();
+  }
+
+  public int getActiveSessions() {
+    return _activeSessions.get();
+  }
+
+  public long getAcceptedConnections() {
+    return _acceptedConnections.sum();
+  }
+
+  public long getRejectedConnections() {
+    return _rejectedConnections.sum();
+  }
+
+  /**
+   * Returns the metrics of a command.
+   * @param name the command name
+   * @return the metrics, or null if the command has not run
+   */
+  public CommandMetrics getCommandMetrics(String name) {
+    return _commands.get(name);
+  }
+
+  /**
+   * Returns the metrics of every command together.
+   * @return the metrics
+   */
+  public CommandMetrics getAllCommandMetrics() {
+    return _allCommands;
+  }
+
+  /**
+   * Returns a report of the totals since the server started, followed by a line per command which has run.
+   * @return the report, one line per entry
+   */
+  public String formatStats() {
+    double uptimeSeconds = (System.nanoTime() - _startNanos) / 1e9;
+    StringBuilder stats = new StringBuilder();
+    stats.append(String.format("uptime=%.0fs sessions=%d bytesIn=%d bytesOut=%d", uptimeSeconds,
+        _activeSessions.get(), _bytesIn.sum(), _bytesOut.sum()));
+    stats.append('\n').append(formatCommand("all", _allCommands, uptimeSeconds));
+    new TreeMap<>(_commands).forEach(
+        (name, command) -> stats.append('\n').append(formatCommand(name, command, uptimeSeconds)));
+    return stats.toString();
+  }
+
+  /**
+   * Log the throughput since the previous call, and the latencies since the server started.
+   */
+  public synchronized void logSummary() {
+    long now = System.nanoTime();
+    long count = _allCommands._latencies.getCount();
+    double intervalSeconds = (now - _lastLogNanos) / 1e9;
+    if (LOG.isInfoEnabled()) {
+      LatencyHistogram latencies = _allCommands._latencies;
+      LOG.info(String.format("%.1f ops/sec over %.0fs, %d sessions, latency p50=%s p99=%s p999=%s, %d errors",
+          (count - _lastLogCount) / intervalSeconds, intervalSeconds, _activeSessions.get(),
+          formatNanos(latencies.getValueAtPercentile(50)), formatNanos(latencies.getValueAtPercentile(99)),
+          formatNanos(latencies.getValueAtPercentile(99.9)), _allCommands.getErrors()));
+    }
+    _lastLogNanos = now;
+    _lastLogCount = count;
+  }
+
+  private static String formatCommand(String name, CommandMetrics command, double uptimeSeconds) {
+    LatencyHistogram latencies = command._latencies;
+    long count = latencies.getCount();
+    return String.format("%s count=%d errors=%d ops/sec=%.1f p50=%s p99=%s p999=%s max=%s", name, count,
+        command.getErrors(), count / uptimeSeconds, formatNanos(latencies.getValueAtPercentile(50)),
+        formatNanos(latencies.getValueAtPercentile(99)), formatNanos(latencies.getValueAtPercentile(99.9)),
+        formatNanos(latencies.getMaxNanos()));
+  }
+
+  private static String formatNanos(long nanos) {
+    if (nanos < TimeUnit.MICROSECONDS.toNanos(10)) {
+      return nanos + "ns";
+    }
+    if (nanos < TimeUnit.MILLISECONDS.toNanos(10)) {
+      return TimeUnit.NANOSECONDS.toMicros(nanos) + "us";
+    }
+    return TimeUnit.NANOSECONDS.toMillis(nanos) + "ms";
+  }
+}
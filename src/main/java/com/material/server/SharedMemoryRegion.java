@@ -0,0 +1,128 @@
+package com.material.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * A memory mapped file a client and the server on the same host exchange commands through, without a system call per
+ * request. The client creates it, then asks the server to map it with <pre>sharedMemory PATH</pre> on a normal
+ * connection, see {@link WireProtocol}.
+ *
+ * The file holds a header, a {@link SharedRing} of requests, a {@link SharedRing} of responses and a data region. A
+ * request is a command line, followed by a line break and any raw bytes the command reads. A response is the reply
+ * text, or for a reply of raw bytes, a {@link #SHARED_BYTES} line locating them in the data region. The data region is
+ * reused by every response, so a client reads one response before it sends the next request.
+ */
+public final class SharedMemoryRegion {
+  /**
+   * <pre>SHARED_BYTES OFFSET LENGTH</pre>, the response bytes are in the data region.
+   */
+  public static final String SHARED_BYTES = "SHARED_BYTES";
+
+  private static final int MAGIC = 0x46534D31;
+  private static final int VERSION = 1;
+  // header fields
+  private static final int MAGIC_OFFSET = 0;
+  private static final int VERSION_OFFSET = 4;
+  private static final int RING_CAPACITY_OFFSET = 8;
+  private static final int DATA_CAPACITY_OFFSET = 12;
+  private static final int BUSY_SPIN_OFFSET = 16;
+  // ring positions, each on its own cache line
+  private static final int REQUEST_CONSUMER_OFFSET = 64;
+  private static final int REQUEST_PRODUCER_OFFSET = 128;
+  private static final int RESPONSE_CONSUMER_OFFSET = 192;
+  private static final int RESPONSE_PRODUCER_OFFSET = 256;
+  private static final int HEADER_SIZE = 320;
+
+  private final SharedRing _requests;
+  private final SharedRing _responses;
+  private final ByteBuffer _data;
+  private final boolean _busySpin;
+
+  private SharedMemoryRegion(MappedByteBuffer buffer) throws IOException {
+    if (buffer.capacity() < HEADER_SIZE || buffer.getInt(MAGIC_OFFSET) != MAGIC
+        || buffer.getInt(VERSION_OFFSET) != VERSION) {
+      throw new IOException("Not a shared memory region of version " + VERSION);
+    }
+
+    int ringCapacity = buffer.getInt(RING_CAPACITY_OFFSET);
+    int dataCapacity = buffer.getInt(DATA_CAPACITY_OFFSET);
+    if ((long) HEADER_SIZE + 2L * ringCapacity + dataCapacity != buffer.capacity()) {
+      throw new IOException("Shared memory region size does not match its header");
+    }
+
+    _busySpin = buffer.getInt(BUSY_SPIN_OFFSET) != 0;
+    _requests = new SharedRing(buffer, REQUEST_CONSUMER_OFFSET, REQUEST_PRODUCER_OFFSET, HEADER_SIZE, ringCapacity,
+        _busySpin);
+    _responses = new SharedRing(buffer, RESPONSE_CONSUMER_OFFSET, RESPONSE_PRODUCER_OFFSET,
+        HEADER_SIZE + ringCapacity, ringCapacity, _busySpin);
+    _data = buffer.slice(HEADER_SIZE + 2 * ringCapacity, dataCapacity);
+  }
+
+  /**
+   * Create the region file, replacing any file at the path.
+   *
+   * @param path the file
+   * @param ringCapacity the bytes of each ring, a power of 2
+   * @param dataCapacity the bytes of the data region, which bounds a read
+   * @param busySpin true for both sides to spin while waiting, which costs a core each but avoids wake up latency
+   * @return the region
+   * @throws IOException if the file cannot be created
+   */
+  public static SharedMemoryRegion create(Path path, int ringCapacity, int dataCapacity, boolean busySpin)
+      throws IOException {
+    long size = (long) HEADER_SIZE + 2L * ringCapacity + dataCapacity;
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Shared memory region of " + size + " bytes is too large");
+    }
+
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      buffer.putInt(RING_CAPACITY_OFFSET, ringCapacity);
+      buffer.putInt(DATA_CAPACITY_OFFSET, dataCapacity);
+      buffer.putInt(BUSY_SPIN_OFFSET, busySpin ? 1 : 0);
+      buffer.putInt(VERSION_OFFSET, VERSION);
+      // last, so a region is never mapped half initialized
+      buffer.putInt(MAGIC_OFFSET, MAGIC);
+      return new SharedMemoryRegion(buffer);
+    }
+  }
+
+  /**
+   * Map a region created by {@link #create}.
+   * @param path the file
+   * @return the region
+   * @throws IOException if the file cannot be mapped, or is not a region
+   */
+  public static SharedMemoryRegion open(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      return new SharedMemoryRegion(channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+    }
+  }
+
+  public SharedRing getRequests() {
+    return _requests;
+  }
+
+  public SharedRing getResponses() {
+    return _responses;
+  }
+
+  /**
+   * Returns a new view of the data region, positioned at its start.
+   * @return the data region
+   */
+  public ByteBuffer getData() {
+    return _data.duplicate();
+  }
+
+  public boolean isBusySpin() {
+    return _busySpin;
+  }
+}
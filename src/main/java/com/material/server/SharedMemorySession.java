@@ -0,0 +1,244 @@
+package com.material.server;
+
+import com.material.filesystem.user.User;
+import com.material.filesystem.user.UserSecurityException;
+import com.material.filesystem.user.UserType;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Serves the commands of a client connection through a {@link SharedMemoryRegion}, on the thread of the connection so
+ * the session keeps its user and working directory. The connection itself stays open only to tell the server the
+ * client is still there: the session ends when the client sends a line or disconnects.
+ *
+ * Each request gets exactly one response. A command may write one line to its channel, and raw bytes after a bytes
+ * header are copied into the data region once, rather than through a socket. Commands which exchange further lines
+ * with the client, like download and watch, fail.
+ *
+ * Only a logged in user can map a region, and only a file in the directory of the {@value #DIRECTORY_PROPERTY} system
+ * property, by default the temporary directory. A region whose requests are corrupt ends the session and closes the
+ * connection.
+ */
+class SharedMemorySession {
+  static final String SHARED_MEMORY_COMMAND = "sharedMemory";
+  /**
+   * System property with the directory the regions the server maps must be in.
+   */
+  static final String DIRECTORY_PROPERTY = "fileserver.sharedMemory.directory";
+
+  private static final Logger LOG = LoggerFactory.getLogger(SharedMemorySession.class);
+
+  private final ClientInputProcessor _inputProcessor;
+  private final SharedMemoryRegion _region;
+  private final RegionContentChannel _regionChannel;
+  private final AtomicBoolean _clientGone = new AtomicBoolean();
+
+  private SharedMemorySession(ClientInputProcessor inputProcessor, SharedMemoryRegion region) {
+    _inputProcessor = inputProcessor;
+    _region = region;
+    _regionChannel = new RegionContentChannel(region.getData(), inputProcessor.getMetrics());
+  }
+
+  static boolean isSharedMemoryStart(String clientInput) {
+    return clientInput.startsWith(SHARED_MEMORY_COMMAND + " ");
+  }
+
+  /**
+   * Map the region named by a <pre>sharedMemory PATH</pre> command, and serve it until the client goes away.
+   *
+   * @param clientInput the command
+   * @param inputProcessor runs the commands of the client
+   * @param connection the client connection
+   * @throws UserSecurityException if no user is logged in, or the region is not in the shared memory directory
+   * @throws ClientProtocolException if the requests in the region are corrupt
+   * @throws IOException if the region cannot be mapped
+   */
+  static void serve(String clientInput, ClientInputProcessor inputProcessor, ContentChannel connection)
+      throws IOException {
+    User user = inputProcessor.getUserManager().currentUser();
+    if (user == null || user.getUserType() == UserType.GUEST) {
+      throw new UserSecurityException("Login to map shared memory");
+    }
+    ClientCommand command = new CommandParser().parse(clientInput);
+    // the real paths, so neither a symbolic link nor .. leads out of the directory
+    Path directory = Paths.get(System.getProperty(DIRECTORY_PROPERTY, System.getProperty("java.io.tmpdir")))
+        .toRealPath();
+    Path path = Paths.get(command.getArg(0)).toRealPath();
+    if (!path.startsWith(directory)) {
+      throw new UserSecurityException("Shared memory regions must be in " + directory + ": " + path);
+    }
+    SharedMemoryRegion region = SharedMemoryRegion.open(path);
+    SharedMemorySession session = new SharedMemorySession(inputProcessor, region);
+    connection.writeLine(WireProtocol.SHARED_MEMORY + " " + (region.isBusySpin() ? "spin" : "park"));
+    session.run(connection);
+  }
+
+  private void run(ContentChannel connection) throws ClientProtocolException {
+    Thread presence = new Thread(() -> {
+      try {
+        connection.readLine();
+      } catch (IOException ex) {
+        LOG.debug("Shared memory client connection failed", ex);
+      }
+      _clientGone.set(true);
+    }, Thread.currentThread().getName() + "-shared-memory");
+    presence.setDaemon(true);
+    presence.start();
+
+    try {
+      while (true) {
+        byte[] request = _region.getRequests().read(_clientGone::get);
+        byte[] response = process(request);
+        long writeStartNanos = System.nanoTime();
+        _region.getResponses().write(response, _clientGone::get);
+        _inputProcessor.onResponseWritten(System.nanoTime() - writeStartNanos);
+        // content bytes in the data region are counted as they are written
+        _inputProcessor.getMetrics().recordBytesIn(request.length);
+        _inputProcessor.getMetrics().recordBytesOut(response.length);
+      }
+    } catch (StreamCorruptedException ex) {
+      throw new ClientProtocolException("Shared memory requests are corrupt: " + ex.getMessage());
+    } catch (IOException ex) {
+      LOG.debug("Shared memory session ended: " + ex.getMessage());
+    }
+  }
+
+  private byte[] process(byte[] request) {
+    int lineEnd = indexOf(request, (byte) '\n');
+    String line = new String(request, 0, lineEnd, StandardCharsets.UTF_8);
+    _regionChannel.reset(request, lineEnd + 1);
+
+    String response;
+    try {
+      if (ClientInputProcessor.isBatchStart(line)) {
+        String commands = new String(request, lineEnd + 1, request.length - lineEnd - 1, StandardCharsets.UTF_8);
+        response = _inputProcessor.processBatch(line, commands.isEmpty() ? new ArrayList<>()
+            : Arrays.asList(commands.split("\n")));
+      } else {
+        response = _inputProcessor.processInput(line, _regionChannel);
+        if (response == null) {
+          response = _regionChannel.takeLine();
+        }
+      }
+    } catch (Exception ex) {
+      LOG.debug("Shared memory command failed: " + line, ex);
+      response = WireProtocol.errorLine(ex.getMessage());
+    }
+
+    byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+    int maxLength = _region.getResponses().getMaxMessageLength();
+    return bytes.length <= maxLength ? bytes : WireProtocol.errorLine(
+        "Reply of " + bytes.length + " bytes is larger than the shared memory limit of " + maxLength)
+        .getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static int indexOf(byte[] bytes, byte b) {
+    for (int i = 0; i < bytes.length; i++) {
+      if (bytes[i] == b) {
+        return i;
+      }
+    }
+    return bytes.length;
+  }
+
+  /**
+   * The channel commands see during a session. The raw bytes of a request are read from the request message, and raw
+   * bytes written to the client are copied into the data region.
+   */
+  private static class RegionContentChannel implements ContentChannel {
+    private final ByteBuffer _data;
+    private final ServerMetrics _metrics;
+    private String _line;
+    private long _pendingBytes;
+    private byte[] _request;
+    private int _requestPosition;
+
+    RegionContentChannel(ByteBuffer data, ServerMetrics metrics) {
+      _data = data;
+      _metrics = metrics;
+    }
+
+    void reset(byte[] request, int payloadStart) {
+      _line = null;
+      _pendingBytes = 0;
+      _data.clear();
+      _request = request;
+      _requestPosition = Math.min(payloadStart, request.length);
+    }
+
+    String takeLine() throws IOException {
+      if (_line == null || _pendingBytes > 0) {
+        throw new IOException("Command did not complete its reply");
+      }
+      return _line;
+    }
+
+    @Override
+    public void writeLine(String line) throws IOException {
+      if (_line != null) {
+        throw new IOException("Only one reply line per request is supported over shared memory");
+      }
+
+      long length = WireProtocol.parseBytesHeader(line);
+      if (length > _data.capacity()) {
+        throw new IOException(
+            "Reply of " + length + " bytes does not fit the shared data region of " + _data.capacity() + " bytes");
+      }
+      _pendingBytes = Math.max(length, 0);
+      _line = length >= 0 ? SharedMemoryRegion.SHARED_BYTES + " 0 " + length : line;
+    }
+
+    @Override
+    public long write(ByteBuffer[] buffers) throws IOException {
+      long written = 0;
+      for (ByteBuffer buffer : buffers) {
+        if (buffer.remaining() > _pendingBytes) {
+          throw new IOException("Content written without a bytes header");
+        }
+        written += buffer.remaining();
+        _pendingBytes -= buffer.remaining();
+        _data.put(buffer);
+      }
+      _metrics.recordBytesOut(written);
+      return written;
+    }
+
+    @Override
+    public void readFully(byte[] bytes, int offset, int length) throws IOException {
+      if (_requestPosition + length > _request.length) {
+        throw new IOException("Request has fewer than " + length + " bytes left");
+      }
+      System.arraycopy(_request, _requestPosition, bytes, offset, length);
+      _requestPosition += length;
+    }
+
+    @Override
+    public void skip(long length) throws IOException {
+      if (_requestPosition + length > _request.length) {
+        throw new IOException("Request has fewer than " + length + " bytes left");
+      }
+      _requestPosition += (int) length;
+    }
+
+    @Override
+    public String readLine() {
+      throw new UnsupportedOperationException("Commands cannot read lines from the client over shared memory");
+    }
+
+    @Override
+    public int getChunkSize() {
+      return _data.capacity();
+    }
+  }
+}
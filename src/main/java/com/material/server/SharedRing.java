@@ -0,0 +1,156 @@
+package com.material.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+
+/**
+ * A lock free, single producer, single consumer queue of messages in a region of shared memory, e.g. a mapped file
+ * both a client and the server map, see {@link SharedMemoryRegion}.
+ *
+ * The producer and consumer each own one position, a running byte count kept on its own cache line. A message is a
+ * length followed by its bytes, padded to 8 bytes, and is published by a release store of the producer position
+ * after its bytes are written, which the consumer reads with an acquire load. A message never wraps: if it does not
+ * fit before the end of the ring, the producer writes a skip marker and starts it at the beginning.
+ *
+ * Waiting sides spin, then unless busy spinning was chosen, park for short periods. The other side may be another
+ * process, so there is nobody to unpark a waiting side, it polls.
+ */
+public final class SharedRing {
+  private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+  private static final int SKIP = -1;
+  private static final int SPIN_ITERATIONS = 1000;
+  private static final long PARK_NANOS = 20_000;
+
+  private final ByteBuffer _buffer;
+  private final int _consumerOffset;
+  private final int _producerOffset;
+  private final int _dataOffset;
+  private final int _capacity;
+  private final boolean _busySpin;
+
+  /**
+   * Constructor
+   *
+   * @param buffer the shared memory, direct
+   * @param consumerOffset where the consumer position is kept, 8 byte aligned
+   * @param producerOffset where the producer position is kept, 8 byte aligned
+   * @param dataOffset where the messages are kept, 8 byte aligned
+   * @param capacity the bytes for messages, a power of 2
+   * @param busySpin true to spin while waiting, rather than park
+   */
+  SharedRing(ByteBuffer buffer, int consumerOffset, int producerOffset, int dataOffset, int capacity,
+      boolean busySpin) {
+    if (Integer.bitCount(capacity) != 1 || capacity < 64) {
+      throw new IllegalArgumentException("Ring capacity must be a power of 2 of at least 64: " + capacity);
+    }
+    _buffer = buffer;
+    _consumerOffset = consumerOffset;
+    _producerOffset = producerOffset;
+    _dataOffset = dataOffset;
+    _capacity = capacity;
+    _busySpin = busySpin;
+  }
+
+  /**
+   * Returns the largest message the ring takes.
+   * @return the length in bytes
+   */
+  public int getMaxMessageLength() {
+    return _capacity / 2 - Integer.BYTES;
+  }
+
+  /**
+   * Add a message, waiting for space if the ring is full. Only one thread may write to a ring.
+   *
+   * @param message the message
+   * @param stopped checked while waiting, true if the consumer has gone
+   * @throws IOException if the consumer went away while waiting
+   */
+  public void write(byte[] message, BooleanSupplier stopped) throws IOException {
+    if (message.length > getMaxMessageLength()) {
+      throw new IllegalArgumentException(
+          "Message of " + message.length + " bytes is larger than the limit of " + getMaxMessageLength());
+    }
+
+    long producer = (long) LONGS.getOpaque(_buffer, _producerOffset);
+    int index = (int) (producer & (_capacity - 1));
+    int length = align(Integer.BYTES + message.length);
+    int untilEnd = _capacity - index;
+    if (untilEnd < length) {
+      awaitSpace(producer, untilEnd, stopped);
+      _buffer.putInt(_dataOffset + index, SKIP);
+      producer += untilEnd;
+      LONGS.setRelease(_buffer, _producerOffset, producer);
+      index = 0;
+    }
+
+    awaitSpace(producer, length, stopped);
+    _buffer.putInt(_dataOffset + index, message.length);
+    _buffer.put(_dataOffset + index + Integer.BYTES, message, 0, message.length);
+    LONGS.setRelease(_buffer, _producerOffset, producer + length);
+  }
+
+  /**
+   * Take the next message, waiting for one if the ring is empty. Only one thread may read from a ring.
+   *
+   * @param stopped checked while waiting, true if the producer has gone
+   * @return the message
+   * @throws StreamCorruptedException if the length of the message is out of range, nothing after it can be read
+   * @throws IOException if the producer went away while waiting
+   */
+  public byte[] read(BooleanSupplier stopped) throws IOException {
+    long consumer = (long) LONGS.getOpaque(_buffer, _consumerOffset);
+    for (int i = 0; ; i++) {
+      long producer = (long) LONGS.getAcquire(_buffer, _producerOffset);
+      if (producer == consumer) {
+        await(i, stopped);
+        continue;
+      }
+
+      int index = (int) (consumer & (_capacity - 1));
+      int length = _buffer.getInt(_dataOffset + index);
+      if (length == SKIP) {
+        consumer += _capacity - index;
+        LONGS.setRelease(_buffer, _consumerOffset, consumer);
+        continue;
+      }
+      if (length < 0 || length > Math.min(getMaxMessageLength(), _capacity - index - Integer.BYTES)) {
+        throw new StreamCorruptedException("Message length " + length + " at " + index + " is out of range");
+      }
+
+      byte[] message = new byte[length];
+      _buffer.get(_dataOffset + index + Integer.BYTES, message, 0, length);
+      LONGS.setRelease(_buffer, _consumerOffset, consumer + align(Integer.BYTES + length));
+      return message;
+    }
+  }
+
+  private void awaitSpace(long producer, int length, BooleanSupplier stopped) throws IOException {
+    for (int i = 0; producer + length - (long) LONGS.getAcquire(_buffer, _consumerOffset) > _capacity; i++) {
+      await(i, stopped);
+    }
+  }
+
+  private void await(int iteration, BooleanSupplier stopped) throws IOException {
+    if (stopped.getAsBoolean()) {
+      throw new EOFException("The other side of the shared memory ring has gone");
+    }
+    if (_busySpin || iteration < SPIN_ITERATIONS) {
+      Thread.onSpinWait();
+    } else {
+      LockSupport.parkNanos(PARK_NANOS);
+    }
+  }
+
+  private static int align(int length) {
+    return (length + 7) & ~7;
+  }
+}
@@ -0,0 +1,89 @@
+package com.material.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Writes the requests which took longer than a threshold to a dedicated log, {@value #LOGGER_NAME}. Each line has the
+ * trace id of the request, the user and handler thread of the session which sent it, its command, the breakdown of
+ * its time and the nodes it touched, to tell which session stalled the others. The arguments of commands carrying
+ * credentials, such as login, are not logged.
+ *
+ * While the log is on every request is traced, which times each path walk, permission check and lock wait, so it is
+ * off unless a threshold is set. A negative threshold turns it off again.
+ */
+public class SlowOperationLog {
+  public static final String LOGGER_NAME = "com.material.server.SlowOperations";
+  /**
+   * System property with the initial threshold, in milliseconds, off if not set.
+   */
+  public static final String THRESHOLD_PROPERTY = "fileserver.slowOperationThresholdMillis";
+  private static final long DEFAULT_THRESHOLD_MILLIS = -1;
+  private static final Logger LOG = LoggerFactory.getLogger(LOGGER_NAME);
+
+  private final AtomicLong _nextTraceId = new AtomicLong();
+  private final LongAdder _slowOperations = new LongAdder();
+  private volatile long _thresholdNanos;
+
+  public SlowOperationLog() {
+    this(Long.getLong(THRESHOLD_PROPERTY, DEFAULT_THRESHOLD_MILLIS));
+  }
+
+  public SlowOperationLog(long thresholdMillis) {
+    setThresholdMillis(thresholdMillis);
+  }
+
+  /**
+   * Set how long a request may take before it is logged.
+   * @param thresholdMillis the threshold, 0 to log every request, negative to turn the log off
+   */
+  public void setThresholdMillis(long thresholdMillis) {
+    _thresholdNanos = thresholdMillis < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+  }
+
+  public long getThresholdMillis() {
+    long thresholdNanos = _thresholdNanos;
+    return thresholdNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(thresholdNanos);
+  }
+
+  public boolean isEnabled() {
+    return _thresholdNanos >= 0;
+  }
+
+  /**
+   * Returns the number of requests logged as slow.
+   * @return the number of slow requests
+   */
+  public long getSlowOperationCount() {
+    return _slowOperations.sum();
+  }
+
+  /**
+   * Start tracing a request on the current thread.
+   * @param input the request line
+   * @param user the name of the user sending it
+   * @return the trace, or null if the log is off
+   */
+  RequestTrace begin(String input, String user) {
+    if (!isEnabled()) {
+      return null;
+    }
+    return new RequestTrace(_nextTraceId.incrementAndGet(), input, user);
+  }
+
+  /**
+   * Log a completed request if it was slow.
+   * @param trace the trace of the request
+   */
+  void complete(RequestTrace trace) {
+    long thresholdNanos = _thresholdNanos;
+    if (thresholdNanos >= 0 && trace.getTotalNanos() >= thresholdNanos) {
+      _slowOperations.increment();
+      LOG.warn(trace.format());
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package com.material.server;
+
+import com.material.filesystem.user.User;
+import java.io.IOException;
+
+
+/**
+ * A chunked upload of new contents for a single file. Chunks are read from the connection straight into the array
+ * which becomes the file contents on commit, so the upload is never buffered anywhere else.
+ *
+ * Chunks must arrive in order. Only bytes below the acknowledged offset are kept, so an upload interrupted part way
+ * through a chunk resumes from the last acknowledged offset.
+ */
+class UploadSession {
+  private final long _id;
+  private final User _owner;
+  private final String _path;
+  private final byte[] _contents;
+  private int _acknowledgedOffset = 0;
+  private volatile long _lastActiveTime = System.currentTimeMillis();
+
+  UploadSession(long id, User owner, String path, int totalBytes) {
+    _id = id;
+    _owner = owner;
+    _path = path;
+    _contents = new byte[totalBytes];
+  }
+
+  long getId() {
+    return _id;
+  }
+
+  User getOwner() {
+    return _owner;
+  }
+
+  String getPath() {
+    return _path;
+  }
+
+  int getTotalBytes() {
+    return _contents.length;
+  }
+
+  long getLastActiveTime() {
+    return _lastActiveTime;
+  }
+
+  synchronized int getAcknowledgedOffset() {
+    return _acknowledgedOffset;
+  }
+
+  /**
+   * Read a chunk from the connection into the upload.
+   *
+   * @param channel the connection the chunk bytes follow the command on
+   * @param offset the offset of the chunk in the upload
+   * @param length the number of bytes in the chunk
+   * @return the new acknowledged offset
+   * @throws IOException if reading the chunk fails
+   * @throws IllegalArgumentException if the chunk is not the next one expected, its bytes are skipped
+   */
+  synchronized int receiveChunk(ContentChannel channel, int offset, int length) throws IOException {
+    _lastActiveTime = System.currentTimeMillis();
+    if (offset != _acknowledgedOffset || length > _contents.length - offset) {
+      channel.skip(length);
+      throw new IllegalArgumentException(
+          "Upload " + _id + " expected a chunk at offset " + _acknowledgedOffset + " of at most "
+              + (_contents.length - _acknowledgedOffset) + " bytes, got " + length + " bytes at offset " + offset);
+    }
+
+    channel.readFully(_contents, offset, length);
+    _acknowledgedOffset += length;
+    return _acknowledgedOffset;
+  }
+
+  /**
+   * Returns the uploaded contents, once every byte has been received.
+   * @return the contents
+   * @throws IllegalStateException if bytes are missing
+   */
+  synchronized byte[] getCompletedContents() {
+    if (_acknowledgedOffset != _contents.length) {
+      throw new IllegalStateException(
+          "Upload " + _id + " has received " + _acknowledgedOffset + " of " + _contents.length + " bytes");
+    }
+    return _contents;
+  }
+}
@@ -0,0 +1,97 @@
+package com.material.server;
+
+import com.material.filesystem.user.User;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The open {@link UploadSession}s of the server. Sessions are not tied to a connection, so a client that disconnects
+ * can reopen its upload and resume it. The bytes staged by all open sessions are bounded, and sessions left idle are
+ * discarded.
+ */
+class UploadSessions {
+  private static final Logger LOG = LoggerFactory.getLogger(UploadSessions.class);
+
+  private final Map<Long, UploadSession> _sessions = new ConcurrentHashMap<>();
+  private final AtomicLong _nextId = new AtomicLong(1);
+  private final long _maxStagedBytes;
+  private final long _idleTimeoutMillis;
+  private long _stagedBytes = 0;
+
+  UploadSessions(long maxStagedBytes, long idleTimeoutMillis) {
+    _maxStagedBytes = maxStagedBytes;
+    _idleTimeoutMillis = idleTimeoutMillis;
+  }
+
+  /**
+   * Open an upload, or return the open upload of the same user, path and size so it can be resumed.
+   *
+   * @param owner the user uploading
+   * @param path the absolute path of the file to upload to
+   * @param totalBytes the size of the upload
+   * @return the session
+   * @throws IllegalStateException if the upload would stage more bytes than the server allows
+   */
+  synchronized UploadSession open(User owner, String path, int totalBytes) {
+    expireIdleSessions();
+
+    for (UploadSession session : _sessions.values()) {
+      if (isOwner(session, owner) && session.getPath().equals(path) && session.getTotalBytes() == totalBytes) {
+        return session;
+      }
+    }
+
+    if (_stagedBytes + totalBytes > _maxStagedBytes) {
+      throw new IllegalStateException(
+          "Cannot stage " + totalBytes + " more bytes, " + _stagedBytes + " of " + _maxStagedBytes
+              + " bytes are staged by open uploads");
+    }
+
+    UploadSession session = new UploadSession(_nextId.getAndIncrement(), owner, path, totalBytes);
+    _sessions.put(session.getId(), session);
+    _stagedBytes += totalBytes;
+    return session;
+  }
+
+  /**
+   * Returns an open upload of the user.
+   * @param id the upload id
+   * @param owner the current user
+   * @return the session
+   * @throws IllegalArgumentException if the user has no open upload with the id
+   */
+  UploadSession get(long id, User owner) {
+    UploadSession session = _sessions.get(id);
+    if (session == null || !isOwner(session, owner)) {
+      throw new IllegalArgumentException("No open upload " + id);
+    }
+    return session;
+  }
+
+  synchronized void close(UploadSession session) {
+    if (_sessions.remove(session.getId()) != null) {
+      _stagedBytes -= session.getTotalBytes();
+    }
+  }
+
+  // guests cannot open uploads, so a name stands for a single user
+  private static boolean isOwner(UploadSession session, User user) {
+    return session.getOwner().getUsername().equals(user.getUsername());
+  }
+
+  private void expireIdleSessions() {
+    long now = System.currentTimeMillis();
+    _sessions.values().removeIf(session -> {
+      if (now - session.getLastActiveTime() > _idleTimeoutMillis) {
+        LOG.info("Discarding idle upload " + session.getId() + " to " + session.getPath());
+        _stagedBytes -= session.getTotalBytes();
+        return true;
+      }
+      return false;
+    });
+  }
+}
@@ -0,0 +1,101 @@
+package com.material.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+
+/**
+ * Framing shared by the {@link FileServer} and its clients.
+ *
+ * Every response is a single line, unless it is framed as one of the following. A command that fails replies with
+ * a single ERROR MESSAGE line.
+ *
+ * 1. START_LINES, any number of lines, END_LINES
+ * 2. START_BYTES LENGTH, then exactly LENGTH raw bytes
+ * 3. START_DOWNLOAD LENGTH CHUNK_SIZE, then one START_BYTES frame per chunk, then END_DOWNLOAD LENGTH. The server
+ *    sends a chunk only once the client has granted a credit for it with a <pre>credit COUNT</pre> line. The client
+ *    must not grant more credits than there are chunks.
+ *
+ * 4. after <pre>watch</pre>, WATCHING LEASE_MILLIS, then for as long as the connection stays open: INVALIDATE PATH when
+ *    a node changed, INVALIDATE_TREE PATH when a node and everything below it moved or was removed, and LEASE
+ *    LEASE_MILLIS at least twice per lease. A client may trust what it cached for one lease after the last line.
+ * 5. after <pre>sharedMemory PATH</pre>, SHARED_MEMORY WAIT_STRATEGY, after which commands and replies go through
+ *    the mapped file at PATH, see {@link SharedMemoryRegion}, until the client sends a line or disconnects.
+ *
+ * Every request is a single line, except <pre>uploadChunk ID OFFSET LENGTH</pre> which is followed by exactly LENGTH
+ * raw bytes, and answered with <pre>ACK ID OFFSET</pre>.
+ */
+public final class WireProtocol {
+  public static final String START_LINES = "START_LINES";
+  public static final String END_LINES = "END_LINES";
+  public static final String START_BYTES = "START_BYTES";
+  public static final String ERROR = "ERROR";
+  public static final String UPLOAD = "UPLOAD";
+  public static final String ACK = "ACK";
+  public static final String START_DOWNLOAD = "START_DOWNLOAD";
+  public static final String END_DOWNLOAD = "END_DOWNLOAD";
+  public static final String CREDIT = "credit";
+  public static final String WATCHING = "WATCHING";
+  public static final String INVALIDATE = "INVALIDATE";
+  public static final String INVALIDATE_TREE = "INVALIDATE_TREE";
+  public static final String LEASE = "LEASE";
+  public static final String SHARED_MEMORY = "SHARED_MEMORY";
+
+  private WireProtocol() {
+  }
+
+  /**
+   * Returns the header line announcing <pre>length</pre> raw bytes.
+   * @param length the number of bytes that follow the header
+   * @return the header line
+   */
+  public static String bytesHeader(long length) {
+    return START_BYTES + " " + length;
+  }
+
+  /**
+   * Returns the line reporting a failed command, on a single line whatever the message.
+   * @param message the error message
+   * @return the error line
+   */
+  public static String errorLine(String message) {
+    return ERROR + " " + String.valueOf(message).replace('\r', ' ').replace('\n', ' ');
+  }
+
+  /**
+   * Returns the length announced by a raw bytes header, or -1 if the line is not a raw bytes header.
+   * @param line a line read from the connection
+   * @return the length of the raw bytes that follow, or -1
+   */
+  public static long parseBytesHeader(String line) {
+    if (line.startsWith(START_BYTES + " ")) {
+      return Long.parseLong(line.substring(START_BYTES.length() + 1).trim());
+    }
+    return -1;
+  }
+
+  /**
+   * Reads a line from a byte stream without reading ahead, so raw bytes following the line can be read from the same
+   * stream.
+   * @param inputStream the stream, ideally buffered
+   * @return the line, without its line terminator, or null at the end of the stream
+   * @throws IOException if reading fails
+   */
+  public static String readLine(InputStream inputStream) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+    int b;
+    while ((b = inputStream.read()) != -1 && b != '\n') {
+      line.write(b);
+    }
+
+    if (b == -1 && line.size() == 0) {
+      return null;
+    }
+
+    byte[] bytes = line.toByteArray();
+    int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+    return new String(bytes, 0, length, Charset.defaultCharset());
+  }
+}
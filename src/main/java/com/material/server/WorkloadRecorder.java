@@ -0,0 +1,278 @@
+package com.material.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Records everything the clients of a server send, to replay it later, see
+ * {@link com.material.tools.WorkloadReplayer}. Start the server with <pre>-Dfileserver.recordTo=PATH</pre>.
+ *
+ * The recording is a binary file, a {@value #MAGIC} header followed by one record per event:
+ * <pre>
+ * KIND(1 byte) SESSION(varint) MICROS_SINCE_PREVIOUS_RECORD(varint) [LENGTH(varint) BYTES]
+ * </pre>
+ * A session opens, then sends commands, each answered once the server wrote its reply. Lines and raw bytes that are
+ * part of the command before them, such as the commands of a batch, upload chunks and download credits, have a kind
+ * of their own. Only command and continuation records carry bytes.
+ *
+ * Records of all sessions share one buffered stream, written under a lock. The recording holds every line as sent,
+ * login passwords included.
+ */
+public class WorkloadRecorder implements Closeable {
+  /**
+   * System property with the path to record to.
+   */
+  public static final String RECORD_PROPERTY = "fileserver.recordTo";
+  public static final int MAGIC = 0x46535243;
+  private static final Logger LOG = LoggerFactory.getLogger(WorkloadRecorder.class);
+
+  /**
+   * The kinds of records.
+   */
+  public enum Kind {
+    OPEN,
+    COMMAND,
+    CONTINUATION_LINE,
+    CONTINUATION_BYTES,
+    REPLIED,
+    CLOSE;
+
+    boolean hasBytes() {
+      return this == COMMAND || this == CONTINUATION_LINE || this == CONTINUATION_BYTES;
+    }
+  }
+
+  /**
+   * A record read back from a recording.
+   */
+  public static class Record {
+    private final Kind _kind;
+    private final int _sessionId;
+    private final long _micros;
+    private final byte[] _bytes;
+
+    Record(Kind kind, int sessionId, long micros, byte[] bytes) {
+      _kind = kind;
+      _sessionId = sessionId;
+      _micros = micros;
+      _bytes = bytes;
+    }
+
+    public Kind getKind() {
+      return _kind;
+    }
+
+    public int getSessionId() {
+      return _sessionId;
+    }
+
+    /**
+     * Returns when the event happened.
+     * @return the microseconds since the recording started
+     */
+    public long getMicros() {
+      return _micros;
+    }
+
+    /**
+     * Returns the bytes of a command or continuation, without the line break of a line.
+     * @return the bytes, or null
+     */
+    public byte[] getBytes() {
+      return _bytes;
+    }
+
+    /**
+     * Returns the line of a command or continuation line.
+     * @return the line
+     */
+    public String getLine() {
+      return new String(_bytes, Charset.defaultCharset());
+    }
+  }
+
+  private final OutputStream _out;
+  private final long _startNanos = System.nanoTime();
+  private final AtomicInteger _nextSessionId = new AtomicInteger();
+  private long _lastMicros = 0;
+  // after a write failed or the recorder closed
+  private boolean _stopped = false;
+
+  public WorkloadRecorder(Path path) throws IOException {
+    _out = new BufferedOutputStream(Files.newOutputStream(path), 64 * 1024);
+    writeInt(MAGIC);
+    LOG.info("Recording the workload to " + path);
+  }
+
+  /**
+   * Returns a recorder if the {@value #RECORD_PROPERTY} system property is set.
+   * @return the recorder, or null
+   */
+  public static WorkloadRecorder fromSystemProperty() {
+    String path = System.getProperty(RECORD_PROPERTY);
+    if (path == null || path.isEmpty()) {
+      return null;
+    }
+    try {
+      return new WorkloadRecorder(Paths.get(path));
+    } catch (IOException ex) {
+      LOG.error("Cannot record the workload to " + path, ex);
+      return null;
+    }
+  }
+
+  /**
+   * Start recording a new client connection.
+   * @return the session to record its input with
+   */
+  public Session openSession() {
+    Session session = new Session(_nextSessionId.incrementAndGet());
+    write(Kind.OPEN, session._id, null, 0, 0);
+    return session;
+  }
+
+  @Override
+  public synchronized void close() {
+    // handlers of connections still open may record after the server stopped
+    _stopped = true;
+    try {
+      _out.close();
+    } catch (IOException ex) {
+      LOG.warn("Could not close the workload recording", ex);
+    }
+  }
+
+  /**
+   * Read a recording.
+   * @param path the recording
+   * @param consumer receives the records, in the order they were recorded
+   * @throws IOException if the file cannot be read or is not a recording
+   */
+  public static void read(Path path, Consumer<Record> consumer) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException(path + " is not a workload recording");
+      }
+
+      long micros = 0;
+      int kind;
+      while ((kind = in.read()) != -1) {
+        if (kind >= Kind.values().length) {
+          throw new IOException("Unknown record kind " + kind + " in " + path);
+        }
+        int sessionId = (int) readVarLong(in);
+        micros += readVarLong(in);
+        byte[] bytes = null;
+        if (Kind.values()[kind].hasBytes()) {
+          bytes = new byte[(int) readVarLong(in)];
+          in.readFully(bytes);
+        }
+        consumer.accept(new Record(Kind.values()[kind], sessionId, micros, bytes));
+      }
+    }
+  }
+
+  private synchronized void write(Kind kind, int sessionId, byte[] bytes, int offset, int length) {
+    if (_stopped) {
+      return;
+    }
+    try {
+      long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - _startNanos);
+      _out.write(kind.ordinal());
+      writeVarLong(sessionId);
+      writeVarLong(micros - _lastMicros);
+      _lastMicros = micros;
+      if (kind.hasBytes()) {
+        writeVarLong(length);
+        _out.write(bytes, offset, length);
+      }
+      if (kind == Kind.CLOSE) {
+        // a server which is killed loses at most what was recorded after the last session closed
+        _out.flush();
+      }
+    } catch (IOException ex) {
+      // recording must not fail the commands it records
+      _stopped = true;
+      LOG.error("Stopped recording the workload", ex);
+    }
+  }
+
+  private void writeInt(int value) throws IOException {
+    _out.write(value >>> 24);
+    _out.write(value >>> 16);
+    _out.write(value >>> 8);
+    _out.write(value);
+  }
+
+  private void writeVarLong(long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      _out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    _out.write((int) value);
+  }
+
+  private static long readVarLong(InputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.read();
+      if (b == -1) {
+        throw new EOFException("Recording ends inside a record");
+      }
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint in recording");
+  }
+
+  /**
+   * Records the input of one client connection, from its handler thread.
+   */
+  public class Session {
+    private final int _id;
+
+    private Session(int id) {
+      _id = id;
+    }
+
+    public void command(String line) {
+      byte[] bytes = line.getBytes(Charset.defaultCharset());
+      write(Kind.COMMAND, _id, bytes, 0, bytes.length);
+    }
+
+    public void continuationLine(String line) {
+      byte[] bytes = line.getBytes(Charset.defaultCharset());
+      write(Kind.CONTINUATION_LINE, _id, bytes, 0, bytes.length);
+    }
+
+    public void continuationBytes(byte[] bytes, int offset, int length) {
+      write(Kind.CONTINUATION_BYTES, _id, bytes, offset, length);
+    }
+
+    public void replied() {
+      write(Kind.REPLIED, _id, null, 0, 0);
+    }
+
+    public void close() {
+      write(Kind.CLOSE, _id, null, 0, 0);
+    }
+  }
+}
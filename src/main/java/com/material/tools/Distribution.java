@@ -0,0 +1,136 @@
+package com.material.tools;
+
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * A distribution of positive integers, parsed from one of:
+ * <pre>
+ * N                    always N
+ * uniform:MIN:MAX      MIN to MAX, all equally likely
+ * zipf:MAX:S[:UNIT]    UNIT times 1 to MAX, with K chosen in proportion to 1 / K^S, UNIT defaults to 1
+ * V1:W1,V2:W2,...      one of the values, chosen in proportion to its weight
+ * </pre>
+ * Zipf makes small values common and large ones rare but present, e.g. <pre>zipf:1024:1.2:1024</pre> gives file sizes
+ * from 1 KB to 1 MB, most of them a few KB.
+ */
+public class Distribution {
+  private final long[] _values;
+  // the cumulative weights, parallel to the values, or null for uniform
+  private final double[] _cumulative;
+  private final long _uniformMin;
+  private final long _uniformMax;
+
+  private Distribution(long[] values, double[] cumulative, long uniformMin, long uniformMax) {
+    _values = values;
+    _cumulative = cumulative;
+    _uniformMin = uniformMin;
+    _uniformMax = uniformMax;
+  }
+
+  public static Distribution parse(String spec) {
+    String[] parts = spec.trim().split(":");
+    try {
+      if (parts[0].equals("uniform") && parts.length == 3) {
+        long min = positive(parts[1], spec);
+        long max = positive(parts[2], spec);
+        if (max < min) {
+          throw new IllegalArgumentException("MAX is below MIN in distribution: " + spec);
+        }
+        return new Distribution(null, null, min, max);
+      }
+      if (parts[0].equals("zipf") && (parts.length == 3 || parts.length == 4)) {
+        int max = (int) positive(parts[1], spec);
+        double exponent = Double.parseDouble(parts[2]);
+        long unit = parts.length == 4 ? positive(parts[3], spec) : 1;
+        long[] values = new long[max];
+        double[] weights = new double[max];
+        for (int k = 1; k <= max; k++) {
+          values[k - 1] = k * unit;
+          weights[k - 1] = 1 / Math.pow(k, exponent);
+        }
+        return weighted(values, weights, spec);
+      }
+      if (parts.length == 1) {
+        long value = positive(parts[0], spec);
+        return new Distribution(null, null, value, value);
+      }
+
+      String[] entries = spec.split(",");
+      long[] values = new long[entries.length];
+      double[] weights = new double[entries.length];
+      for (int i = 0; i < entries.length; i++) {
+        String[] valueAndWeight = entries[i].trim().split(":");
+        if (valueAndWeight.length != 2) {
+          throw new IllegalArgumentException("Expected VALUE:WEIGHT, got: " + entries[i]);
+        }
+        values[i] = positive(valueAndWeight[0], spec);
+        weights[i] = Double.parseDouble(valueAndWeight[1].trim());
+      }
+      return weighted(values, weights, spec);
+    } catch (NumberFormatException ex) {
+      throw new IllegalArgumentException("Malformed distribution: " + spec, ex);
+    }
+  }
+
+  public long next(Random random) {
+    if (_cumulative == null) {
+      return _uniformMin + (long) (random.nextDouble() * (_uniformMax - _uniformMin + 1));
+    }
+    double choice = random.nextDouble() * _cumulative[_cumulative.length - 1];
+    int index = Arrays.binarySearch(_cumulative, choice);
+    // not found gives -(insertion point) - 1, the first cumulative weight above the choice
+    index = index < 0 ? -index - 1 : index;
+    // skip values of zero weight, which share their cumulative weight with the value before
+    while (index < _values.length - 1 && _cumulative[index] <= choice) {
+      index++;
+    }
+    return _values[index];
+  }
+
+  public int nextInt(Random random) {
+    return (int) Math.min(next(random), Integer.MAX_VALUE);
+  }
+
+  /**
+   * Returns the mean, for sizing what a distribution generates before generating it.
+   * @return the mean
+   */
+  public double mean() {
+    if (_cumulative == null) {
+      return (_uniformMin + _uniformMax) / 2.0;
+    }
+    double sum = 0;
+    double previous = 0;
+    for (int i = 0; i < _values.length; i++) {
+      sum += _values[i] * (_cumulative[i] - previous);
+      previous = _cumulative[i];
+    }
+    return sum / previous;
+  }
+
+  private static Distribution weighted(long[] values, double[] weights, String spec) {
+    double[] cumulative = new double[weights.length];
+    double total = 0;
+    for (int i = 0; i < weights.length; i++) {
+      if (weights[i] < 0) {
+        throw new IllegalArgumentException("Weights cannot be negative: " + spec);
+      }
+      total += weights[i];
+      cumulative[i] = total;
+    }
+    if (total <= 0) {
+      throw new IllegalArgumentException("Weights must add up to more than 0: " + spec);
+    }
+    return new Distribution(values, cumulative, 0, 0);
+  }
+
+  private static long positive(String value, String spec) {
+    long parsed = Long.parseLong(value.trim());
+    if (parsed <= 0) {
+      throw new IllegalArgumentException("Values must be positive in distribution: " + spec);
+    }
+    return parsed;
+  }
+}
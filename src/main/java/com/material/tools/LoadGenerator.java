@@ -0,0 +1,251 @@
+package com.material.tools;
+
+import com.material.client.AsyncFileSystemClient;
+import com.material.server.FileServer;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Drives a {@link FileServer} with a {@link WorkloadSpec}, and reports the throughput and latency percentiles of each
+ * command in a {@link LoadReport}.
+ *
+ * The generator first creates the tree of the workload, then sends requests on an open loop: each request is scheduled
+ * at its arrival time and sent without waiting for the requests before it, over pipelined {@link AsyncFileSystemClient}
+ * sessions. A slow reply therefore never holds back the requests behind it, which would hide the latency they would
+ * have seen. The server must allow duplicate sessions when there is more than one session, see
+ * {@link FileServer#FileServer(int, boolean)}.
+ *
+ * Run with <pre>LoadGenerator HOST PORT [WORKLOAD_PROPERTIES_FILE]</pre>.
+ */
+public class LoadGenerator {
+  private static final Logger LOG = LoggerFactory.getLogger(LoadGenerator.class);
+  // files which copies are written over, so copies do not grow the tree
+  private static final int COPY_TARGETS = 16;
+
+  private final String _hostName;
+  private final int _port;
+  private final WorkloadSpec _spec;
+  private final Random _random;
+  private final List<String> _directories = new ArrayList<>();
+  private final List<String> _files = new ArrayList<>();
+  private final Map<Integer, byte[]> _contentsBySize = new HashMap<>();
+  private final Set<String> _filesBeingWritten = ConcurrentHashMap.newKeySet();
+  private final AtomicInteger _outstanding = new AtomicInteger();
+
+  public LoadGenerator(String hostName, int port, WorkloadSpec spec) {
+    _hostName = hostName;
+    _port = port;
+    _spec = spec;
+    _random = new Random(spec.getSeed());
+    for (int size : spec.getFileSizes()) {
+      byte[] contents = new byte[size];
+      _random.nextBytes(contents);
+      _contentsBySize.put(size, contents);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      throw new IllegalArgumentException("Usage: LoadGenerator HOST PORT [WORKLOAD_PROPERTIES_FILE]");
+    }
+    WorkloadSpec spec = args.length > 2 ? WorkloadSpec.load(Paths.get(args[2])) : new WorkloadSpec(new Properties());
+    LoadReport report = new LoadGenerator(args[0], Integer.parseInt(args[1]), spec).run();
+    LOG.info("Load report:\n" + report.format());
+  }
+
+  /**
+   * Create the tree of the workload, then run its warmup and steady state.
+   * @return the report of the steady state
+   * @throws IOException if the tree cannot be created
+   * @throws InterruptedException if interrupted while running
+   */
+  public LoadReport run() throws IOException, InterruptedException {
+    List<AsyncFileSystemClient> sessions = new ArrayList<>();
+    try {
+      for (int i = 0; i < _spec.getSessions(); i++) {
+        // no retries, a retried request would be reported with the latency of its last attempt only
+        sessions.add(new AsyncFileSystemClient(_hostName, _port, _spec.getUser(), _spec.getPassword(), 1,
+            _spec.getTimeoutMillis(), 0));
+      }
+      createTree(sessions.get(0));
+      return runPhases(sessions);
+    } finally {
+      sessions.forEach(AsyncFileSystemClient::close);
+    }
+  }
+
+  private void createTree(AsyncFileSystemClient client) throws IOException {
+    String root = _spec.getRoot();
+    LOG.info("Creating the workload tree under " + root);
+    try {
+      client.rmDir(root, true).join();
+    } catch (CompletionException ex) {
+      LOG.debug("No tree to replace under " + root, ex);
+    }
+
+    try {
+      client.mkdir(root + "/copies", true).join();
+      List<String> level = List.of(root);
+      _directories.add(root);
+      for (int depth = 0; depth < _spec.getDepth(); depth++) {
+        List<String> nextLevel = new ArrayList<>();
+        for (String directory : level) {
+          for (int i = 0; i < _spec.getFanout(); i++) {
+            nextLevel.add(directory + "/d" + i);
+          }
+        }
+        join(nextLevel.stream().map(directory -> client.mkdir(directory, false)));
+        _directories.addAll(nextLevel);
+        level = nextLevel;
+      }
+
+      for (String directory : level) {
+        for (int i = 0; i < _spec.getFilesPerDirectory(); i++) {
+          _files.add(directory + "/f" + i);
+        }
+      }
+      join(_files.stream().map(file -> {
+        byte[] contents = _contentsBySize.get(_spec.nextFileSize(_random));
+        return client.touch(file).thenCompose(reply -> client.upload(file, contents));
+      }));
+    } catch (CompletionException ex) {
+      throw new IOException("Could not create the workload tree under " + root, ex.getCause());
+    }
+    LOG.info("Created " + _directories.size() + " directories and " + _files.size() + " files");
+  }
+
+  private static void join(Stream<? extends CompletableFuture<?>> futures) {
+    CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+  }
+
+  private LoadReport runPhases(List<AsyncFileSystemClient> sessions) throws InterruptedException {
+    long durationNanos = TimeUnit.SECONDS.toNanos(_spec.getDurationSeconds());
+    LoadReport report = new LoadReport(_spec.getRate(), durationNanos);
+    long startNanos = System.nanoTime();
+    long steadyStartNanos = startNanos + TimeUnit.SECONDS.toNanos(_spec.getWarmupSeconds());
+    long endNanos = steadyStartNanos + durationNanos;
+    LOG.info("Warming up for " + _spec.getWarmupSeconds() + "s at " + _spec.getRate() + " ops/sec");
+
+    boolean steady = false;
+    int nextSession = 0;
+    for (long intendedNanos = startNanos; intendedNanos < endNanos;
+        intendedNanos += _spec.nextArrivalGapNanos(_random)) {
+      if (!steady && intendedNanos >= steadyStartNanos) {
+        steady = true;
+        LOG.info("Measuring for " + _spec.getDurationSeconds() + "s");
+      }
+
+      long waitNanos;
+      while ((waitNanos = intendedNanos - System.nanoTime()) > 0) {
+        LockSupport.parkNanos(waitNanos);
+      }
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+
+      AsyncFileSystemClient session = sessions.get(nextSession);
+      nextSession = (nextSession + 1) % sessions.size();
+      send(session, intendedNanos, steady ? report : null);
+    }
+
+    awaitOutstanding();
+    return report;
+  }
+
+  /**
+   * Send a request of the mix.
+   * @param session the session to send on
+   * @param intendedNanos when the request was scheduled to be sent
+   * @param report the report to record the request in, or null during the warmup
+   */
+  private void send(AsyncFileSystemClient session, long intendedNanos, LoadReport report) {
+    WorkloadSpec.Command command = _spec.nextCommand(_random);
+    CompletableFuture<?> reply;
+    switch (command) {
+      case READ:
+        reply = session.read(randomElement(_files));
+        break;
+      case WRITE:
+        String file = nextFileToWrite();
+        reply = session.upload(file, _contentsBySize.get(_spec.nextFileSize(_random)))
+            .whenComplete((value, ex) -> _filesBeingWritten.remove(file));
+        break;
+      case LS:
+        reply = session.ls(randomElement(_directories));
+        break;
+      case FIND:
+        reply = session.find(".*/f" + _random.nextInt(_spec.getFilesPerDirectory()), true);
+        break;
+      case CP:
+        reply = session.send("cp " + randomElement(_files) + " " + _spec.getRoot() + "/copies/c"
+            + _random.nextInt(COPY_TARGETS) + " -f", false);
+        break;
+      default:
+        throw new IllegalStateException("Unknown command " + command);
+    }
+
+    _outstanding.incrementAndGet();
+    reply.whenComplete((value, ex) -> {
+      long latencyNanos = System.nanoTime() - intendedNanos;
+      if (report != null) {
+        if (ex == null) {
+          report.recordSuccess(command, latencyNanos);
+        } else {
+          // a timed out request is recorded with at least the timeout
+          report.recordError(command, latencyNanos);
+        }
+      }
+      if (ex != null) {
+        LOG.debug(command.getName() + " failed", ex);
+      }
+      _outstanding.decrementAndGet();
+    });
+  }
+
+  private void awaitOutstanding() throws InterruptedException {
+    // every request completes or times out within the timeout
+    long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(_spec.getTimeoutMillis() * 2);
+    while (_outstanding.get() > 0 && System.nanoTime() < deadlineNanos) {
+      Thread.sleep(10);
+    }
+    if (_outstanding.get() > 0) {
+      LOG.warn(_outstanding.get() + " requests did not complete");
+    }
+  }
+
+  /**
+   * Returns a file no other write is uploading to. The uploads of a user to the same path share an upload on the
+   * server, so they cannot run at once. If every file is being written one is chosen anyway.
+   */
+  private String nextFileToWrite() {
+    int start = _random.nextInt(_files.size());
+    for (int i = 0; i < _files.size(); i++) {
+      String file = _files.get((start + i) % _files.size());
+      if (_filesBeingWritten.add(file)) {
+        return file;
+      }
+    }
+    return _files.get(start);
+  }
+
+  private String randomElement(List<String> elements) {
+    return elements.get(_random.nextInt(elements.size()));
+  }
+}
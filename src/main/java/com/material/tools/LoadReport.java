@@ -0,0 +1,105 @@
+package com.material.tools;
+
+import com.material.server.LatencyHistogram;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * The throughput and latencies of the steady state of a {@link LoadGenerator} run, per command and over all of them.
+ *
+ * Latencies are measured from the time a request was scheduled to be sent, not the time it was sent, so a stalled
+ * server or generator shows up in the latencies of every request that should have been sent meanwhile. Failed and
+ * timed out requests are counted in the latencies too, with the time until they failed, so requests timing out raise
+ * the percentiles instead of dropping out of them.
+ */
+public class LoadReport {
+  private final Map<WorkloadSpec.Command, LatencyHistogram> _latencies = new EnumMap<>(WorkloadSpec.Command.class);
+  private final Map<WorkloadSpec.Command, LongAdder> _errors = new EnumMap<>(WorkloadSpec.Command.class);
+  private final LatencyHistogram _allLatencies = new LatencyHistogram();
+  private final LongAdder _allErrors = new LongAdder();
+  private final double _targetRate;
+  private final long _durationNanos;
+
+  LoadReport(double targetRate, long durationNanos) {
+    _targetRate = targetRate;
+    _durationNanos = durationNanos;
+    for (WorkloadSpec.Command command : WorkloadSpec.Command.values()) {
+      _latencies.put(command, new LatencyHistogram());
+      _errors.put(command, new LongAdder());
+    }
+  }
+
+  void recordSuccess(WorkloadSpec.Command command, long latencyNanos) {
+    _latencies.get(command).record(latencyNanos);
+    _allLatencies.record(latencyNanos);
+  }
+
+  void recordError(WorkloadSpec.Command command, long latencyNanos) {
+    _latencies.get(command).record(latencyNanos);
+    _allLatencies.record(latencyNanos);
+    _errors.get(command).increment();
+    _allErrors.increment();
+  }
+
+  public LatencyHistogram getLatencies(WorkloadSpec.Command command) {
+    return _latencies.get(command);
+  }
+
+  public LatencyHistogram getAllLatencies() {
+    return _allLatencies;
+  }
+
+  public long getErrors(WorkloadSpec.Command command) {
+    return _errors.get(command).sum();
+  }
+
+  public long getAllErrors() {
+    return _allErrors.sum();
+  }
+
+  /**
+   * Returns the successful requests per second.
+   * @return the throughput
+   */
+  public double getThroughput() {
+    return (_allLatencies.getCount() - _allErrors.sum()) / seconds();
+  }
+
+  public String format() {
+    StringBuilder report = new StringBuilder(String.format("target=%.1f ops/sec achieved=%.1f ops/sec over %.0fs",
+        _targetRate, getThroughput(), seconds()));
+    report.append('\n').append(formatCommand("all", _allLatencies, _allErrors.sum()));
+    for (WorkloadSpec.Command command : WorkloadSpec.Command.values()) {
+      LatencyHistogram latencies = _latencies.get(command);
+      long errors = _errors.get(command).sum();
+      if (latencies.getCount() > 0 || errors > 0) {
+        report.append('\n').append(formatCommand(command.getName(), latencies, errors));
+      }
+    }
+    return report.toString();
+  }
+
+  private String formatCommand(String name, LatencyHistogram latencies, long errors) {
+    return String.format("%s count=%d errors=%d ops/sec=%.1f p50=%s p99=%s p999=%s max=%s", name,
+        latencies.getCount(), errors, (latencies.getCount() - errors) / seconds(),
+        formatNanos(latencies.getValueAtPercentile(50)), formatNanos(latencies.getValueAtPercentile(99)),
+        formatNanos(latencies.getValueAtPercentile(99.9)), formatNanos(latencies.getMaxNanos()));
+  }
+
+  private double seconds() {
+    return _durationNanos / 1_000_000_000.0;
+  }
+
+  static String formatNanos(long nanos) {
+    if (nanos < TimeUnit.MICROSECONDS.toNanos(10)) {
+      return nanos + "ns";
+    }
+    if (nanos < TimeUnit.MILLISECONDS.toNanos(10)) {
+      return TimeUnit.NANOSECONDS.toMicros(nanos) + "us";
+    }
+    return TimeUnit.NANOSECONDS.toMillis(nanos) + "ms";
+  }
+}
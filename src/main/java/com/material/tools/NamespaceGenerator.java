@@ -0,0 +1,259 @@
+package com.material.tools;
+
+import com.material.filesystem.DefaultFileSystem;
+import com.material.filesystem.File;
+import com.material.filesystem.FileSystem;
+import com.material.filesystem.NodeType;
+import com.material.filesystem.user.DefaultUserManager;
+import com.material.filesystem.util.DataGenerator;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Generates a synthetic namespace for benchmarking at scale, read from a properties file. Every property is optional,
+ * the defaults are:
+ * <pre>
+ * root=/namespace
+ * depth=3
+ * fanout=uniform:2:6
+ * filesPerDirectory=zipf:64:1.0
+ * nameLength=uniform:4:16
+ * fileSizes=zipf:256:1.1:1024
+ * content.compressibility=0.5
+ * content.duplication=0
+ * </pre>
+ * The counts and sizes are {@link Distribution}s, drawn again for each directory, name and file. Each directory above
+ * <pre>depth</pre> levels below the root has <pre>fanout</pre> directories, and every directory has
+ * <pre>filesPerDirectory</pre> files. File contents are made by {@link DataGenerator#contentArray}, see there for the
+ * compressibility and duplication. A <pre>seed</pre> makes the namespace repeatable, contents included.
+ *
+ * The namespace is planned when the generator is made, then either populates a {@link FileSystem} directly, filling
+ * the contents in parallel, or is written out as a command script for a server. The script makes directories with
+ * <pre>mkDir</pre> and files with <pre>touch</pre> and <pre>writeRandom</pre>, so its contents are random whatever
+ * the content properties.
+ *
+ * Run with <pre>NamespaceGenerator [PROPERTIES_FILE] [SCRIPT_FILE]</pre>, which writes the script, or without a script
+ * file populates a file system in memory and logs how long that took.
+ */
+public class NamespaceGenerator {
+  private static final Logger LOG = LoggerFactory.getLogger(NamespaceGenerator.class);
+  private static final char[] NAME_CHARACTERS = "abcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+
+  private final String _root;
+  private final double _compressibility;
+  private final double _duplication;
+  private final List<String> _directories = new ArrayList<>();
+  private final List<GeneratedFile> _files = new ArrayList<>();
+  private long _totalBytes = 0;
+
+  public NamespaceGenerator(Properties properties) {
+    _root = properties.getProperty("root", "/namespace");
+    if (!_root.startsWith("/") || _root.equals("/")) {
+      throw new IllegalArgumentException("root must be an absolute path below /: " + _root);
+    }
+    int depth = Integer.parseInt(properties.getProperty("depth", "3"));
+    if (depth < 0) {
+      throw new IllegalArgumentException("depth cannot be negative: " + depth);
+    }
+    Distribution fanout = Distribution.parse(properties.getProperty("fanout", "uniform:2:6"));
+    Distribution filesPerDirectory = Distribution.parse(properties.getProperty("filesPerDirectory", "zipf:64:1.0"));
+    Distribution nameLength = Distribution.parse(properties.getProperty("nameLength", "uniform:4:16"));
+    Distribution fileSizes = Distribution.parse(properties.getProperty("fileSizes", "zipf:256:1.1:1024"));
+    _compressibility = Double.parseDouble(properties.getProperty("content.compressibility", "0.5"));
+    _duplication = Double.parseDouble(properties.getProperty("content.duplication", "0"));
+    if (_compressibility < 0 || _compressibility > 1 || _duplication < 0 || _duplication > 1) {
+      throw new IllegalArgumentException("content.compressibility and content.duplication must be between 0 and 1");
+    }
+    long seed = Long.parseLong(properties.getProperty("seed", String.valueOf(System.nanoTime())));
+
+    plan(new Random(seed), depth, fanout, filesPerDirectory, nameLength, fileSizes);
+  }
+
+  /**
+   * Read a namespace from a properties file.
+   * @param path the file
+   * @return the generator
+   * @throws IOException if the file cannot be read
+   */
+  public static NamespaceGenerator load(Path path) throws IOException {
+    Properties properties = new Properties();
+    try (Reader reader = Files.newBufferedReader(path)) {
+      properties.load(reader);
+    }
+    return new NamespaceGenerator(properties);
+  }
+
+  public static void main(String[] args) throws Exception {
+    NamespaceGenerator generator =
+        args.length > 0 ? NamespaceGenerator.load(Paths.get(args[0])) : new NamespaceGenerator(new Properties());
+    LOG.info("Planned " + generator.getDirectories().size() + " directories and " + generator.getFiles().size()
+        + " files of " + generator.getTotalBytes() + " bytes under " + generator._root);
+
+    if (args.length > 1) {
+      try (Writer writer = Files.newBufferedWriter(Paths.get(args[1]))) {
+        generator.writeScript(writer);
+      }
+      LOG.info("Wrote the script to " + args[1]);
+    } else {
+      DefaultUserManager userManager = new DefaultUserManager();
+      userManager.login("root", "1234");
+      long startNanos = System.nanoTime();
+      generator.populate(new DefaultFileSystem(userManager));
+      LOG.info("Populated the file system in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + "ms");
+    }
+  }
+
+  /**
+   * Returns the directories, parents before their children, the root first.
+   * @return the absolute paths
+   */
+  public List<String> getDirectories() {
+    return Collections.unmodifiableList(_directories);
+  }
+
+  public List<GeneratedFile> getFiles() {
+    return Collections.unmodifiableList(_files);
+  }
+
+  public long getTotalBytes() {
+    return _totalBytes;
+  }
+
+  /**
+   * Create the namespace in a file system, as the user logged in on this thread, which needs write permission from
+   * the file system root down. The nodes are created on this thread, then the contents are filled in parallel.
+   * @param fileSystem the file system, which must not have the root of the namespace yet
+   * @throws IOException if a node cannot be created
+   */
+  public void populate(FileSystem fileSystem) throws IOException {
+    fileSystem.createNodeAtPath(Paths.get(_root), NodeType.DIRECTORY, false, true);
+    for (String directory : _directories.subList(1, _directories.size())) {
+      fileSystem.createNodeAtPath(Paths.get(directory), NodeType.DIRECTORY, false, false);
+    }
+
+    List<File> files = new ArrayList<>(_files.size());
+    // the files of a directory are planned together, a batch resolves their directory once
+    fileSystem.beginBatch();
+    try {
+      for (GeneratedFile file : _files) {
+        files.add((File) fileSystem.createNodeAtPath(Paths.get(file.getPath()), NodeType.FILE, false, false)
+            .getFileSystemObject());
+      }
+    } finally {
+      fileSystem.endBatch();
+    }
+
+    IntStream.range(0, files.size()).parallel()
+        .forEach(i -> files.get(i).setContents(contentsOf(_files.get(i))));
+  }
+
+  /**
+   * Returns the contents a file of the namespace is populated with.
+   * @param file the file
+   * @return its contents
+   */
+  public byte[] contentsOf(GeneratedFile file) {
+    return DataGenerator.contentArray(file.getSize(), file._contentSeed, _compressibility, _duplication);
+  }
+
+  /**
+   * Write the namespace as server commands, one per line, to run in a logged in session.
+   * @param writer where to write the commands
+   * @throws IOException if the commands cannot be written
+   */
+  public void writeScript(Writer writer) throws IOException {
+    BufferedWriter out = writer instanceof BufferedWriter ? (BufferedWriter) writer : new BufferedWriter(writer);
+    out.write("mkDir " + _root + " -r\n");
+    for (String directory : _directories.subList(1, _directories.size())) {
+      out.write("mkDir " + directory + "\n");
+    }
+    for (GeneratedFile file : _files) {
+      out.write("touch " + file.getPath() + "\n");
+      out.write("writeRandom " + file.getPath() + " " + file.getSize() + "\n");
+    }
+    out.flush();
+  }
+
+  private void plan(Random random, int depth, Distribution fanout, Distribution filesPerDirectory,
+      Distribution nameLength, Distribution fileSizes) {
+    List<String> level = List.of(_root);
+    _directories.add(_root);
+    for (int levelIndex = 0; ; levelIndex++) {
+      List<String> nextLevel = new ArrayList<>();
+      for (String directory : level) {
+        Set<String> names = new HashSet<>();
+        if (levelIndex < depth) {
+          for (int i = fanout.nextInt(random); i > 0; i--) {
+            nextLevel.add(directory + "/" + uniqueName(random, nameLength, names));
+          }
+        }
+        for (int i = filesPerDirectory.nextInt(random); i > 0; i--) {
+          GeneratedFile file = new GeneratedFile(directory + "/" + uniqueName(random, nameLength, names),
+              fileSizes.nextInt(random), random.nextLong());
+          _files.add(file);
+          _totalBytes += file.getSize();
+        }
+      }
+      if (nextLevel.isEmpty()) {
+        return;
+      }
+      _directories.addAll(nextLevel);
+      level = nextLevel;
+    }
+  }
+
+  private static String uniqueName(Random random, Distribution nameLength, Set<String> names) {
+    StringBuilder name = new StringBuilder();
+    do {
+      name.setLength(0);
+      for (int i = nameLength.nextInt(random); i > 0; i--) {
+        name.append(NAME_CHARACTERS[random.nextInt(NAME_CHARACTERS.length)]);
+      }
+      // short names run out, numbering keeps them unique
+      if (names.size() >= NAME_CHARACTERS.length) {
+        name.append('-').append(names.size());
+      }
+    } while (!names.add(name.toString()));
+    return name.toString();
+  }
+
+  /**
+   * A file of a generated namespace.
+   */
+  public static class GeneratedFile {
+    private final String _path;
+    private final int _size;
+    private final long _contentSeed;
+
+    GeneratedFile(String path, int size, long contentSeed) {
+      _path = path;
+      _size = size;
+      _contentSeed = contentSeed;
+    }
+
+    public String getPath() {
+      return _path;
+    }
+
+    public int getSize() {
+      return _size;
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package com.material.tools;
+
+import com.material.server.LatencyHistogram;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * The latencies of each command of a recording, as recorded and as replayed by a {@link WorkloadReplayer}.
+ *
+ * Recorded latencies were measured by the server, from reading the command to writing its reply, and replayed ones by
+ * the replayer, from the time it meant to send the command to reading its reply. On the same host the difference is
+ * mostly the network round trip.
+ */
+public class ReplayReport {
+  private final boolean _asFastAsPossible;
+  private final Map<String, LatencyHistogram> _original = new ConcurrentSkipListMap<>();
+  private final Map<String, LatencyHistogram> _replay = new ConcurrentSkipListMap<>();
+  private final Map<String, LongAdder> _errors = new ConcurrentSkipListMap<>();
+  private final LatencyHistogram _allOriginal = new LatencyHistogram();
+  private final LatencyHistogram _allReplay = new LatencyHistogram();
+  private final LongAdder _allErrors = new LongAdder();
+  private final LongAdder _skipped = new LongAdder();
+  private long _originalNanos = 0;
+  private long _replayNanos = 0;
+
+  ReplayReport(boolean asFastAsPossible) {
+    _asFastAsPossible = asFastAsPossible;
+  }
+
+  void recordOriginal(String command, long latencyNanos) {
+    _original.computeIfAbsent(command, name -> new LatencyHistogram()).record(latencyNanos);
+    _allOriginal.record(latencyNanos);
+  }
+
+  void recordReplay(String command, long latencyNanos, boolean failed) {
+    _replay.computeIfAbsent(command, name -> new LatencyHistogram()).record(latencyNanos);
+    _allReplay.record(latencyNanos);
+    if (failed) {
+      _errors.computeIfAbsent(command, name -> new LongAdder()).increment();
+      _allErrors.increment();
+    }
+  }
+
+  void recordSkipped() {
+    _skipped.increment();
+  }
+
+  void setOriginalNanos(long originalNanos) {
+    _originalNanos = originalNanos;
+  }
+
+  void setReplayNanos(long replayNanos) {
+    _replayNanos = replayNanos;
+  }
+
+  public LatencyHistogram getAllOriginal() {
+    return _allOriginal;
+  }
+
+  public LatencyHistogram getAllReplay() {
+    return _allReplay;
+  }
+
+  /**
+   * Returns the replayed latencies of a command.
+   * @param command the command name
+   * @return the latencies, or null if the command was not replayed
+   */
+  public LatencyHistogram getReplay(String command) {
+    return _replay.get(command);
+  }
+
+  /**
+   * Returns the replayed commands which replied with an error.
+   * @return the number of errors
+   */
+  public long getAllErrors() {
+    return _allErrors.sum();
+  }
+
+  /**
+   * Returns the sessions which stopped replaying at a command which cannot be replayed.
+   * @return the number of sessions
+   */
+  public long getSkipped() {
+    return _skipped.sum();
+  }
+
+  public String format() {
+    StringBuilder report = new StringBuilder(String.format(
+        "%s: recorded %d commands over %s, replayed %d in %s, %d errors, %d sessions cut short",
+        _asFastAsPossible ? "as fast as possible" : "original timing", _allOriginal.getCount(),
+        LoadReport.formatNanos(_originalNanos), _allReplay.getCount(), LoadReport.formatNanos(_replayNanos),
+        _allErrors.sum(), _skipped.sum()));
+    report.append('\n').append(formatCommand("all", _allOriginal, _allReplay, _allErrors.sum()));
+    _original.forEach((command, original) -> {
+      LongAdder errors = _errors.get(command);
+      report.append('\n').append(formatCommand(command, original, _replay.getOrDefault(command,
+          new LatencyHistogram()), errors == null ? 0 : errors.sum()));
+    });
+    return report.toString();
+  }
+
+  private static String formatCommand(String name, LatencyHistogram original, LatencyHistogram replay, long errors) {
+    return String.format("%s count=%d/%d errors=%d p50=%s/%s (%s) p99=%s/%s (%s) p999=%s/%s (%s)", name,
+        original.getCount(), replay.getCount(), errors,
+        formatPercentile(original, 50), formatPercentile(replay, 50), formatChange(original, replay, 50),
+        formatPercentile(original, 99), formatPercentile(replay, 99), formatChange(original, replay, 99),
+        formatPercentile(original, 99.9), formatPercentile(replay, 99.9), formatChange(original, replay, 99.9));
+  }
+
+  private static String formatPercentile(LatencyHistogram latencies, double percentile) {
+    return LoadReport.formatNanos(latencies.getValueAtPercentile(percentile));
+  }
+
+  private static String formatChange(LatencyHistogram original, LatencyHistogram replay, double percentile) {
+    long before = original.getValueAtPercentile(percentile);
+    long after = replay.getValueAtPercentile(percentile);
+    if (before == 0 || replay.getCount() == 0) {
+      return "n/a";
+    }
+    return String.format("%+.0f%%", (after - before) * 100.0 / before);
+  }
+}
@@ -0,0 +1,271 @@
+package com.material.tools;
+
+import com.material.server.FileServer;
+import com.material.server.WireProtocol;
+import com.material.server.WorkloadRecorder;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Replays a recording made with {@link WorkloadRecorder} against a {@link FileServer}, which should be fresh so the
+ * commands find the tree they found when they were recorded. Each recorded session gets a connection of its own.
+ *
+ * At the original timing each line is sent when it was recorded, relative to the start of the replay, without waiting
+ * for earlier replies, and latency is measured from that time. As fast as possible, each session sends its next
+ * command as soon as the last one is answered, so sessions keep their own order but no longer their order relative to
+ * each other. The replay stops replaying a session at a <pre>watch</pre> or <pre>sharedMemory</pre> command, after
+ * which the session no longer sends commands over its connection.
+ *
+ * Run with <pre>WorkloadReplayer RECORDING HOST PORT [fast]</pre>.
+ */
+public class WorkloadReplayer {
+  private static final Logger LOG = LoggerFactory.getLogger(WorkloadReplayer.class);
+  private static final Set<String> UNREPLAYABLE_COMMANDS = Set.of("watch", "sharedMemory");
+
+  private final Path _recording;
+  private final String _hostName;
+  private final int _port;
+  private final boolean _asFastAsPossible;
+  private final long _timeoutMillis;
+
+  /**
+   * Constructor
+   *
+   * @param recording the recording
+   * @param hostName the server host
+   * @param port the server port
+   * @param asFastAsPossible true to send each command of a session once the last is answered, false to keep the
+   *                         recorded timing
+   * @param timeoutMillis how long to wait for the replies of a session once it sent everything
+   */
+  public WorkloadReplayer(Path recording, String hostName, int port, boolean asFastAsPossible, long timeoutMillis) {
+    _recording = recording;
+    _hostName = hostName;
+    _port = port;
+    _asFastAsPossible = asFastAsPossible;
+    _timeoutMillis = timeoutMillis;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 3) {
+      throw new IllegalArgumentException("Usage: WorkloadReplayer RECORDING HOST PORT [fast]");
+    }
+    boolean asFastAsPossible = args.length > 3 && args[3].equals("fast");
+    ReplayReport report =
+        new WorkloadReplayer(Paths.get(args[0]), args[1], Integer.parseInt(args[2]), asFastAsPossible, 30000)
+            .replay();
+    LOG.info("Replay report:\n" + report.format());
+  }
+
+  /**
+   * Replay the recording.
+   * @return the latencies of the recording and of the replay
+   * @throws IOException if the recording cannot be read
+   * @throws InterruptedException if interrupted while replaying
+   */
+  public ReplayReport replay() throws IOException, InterruptedException {
+    List<WorkloadRecorder.Record> records = new ArrayList<>();
+    WorkloadRecorder.read(_recording, records::add);
+    ReplayReport report = new ReplayReport(_asFastAsPossible);
+    if (records.isEmpty()) {
+      return report;
+    }
+    long firstMicros = records.get(0).getMicros();
+    report.setOriginalNanos(TimeUnit.MICROSECONDS.toNanos(records.get(records.size() - 1).getMicros() - firstMicros));
+
+    Map<Integer, List<WorkloadRecorder.Record>> sessions = new LinkedHashMap<>();
+    Map<Integer, Queue<WorkloadRecorder.Record>> unanswered = new HashMap<>();
+    for (WorkloadRecorder.Record record : records) {
+      sessions.computeIfAbsent(record.getSessionId(), id -> new ArrayList<>()).add(record);
+
+      // the original latency, from reading the command to writing its reply
+      Queue<WorkloadRecorder.Record> commands =
+          unanswered.computeIfAbsent(record.getSessionId(), id -> new ArrayDeque<>());
+      if (record.getKind() == WorkloadRecorder.Kind.COMMAND) {
+        commands.add(record);
+      } else if (record.getKind() == WorkloadRecorder.Kind.REPLIED && !commands.isEmpty()) {
+        WorkloadRecorder.Record command = commands.poll();
+        report.recordOriginal(commandName(command.getLine()),
+            TimeUnit.MICROSECONDS.toNanos(record.getMicros() - command.getMicros()));
+      }
+    }
+    LOG.info("Replaying " + sessions.size() + " sessions from " + _recording
+        + (_asFastAsPossible ? " as fast as possible" : " at the original timing"));
+
+    ExecutorService executor = Executors.newCachedThreadPool();
+    long startNanos = System.nanoTime();
+    try {
+      for (List<WorkloadRecorder.Record> sessionRecords : sessions.values()) {
+        executor.execute(() -> replaySession(sessionRecords, startNanos, firstMicros, report));
+      }
+    } finally {
+      executor.shutdown();
+      while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+        LOG.debug("Waiting for sessions to finish replaying");
+      }
+    }
+    report.setReplayNanos(System.nanoTime() - startNanos);
+    return report;
+  }
+
+  private void replaySession(List<WorkloadRecorder.Record> records, long startNanos, long firstMicros,
+      ReplayReport report) {
+    int sessionId = records.get(0).getSessionId();
+    Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+    Semaphore answered = new Semaphore(0);
+    waitUntil(startNanos, firstMicros, records.get(0));
+
+    try (Socket socket = new Socket()) {
+      socket.connect(new InetSocketAddress(_hostName, _port), (int) _timeoutMillis);
+      socket.setTcpNoDelay(true);
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+      // the greeting
+      WireProtocol.readLine(in);
+
+      Thread reader = new Thread(() -> readReplies(in, pending, answered, report), "replay-reader-" + sessionId);
+      reader.setDaemon(true);
+      reader.start();
+
+      int sent = 0;
+      for (WorkloadRecorder.Record record : records) {
+        WorkloadRecorder.Kind kind = record.getKind();
+        if (kind == WorkloadRecorder.Kind.OPEN || kind == WorkloadRecorder.Kind.REPLIED) {
+          continue;
+        }
+        if (kind == WorkloadRecorder.Kind.COMMAND) {
+          String name = commandName(record.getLine());
+          if (UNREPLAYABLE_COMMANDS.contains(name)) {
+            LOG.warn("Session " + sessionId + " stops replaying at " + name);
+            report.recordSkipped();
+            break;
+          }
+          if (_asFastAsPossible && sent > 0 && !answered.tryAcquire(_timeoutMillis, TimeUnit.MILLISECONDS)) {
+            throw new IOException("No reply to the last command of session " + sessionId);
+          }
+          long intendedNanos = _asFastAsPossible ? System.nanoTime() : waitUntil(startNanos, firstMicros, record);
+          pending.add(new Pending(name, intendedNanos));
+          sent++;
+        } else if (!_asFastAsPossible) {
+          waitUntil(startNanos, firstMicros, record);
+        }
+        if (kind == WorkloadRecorder.Kind.CLOSE) {
+          break;
+        }
+
+        out.write(record.getBytes());
+        if (kind != WorkloadRecorder.Kind.CONTINUATION_BYTES) {
+          out.write('\n');
+        }
+        out.flush();
+      }
+
+      // as fast as possible, every command but the last was answered before the next was sent
+      int unansweredCommands = _asFastAsPossible ? Math.min(sent, 1) : sent;
+      if (!answered.tryAcquire(unansweredCommands, _timeoutMillis, TimeUnit.MILLISECONDS)) {
+        LOG.warn("Session " + sessionId + " is missing " + pending.size() + " replies");
+      }
+    } catch (IOException ex) {
+      LOG.warn("Session " + sessionId + " failed", ex);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void readReplies(InputStream in, Queue<Pending> pending, Semaphore answered, ReplayReport report) {
+    try {
+      String line;
+      while ((line = WireProtocol.readLine(in)) != null) {
+        skipReplyBody(line, in);
+        Pending request = pending.poll();
+        if (request == null) {
+          LOG.warn("Unexpected reply: " + line);
+          continue;
+        }
+        report.recordReplay(request._command, System.nanoTime() - request._intendedNanos,
+            line.startsWith(WireProtocol.ERROR + " "));
+        answered.release();
+      }
+    } catch (IOException ex) {
+      LOG.debug("Stopped reading replies", ex);
+    }
+  }
+
+  /**
+   * Read the rest of a reply which is more than its first line.
+   */
+  private static void skipReplyBody(String line, InputStream in) throws IOException {
+    long contentLength = WireProtocol.parseBytesHeader(line);
+    if (contentLength >= 0) {
+      in.skipNBytes(contentLength);
+    } else if (WireProtocol.START_LINES.equals(line)) {
+      while ((line = WireProtocol.readLine(in)) != null && !WireProtocol.END_LINES.equals(line)) {
+        // the lines of the reply
+      }
+    } else if (line.startsWith(WireProtocol.START_DOWNLOAD + " ")) {
+      while ((line = WireProtocol.readLine(in)) != null && !line.startsWith(WireProtocol.END_DOWNLOAD + " ")
+          && !line.startsWith(WireProtocol.ERROR + " ")) {
+        contentLength = WireProtocol.parseBytesHeader(line);
+        if (contentLength >= 0) {
+          in.skipNBytes(contentLength);
+        }
+      }
+    }
+  }
+
+  /**
+   * Wait until the time a record was recorded at, relative to the start of the replay.
+   * @return the time waited for
+   */
+  private static long waitUntil(long startNanos, long firstMicros, WorkloadRecorder.Record record) {
+    long intendedNanos = startNanos + TimeUnit.MICROSECONDS.toNanos(record.getMicros() - firstMicros);
+    long waitNanos;
+    while ((waitNanos = intendedNanos - System.nanoTime()) > 0) {
+      LockSupport.parkNanos(waitNanos);
+    }
+    return intendedNanos;
+  }
+
+  static String commandName(String line) {
+    String trimmed = line.trim();
+    int end = 0;
+    while (end < trimmed.length() && !Character.isWhitespace(trimmed.charAt(end))) {
+      end++;
+    }
+    return trimmed.substring(0, end);
+  }
+
+  private static class Pending {
+    private final String _command;
+    private final long _intendedNanos;
+
+    Pending(String command, long intendedNanos) {
+      _command = command;
+      _intendedNanos = intendedNanos;
+    }
+  }
+}
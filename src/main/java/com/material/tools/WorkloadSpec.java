@@ -0,0 +1,257 @@
+package com.material.tools;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.function.BiConsumer;
+
+
+/**
+ * The workload a {@link LoadGenerator} drives, read from a properties file. Every property is optional, the defaults
+ * are:
+ * <pre>
+ * sessions=4
+ * user=admin
+ * password=1234
+ * rate=100
+ * arrivals=poisson
+ * warmupSeconds=5
+ * durationSeconds=30
+ * timeoutMillis=10000
+ * mix=read:60,write:20,ls:10,find:5,cp:5
+ * fileSizes=1024:80,65536:15,1048576:5
+ * root=/load
+ * tree.fanout=4
+ * tree.depth=2
+ * tree.filesPerDirectory=8
+ * </pre>
+ * Each session is one connection. The rate is the requests per second over all sessions, with exponentially
+ * distributed gaps for poisson arrivals or even gaps for uniform ones. Requests in the warmup are sent but not
+ * reported. A <pre>seed</pre> makes the random choices repeatable.
+ *
+ * The mix and the file sizes are weighted, e.g. <pre>1024:80,65536:20</pre> makes four in five files 1 KB. The tree
+ * replaces the root directory: each directory has <pre>tree.fanout</pre> directories, down to <pre>tree.depth</pre>
+ * levels below the root, and each of the deepest directories has <pre>tree.filesPerDirectory</pre> files.
+ */
+public class WorkloadSpec {
+  /**
+   * The requests of a workload.
+   */
+  public enum Command {
+    READ("read"),
+    WRITE("write"),
+    LS("ls"),
+    FIND("find"),
+    CP("cp");
+
+    private final String _name;
+
+    Command(String name) {
+      _name = name;
+    }
+
+    public String getName() {
+      return _name;
+    }
+
+    static Command forName(String name) {
+      for (Command command : values()) {
+        if (command._name.equals(name)) {
+          return command;
+        }
+      }
+      throw new IllegalArgumentException("Unknown command in mix: " + name);
+    }
+  }
+
+  private final int _sessions;
+  private final String _user;
+  private final String _password;
+  private final double _rate;
+  private final boolean _poissonArrivals;
+  private final long _warmupSeconds;
+  private final long _durationSeconds;
+  private final long _timeoutMillis;
+  private final long _seed;
+  private final Map<Command, Integer> _mix = new EnumMap<>(Command.class);
+  private final List<Integer> _fileSizes = new ArrayList<>();
+  private final List<Integer> _fileSizeWeights = new ArrayList<>();
+  private final String _root;
+  private final int _fanout;
+  private final int _depth;
+  private final int _filesPerDirectory;
+
+  public WorkloadSpec(Properties properties) {
+    _sessions = positiveInt(properties, "sessions", "4");
+    _user = properties.getProperty("user", "admin");
+    _password = properties.getProperty("password", "1234");
+    _rate = Double.parseDouble(properties.getProperty("rate", "100"));
+    if (!(_rate > 0)) {
+      throw new IllegalArgumentException("rate must be positive: " + _rate);
+    }
+    String arrivals = properties.getProperty("arrivals", "poisson");
+    if (!arrivals.equals("poisson") && !arrivals.equals("uniform")) {
+      throw new IllegalArgumentException("arrivals must be poisson or uniform: " + arrivals);
+    }
+    _poissonArrivals = arrivals.equals("poisson");
+    _warmupSeconds = Long.parseLong(properties.getProperty("warmupSeconds", "5"));
+    _durationSeconds = positiveInt(properties, "durationSeconds", "30");
+    _timeoutMillis = positiveInt(properties, "timeoutMillis", "10000");
+    _seed = Long.parseLong(properties.getProperty("seed", String.valueOf(System.nanoTime())));
+
+    parseWeights(properties.getProperty("mix", "read:60,write:20,ls:10,find:5,cp:5"),
+        (key, weight) -> _mix.put(Command.forName(key), weight));
+    parseWeights(properties.getProperty("fileSizes", "1024:80,65536:15,1048576:5"), (key, weight) -> {
+      _fileSizes.add(Integer.parseInt(key));
+      _fileSizeWeights.add(weight);
+    });
+
+    _root = properties.getProperty("root", "/load");
+    if (!_root.startsWith("/") || _root.equals("/")) {
+      throw new IllegalArgumentException("root must be an absolute path below /: " + _root);
+    }
+    _fanout = positiveInt(properties, "tree.fanout", "4");
+    _depth = positiveInt(properties, "tree.depth", "2");
+    _filesPerDirectory = positiveInt(properties, "tree.filesPerDirectory", "8");
+  }
+
+  /**
+   * Read a workload from a properties file.
+   * @param path the file
+   * @return the workload
+   * @throws IOException if the file cannot be read
+   */
+  public static WorkloadSpec load(Path path) throws IOException {
+    Properties properties = new Properties();
+    try (Reader reader = Files.newBufferedReader(path)) {
+      properties.load(reader);
+    }
+    return new WorkloadSpec(properties);
+  }
+
+  public int getSessions() {
+    return _sessions;
+  }
+
+  public String getUser() {
+    return _user;
+  }
+
+  public String getPassword() {
+    return _password;
+  }
+
+  public double getRate() {
+    return _rate;
+  }
+
+  public long getWarmupSeconds() {
+    return _warmupSeconds;
+  }
+
+  public long getDurationSeconds() {
+    return _durationSeconds;
+  }
+
+  public long getTimeoutMillis() {
+    return _timeoutMillis;
+  }
+
+  public long getSeed() {
+    return _seed;
+  }
+
+  public Map<Command, Integer> getMix() {
+    return Collections.unmodifiableMap(_mix);
+  }
+
+  public String getRoot() {
+    return _root;
+  }
+
+  public int getFanout() {
+    return _fanout;
+  }
+
+  public int getDepth() {
+    return _depth;
+  }
+
+  public int getFilesPerDirectory() {
+    return _filesPerDirectory;
+  }
+
+  /**
+   * Returns the nanoseconds from one request to the next.
+   * @param random the random source of the workload
+   * @return the gap
+   */
+  long nextArrivalGapNanos(Random random) {
+    double meanNanos = 1_000_000_000.0 / _rate;
+    // exponentially distributed gaps make a Poisson process
+    return (long) (_poissonArrivals ? -Math.log(1 - random.nextDouble()) * meanNanos : meanNanos);
+  }
+
+  Command nextCommand(Random random) {
+    int total = _mix.values().stream().mapToInt(Integer::intValue).sum();
+    int choice = random.nextInt(total);
+    for (Map.Entry<Command, Integer> entry : _mix.entrySet()) {
+      choice -= entry.getValue();
+      if (choice < 0) {
+        return entry.getKey();
+      }
+    }
+    throw new IllegalStateException("Weights changed while choosing a command");
+  }
+
+  int nextFileSize(Random random) {
+    int total = _fileSizeWeights.stream().mapToInt(Integer::intValue).sum();
+    int choice = random.nextInt(total);
+    for (int i = 0; i < _fileSizes.size(); i++) {
+      choice -= _fileSizeWeights.get(i);
+      if (choice < 0) {
+        return _fileSizes.get(i);
+      }
+    }
+    throw new IllegalStateException("Weights changed while choosing a file size");
+  }
+
+  List<Integer> getFileSizes() {
+    return Collections.unmodifiableList(_fileSizes);
+  }
+
+  private static void parseWeights(String weights, BiConsumer<String, Integer> consumer) {
+    int total = 0;
+    for (String entry : weights.split(",")) {
+      String[] keyAndWeight = entry.trim().split(":");
+      if (keyAndWeight.length != 2) {
+        throw new IllegalArgumentException("Expected KEY:WEIGHT, got: " + entry);
+      }
+      int weight = Integer.parseInt(keyAndWeight[1].trim());
+      if (weight < 0) {
+        throw new IllegalArgumentException("Weights cannot be negative: " + entry);
+      }
+      consumer.accept(keyAndWeight[0].trim(), weight);
+      total += weight;
+    }
+    if (total <= 0) {
+      throw new IllegalArgumentException("Weights must add up to more than 0: " + weights);
+    }
+  }
+
+  private static int positiveInt(Properties properties, String name, String defaultValue) {
+    int value = Integer.parseInt(properties.getProperty(name, defaultValue));
+    if (value <= 0) {
+      throw new IllegalArgumentException(name + " must be positive: " + value);
+    }
+    return value;
+  }
+}
@@ -0,0 +1,133 @@
+package com.material.client;
+
+import com.material.server.FileServer;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+
+public class AsyncFileSystemClientTest {
+  private static final int PORT = 5151;
+  private static final ExecutorService SERVER_EXECUTOR = Executors.newSingleThreadExecutor();
+  private static final FileServer FILE_SERVER = new FileServer(PORT, true);
+
+  @BeforeAll
+  static void startServer() throws Exception {
+    SERVER_EXECUTOR.submit(FILE_SERVER::start);
+
+    // wait for the server to listen
+    for (int i = 0; ; i++) {
+      try {
+        new Socket("127.0.0.1", PORT).close();
+        return;
+      } catch (Exception ex) {
+        if (i == 50) {
+          throw ex;
+        }
+        Thread.sleep(100);
+      }
+    }
+  }
+
+  @AfterAll
+  static void stopServer() {
+    FILE_SERVER.shutdown();
+    SERVER_EXECUTOR.shutdownNow();
+  }
+
+  @Test
+  void testPipelinedRequestsOverPool() throws Exception {
+    try (AsyncFileSystemClient client = new AsyncFileSystemClient("127.0.0.1", PORT, "admin", "1234", 3)) {
+      client.mkdir("/async/dir", true).get(10, TimeUnit.SECONDS);
+
+      List<CompletableFuture<String>> writes = new ArrayList<>();
+      for (int i = 0; i < 50; i++) {
+        String path = "/async/dir/file" + i;
+        String content = "it's file " + i;
+        writes.add(client.touch(path).thenCompose(reply -> client.write(path, content)));
+      }
+      CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+
+      List<CompletableFuture<byte[]>> reads = new ArrayList<>();
+      for (int i = 0; i < 50; i++) {
+        reads.add(client.read("/async/dir/file" + i));
+      }
+      for (int i = 0; i < 50; i++) {
+        Assertions.assertEquals("it's file " + i, new String(reads.get(i).get(10, TimeUnit.SECONDS)));
+      }
+
+      Assertions.assertEquals(50, client.ls("/async/dir").get(10, TimeUnit.SECONDS).size());
+      Assertions.assertEquals(50, client.find("^.*/async/dir/file\\d+$", true).get(10, TimeUnit.SECONDS).size());
+    }
+  }
+
+  @Test
+  void testUploadAndRejectedCommands() throws Exception {
+    try (AsyncFileSystemClient client = new AsyncFileSystemClient("127.0.0.1", PORT, "admin", "1234", 2)) {
+      byte[] contents = new byte[600 * 1024];
+      for (int i = 0; i < contents.length; i++) {
+        contents[i] = (byte) i;
+      }
+      client.touch("/uploaded.bin").get(10, TimeUnit.SECONDS);
+      client.upload("/uploaded.bin", contents).get(10, TimeUnit.SECONDS);
+      Assertions.assertArrayEquals(contents, client.read("/uploaded.bin").get(10, TimeUnit.SECONDS));
+
+      ExecutionException ex = Assertions.assertThrows(ExecutionException.class,
+          () -> client.read("/missing.txt").get(10, TimeUnit.SECONDS));
+      Assertions.assertTrue(ex.getCause() instanceof RemoteCommandException, ex.toString());
+
+      // the connection is still usable after an error
+      Assertions.assertArrayEquals(contents, client.read("/uploaded.bin").get(10, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  void testCacheInvalidatedByChangesFromOtherClients() throws Exception {
+    try (AsyncFileSystemClient writer = new AsyncFileSystemClient("127.0.0.1", PORT, "admin", "1234", 1);
+        AsyncFileSystemClient cached = new AsyncFileSystemClient("127.0.0.1", PORT, "admin", "1234", 1)) {
+      writer.mkdir("/cached", true).get(10, TimeUnit.SECONDS);
+      writer.touch("/cached/a.txt").thenCompose(reply -> writer.write("/cached/a.txt", "one")).get(10, TimeUnit.SECONDS);
+      cached.enableCache(5000, 1024);
+
+      // once the watch connection is up, a repeated read is answered without a round trip
+      boolean servedFromCache = false;
+      for (int i = 0; i < 50 && !servedFromCache; i++) {
+        Assertions.assertEquals("one", new String(cached.read("/cached/a.txt").get(10, TimeUnit.SECONDS)));
+        CompletableFuture<byte[]> repeated = cached.read("/cached/a.txt");
+        servedFromCache = repeated.isDone();
+        Assertions.assertEquals("one", new String(repeated.get(10, TimeUnit.SECONDS)));
+        Thread.sleep(100);
+      }
+      Assertions.assertTrue(servedFromCache);
+      Assertions.assertEquals(List.of("a.txt"), cached.ls("/cached").get(10, TimeUnit.SECONDS));
+
+      writer.write("/cached/a.txt", "two").get(10, TimeUnit.SECONDS);
+      writer.touch("/cached/b.txt").get(10, TimeUnit.SECONDS);
+      awaitValue("two", () -> new String(cached.read("/cached/a.txt").get(10, TimeUnit.SECONDS)));
+      awaitValue(2, () -> cached.ls("/cached").get(10, TimeUnit.SECONDS).size());
+
+      // changes made through the caching client are read back at once
+      cached.write("/cached/b.txt", "mine").get(10, TimeUnit.SECONDS);
+      Assertions.assertEquals("mine", new String(cached.read("/cached/b.txt").get(10, TimeUnit.SECONDS)));
+      cached.rm("/cached/a.txt").get(10, TimeUnit.SECONDS);
+      Assertions.assertEquals(List.of("b.txt"), cached.ls("/cached").get(10, TimeUnit.SECONDS));
+    }
+  }
+
+  private static <T> void awaitValue(T expected, Callable<T> actual) throws Exception {
+    for (int i = 0; i < 50 && !expected.equals(actual.call()); i++) {
+      Thread.sleep(100);
+    }
+    Assertions.assertEquals(expected, actual.call());
+  }
+}
@@ -0,0 +1,109 @@
+package com.material.client;
+
+import com.material.server.FileServer;
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+
+public class SharedMemoryClientTest {
+
+  @Test
+  void testCommandsThroughSharedMemory() throws Exception {
+    ExecutorService executorService = Executors.newSingleThreadExecutor();
+    Path socketPath = Paths.get("build", "shared-memory-test.sock").toAbsolutePath();
+    // in the temporary directory, where the server maps regions from by default
+    Path regionPath = Paths.get(System.getProperty("java.io.tmpdir"), "shared-memory-test.shm").toAbsolutePath();
+    Files.createDirectories(socketPath.getParent());
+    FileServer fileServer = new FileServer(5056, false, socketPath);
+    executorService.submit(fileServer::start);
+    for (int i = 0; i < 50 && !Files.exists(socketPath); i++) {
+      Thread.sleep(100);
+    }
+
+    try (SharedMemoryClient client = new SharedMemoryClient(UnixDomainSocketAddress.of(socketPath), regionPath,
+        "admin", "1234", 16384, 1024 * 1024, false)) {
+      client.execute("mkDir /shm");
+      client.execute("cd /shm");
+      client.execute("touch file.txt");
+      client.execute("write file.txt 'hello shared memory'");
+      Assertions.assertEquals("/shm", client.execute("pwd"));
+
+      ByteBuffer contents = client.read("/shm/file.txt");
+      Assertions.assertTrue(contents.isReadOnly());
+      Assertions.assertEquals("hello shared memory", new String(toArray(contents)));
+
+      // many more requests than fit in the rings at once, so they wrap
+      for (int i = 0; i < 500; i++) {
+        Assertions.assertEquals("working dir set to: /shm", client.execute("cd /shm"));
+      }
+
+      // raw bytes of a request follow the command line
+      byte[] upload = new byte[8000];
+      upload[upload.length - 1] = 7;
+      String[] opened = client.execute("uploadOpen /shm/file.txt " + upload.length).split(" ");
+      Assertions.assertEquals("ACK " + opened[1] + " " + upload.length,
+          client.execute("uploadChunk " + opened[1] + " 0 " + upload.length, upload));
+      client.execute("uploadCommit " + opened[1]);
+      Assertions.assertArrayEquals(upload, toArray(client.read("/shm/file.txt")));
+
+      Assertions.assertThrows(RemoteCommandException.class, () -> client.read("/shm/missing.txt"));
+      Assertions.assertThrows(RemoteCommandException.class, () -> client.execute("download /shm/file.txt"));
+      Assertions.assertTrue(client.execute("batch", "touch /shm/a\ntouch /shm/b".getBytes())
+          .startsWith("batch of 2 commands: 2 succeeded"));
+    } finally {
+      fileServer.shutdown();
+      executorService.shutdownNow();
+    }
+    Assertions.assertFalse(Files.exists(regionPath));
+  }
+
+  @Test
+  void testOnlyLoggedInUsersMapRegionsInTheDirectory() throws Exception {
+    ExecutorService executorService = Executors.newSingleThreadExecutor();
+    Path socketPath = Paths.get("build", "shared-memory-refused-test.sock").toAbsolutePath();
+    Path directory = Files.createTempDirectory("shared-memory-test");
+    Path regionPath = directory.resolve("region.shm");
+    // out of the directory through ..
+    Path outside = directory.resolve("..").resolve(directory.getFileName() + "-outside.shm");
+    System.setProperty("fileserver.sharedMemory.directory", directory.toString());
+    Files.createDirectories(socketPath.getParent());
+    FileServer fileServer = new FileServer(5057, false, socketPath);
+    executorService.submit(fileServer::start);
+    for (int i = 0; i < 50 && !Files.exists(socketPath); i++) {
+      Thread.sleep(100);
+    }
+
+    try {
+      Assertions.assertThrows(IOException.class, () -> new SharedMemoryClient(UnixDomainSocketAddress.of(socketPath),
+          regionPath, "admin", "wrong", 16384, 1024 * 1024, false).close());
+      IOException refused = Assertions.assertThrows(IOException.class, () -> new SharedMemoryClient(
+          UnixDomainSocketAddress.of(socketPath), outside, "admin", "1234", 16384, 1024 * 1024, false).close());
+      Assertions.assertTrue(refused.getMessage().contains("must be in"), refused.getMessage());
+      Assertions.assertFalse(Files.exists(outside));
+
+      try (SharedMemoryClient client = new SharedMemoryClient(UnixDomainSocketAddress.of(socketPath), regionPath,
+          "admin", "1234", 16384, 1024 * 1024, false)) {
+        Assertions.assertEquals("/", client.execute("pwd"));
+      }
+    } finally {
+      System.clearProperty("fileserver.sharedMemory.directory");
+      fileServer.shutdown();
+      executorService.shutdownNow();
+      Files.deleteIfExists(directory);
+    }
+  }
+
+  private static byte[] toArray(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+}
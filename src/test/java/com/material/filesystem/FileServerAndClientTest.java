@@ -3,12 +3,25 @@ package com.material.filesystem;
 import com.material.client.FileSystemClient;
 import com.material.filesystem.util.StopWatch;
 import com.material.server.FileServer;
+import com.material.server.Server;
+import com.material.server.WireProtocol;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
@@ -82,6 +95,61 @@ public class FileServerAndClientTest {
     fileServer.shutdown();
   }
 
+  @Test
+  public void testUnixSocketInteraction() throws Exception {
+    ExecutorService executorService = Executors.newFixedThreadPool(2);
+    Path socketPath = Paths.get("build", "fileserver-test.sock").toAbsolutePath();
+    Files.createDirectories(socketPath.getParent());
+    // a socket left by a run which failed would be connected to before the server binds it again
+    Files.deleteIfExists(socketPath);
+    FileServer fileServer = new FileServer(5055, false, socketPath);
+    executorService.submit(fileServer::start);
+
+    for (int i = 0; i < 50 && !Files.exists(socketPath); i++) {
+      Thread.sleep(100);
+    }
+
+    try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath))) {
+      InputStream in = Channels.newInputStream(channel);
+      String connected = WireProtocol.readLine(in);
+      Assertions.assertTrue(connected.startsWith("connected on: "));
+      channel.write(ByteBuffer.wrap("login admin 1234\n".getBytes()));
+      String loggedIn = WireProtocol.readLine(in);
+      Assertions.assertTrue(loggedIn.startsWith("User login success"));
+
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName serverName = new ObjectName(Server.OBJECT_NAME_PREFIX + 5055);
+      Assertions.assertEquals(1L, mbeanServer.getAttribute(serverName, "AcceptedConnections"));
+      Assertions.assertEquals(1, mbeanServer.getAttribute(serverName, "ActiveConnections"));
+      ObjectName userManagerName = new ObjectName(Server.USER_MANAGER_OBJECT_NAME_PREFIX + 5055);
+      Assertions.assertEquals(1, mbeanServer.getAttribute(userManagerName, "ActiveSessions"));
+      Assertions.assertEquals(1L, mbeanServer.getAttribute(userManagerName, "LoginCount"));
+      ObjectName fileSystemName = new ObjectName(Server.FILE_SYSTEM_OBJECT_NAME_PREFIX + 5055);
+      Assertions.assertEquals(1L, mbeanServer.getAttribute(fileSystemName, "NodeCount"));
+
+      // a name beyond ASCII takes more bytes than characters on the wire
+      byte[] mkDir = "mkDir /\u00e9t\u00e9\n".getBytes();
+      channel.write(ByteBuffer.wrap(mkDir));
+      String madeDir = WireProtocol.readLine(in);
+      Assertions.assertEquals((long) "login admin 1234\n".getBytes().length + mkDir.length,
+          mbeanServer.getAttribute(serverName, "BytesIn"));
+      Assertions.assertEquals((long) (connected + "\n" + loggedIn + "\n" + madeDir + "\n").getBytes().length,
+          mbeanServer.getAttribute(serverName, "BytesOut"));
+
+      // the chunk bytes which follow cannot be told from commands, so the connection is closed
+      channel.write(ByteBuffer.wrap("uploadChunk 1 0 many\n".getBytes()));
+      Assertions.assertTrue(WireProtocol.readLine(in).startsWith(WireProtocol.ERROR + " Chunk length"));
+      Assertions.assertNull(WireProtocol.readLine(in));
+    }
+
+    FileSystemClient client =
+        new FileSystemClient(new FileInputStream("src/test/resources/client1.txt"), socketPath);
+    client.connect();
+
+    fileServer.shutdown();
+    executorService.shutdownNow();
+  }
+
   private void createFSClient(String fromCommandsFile, String host, int port) {
     try {
       FileInputStream inputStream = new FileInputStream(fromCommandsFile);
@@ -1,6 +1,10 @@
 package com.material.filesystem;
 
+import com.material.filesystem.permissions.InsufficientPermissionException;
+import com.material.filesystem.permissions.Permission;
 import com.material.filesystem.user.TestUserManager;
+import com.material.filesystem.user.User;
+import com.material.filesystem.user.UserType;
 import com.material.filesystem.util.ConcurrentOperationTest;
 import com.material.filesystem.util.DataGenerator;
 import com.material.filesystem.util.StopWatch;
@@ -9,11 +13,15 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -21,6 +29,9 @@ import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
@@ -169,6 +180,9 @@ public class FileSystemTest {
     FileSystemTreeNode movedNode = tree.moveNodeTo(filePath, destPath, false, false, true);
     Assertions.assertTrue(tree.nodeExists(destPath), "Node was not properly moved to the destination path " + destPath.toString());
     Assertions.assertSame(movedNode, node, "Node was not moved properly");
+    // the moved node knows its new parent and name
+    Assertions.assertSame(tree.getNodeAtPath(destPath.getParent(), false), node.getParent());
+    Assertions.assertEquals("apple/banana/baboon", node.getPath().toString());
 
     // select  working node
     tree.selectWorkingNode(Paths.get("apple", "banana"), false);
@@ -182,6 +196,200 @@ public class FileSystemTest {
     Assertions.assertSame(tree.getWorkingNode(), tree.getRoot(), "Did not select root node properly.");
   }
 
+  @Test
+  void testChangeListenerReportsPaths() throws Exception {
+    FileSystem tree = new DefaultFileSystem(new TestUserManager());
+    List<String> changes = new CopyOnWriteArrayList<>();
+    FileSystemChangeListener listener = new FileSystemChangeListener() {
+      @Override
+      public void onNodeChanged(String path) {
+        changes.add("changed " + path);
+      }
+
+      @Override
+      public void onNodeRemoved(String path) {
+        changes.add("removed " + path);
+      }
+    };
+
+    tree.createNodeAtPath(Paths.get("apple", "banana"), NodeType.DIRECTORY, false, true);
+    tree.createNodeAtPath(Paths.get("apple", "cherry"), NodeType.DIRECTORY, false, true);
+    tree.addChangeListener(listener);
+
+    FileSystemTreeNode node = tree.createNodeAtPath(Paths.get("apple", "banana", "carrot"), NodeType.FILE, false, false);
+    Assertions.assertTrue(changes.contains("changed /apple/banana"), changes.toString());
+
+    changes.clear();
+    ((File) node.getFileSystemObject()).setContents(new byte[]{1, 2, 3});
+    Assertions.assertEquals(List.of("changed /apple/banana/carrot"), changes);
+
+    changes.clear();
+    tree.moveNodeTo(Paths.get("apple", "banana"), Paths.get("apple", "cherry"), false, false, false);
+    Assertions.assertTrue(changes.containsAll(List.of("removed /apple/banana", "changed /apple/cherry")),
+        changes.toString());
+
+    changes.clear();
+    tree.removeNodeAtPath(Paths.get("apple"), false);
+    Assertions.assertTrue(changes.containsAll(List.of("removed /apple", "changed /")), changes.toString());
+
+    tree.removeChangeListener(listener);
+    changes.clear();
+    tree.createNodeAtPath(Paths.get("date"), NodeType.FILE, false, false);
+    Assertions.assertTrue(changes.isEmpty(), changes.toString());
+  }
+
+  @Test
+  void testChangeListenerNotListeningIsSkipped() throws Exception {
+    FileSystem tree = new DefaultFileSystem(new TestUserManager());
+    List<String> changes = new CopyOnWriteArrayList<>();
+    tree.getRoot().setChangeListener(new FileSystemChangeListener() {
+      @Override
+      public void onNodeChanged(String path) {
+        changes.add("changed " + path);
+      }
+
+      @Override
+      public void onNodeRemoved(String path) {
+        changes.add("removed " + path);
+      }
+
+      @Override
+      public boolean isListening() {
+        return false;
+      }
+    });
+
+    tree.createNodeAtPath(Paths.get("apple", "banana"), NodeType.FILE, false, true);
+    tree.removeNodeAtPath(Paths.get("apple"), false);
+    Assertions.assertTrue(changes.isEmpty(), changes.toString());
+  }
+
+  @Test
+  void testStatsCountedIncrementally() throws Exception {
+    DefaultFileSystem tree = new DefaultFileSystem(new TestUserManager());
+    FileSystemStats stats = tree.getStats();
+    Assertions.assertEquals(1, stats.getNodeCount());
+
+    FileSystemTreeNode carrot =
+        tree.createNodeAtPath(Paths.get("apple", "banana", "carrot"), NodeType.FILE, false, true);
+    ((File) carrot.getFileSystemObject()).setContents(new byte[100]);
+    tree.createNodeAtPath(Paths.get("apple", "cherry"), NodeType.DIRECTORY, false, false);
+    Assertions.assertEquals(tree.size(), stats.getNodeCount());
+    Assertions.assertEquals(1, stats.getFileCount());
+    Assertions.assertEquals(100, stats.getContentBytes());
+
+    ((File) carrot.getFileSystemObject()).setContents(new byte[40]);
+    tree.copyNode(Paths.get("apple", "banana"), Paths.get("apple", "cherry"), false, false, false);
+    Assertions.assertEquals(tree.size(), stats.getNodeCount());
+    Assertions.assertEquals(80, stats.getContentBytes());
+
+    tree.moveNodeTo(Paths.get("apple", "cherry"), Paths.get("/"), false, false, false);
+    Assertions.assertEquals(tree.size(), stats.getNodeCount());
+
+    Assertions.assertEquals(2, tree.findAllNodesMatching(Pattern.compile(".*carrot")).size());
+    Assertions.assertEquals(1, stats.getFindCount());
+    Assertions.assertEquals(2, stats.getFindMatches());
+    Assertions.assertEquals(tree.size(), stats.getFindNodesVisited());
+
+    tree.removeNodeAtPath(Paths.get("apple"), false);
+    Assertions.assertEquals(tree.size(), stats.getNodeCount());
+    Assertions.assertEquals(40, stats.getContentBytes());
+
+    tree.beginBatch();
+    try {
+      tree.createNodeAtPath(Paths.get("cherry", "date"), NodeType.FILE, false, false);
+      tree.createNodeAtPath(Paths.get("cherry", "fig"), NodeType.FILE, false, false);
+    } finally {
+      tree.endBatch();
+    }
+    Assertions.assertEquals(1, stats.getBatchDirectoryCacheHits());
+    Assertions.assertEquals(0.5, stats.getBatchDirectoryCacheHitRate());
+  }
+
+  @Test
+  void testBatchHoldsNoLockBetweenOperations() throws Exception {
+    FileSystem tree = new DefaultFileSystem(new TestUserManager());
+    tree.createNodeAtPath(Paths.get("/a/x"), NodeType.FILE, false, true);
+    tree.createNodeAtPath(Paths.get("/b"), NodeType.DIRECTORY, false, false);
+
+    ExecutorService mover = Executors.newSingleThreadExecutor();
+    tree.beginBatch();
+    try {
+      tree.createNodeAtPath(Paths.get("/a/f"), NodeType.FILE, false, false);
+      tree.createNodeAtPath(Paths.get("/a/g"), NodeType.FILE, false, false);
+      // another thread moving out of the directory the batch created in does not wait for the batch to end
+      mover.submit(() -> tree.moveNodeTo(Paths.get("/a/x"), Paths.get("/b"), false, false, false))
+          .get(30, TimeUnit.SECONDS);
+      tree.createNodeAtPath(Paths.get("/a/h"), NodeType.FILE, false, false);
+    } finally {
+      tree.endBatch();
+      mover.shutdownNow();
+    }
+    Assertions.assertTrue(tree.nodeExists(Paths.get("/b/x")));
+    Assertions.assertTrue(tree.nodeExists(Paths.get("/a/h")));
+  }
+
+  @Test
+  void testBatchSeesPermissionChanges() throws Exception {
+    FileSystem tree = new DefaultFileSystem(new TestUserManager());
+    FileSystemTreeNode directory = tree.createNodeAtPath(Paths.get("/a"), NodeType.DIRECTORY, false, false);
+    tree.createNodeAtPath(Paths.get("/a/b"), NodeType.DIRECTORY, false, false);
+    // the admin writes below /a only by its user type permission
+    directory.setOwner(new User("other", "abc", UserType.USER));
+    directory.setUserTypePermission(UserType.ADMIN, Permission.WRITE, false);
+
+    tree.beginBatch();
+    try {
+      tree.createNodeAtPath(Paths.get("/a/b/x"), NodeType.FILE, false, false);
+      directory.clearUserTypePermissions(UserType.ADMIN);
+      // the directory resolved before is not reused once the permissions checked on the way to it changed
+      Assertions.assertThrows(InsufficientPermissionException.class,
+          () -> tree.createNodeAtPath(Paths.get("/a/b/y"), NodeType.FILE, false, false));
+    } finally {
+      tree.endBatch();
+    }
+    Assertions.assertFalse(tree.nodeExists(Paths.get("/a/b/y")));
+  }
+
+  @Test
+  void testOperationsRecordedByFlightRecorder() throws Exception {
+    FileSystem tree = new DefaultFileSystem(new TestUserManager());
+    tree.createNodeAtPath(Paths.get("apple", "banana"), NodeType.DIRECTORY, false, true);
+    FileSystemTreeNode node =
+        tree.createNodeAtPath(Paths.get("apple", "banana", "carrot"), NodeType.FILE, false, false);
+    ((File) node.getFileSystemObject()).setContents(new byte[100]);
+    tree.createNodeAtPath(Paths.get("apple", "banana", "date"), NodeType.FILE, false, false);
+    tree.createNodeAtPath(Paths.get("fig"), NodeType.DIRECTORY, false, false);
+
+    Path dump = Files.createTempFile("filesystem", ".jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable("com.material.filesystem.Copy");
+      recording.enable("com.material.filesystem.Remove");
+      recording.start();
+      tree.copyNode(Paths.get("apple", "banana"), Paths.get("fig"), false, false, false);
+      Assertions.assertThrows(FileNotFoundException.class, () -> tree.removeNodeAtPath(Paths.get("missing"), false));
+      recording.stop();
+      recording.dump(dump);
+    }
+
+    List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+    Files.delete(dump);
+    RecordedEvent copy = events.stream()
+        .filter(event -> event.getEventType().getName().equals("com.material.filesystem.Copy"))
+        .findFirst()
+        .orElseThrow();
+    Assertions.assertEquals(Paths.get("apple", "banana").toString(), copy.getString("path"));
+    Assertions.assertEquals(100, copy.getLong("bytesCopied"));
+    // the directory and its two files
+    Assertions.assertTrue(copy.getInt("nodesTouched") >= 3, copy.toString());
+    Assertions.assertTrue(copy.getBoolean("succeeded"));
+
+    RecordedEvent remove = events.stream()
+        .filter(event -> event.getEventType().getName().equals("com.material.filesystem.Remove"))
+        .findFirst()
+        .orElseThrow();
+    Assertions.assertFalse(remove.getBoolean("succeeded"));
+  }
 
   @Test
   void testCopyFileToDir() throws Exception {
@@ -202,6 +410,27 @@ public class FileSystemTest {
     Assertions.assertNotSame(node, copy, "Node was not copied properly.");
   }
 
+  @Test
+  void testCopyFileOverFileReleasesDestinationDirectory() throws Exception {
+    FileSystem tree = new DefaultFileSystem(new TestUserManager());
+    Path sourcePath = Paths.get("apple", "banana");
+    Path destPath = Paths.get("cherry", "date");
+    tree.createNodeAtPath(sourcePath, NodeType.FILE, false, true);
+    tree.createNodeAtPath(destPath, NodeType.FILE, false, true);
+
+    // copying over an existing file once left the directory of the destination locked
+    tree.copyNode(sourcePath, destPath, false, false, true);
+
+    // so another thread changing the directory blocked for good
+    ExecutorService executorService = Executors.newSingleThreadExecutor();
+    try {
+      executorService.submit(() -> tree.createNodeAtPath(Paths.get("cherry", "egg"), NodeType.FILE, false, false))
+          .get(10, TimeUnit.SECONDS);
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
   @Test
   void testCopyFileToFile() throws Exception {
     FileSystem tree = new DefaultFileSystem(new TestUserManager());
@@ -0,0 +1,235 @@
+package com.material.filesystem.journal;
+
+import com.material.filesystem.DefaultFileSystem;
+import com.material.filesystem.File;
+import com.material.filesystem.FileSystemTreeNode;
+import com.material.filesystem.NodeType;
+import com.material.filesystem.permissions.Permission;
+import com.material.filesystem.user.TestUserManager;
+import com.material.filesystem.user.UserType;
+import java.io.ByteArrayInputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+public class JournalTest {
+  @TempDir
+  Path _directory;
+
+  @Test
+  void testReplayRestoresTheTree() throws Exception {
+    Path path = _directory.resolve("journal");
+    DefaultFileSystem fileSystem = new DefaultFileSystem(new TestUserManager());
+    Journal journal = new Journal(path, Journal.SyncPolicy.ALWAYS, 0, fileSystem::replay);
+    fileSystem.setJournal(journal);
+
+    fileSystem.createNodeAtPath(Paths.get("/a/b/x"), NodeType.FILE, false, true);
+    File x = (File) fileSystem.getNodeAtPath(Paths.get("/a/b/x"), false).getFileSystemObject();
+    x.setContents("hello".getBytes(StandardCharsets.UTF_8));
+    x.writeContentStream(new ByteArrayInputStream(" world".getBytes(StandardCharsets.UTF_8)), 5);
+    fileSystem.createNodeAtPath(Paths.get("/a/y"), NodeType.FILE, false, false);
+    fileSystem.createNodeAtPath(Paths.get("/a/b/y"), NodeType.FILE, false, false);
+    fileSystem.createNodeAtPath(Paths.get("/d"), NodeType.DIRECTORY, false, false);
+
+    // moved next to a node of the same name, which resolves the collision
+    fileSystem.moveNodeTo(Paths.get("/a/y"), Paths.get("/a/b"), false, false, false);
+    fileSystem.copyNode(Paths.get("/a/b/x"), Paths.get("/a/b/y"), false, false, true);
+    fileSystem.copyNode(Paths.get("/a/b"), Paths.get("/d"), false, false, false);
+    fileSystem.moveNodeTo(Paths.get("/a/b/x"), Paths.get("/a/z"), false, false, false);
+    fileSystem.getNodeAtPath(Paths.get("/a"), false).setUserTypePermission(UserType.GUEST, Permission.WRITE, true);
+    fileSystem.removeNodeAtPath(Paths.get("/d/b/y"), false);
+    fileSystem.commit();
+    journal.close();
+
+    DefaultFileSystem restored = new DefaultFileSystem(new TestUserManager());
+    new Journal(path, Journal.SyncPolicy.ALWAYS, 0, restored::replay).close();
+    Assertions.assertEquals(describe(fileSystem.getRoot()), describe(restored.getRoot()));
+    Assertions.assertEquals("hello world",
+        new String(((File) restored.getNodeAtPath(Paths.get("/a/z"), false).getFileSystemObject()).getContents(),
+            StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void testPartlyWrittenRecordIsCutOff() throws Exception {
+    Path path = _directory.resolve("journal");
+    DefaultFileSystem fileSystem = new DefaultFileSystem(new TestUserManager());
+    Journal journal = new Journal(path, Journal.SyncPolicy.NONE, 0, fileSystem::replay);
+    fileSystem.setJournal(journal);
+    fileSystem.createNodeAtPath(Paths.get("/a"), NodeType.DIRECTORY, false, false);
+    fileSystem.createNodeAtPath(Paths.get("/a/b"), NodeType.DIRECTORY, false, false);
+    fileSystem.commit();
+    journal.close();
+
+    // as if the process died while writing the last record
+    long size = Files.size(path);
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      channel.truncate(size - 3);
+    }
+
+    DefaultFileSystem restored = new DefaultFileSystem(new TestUserManager());
+    journal = new Journal(path, Journal.SyncPolicy.NONE, 0, restored::replay);
+    restored.setJournal(journal);
+    Assertions.assertTrue(restored.nodeExists(Paths.get("/a")));
+    Assertions.assertFalse(restored.nodeExists(Paths.get("/a/b")));
+
+    // appended after the last whole record
+    restored.createNodeAtPath(Paths.get("/a/c"), NodeType.DIRECTORY, false, false);
+    restored.commit();
+    journal.close();
+
+    DefaultFileSystem again = new DefaultFileSystem(new TestUserManager());
+    new Journal(path, Journal.SyncPolicy.NONE, 0, again::replay).close();
+    Assertions.assertEquals(describe(restored.getRoot()), describe(again.getRoot()));
+  }
+
+  @Test
+  void testConcurrentCommitsAreGrouped() throws Exception {
+    int threads = 8;
+    int filesPerThread = 50;
+    Path path = _directory.resolve("journal");
+    DefaultFileSystem fileSystem = new DefaultFileSystem(new TestUserManager());
+    Journal journal = new Journal(path, Journal.SyncPolicy.ALWAYS, 0, fileSystem::replay);
+    fileSystem.setJournal(journal);
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int thread = 0; thread < threads; thread++) {
+      int threadIndex = thread;
+      futures.add(executor.submit(() -> {
+        for (int i = 0; i < filesPerThread; i++) {
+          fileSystem.createNodeAtPath(Paths.get("/t" + threadIndex + "/f" + i), NodeType.FILE, false, true);
+          fileSystem.commit();
+        }
+        return null;
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+
+    // one record per file and per directory, and never more than one force per commit
+    Assertions.assertEquals(threads * (filesPerThread + 1), journal.getAppendedCount());
+    Assertions.assertTrue(journal.getSyncCount() <= threads * filesPerThread);
+    journal.close();
+
+    DefaultFileSystem restored = new DefaultFileSystem(new TestUserManager());
+    new Journal(path, Journal.SyncPolicy.ALWAYS, 0, restored::replay).close();
+    Assertions.assertEquals(fileSystem.size(), restored.size());
+    Assertions.assertEquals(describe(fileSystem.getRoot()), describe(restored.getRoot()));
+  }
+
+  @Test
+  void testWritesRacingMovesAreReplayedWhereTheyWereMade() throws Exception {
+    int writers = 4;
+    Path path = _directory.resolve("journal");
+    DefaultFileSystem fileSystem = new DefaultFileSystem(new TestUserManager());
+    Journal journal = new Journal(path, Journal.SyncPolicy.NONE, 0, fileSystem::replay);
+    fileSystem.setJournal(journal);
+    fileSystem.createNodeAtPath(Paths.get("/a/d"), NodeType.DIRECTORY, false, true);
+    fileSystem.createNodeAtPath(Paths.get("/b"), NodeType.DIRECTORY, false, false);
+
+    // the files are written while the directory above them moves back and forth, each write named by the path it has
+    ExecutorService executor = Executors.newFixedThreadPool(writers);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int writer = 0; writer < writers; writer++) {
+        FileSystemTreeNode file =
+            fileSystem.createNodeAtPath(Paths.get("/a/d/x" + writer), NodeType.FILE, false, false);
+        futures.add(executor.submit(() -> {
+          for (int i = 0; i < 5000; i++) {
+            ((File) file.getFileSystemObject()).setContents(Integer.toString(i).getBytes(StandardCharsets.UTF_8));
+            file.setUserTypePermission(UserType.GUEST, Permission.values()[i % Permission.values().length], false);
+          }
+          return null;
+        }));
+      }
+      for (int i = 0; futures.stream().anyMatch(future -> !future.isDone()); i++) {
+        fileSystem.moveNodeTo(Paths.get(i % 2 == 0 ? "/a/d" : "/b/d"), Paths.get(i % 2 == 0 ? "/b" : "/a"), false,
+            false, false);
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    fileSystem.commit();
+    journal.close();
+
+    DefaultFileSystem restored = new DefaultFileSystem(new TestUserManager());
+    new Journal(path, Journal.SyncPolicy.NONE, 0, restored::replay).close();
+    Assertions.assertEquals(describe(fileSystem.getRoot()), describe(restored.getRoot()));
+  }
+
+  @Test
+  void testPermissionChangesRacingMovesIntoTheDirectory() throws Exception {
+    int files = 2000;
+    Path path = _directory.resolve("journal");
+    DefaultFileSystem fileSystem = new DefaultFileSystem(new TestUserManager());
+    Journal journal = new Journal(path, Journal.SyncPolicy.NONE, 0, fileSystem::replay);
+    fileSystem.setJournal(journal);
+    FileSystemTreeNode directory = fileSystem.createNodeAtPath(Paths.get("/d"), NodeType.DIRECTORY, false, false);
+    for (int i = 0; i < files; i++) {
+      fileSystem.createNodeAtPath(Paths.get("/s/f" + i), NodeType.FILE, false, true);
+    }
+
+    // the permissions of the directory change while files are moved into it, which retains it
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> moves = executor.submit(() -> {
+        for (int i = 0; i < files; i++) {
+          fileSystem.moveNodeTo(Paths.get("/s/f" + i), Paths.get("/d"), false, false, false);
+        }
+        return null;
+      });
+      for (int i = 0; !moves.isDone(); i++) {
+        directory.setUserTypePermission(UserType.GUEST, Permission.values()[i % Permission.values().length],
+            i % 10 == 0);
+      }
+      moves.get(60, TimeUnit.SECONDS);
+    } finally {
+      executor.shutdownNow();
+    }
+    fileSystem.commit();
+    journal.close();
+
+    DefaultFileSystem restored = new DefaultFileSystem(new TestUserManager());
+    new Journal(path, Journal.SyncPolicy.NONE, 0, restored::replay).close();
+    Assertions.assertEquals(describe(fileSystem.getRoot()), describe(restored.getRoot()));
+  }
+
+  private static String describe(FileSystemTreeNode node) {
+    StringBuilder description = new StringBuilder();
+    describe(node, "", description);
+    return description.toString();
+  }
+
+  private static void describe(FileSystemTreeNode node, String path, StringBuilder description) {
+    description.append(path.isEmpty() ? "/" : path)
+        .append(' ').append(node.getNodeType())
+        .append(' ').append(node.getOwner() == null ? null : node.getOwner().getUsername())
+        .append(' ').append(node.getUserTypePermissions(UserType.GUEST));
+    if (node.getNodeType() == NodeType.FILE) {
+      description.append(' ')
+          .append(new String(((File) node.getFileSystemObject()).getContents(), StandardCharsets.UTF_8));
+    } else {
+      node.getChildren().stream()
+          .sorted((a, b) -> a.getName().compareTo(b.getName()))
+          .forEach(child -> describe(child, path + "/" + child.getName(), description.append('\n')));
+    }
+  }
+}
@@ -0,0 +1,192 @@
+package com.material.filesystem.linearizability;
+
+import com.material.filesystem.FileSystem;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+
+/**
+ * Runs random programs of {@link TreeOperation}s from several threads at once against a fresh file system, records
+ * each history and checks it with a {@link LinearizabilityChecker}.
+ *
+ * A history which fails is shrunk by dropping operations from its program, one at a time, and running what is left
+ * again until it fails again or runs out of attempts. Shrinking runs programs rather than editing the failed history,
+ * as the results of the operations after a dropped one depend on it. What is left is a program where dropping any
+ * operation made the failure go away within the attempts, and one of its failing histories.
+ *
+ * Some races are known not to linearize, and fail rarely with more threads and operations than
+ * {@link LinearizabilityTest} runs: an operation racing the move or removal of a directory above its paths, which
+ * per-node locks do not cover, a directory move or copy merging into an existing directory, which is done child by
+ * child, and an ls racing a move which renames a listed node, as the names are read after the listing.
+ */
+public class ConcurrentHistoryHarness {
+  /**
+   * The tree every history starts from.
+   */
+  public static final List<TreeOperation> SETUP = List.of(
+      new TreeOperation(TreeOperation.Kind.MKDIR, "/a", null),
+      new TreeOperation(TreeOperation.Kind.MKDIR, "/b", null),
+      new TreeOperation(TreeOperation.Kind.MKDIR, "/a/c", null),
+      new TreeOperation(TreeOperation.Kind.TOUCH, "/a/x", null),
+      new TreeOperation(TreeOperation.Kind.WRITE, "/a/x", "v0"));
+  private static final long TIMEOUT_MILLIS = 10000;
+
+  private final Supplier<FileSystem> _fileSystems;
+  private final LinearizabilityChecker _checker;
+  private final int _threads;
+  private final int _operationsPerThread;
+
+  /**
+   * Constructor
+   *
+   * @param fileSystems makes a fresh file system for each run, which every thread may do everything on
+   * @param threads the threads of each history
+   * @param operationsPerThread the operations each thread runs
+   */
+  public ConcurrentHistoryHarness(Supplier<FileSystem> fileSystems, int threads, int operationsPerThread) {
+    _fileSystems = fileSystems;
+    _checker = new LinearizabilityChecker(fileSystems, SETUP);
+    _threads = threads;
+    _operationsPerThread = operationsPerThread;
+  }
+
+  /**
+   * Run the random program of a seed once.
+   * @param seed the seed
+   * @return the failure, or null if the history was linearizable
+   */
+  public Failure run(long seed) {
+    Random random = new Random(seed);
+    List<List<TreeOperation>> program = new ArrayList<>();
+    for (int thread = 0; thread < _threads; thread++) {
+      List<TreeOperation> operations = new ArrayList<>();
+      for (int i = 0; i < _operationsPerThread; i++) {
+        operations.add(TreeOperation.random(random));
+      }
+      program.add(operations);
+    }
+    return runProgram(program);
+  }
+
+  /**
+   * Shrink a failing program.
+   * @param failure the failure
+   * @param attempts how many times to run each smaller program before deciding it does not fail
+   * @return the smallest failure found
+   */
+  public Failure shrink(Failure failure, int attempts) {
+    Failure smallest = failure;
+    boolean shrunk = true;
+    while (shrunk) {
+      shrunk = false;
+      for (int thread = 0; thread < smallest._program.size() && !shrunk; thread++) {
+        for (int i = 0; i < smallest._program.get(thread).size() && !shrunk; i++) {
+          List<List<TreeOperation>> program = new ArrayList<>();
+          smallest._program.forEach(operations -> program.add(new ArrayList<>(operations)));
+          program.get(thread).remove(i);
+          for (int attempt = 0; attempt < attempts && !shrunk; attempt++) {
+            Failure smaller = runProgram(program);
+            if (smaller != null) {
+              smallest = smaller;
+              shrunk = true;
+            }
+          }
+        }
+      }
+    }
+    return smallest;
+  }
+
+  private Failure runProgram(List<List<TreeOperation>> program) {
+    FileSystem fileSystem = _fileSystems.get();
+    SETUP.forEach(operation -> operation.apply(fileSystem));
+
+    AtomicLong clock = new AtomicLong();
+    CyclicBarrier start = new CyclicBarrier(program.size());
+    List<List<LinearizabilityChecker.Event>> history = new ArrayList<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int thread = 0; thread < program.size(); thread++) {
+      // read while a deadlocked thread may still be adding to it
+      List<LinearizabilityChecker.Event> events = new CopyOnWriteArrayList<>();
+      history.add(events);
+      int threadIndex = thread;
+      Thread runner = new Thread(() -> {
+        try {
+          start.await();
+        } catch (Exception ex) {
+          throw new IllegalStateException(ex);
+        }
+        for (TreeOperation operation : program.get(threadIndex)) {
+          long called = clock.incrementAndGet();
+          String result = operation.apply(fileSystem);
+          events.add(new LinearizabilityChecker.Event(threadIndex, operation, result, called, clock.incrementAndGet()));
+        }
+      }, "history-" + thread);
+      // a deadlocked history must not keep the JVM alive
+      runner.setDaemon(true);
+      threads.add(runner);
+      runner.start();
+    }
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+    for (Thread runner : threads) {
+      try {
+        runner.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while running a history", ex);
+      }
+    }
+    List<Thread> stuck = threads.stream().filter(Thread::isAlive).collect(Collectors.toList());
+    if (!stuck.isEmpty()) {
+      // where the threads are stuck is most of what there is to know about a deadlock
+      StringBuilder reason = new StringBuilder("did not finish within " + TIMEOUT_MILLIS + "ms, deadlocked?");
+      stuck.forEach(runner -> {
+        reason.append("\n").append(runner.getName()).append(':');
+        Arrays.stream(runner.getStackTrace()).forEach(frame -> reason.append("\n    at ").append(frame));
+      });
+      return new Failure(program, history, reason.toString());
+    }
+    return _checker.check(history) == null ? new Failure(program, history, "not linearizable") : null;
+  }
+
+  /**
+   * A history which did not linearize or did not finish, and the program it ran.
+   */
+  public static class Failure {
+    private final List<List<TreeOperation>> _program;
+    private final List<List<LinearizabilityChecker.Event>> _history;
+    private final String _reason;
+
+    Failure(List<List<TreeOperation>> program, List<List<LinearizabilityChecker.Event>> history, String reason) {
+      _program = program;
+      _history = history;
+      _reason = reason;
+    }
+
+    public int size() {
+      return _program.stream().mapToInt(List::size).sum();
+    }
+
+    public String format() {
+      StringBuilder report = new StringBuilder("History " + _reason + ", from:\n");
+      SETUP.forEach(operation -> report.append("  ").append(operation).append('\n'));
+      report.append("Events, by call:\n");
+      report.append(_history.stream()
+          .flatMap(List::stream)
+          .sorted(Comparator.comparingLong(LinearizabilityChecker.Event::getCalled))
+          .map(event -> "  " + event)
+          .collect(Collectors.joining("\n")));
+      return report.toString();
+    }
+  }
+}
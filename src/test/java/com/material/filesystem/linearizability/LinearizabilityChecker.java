@@ -0,0 +1,139 @@
+package com.material.filesystem.linearizability;
+
+import com.material.filesystem.FileSystem;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+
+
+/**
+ * Checks whether a concurrent history is linearizable: whether its operations can be put in one order, which keeps the
+ * order of each thread and of any operation which returned before another was called, and in which every operation
+ * returns what it returned in the history when run alone.
+ *
+ * The sequential model is the file system itself, a fresh one driven from a single thread, so the checker needs no
+ * second implementation of the tree's semantics and only finds what concurrency breaks. The search tries the
+ * operations which may go next in turn, replaying the order so far on a fresh model for each, and remembers the
+ * states it already failed from, as in Wing and Gong's algorithm with Lowe's memoization.
+ */
+public class LinearizabilityChecker {
+  private final Supplier<FileSystem> _modelFactory;
+  private final List<TreeOperation> _setup;
+
+  /**
+   * Constructor
+   *
+   * @param modelFactory makes the fresh file systems to replay on, which must allow the calling thread to do everything
+   * @param setup the operations run before the history, on the tree the history ran on
+   */
+  public LinearizabilityChecker(Supplier<FileSystem> modelFactory, List<TreeOperation> setup) {
+    _modelFactory = modelFactory;
+    _setup = setup;
+  }
+
+  /**
+   * Find a linearization of a history.
+   * @param history the operations of each thread, in the order the thread ran them
+   * @return the operations in a linearizable order, or null if there is none
+   */
+  public List<Event> check(List<List<Event>> history) {
+    List<Event> order = new ArrayList<>();
+    return search(history, new int[history.size()], order, new HashSet<>()) ? order : null;
+  }
+
+  private boolean search(List<List<Event>> history, int[] progress, List<Event> order, Set<String> failedStates) {
+    long earliestReturn = Long.MAX_VALUE;
+    boolean done = true;
+    for (int thread = 0; thread < history.size(); thread++) {
+      if (progress[thread] < history.get(thread).size()) {
+        done = false;
+        earliestReturn = Math.min(earliestReturn, history.get(thread).get(progress[thread]).getReturned());
+      }
+    }
+    if (done) {
+      return true;
+    }
+
+    for (int thread = 0; thread < history.size(); thread++) {
+      if (progress[thread] == history.get(thread).size()) {
+        continue;
+      }
+      Event next = history.get(thread).get(progress[thread]);
+      // an operation cannot go after one which returned before it was called
+      if (next.getCalled() > earliestReturn) {
+        continue;
+      }
+
+      FileSystem model = replay(order);
+      if (!next.getOperation().apply(model).equals(next.getResult())) {
+        continue;
+      }
+      progress[thread]++;
+      String state = Arrays.toString(progress) + TreeOperation.describe(model);
+      if (failedStates.add(state)) {
+        order.add(next);
+        if (search(history, progress, order, failedStates)) {
+          return true;
+        }
+        order.remove(order.size() - 1);
+      }
+      progress[thread]--;
+    }
+    return false;
+  }
+
+  private FileSystem replay(List<Event> order) {
+    FileSystem model = _modelFactory.get();
+    _setup.forEach(operation -> operation.apply(model));
+    order.forEach(event -> event.getOperation().apply(model));
+    return model;
+  }
+
+  /**
+   * An operation of a history, with what it returned and when it was called and returned, on a clock shared by the
+   * threads of the history.
+   */
+  public static class Event {
+    private final int _thread;
+    private final TreeOperation _operation;
+    private final String _result;
+    private final long _called;
+    private final long _returned;
+
+    public Event(int thread, TreeOperation operation, String result, long called, long returned) {
+      _thread = thread;
+      _operation = operation;
+      _result = result;
+      _called = called;
+      _returned = returned;
+    }
+
+    public int getThread() {
+      return _thread;
+    }
+
+    public TreeOperation getOperation() {
+      return _operation;
+    }
+
+    public String getResult() {
+      return _result;
+    }
+
+    public long getCalled() {
+      return _called;
+    }
+
+    public long getReturned() {
+      return _returned;
+    }
+
+    @Override
+    public String toString() {
+      return "[" + _called + ", " + _returned + "] thread " + _thread + ": " + _operation + " -> " + _result;
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package com.material.filesystem.linearizability;
+
+import com.material.filesystem.DefaultFileSystem;
+import com.material.filesystem.user.TestUserManager;
+import java.util.List;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+public class LinearizabilityTest {
+  private static final Logger LOG = LoggerFactory.getLogger(LinearizabilityTest.class);
+  private static final int HISTORIES = 300;
+
+  @Test
+  void testCheckerFindsLinearizations() {
+    LinearizabilityChecker checker =
+        new LinearizabilityChecker(() -> new DefaultFileSystem(new TestUserManager()), ConcurrentHistoryHarness.SETUP);
+    TreeOperation write = new TreeOperation(TreeOperation.Kind.WRITE, "/a/x", "v1");
+    TreeOperation read = new TreeOperation(TreeOperation.Kind.READ, "/a/x", null);
+
+    // a read overlapping a write may see either value
+    Assertions.assertNotNull(checker.check(List.of(
+        List.of(new LinearizabilityChecker.Event(0, write, "ok", 1, 4)),
+        List.of(new LinearizabilityChecker.Event(1, read, "v0", 2, 3)))));
+    Assertions.assertNotNull(checker.check(List.of(
+        List.of(new LinearizabilityChecker.Event(0, write, "ok", 1, 4)),
+        List.of(new LinearizabilityChecker.Event(1, read, "v1", 2, 3)))));
+    // but not the old value once the write returned
+    Assertions.assertNull(checker.check(List.of(
+        List.of(new LinearizabilityChecker.Event(0, write, "ok", 1, 2)),
+        List.of(new LinearizabilityChecker.Event(1, read, "v0", 3, 4)))));
+
+    // two creates of one file cannot both succeed
+    TreeOperation touch = new TreeOperation(TreeOperation.Kind.TOUCH, "/b/y", null);
+    Assertions.assertNull(checker.check(List.of(
+        List.of(new LinearizabilityChecker.Event(0, touch, "ok", 1, 3)),
+        List.of(new LinearizabilityChecker.Event(1, touch, "ok", 2, 4)))));
+  }
+
+  @Test
+  void testConcurrentHistoriesAreLinearizable() {
+    ConcurrentHistoryHarness harness =
+        new ConcurrentHistoryHarness(() -> new DefaultFileSystem(new TestUserManager()), 3, 4);
+    for (long seed = 0; seed < HISTORIES; seed++) {
+      ConcurrentHistoryHarness.Failure failure = harness.run(seed);
+      if (failure != null) {
+        LOG.error("Seed " + seed + " failed with " + failure.size() + " operations, shrinking");
+        Assertions.fail("Seed " + seed + ": " + harness.shrink(failure, 50).format());
+      }
+    }
+  }
+}
@@ -0,0 +1,155 @@
+package com.material.filesystem.linearizability;
+
+import com.material.filesystem.File;
+import com.material.filesystem.FileSystem;
+import com.material.filesystem.FileSystemTreeNode;
+import com.material.filesystem.NodeType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+
+/**
+ * One operation of a concurrent history, run against a {@link FileSystem} as the user logged in on the calling
+ * thread. The result is reduced to a string which is the same whenever the operation did the same thing, so the
+ * results of the concurrent run and of the sequential model can be compared.
+ */
+public class TreeOperation {
+  private static final List<String> DIRECTORIES = List.of("/a", "/b", "/a/c", "/b/c");
+  private static final List<String> NAMES = List.of("x", "y");
+
+  /**
+   * The kinds of operations.
+   */
+  public enum Kind {
+    TOUCH, MKDIR, RM, MV, CP, WRITE, READ, LS
+  }
+
+  private final Kind _kind;
+  private final String _path;
+  private final String _argument;
+
+  public TreeOperation(Kind kind, String path, String argument) {
+    _kind = kind;
+    _path = path;
+    _argument = argument;
+  }
+
+  /**
+   * Returns a random operation on the few paths of a history, so that operations of different threads collide.
+   * @param random the random source
+   * @return the operation
+   */
+  public static TreeOperation random(Random random) {
+    Kind kind = Kind.values()[random.nextInt(Kind.values().length)];
+    switch (kind) {
+      case MKDIR:
+      case LS:
+        return new TreeOperation(kind, randomElement(random, DIRECTORIES), null);
+      case RM:
+      case MV:
+      case CP:
+        // sources and destinations are files or directories, a file's name or a directory to place it in
+        String source = random.nextInt(4) == 0 ? randomElement(random, DIRECTORIES) : randomFile(random);
+        String destination = random.nextBoolean() ? randomElement(random, DIRECTORIES) : randomFile(random);
+        return new TreeOperation(kind, source, kind == Kind.RM ? null : destination);
+      case WRITE:
+        return new TreeOperation(kind, randomFile(random), "v" + random.nextInt(4));
+      default:
+        return new TreeOperation(kind, randomFile(random), null);
+    }
+  }
+
+  public Kind getKind() {
+    return _kind;
+  }
+
+  /**
+   * Run the operation.
+   * @param fileSystem the file system
+   * @return the result, or the simple name of the exception thrown
+   */
+  public String apply(FileSystem fileSystem) {
+    try {
+      switch (_kind) {
+        case TOUCH:
+          fileSystem.createNodeAtPath(Paths.get(_path), NodeType.FILE, false, false);
+          return "ok";
+        case MKDIR:
+          fileSystem.createNodeAtPath(Paths.get(_path), NodeType.DIRECTORY, false, false);
+          return "ok";
+        case RM:
+          return String.valueOf(fileSystem.removeNodeAtPath(Paths.get(_path), false));
+        case MV:
+          return fileSystem.moveNodeTo(Paths.get(_path), Paths.get(_argument), false, false, true) == null ? "null"
+              : "ok";
+        case CP:
+          return fileSystem.copyNode(Paths.get(_path), Paths.get(_argument), false, false, true) == null ? "null"
+              : "ok";
+        case WRITE:
+          file(fileSystem).setContents(_argument.getBytes(StandardCharsets.UTF_8));
+          return "ok";
+        case READ:
+          return new String(file(fileSystem).getContents(), StandardCharsets.UTF_8);
+        case LS:
+          return fileSystem.getNodeAtPath(Paths.get(_path), false).getChildren().stream()
+              .map(node -> node.getName() + (node.getNodeType() == NodeType.DIRECTORY ? "/" : ""))
+              .sorted()
+              .collect(Collectors.joining(",", "[", "]"));
+        default:
+          throw new IllegalStateException("Unknown operation " + _kind);
+      }
+    } catch (Exception ex) {
+      return ex.getClass().getSimpleName();
+    }
+  }
+
+  /**
+   * Describe a whole tree, so two trees in the same state describe themselves the same.
+   * @param fileSystem the file system
+   * @return the description
+   */
+  public static String describe(FileSystem fileSystem) {
+    StringBuilder description = new StringBuilder();
+    describe(fileSystem.getRoot(), "", description);
+    return description.toString();
+  }
+
+  private static void describe(FileSystemTreeNode node, String path, StringBuilder description) {
+    node.getChildren().stream().sorted((a, b) -> a.getName().compareTo(b.getName())).forEach(child -> {
+      String childPath = path + "/" + child.getName();
+      description.append(childPath);
+      if (child.getNodeType() == NodeType.DIRECTORY) {
+        description.append("/\n");
+        describe(child, childPath, description);
+      } else {
+        description.append('=')
+            .append(new String(((File) child.getFileSystemObject()).getContents(), StandardCharsets.UTF_8))
+            .append('\n');
+      }
+    });
+  }
+
+  private File file(FileSystem fileSystem) throws Exception {
+    FileSystemTreeNode node = fileSystem.getNodeAtPath(Paths.get(_path), false);
+    if (node.getNodeType() != NodeType.FILE) {
+      throw new UnsupportedOperationException(_path + " is not a file");
+    }
+    return (File) node.getFileSystemObject();
+  }
+
+  private static String randomFile(Random random) {
+    return randomElement(random, DIRECTORIES) + "/" + randomElement(random, NAMES);
+  }
+
+  private static String randomElement(Random random, List<String> elements) {
+    return elements.get(random.nextInt(elements.size()));
+  }
+
+  @Override
+  public String toString() {
+    return _kind.name().toLowerCase() + " " + _path + (_argument == null ? "" : " " + _argument);
+  }
+}
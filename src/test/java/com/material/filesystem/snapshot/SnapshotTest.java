@@ -0,0 +1,412 @@
+package com.material.filesystem.snapshot;
+
+import com.material.filesystem.DefaultFileSystem;
+import com.material.filesystem.DefaultFileSystemTreeNode;
+import com.material.filesystem.File;
+import com.material.filesystem.FileSystemTreeNode;
+import com.material.filesystem.NodeType;
+import com.material.filesystem.TreeSnapshot;
+import com.material.filesystem.journal.Journal;
+import com.material.filesystem.permissions.Permission;
+import com.material.filesystem.user.TestUserManager;
+import com.material.filesystem.user.UserType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+public class SnapshotTest {
+  @TempDir
+  Path _directory;
+
+  @Test
+  void testSnapshotRestoresTheTree() throws Exception {
+    Path path = _directory.resolve("snapshot");
+    DefaultFileSystem fileSystem = newFileSystem();
+    fileSystem.createNodeAtPath(Paths.get("/a/b/x"), NodeType.FILE, false, true);
+    setContents(fileSystem, "/a/b/x", "hello");
+    fileSystem.createNodeAtPath(Paths.get("/a/empty"), NodeType.FILE, false, false);
+    fileSystem.createNodeAtPath(Paths.get("/d"), NodeType.DIRECTORY, false, false);
+    // large enough for the children of the root to be restored in parallel
+    for (int i = 0; i < 20; i++) {
+      fileSystem.createNodeAtPath(Paths.get("/d/f" + i), NodeType.FILE, false, false);
+      setContents(fileSystem, "/d/f" + i, String.valueOf(i).repeat(20000));
+    }
+    fileSystem.getNodeAtPath(Paths.get("/a"), false).setUserTypePermission(UserType.GUEST, Permission.WRITE, true);
+    fileSystem.getNodeAtPath(Paths.get("/d/f3"), false)
+        .setUserPermission(TestUserManager.TEST_ADMIN_USER, Permission.DELETE, false);
+    fileSystem.getNodeAtPath(Paths.get("/d"), false).setOwner(null);
+
+    try (TreeSnapshot snapshot = fileSystem.snapshot()) {
+      Assertions.assertEquals(fileSystem.size(), SnapshotWriter.write(snapshot, path));
+    }
+
+    DefaultFileSystem restored = new DefaultFileSystem(new TestUserManager());
+    Assertions.assertEquals(0, SnapshotReader.read(path, restored, new TestUserManager(), 4));
+    Assertions.assertEquals(fileSystem.size(), restored.size());
+    Assertions.assertEquals(describe(fileSystem.getRoot(), true), describe(restored.getRoot(), true));
+
+    // the restored tree changes like any other
+    restored.moveNodeTo(Paths.get("/a/b/x"), Paths.get("/d/x"), false, false, false);
+    restored.removeNodeAtPath(Paths.get("/a"), false);
+    Assertions.assertEquals("hello", contents(restored, "/d/x"));
+  }
+
+  @Test
+  void testSnapshotIsTheTreeAsItWasWhenItStarted() throws Exception {
+    Path path = _directory.resolve("snapshot");
+    DefaultFileSystem fileSystem = newFileSystem();
+    fileSystem.createNodeAtPath(Paths.get("/a/b/x"), NodeType.FILE, false, true);
+    setContents(fileSystem, "/a/b/x", "before");
+    fileSystem.createNodeAtPath(Paths.get("/a/y"), NodeType.FILE, false, false);
+    fileSystem.createNodeAtPath(Paths.get("/c"), NodeType.DIRECTORY, false, false);
+    String before = describe(fileSystem.getRoot(), true);
+
+    try (TreeSnapshot snapshot = fileSystem.snapshot()) {
+      // read the root before its children change, then change every kind of thing below it
+      snapshot.getRootImage();
+      setContents(fileSystem, "/a/b/x", "after");
+      fileSystem.moveNodeTo(Paths.get("/a/b"), Paths.get("/c"), false, false, false);
+      fileSystem.removeNodeAtPath(Paths.get("/a/y"), false);
+      fileSystem.createNodeAtPath(Paths.get("/a/z"), NodeType.DIRECTORY, false, false);
+      fileSystem.getNodeAtPath(Paths.get("/c"), false).setUserTypePermission(UserType.GUEST, Permission.READ, true);
+      SnapshotWriter.write(snapshot, path);
+    }
+
+    DefaultFileSystem restored = new DefaultFileSystem(new TestUserManager());
+    SnapshotReader.read(path, restored, new TestUserManager(), 2);
+    Assertions.assertEquals(before, describe(restored.getRoot(), true));
+    Assertions.assertEquals("after", contents(fileSystem, "/c/b/x"));
+  }
+
+  @Test
+  void testMappedSnapshotLoadsNodesWhenFirstUsed() throws Exception {
+    Path path = _directory.resolve("snapshot");
+    DefaultFileSystem fileSystem = newFileSystem();
+    fileSystem.createNodeAtPath(Paths.get("/a/b/x"), NodeType.FILE, false, true);
+    setContents(fileSystem, "/a/b/x", "hello");
+    fileSystem.createNodeAtPath(Paths.get("/d/e/y"), NodeType.FILE, false, true);
+    setContents(fileSystem, "/d/e/y", "world");
+    fileSystem.getNodeAtPath(Paths.get("/d"), false).setUserTypePermission(UserType.GUEST, Permission.WRITE, true);
+    try (TreeSnapshot snapshot = fileSystem.snapshot()) {
+      SnapshotWriter.write(snapshot, path);
+    }
+
+    DefaultFileSystem restored = new DefaultFileSystem(new TestUserManager());
+    SnapshotReader.map(path, restored, new TestUserManager());
+    DefaultFileSystemTreeNode root = (DefaultFileSystemTreeNode) restored.getRoot();
+    Assertions.assertFalse(root.isLoaded());
+    // counted before anything is loaded
+    Assertions.assertEquals(fileSystem.getStats().getNodeCount(), restored.getStats().getNodeCount());
+    Assertions.assertEquals(fileSystem.getStats().getContentBytes(), restored.getStats().getContentBytes());
+
+    // only the directories on the path are loaded, and only the contents read
+    File x = (File) restored.getNodeAtPath(Paths.get("/a/b/x"), false).getFileSystemObject();
+    Assertions.assertEquals(5, x.size());
+    Assertions.assertFalse(x.isLoaded());
+    Assertions.assertEquals("hello", contents(restored, "/a/b/x"));
+    Assertions.assertTrue(x.isLoaded());
+    Assertions.assertTrue(root.isLoaded());
+    DefaultFileSystemTreeNode d = (DefaultFileSystemTreeNode) restored.getNodeAtPath(Paths.get("/d"), false);
+    Assertions.assertFalse(d.isLoaded());
+
+    Assertions.assertEquals(describe(fileSystem.getRoot(), true), describe(restored.getRoot(), true));
+    Assertions.assertTrue(d.isLoaded());
+  }
+
+  @Test
+  void testMappedSnapshotChangesLikeAnyTree() throws Exception {
+    Path path = _directory.resolve("snapshot");
+    DefaultFileSystem fileSystem = newFileSystem();
+    for (int i = 0; i < 10; i++) {
+      fileSystem.createNodeAtPath(Paths.get("/d" + i + "/e/f"), NodeType.FILE, false, true);
+      setContents(fileSystem, "/d" + i + "/e/f", "file " + i);
+    }
+    try (TreeSnapshot snapshot = fileSystem.snapshot()) {
+      SnapshotWriter.write(snapshot, path);
+    }
+
+    DefaultFileSystem restored = new DefaultFileSystem(new TestUserManager());
+    SnapshotReader.map(path, restored, new TestUserManager());
+    // the same changes to both, to nodes loaded and not loaded yet
+    for (DefaultFileSystem tree : List.of(fileSystem, restored)) {
+      tree.removeNodeAtPath(Paths.get("/d0"), false);
+      tree.moveNodeTo(Paths.get("/d1/e"), Paths.get("/d2"), false, false, false);
+      setContents(tree, "/d5/e/f", "changed");
+      tree.getNodeAtPath(Paths.get("/d6"), false).setUserTypePermission(UserType.GUEST, Permission.DELETE, true);
+    }
+    Assertions.assertEquals(fileSystem.getStats().getNodeCount(), restored.getStats().getNodeCount());
+    Assertions.assertEquals(fileSystem.getStats().getContentBytes(), restored.getStats().getContentBytes());
+    Assertions.assertEquals(describe(fileSystem.getRoot(), false), describe(restored.getRoot(), false));
+
+    // and snapshots like any other, loading what it did not load yet
+    Path again = _directory.resolve("again");
+    try (TreeSnapshot snapshot = restored.snapshot()) {
+      SnapshotWriter.write(snapshot, again);
+    }
+    DefaultFileSystem reread = new DefaultFileSystem(new TestUserManager());
+    SnapshotReader.read(again, reread, new TestUserManager(), 2);
+    Assertions.assertEquals(describe(fileSystem.getRoot(), false), describe(reread.getRoot(), false));
+  }
+
+  @Test
+  void testSnapshotAndJournalRestoreConcurrentChanges() throws Exception {
+    int threads = 4;
+    int filesPerThread = 200;
+    Path snapshotPath = _directory.resolve("snapshot");
+    Path journalPath = _directory.resolve("journal");
+    DefaultFileSystem fileSystem = newFileSystem();
+    Journal journal = new Journal(journalPath, Journal.SyncPolicy.NONE, 0, fileSystem::replay);
+    fileSystem.setJournal(journal);
+
+    CountDownLatch started = new CountDownLatch(threads);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int thread = 0; thread < threads; thread++) {
+      String directory = "/t" + thread;
+      futures.add(executor.submit(() -> {
+        for (int i = 0; i < filesPerThread; i++) {
+          String file = directory + "/f" + i;
+          fileSystem.createNodeAtPath(Paths.get(file), NodeType.FILE, false, true);
+          setContents(fileSystem, file, file);
+          if (i % 3 == 0) {
+            fileSystem.moveNodeTo(Paths.get(file), Paths.get(directory + "/m" + i), false, false, false);
+          } else if (i % 5 == 0) {
+            fileSystem.removeNodeAtPath(Paths.get(file), false);
+          } else if (i % 7 == 0) {
+            fileSystem.getNodeAtPath(Paths.get(file), false)
+                .setUserTypePermission(UserType.GUEST, Permission.READ, false);
+          }
+          fileSystem.commit();
+          if (i == filesPerThread / 4) {
+            started.countDown();
+          }
+        }
+        return null;
+      }));
+    }
+
+    started.await();
+    try (TreeSnapshot snapshot = fileSystem.snapshot()) {
+      journal.sync();
+      SnapshotWriter.write(snapshot, snapshotPath);
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+    journal.close();
+
+    DefaultFileSystem restored = new DefaultFileSystem(new TestUserManager());
+    long journalPosition = SnapshotReader.read(snapshotPath, restored, new TestUserManager(), 4);
+    Assertions.assertTrue(journalPosition > Integer.BYTES);
+    new Journal(journalPath, Journal.SyncPolicy.NONE, 0, journalPosition, restored::replay).close();
+    Assertions.assertEquals(fileSystem.size(), restored.size());
+    Assertions.assertEquals(describe(fileSystem.getRoot(), false), describe(restored.getRoot(), false));
+  }
+
+  @Test
+  void testDeltasRestoreWhatChangedSinceTheSnapshot() throws Exception {
+    Path path = _directory.resolve("snapshot");
+    DefaultFileSystem fileSystem = newFileSystem();
+    fileSystem.createNodeAtPath(Paths.get("/a/b/x"), NodeType.FILE, false, true);
+    setContents(fileSystem, "/a/b/x", "x");
+    fileSystem.createNodeAtPath(Paths.get("/a/y"), NodeType.FILE, false, false);
+    fileSystem.createNodeAtPath(Paths.get("/c/z"), NodeType.FILE, false, true);
+    fileSystem.createNodeAtPath(Paths.get("/d/w"), NodeType.FILE, false, true);
+
+    Snapshotter snapshotter = new Snapshotter(fileSystem, null, path, 3600, Checkpoint.NONE, 10);
+    try {
+      Assertions.assertEquals(fileSystem.size(), snapshotter.snapshot());
+      // nothing changed, nothing written
+      Assertions.assertEquals(0, snapshotter.snapshot());
+      Assertions.assertFalse(Files.exists(Snapshotter.deltaPath(path, 1)));
+
+      // the root, /c and /c/z
+      setContents(fileSystem, "/c/z", "changed");
+      Assertions.assertEquals(3, snapshotter.snapshot());
+
+      fileSystem.moveNodeTo(Paths.get("/a/b"), Paths.get("/d"), false, false, false);
+      fileSystem.moveNodeTo(Paths.get("/d/w"), Paths.get("/d/v"), false, false, false);
+      fileSystem.removeNodeAtPath(Paths.get("/a/y"), false);
+      fileSystem.createNodeAtPath(Paths.get("/e/f"), NodeType.FILE, false, true);
+      setContents(fileSystem, "/e/f", "f");
+      fileSystem.getNodeAtPath(Paths.get("/c"), false).setUserTypePermission(UserType.GUEST, Permission.WRITE, false);
+      fileSystem.getNodeAtPath(Paths.get("/d/b/x"), false).setOwner(null);
+      snapshotter.snapshot();
+    } finally {
+      snapshotter.close();
+    }
+
+    DefaultFileSystem restored = new DefaultFileSystem(new TestUserManager());
+    Checkpoint checkpoint = Snapshotter.restore(path, restored, new TestUserManager(), false);
+    Assertions.assertEquals(2, checkpoint.getDeltas());
+    Assertions.assertEquals(fileSystem.size(), restored.size());
+    Assertions.assertEquals(describe(fileSystem.getRoot(), true), describe(restored.getRoot(), true));
+
+    DefaultFileSystem mapped = new DefaultFileSystem(new TestUserManager());
+    Snapshotter.restore(path, mapped, new TestUserManager(), true);
+    Assertions.assertEquals(fileSystem.size(), mapped.size());
+    Assertions.assertEquals(describe(fileSystem.getRoot(), true), describe(mapped.getRoot(), true));
+  }
+
+  @Test
+  void testSnapshotOfTheWholeTreeReplacesTheDeltas() throws Exception {
+    Path path = _directory.resolve("snapshot");
+    Path stale = _directory.resolve("stale");
+    DefaultFileSystem fileSystem = newFileSystem();
+    fileSystem.createNodeAtPath(Paths.get("/a/x"), NodeType.FILE, false, true);
+
+    Snapshotter snapshotter = new Snapshotter(fileSystem, null, path, 3600, Checkpoint.NONE, 1);
+    try {
+      snapshotter.snapshot();
+      setContents(fileSystem, "/a/x", "delta");
+      snapshotter.snapshot();
+      Files.copy(Snapshotter.deltaPath(path, 1), stale);
+      setContents(fileSystem, "/a/x", "whole");
+      Assertions.assertEquals(fileSystem.size(), snapshotter.snapshot());
+      Assertions.assertFalse(Files.exists(Snapshotter.deltaPath(path, 1)));
+    } finally {
+      snapshotter.close();
+    }
+
+    // as if the snapshot was written but the deltas were not deleted, they do not follow it
+    Files.copy(stale, Snapshotter.deltaPath(path, 1));
+    DefaultFileSystem restored = new DefaultFileSystem(new TestUserManager());
+    Checkpoint checkpoint = Snapshotter.restore(path, restored, new TestUserManager(), false);
+    Assertions.assertEquals(0, checkpoint.getDeltas());
+    Assertions.assertEquals("whole", contents(restored, "/a/x"));
+
+    // the restored tree writes the next delta, in its place
+    Snapshotter restoredSnapshotter = new Snapshotter(restored, null, path, 3600, checkpoint, 1);
+    try {
+      restored.createNodeAtPath(Paths.get("/a/y"), NodeType.DIRECTORY, false, false);
+      Assertions.assertEquals(3, restoredSnapshotter.snapshot());
+    } finally {
+      restoredSnapshotter.close();
+    }
+    DefaultFileSystem again = new DefaultFileSystem(new TestUserManager());
+    Assertions.assertEquals(1, Snapshotter.restore(path, again, new TestUserManager(), false).getDeltas());
+    Assertions.assertEquals(describe(restored.getRoot(), true), describe(again.getRoot(), true));
+  }
+
+  @Test
+  void testDeltasAndJournalRestoreConcurrentChanges() throws Exception {
+    int threads = 4;
+    int filesPerThread = 200;
+    Path snapshotPath = _directory.resolve("snapshot");
+    Path journalPath = _directory.resolve("journal");
+    DefaultFileSystem fileSystem = newFileSystem();
+    Journal journal = new Journal(journalPath, Journal.SyncPolicy.NONE, 0, fileSystem::replay);
+    fileSystem.setJournal(journal);
+    Snapshotter snapshotter = new Snapshotter(fileSystem, journal, snapshotPath, 3600, Checkpoint.NONE, 10);
+    snapshotter.snapshot();
+
+    CountDownLatch started = new CountDownLatch(threads);
+    CountDownLatch halfway = new CountDownLatch(threads);
+    // the threads change more once each delta started, so neither is left with nothing to write
+    CountDownLatch firstDelta = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int thread = 0; thread < threads; thread++) {
+      String directory = "/t" + thread;
+      futures.add(executor.submit(() -> {
+        for (int i = 0; i < filesPerThread; i++) {
+          String file = directory + "/f" + i;
+          fileSystem.createNodeAtPath(Paths.get(file), NodeType.FILE, false, true);
+          setContents(fileSystem, file, file);
+          if (i % 3 == 0) {
+            fileSystem.moveNodeTo(Paths.get(file), Paths.get(directory + "/m" + i), false, false, false);
+          } else if (i % 5 == 0) {
+            fileSystem.removeNodeAtPath(Paths.get(file), false);
+          } else if (i % 7 == 0) {
+            setContents(fileSystem, file, "again");
+          }
+          fileSystem.commit();
+          if (i == filesPerThread / 4) {
+            started.countDown();
+            firstDelta.await();
+          } else if (i == filesPerThread / 2) {
+            halfway.countDown();
+          }
+        }
+        return null;
+      }));
+    }
+
+    started.await();
+    try {
+      snapshotter.snapshot();
+    } finally {
+      firstDelta.countDown();
+    }
+    halfway.await();
+    snapshotter.snapshot();
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+    snapshotter.close();
+    journal.close();
+
+    DefaultFileSystem restored = new DefaultFileSystem(new TestUserManager());
+    Checkpoint checkpoint = Snapshotter.restore(snapshotPath, restored, new TestUserManager(), false);
+    Assertions.assertEquals(2, checkpoint.getDeltas());
+    new Journal(journalPath, Journal.SyncPolicy.NONE, 0, checkpoint.getJournalPosition(), restored::replay).close();
+    Assertions.assertEquals(fileSystem.size(), restored.size());
+    Assertions.assertEquals(describe(fileSystem.getRoot(), false), describe(restored.getRoot(), false));
+  }
+
+  private static DefaultFileSystem newFileSystem() {
+    DefaultFileSystem fileSystem = new DefaultFileSystem(new TestUserManager());
+    // owned by the root user of a DefaultUserManager if another test made one, which the test user manager cannot find
+    fileSystem.getRoot().setOwner(TestUserManager.TEST_ADMIN_USER);
+    return fileSystem;
+  }
+
+  private static void setContents(DefaultFileSystem fileSystem, String path, String contents) throws Exception {
+    ((File) fileSystem.getNodeAtPath(Paths.get(path), false).getFileSystemObject())
+        .setContents(contents.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String contents(DefaultFileSystem fileSystem, String path) throws Exception {
+    return new String(((File) fileSystem.getNodeAtPath(Paths.get(path), false).getFileSystemObject()).getContents(),
+        StandardCharsets.UTF_8);
+  }
+
+  private static String describe(FileSystemTreeNode node, boolean withTimes) {
+    StringBuilder description = new StringBuilder();
+    describe(node, "", withTimes, description);
+    return description.toString();
+  }
+
+  private static void describe(FileSystemTreeNode node, String path, boolean withTimes, StringBuilder description) {
+    description.append(path.isEmpty() ? "/" : path)
+        .append(' ').append(node.getNodeType())
+        .append(' ').append(node.getOwner() == null ? null : node.getOwner().getUsername())
+        .append(' ').append(node.getUserTypePermissions(UserType.GUEST))
+        .append(' ').append(node.getUserPermissions(TestUserManager.TEST_ADMIN_USER));
+    if (withTimes) {
+      description.append(' ').append(node.getFileSystemObject().getCreationTime())
+          .append(' ').append(node.getFileSystemObject().getLastUpdatedTime());
+    }
+    if (node.getNodeType() == NodeType.FILE) {
+      description.append(' ')
+          .append(new String(((File) node.getFileSystemObject()).getContents(), StandardCharsets.UTF_8));
+    } else {
+      node.getChildren().stream()
+          .sorted((a, b) -> a.getName().compareTo(b.getName()))
+          .forEach(child -> describe(child, path + "/" + child.getName(), withTimes, description.append('\n')));
+    }
+  }
+}
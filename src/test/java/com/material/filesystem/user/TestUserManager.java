@@ -35,4 +35,9 @@ public class TestUserManager implements UserManager {
   public User getUser(String userName) throws UserSecurityException {
     return TEST_ADMIN_USER;
   }
+
+  @Override
+  public User findUser(String userName) {
+    return TEST_ADMIN_USER.getUsername().equals(userName) ? TEST_ADMIN_USER : null;
+  }
 }
@@ -0,0 +1,439 @@
+package com.material.server;
+
+import com.material.filesystem.DefaultFileSystem;
+import com.material.filesystem.File;
+import com.material.filesystem.FileSystem;
+import com.material.filesystem.FileSystemTreeNode;
+import com.material.filesystem.diagnostics.LockProfiler;
+import com.material.filesystem.diagnostics.LockStatsSnapshot;
+import com.material.filesystem.user.DefaultUserManager;
+import com.material.filesystem.user.TestUserManager;
+import com.material.filesystem.user.UserManager;
+import com.material.filesystem.user.UserSecurityException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.management.ObjectName;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+
+public class ClientInputProcessorTest {
+
+  @Test
+  void testBatchRunsEveryCommand() throws Exception {
+    UserManager um = new TestUserManager();
+    FileSystem fs = new DefaultFileSystem(um);
+    ClientInputProcessor processor = new ClientInputProcessor(new FileSystemCommandMapBuilder(fs, um));
+
+    String result = processor.processBatch("batch",
+        Arrays.asList("mkDir /a/b -r", "touch /a/b/one.txt", "write /a/b/one.txt 'one'", "touch /a/b/two.txt",
+            "touch /a/b/one.txt", "mkDir /a/b", "touch /a/b/three.txt"));
+
+    Assertions.assertTrue(result.startsWith("batch of 7 commands: 6 succeeded, 1 failed, 0 skipped"), result);
+    Assertions.assertTrue(result.contains("\n[5] 1 ERROR "), result);
+    Assertions.assertTrue(fs.nodeExists(Paths.get("/a/b/three.txt")));
+    Assertions.assertEquals("one",
+        new String(((File) fs.getNodeAtPath(Paths.get("/a/b/one.txt"), false).getFileSystemObject()).getContents()));
+  }
+
+  @Test
+  void testBatchFramesResultsOfManyLines() {
+    UserManager um = new TestUserManager();
+    FileSystem fs = new DefaultFileSystem(um);
+    ClientInputProcessor processor = new ClientInputProcessor(new FileSystemCommandMapBuilder(fs, um));
+
+    String result = processor.processBatch("batch",
+        Arrays.asList("mkDir /a", "touch /a/one.txt", "touch /a/two.txt", "ls /a", "touch /a/three.txt"));
+
+    // each result is read back by its number of lines
+    List<String> lines = Arrays.asList(result.split("\n", -1));
+    List<String> results = new ArrayList<>();
+    for (int line = 1; line < lines.size(); ) {
+      String[] header = lines.get(line).split(" ", 3);
+      Assertions.assertEquals("[" + results.size() + "]", header[0], result);
+      int count = Integer.parseInt(header[1]);
+      results.add(String.join("\n", lines.subList(line, line + count)));
+      line += count;
+    }
+    Assertions.assertEquals(5, results.size(), result);
+    Assertions.assertTrue(results.get(3).startsWith("[3] 2 OK "), result);
+    Assertions.assertTrue(results.get(3).contains("one.txt") && results.get(3).contains("two.txt"), result);
+    Assertions.assertTrue(results.get(4).startsWith("[4] 1 OK"), result);
+  }
+
+  @Test
+  void testBatchStopsOnFirstError() {
+    UserManager um = new TestUserManager();
+    FileSystem fs = new DefaultFileSystem(um);
+    ClientInputProcessor processor = new ClientInputProcessor(new FileSystemCommandMapBuilder(fs, um));
+
+    String result = processor.processBatch("batch -e",
+        Arrays.asList("mkDir /a", "touch /missing/one.txt", "touch /a/two.txt"));
+
+    Assertions.assertTrue(result.startsWith("batch of 3 commands: 1 succeeded, 1 failed, 1 skipped"), result);
+    Assertions.assertFalse(fs.nodeExists(Paths.get("/a/two.txt")));
+  }
+
+  @Test
+  void testBatchSeesStructureChanges() {
+    UserManager um = new TestUserManager();
+    FileSystem fs = new DefaultFileSystem(um);
+    ClientInputProcessor processor = new ClientInputProcessor(new FileSystemCommandMapBuilder(fs, um));
+
+    // the directory resolved by the first touch is replaced part way through the batch
+    String result = processor.processBatch("batch -e",
+        Arrays.asList("mkDir /a", "touch /a/one.txt", "rmDir /a -r", "mkDir /a", "touch /a/two.txt"));
+
+    Assertions.assertTrue(result.startsWith("batch of 5 commands: 5 succeeded"), result);
+    Assertions.assertTrue(fs.nodeExists(Paths.get("/a/two.txt")));
+    Assertions.assertFalse(fs.nodeExists(Paths.get("/a/one.txt")));
+  }
+
+  @Test
+  void testReadWritesContentViewsToChannel() throws Exception {
+    UserManager um = new TestUserManager();
+    FileSystem fs = new DefaultFileSystem(um);
+    ClientInputProcessor processor = new ClientInputProcessor(new FileSystemCommandMapBuilder(fs, um));
+    processor.processInput("touch /file.txt");
+    processor.processInput("write /file.txt 'hello content'");
+
+    List<String> lines = new ArrayList<>();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ContentChannel channel = new ContentChannel() {
+      @Override
+      public void writeLine(String line) {
+        lines.add(line);
+      }
+
+      @Override
+      public long write(ByteBuffer[] buffers) {
+        long written = 0;
+        for (ByteBuffer buffer : buffers) {
+          Assertions.assertTrue(buffer.isReadOnly());
+          written += buffer.remaining();
+          while (buffer.hasRemaining()) {
+            bytes.write(buffer.get());
+          }
+        }
+        return written;
+      }
+
+      @Override
+      public void readFully(byte[] bytes, int offset, int length) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public void skip(long length) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public String readLine() {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public int getChunkSize() {
+        return 4;
+      }
+    };
+
+    Assertions.assertNull(processor.processInput("read /file.txt 6 7", channel));
+    Assertions.assertEquals(Arrays.asList(WireProtocol.bytesHeader(7)), lines);
+    Assertions.assertEquals("content", bytes.toString());
+    Assertions.assertEquals(7, processor.getMetrics().getContentBytesSent());
+
+    // streamed reads keep their text response
+    Assertions.assertEquals("hello content", processor.processInput("read /file.txt -s", channel));
+  }
+
+  @Test
+  void testUploadResumesFromAcknowledgedOffset() throws Exception {
+    UserManager um = new TestUserManager();
+    FileSystem fs = new DefaultFileSystem(um);
+    ClientInputProcessor processor = new ClientInputProcessor(new FileSystemCommandMapBuilder(fs, um));
+    processor.processInput("touch /upload.txt");
+
+    // a first chunk, a chunk sent at the wrong offset, then part of a chunk before the client disconnects
+    AtomicReference<ByteArrayInputStream> clientBytes =
+        new AtomicReference<>(new ByteArrayInputStream("hello wrongdata wor".getBytes()));
+    List<String> lines = new ArrayList<>();
+    ContentChannel channel = new ContentChannel() {
+      @Override
+      public void writeLine(String line) {
+        lines.add(line);
+      }
+
+      @Override
+      public long write(ByteBuffer[] buffers) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public void readFully(byte[] bytes, int offset, int length) throws IOException {
+        if (clientBytes.get().readNBytes(bytes, offset, length) < length) {
+          throw new EOFException();
+        }
+      }
+
+      @Override
+      public void skip(long length) throws IOException {
+        clientBytes.get().skipNBytes(length);
+      }
+
+      @Override
+      public String readLine() {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public int getChunkSize() {
+        return 4;
+      }
+    };
+
+    Assertions.assertEquals("UPLOAD 1 0", processor.processInput("uploadOpen /upload.txt 14"));
+    Assertions.assertNull(processor.processInput("uploadChunk 1 0 6", channel));
+    Assertions.assertEquals(Arrays.asList("ACK 1 6"), lines);
+
+    // a chunk at the wrong offset is skipped so the next command is still in step
+    Assertions.assertThrows(IllegalArgumentException.class, () -> processor.processInput("uploadChunk 1 0 9", channel));
+    Assertions.assertThrows(IllegalStateException.class, () -> processor.processInput("uploadCommit 1"));
+
+    // the client disconnects part way through the next chunk, reopening resumes from the last ack
+    Assertions.assertThrows(EOFException.class, () -> processor.processInput("uploadChunk 1 6 8", channel));
+    Assertions.assertEquals("UPLOAD 1 6", processor.processInput("uploadOpen /upload.txt 14"));
+
+    clientBytes.set(new ByteArrayInputStream("world!!!".getBytes()));
+    Assertions.assertNull(processor.processInput("uploadChunk 1 6 8", channel));
+    Assertions.assertEquals("ACK 1 14", lines.get(lines.size() - 1));
+    Assertions.assertEquals("Uploaded 14 bytes to /upload.txt", processor.processInput("uploadCommit 1"));
+    Assertions.assertEquals("hello world!!!",
+        new String(((File) fs.getNodeAtPath(Paths.get("/upload.txt"), false).getFileSystemObject()).getContents()));
+  }
+
+  @Test
+  void testGuestsCannotUpload() {
+    UserManager um = new DefaultUserManager();
+    FileSystem fs = new DefaultFileSystem(um);
+    ClientInputProcessor processor = new ClientInputProcessor(new FileSystemCommandMapBuilder(fs, um));
+
+    // every guest is the same user, so they could resume each other's uploads
+    Assertions.assertThrows(UserSecurityException.class, () -> processor.processInput("uploadOpen /upload.txt 14"));
+  }
+
+  @Test
+  void testDownloadSendsOneChunkPerCredit() throws Exception {
+    UserManager um = new TestUserManager();
+    FileSystem fs = new DefaultFileSystem(um);
+    ClientInputProcessor processor = new ClientInputProcessor(new FileSystemCommandMapBuilder(fs, um));
+    processor.processInput("touch /file.txt");
+    processor.processInput("write /file.txt 'hello streamed content'");
+
+    List<String> sent = new ArrayList<>();
+    Queue<String> credits = new ArrayDeque<>(Arrays.asList("credit 1", "credit 2"));
+    ContentChannel channel = creditedChannel(sent, credits);
+
+    // 10 bytes from offset 6 in chunks of 4, the client grants 1 credit and then 2 more
+    Assertions.assertNull(processor.processInput("download /file.txt 6 10", channel));
+    Assertions.assertEquals(Arrays.asList("START_DOWNLOAD 10 4", "<credit 1>", "START_BYTES 4", "stre",
+        "<credit 2>", "START_BYTES 4", "amed", "START_BYTES 2", " c", "END_DOWNLOAD 10"), sent);
+    Assertions.assertTrue(credits.isEmpty());
+  }
+
+  @Test
+  void testDownloadRejectsCreditsWhichAreNotPositive() throws Exception {
+    UserManager um = new TestUserManager();
+    FileSystem fs = new DefaultFileSystem(um);
+    ClientInputProcessor processor = new ClientInputProcessor(new FileSystemCommandMapBuilder(fs, um));
+    processor.processInput("touch /file.txt");
+    processor.processInput("write /file.txt 'hello streamed content'");
+
+    for (String credit : Arrays.asList("credit 0", "credit -1")) {
+      ContentChannel channel = creditedChannel(new ArrayList<>(), new ArrayDeque<>(List.of(credit)));
+      Assertions.assertThrows(IllegalArgumentException.class,
+          () -> processor.processInput("download /file.txt 0 10", channel));
+    }
+  }
+
+  /**
+   * A channel which records what is sent to the client, and reads the client's credit lines from a queue.
+   */
+  private static ContentChannel creditedChannel(List<String> sent, Queue<String> credits) {
+    return new ContentChannel() {
+      @Override
+      public void writeLine(String line) {
+        sent.add(line);
+      }
+
+      @Override
+      public long write(ByteBuffer[] buffers) {
+        StringBuilder chunk = new StringBuilder();
+        for (ByteBuffer buffer : buffers) {
+          while (buffer.hasRemaining()) {
+            chunk.append((char) buffer.get());
+          }
+        }
+        sent.add(chunk.toString());
+        return chunk.length();
+      }
+
+      @Override
+      public void readFully(byte[] bytes, int offset, int length) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public void skip(long length) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public String readLine() {
+        // a credit is only read once the granted chunks have been sent
+        sent.add("<" + credits.peek() + ">");
+        return credits.poll();
+      }
+
+      @Override
+      public int getChunkSize() {
+        return 4;
+      }
+    };
+  }
+
+  @Test
+  void testStatsReportsEachCommand() {
+    UserManager um = new TestUserManager();
+    FileSystem fs = new DefaultFileSystem(um);
+    ClientInputProcessor processor = new ClientInputProcessor(new FileSystemCommandMapBuilder(fs, um));
+    processor.processInput("mkDir /stats");
+    processor.processInput("touch /stats/one.txt");
+    processor.processInput("touch /stats/two.txt");
+    Assertions.assertThrows(RuntimeException.class, () -> processor.processInput("touch /missing/three.txt"));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> processor.processInput("noSuchCommand"));
+
+    ServerMetrics.CommandMetrics touch = processor.getMetrics().getCommandMetrics("touch");
+    Assertions.assertEquals(3, touch.getLatencies().getCount());
+    Assertions.assertEquals(1, touch.getErrors());
+    Assertions.assertTrue(touch.getLatencies().getValueAtPercentile(99.9) > 0);
+    Assertions.assertNull(processor.getMetrics().getCommandMetrics("noSuchCommand"));
+    Assertions.assertEquals(1, processor.getMetrics().getCommandMetrics(ServerMetrics.UNKNOWN_COMMAND).getErrors());
+
+    String stats = processor.processInput("stats");
+    Assertions.assertTrue(stats.contains("\ntouch count=3 errors=1 "), stats);
+    // the stats command itself is recorded once it has replied
+    Assertions.assertTrue(stats.contains("\nall count=5 errors=2 "), stats);
+    Assertions.assertTrue(stats.contains(" p999="), stats);
+  }
+
+  @Test
+  void testLockStatsFindContendedNode() throws Exception {
+    UserManager um = new TestUserManager();
+    FileSystem fs = new DefaultFileSystem(um);
+    ClientInputProcessor processor = new ClientInputProcessor(new FileSystemCommandMapBuilder(fs, um));
+    LockProfiler.registerMBean();
+    ObjectName name = new ObjectName(LockProfiler.OBJECT_NAME);
+    processor.processInput("mkDir /hot");
+
+    Assertions.assertEquals("Lock profiling on", processor.processInput("lockStats on"));
+    try {
+      Assertions.assertEquals(true, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Enabled"));
+      FileSystemTreeNode hot = fs.getNodeAtPath(Paths.get("/hot"), false);
+      // a create in the directory waits for its transaction lock
+      hot.retain();
+      Thread creator = new Thread(() -> processor.processInput("touch /hot/file.txt"));
+      creator.start();
+      Thread.sleep(100);
+      hot.release();
+      creator.join();
+
+      List<LockStatsSnapshot> hotPaths = LockProfiler.getInstance().getHotPaths(1);
+      Assertions.assertEquals("/hot", hotPaths.get(0).getPath());
+      Assertions.assertEquals("NODE_TRANSACTION", hotPaths.get(0).getLockKind());
+      Assertions.assertTrue(hotPaths.get(0).getMaxWaitNanos() >= TimeUnit.MILLISECONDS.toNanos(50));
+
+      String report = processor.processInput("lockStats 5");
+      Assertions.assertTrue(report.contains("\ndepth=1 NODE_WRITE acquisitions="), report);
+      Assertions.assertTrue(report.contains("\n/hot NODE_TRANSACTION acquisitions="), report);
+    } finally {
+      processor.processInput("lockStats off");
+      processor.processInput("lockStats reset");
+    }
+    Assertions.assertEquals(false, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Enabled"));
+    Assertions.assertTrue(LockProfiler.getInstance().getStatsByDepth().isEmpty());
+  }
+
+  @Test
+  void testSlowLogTracesRequests() {
+    UserManager um = new TestUserManager();
+    FileSystem fs = new DefaultFileSystem(um);
+    ClientInputProcessor processor = new ClientInputProcessor(new FileSystemCommandMapBuilder(fs, um));
+    List<String> logged = new CopyOnWriteArrayList<>();
+    AppenderSkeleton appender = new AppenderSkeleton() {
+      @Override
+      protected void append(LoggingEvent event) {
+        logged.add(event.getRenderedMessage());
+      }
+
+      @Override
+      public void close() {
+      }
+
+      @Override
+      public boolean requiresLayout() {
+        return false;
+      }
+    };
+    Logger slowLog = Logger.getLogger(SlowOperationLog.LOGGER_NAME);
+    slowLog.addAppender(appender);
+    try {
+      Assertions.assertTrue(processor.processInput("slowLog 0").startsWith("Logging operations slower than 0ms"));
+      processor.processInput("mkDir /slow/a/b -r");
+      Assertions.assertThrows(RuntimeException.class, () -> processor.processInput("touch /missing/one.txt"));
+
+      // off by default, so the slowLog command turning it on is not traced
+      Assertions.assertEquals(2, logged.size(), logged.toString());
+      String mkDir = logged.get(0);
+      Assertions.assertTrue(mkDir.startsWith("traceId="), mkDir);
+      Assertions.assertTrue(mkDir.contains(" user=testAdmin "), mkDir);
+      Assertions.assertTrue(mkDir.contains(" command=mkDir failed=false "), mkDir);
+      Assertions.assertTrue(mkDir.contains(" permission="), mkDir);
+      Assertions.assertTrue(mkDir.contains(" nodesTouched=3 "), mkDir);
+      Assertions.assertTrue(mkDir.endsWith(" input='mkDir /slow/a/b -r'"), mkDir);
+      Assertions.assertTrue(logged.get(1).contains(" command=touch failed=true "), logged.get(1));
+
+      // refused or not, the password is not logged
+      try {
+        processor.processInput("login someone secret");
+      } catch (RuntimeException ex) {
+        // refused
+      }
+      Assertions.assertEquals(3, logged.size(), logged.toString());
+      Assertions.assertTrue(logged.get(2).endsWith(" input='login <redacted>'"), logged.get(2));
+
+      processor.processInput("slowLog off");
+      processor.processInput("pwd");
+      Assertions.assertEquals(3, processor.getSlowOperationLog().getSlowOperationCount());
+    } finally {
+      slowLog.removeAppender(appender);
+    }
+  }
+}
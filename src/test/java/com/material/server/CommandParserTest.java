@@ -0,0 +1,55 @@
+package com.material.server;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+
+public class CommandParserTest {
+
+  @Test
+  void testParsesAnyNumberOfArgsAndOptGroups() {
+    CommandParser parser = new CommandParser();
+    ClientCommand command = parser.parse("cmd -r a 'b c' d -1 \"e\" -fv");
+
+    Assertions.assertEquals("cmd", command.getName());
+    Assertions.assertEquals("a", command.getArg(0));
+    Assertions.assertEquals("b c", command.getArg(1));
+    Assertions.assertEquals("d", command.getArg(2));
+    Assertions.assertEquals("-1", command.getArg(3));
+    Assertions.assertEquals("e", command.getArg(4));
+    Assertions.assertFalse(command.hasArgAt(5));
+    Assertions.assertTrue(command.hasOpt('r'));
+    Assertions.assertTrue(command.hasOpt('f'));
+    Assertions.assertTrue(command.hasOpt('v'));
+  }
+
+  @Test
+  void testEscapes() {
+    CommandParser parser = new CommandParser();
+
+    ClientCommand command = parser.parse("write a\\ b 'it\\'s \\\\ here' '^.*\\.txt$' ''");
+    Assertions.assertEquals("a b", command.getArg(0));
+    Assertions.assertEquals("it's \\ here", command.getArg(1));
+    Assertions.assertEquals("^.*\\.txt$", command.getArg(2));
+    Assertions.assertEquals("", command.getArg(3));
+
+    // outside quotes only whitespace and quotes are escaped, other backslashes are kept
+    command = parser.parse("find /a foo\\.txt it\\'s a\\\\b c\\");
+    Assertions.assertEquals("foo\\.txt", command.getArg(1));
+    Assertions.assertEquals("it's", command.getArg(2));
+    Assertions.assertEquals("a\\\\b", command.getArg(3));
+    Assertions.assertEquals("c\\", command.getArg(4));
+  }
+
+  @Test
+  void testMalformedInput() {
+    CommandParser parser = new CommandParser();
+
+    Assertions.assertThrows(IllegalArgumentException.class, () -> parser.parse(""));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> parser.parse("-r"));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> parser.parse("ls/a"));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> parser.parse("write a 'unterminated"));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> parser.parse("write a 'b'c"));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> parser.parse("rm a -r!"));
+  }
+}
@@ -0,0 +1,74 @@
+package com.material.server;
+
+import com.material.filesystem.DefaultFileSystem;
+import com.material.filesystem.FileSystem;
+import com.material.filesystem.user.TestUserManager;
+import com.material.filesystem.user.UserManager;
+import com.material.filesystem.user.UserSecurityException;
+import java.io.FileNotFoundException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+
+public class EmbeddedServerTest {
+
+  @Test
+  void testSessionRunsCommandsInProcess() throws Exception {
+    UserManager um = new TestUserManager();
+    FileSystem fs = new DefaultFileSystem(um);
+    EmbeddedServer server = new EmbeddedServer(new ClientInputProcessor(new FileSystemCommandMapBuilder(fs, um)));
+
+    try (EmbeddedSession session = server.openSession()) {
+      session.execute("mkDir /a/b -r");
+      session.execute("cd /a/b");
+      session.execute("touch 'it\\'s.txt'");
+      session.execute("write /a/b/it\\'s.txt 'hello embedded'");
+      Assertions.assertEquals("hello embedded", new String(session.read("/a/b/it's.txt")));
+
+      byte[] contents = new byte[3 * 1024 * 1024 + 7];
+      Arrays.fill(contents, (byte) 'x');
+      Assertions.assertEquals("Uploaded " + contents.length + " bytes to /a/b/it's.txt",
+          session.upload("/a/b/it's.txt", contents));
+      Assertions.assertArrayEquals(contents, session.read("it's.txt"));
+
+      String batch = session.executeBatch(Arrays.asList("touch /a/one.txt", "touch /missing/two.txt"), false);
+      Assertions.assertTrue(batch.startsWith("batch of 2 commands: 1 succeeded, 1 failed"), batch);
+
+      // failures are thrown as raised, not framed as ERROR lines
+      RuntimeException ex = Assertions.assertThrows(RuntimeException.class, () -> session.read("/missing.txt"));
+      Assertions.assertTrue(ex.getCause() instanceof FileNotFoundException, ex.toString());
+    }
+  }
+
+  @Test
+  void testSessionIsBoundToItsThread() throws Exception {
+    EmbeddedServer server = new EmbeddedServer(false);
+    try (EmbeddedSession session = server.openSession()) {
+      session.execute("login admin 1234");
+      session.execute("mkDir /a");
+      session.execute("cd /a");
+      Assertions.assertThrows(IllegalStateException.class, server::openSession);
+
+      ExecutionException ex = Assertions.assertThrows(ExecutionException.class,
+          () -> CompletableFuture.runAsync(() -> session.execute("pwd")).get());
+      Assertions.assertTrue(ex.getCause() instanceof IllegalStateException, ex.toString());
+
+      // the user stays logged in until the session closes
+      ex = Assertions.assertThrows(ExecutionException.class, () -> CompletableFuture.runAsync(() -> {
+        try (EmbeddedSession other = server.openSession()) {
+          other.execute("login admin 1234");
+        }
+      }).get());
+      Assertions.assertTrue(ex.getCause().getCause() instanceof UserSecurityException, ex.toString());
+    }
+
+    // closing logs out, and the thread can open a new session in the root directory
+    try (EmbeddedSession session = server.openSession()) {
+      Assertions.assertTrue(session.execute("login admin 1234").startsWith("User login success"));
+      Assertions.assertEquals("/", session.execute("pwd"));
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package com.material.server;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+
+public class LatencyHistogramTest {
+
+  @Test
+  void testPercentilesWithinBucketPrecision() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long micros = 1; micros <= 1000; micros++) {
+      histogram.record(micros * 1000);
+    }
+
+    Assertions.assertEquals(1000, histogram.getCount());
+    Assertions.assertEquals(1_000_000, histogram.getMaxNanos());
+    assertWithin(500_000, histogram.getValueAtPercentile(50));
+    assertWithin(990_000, histogram.getValueAtPercentile(99));
+    assertWithin(999_000, histogram.getValueAtPercentile(99.9));
+    Assertions.assertEquals(1_000_000, histogram.getValueAtPercentile(100));
+    Assertions.assertEquals(500_500, histogram.getMeanNanos(), 1);
+  }
+
+  @Test
+  void testBucketsCoverEveryValue() {
+    long previousHighest = -1;
+    for (int index = 0; index <= LatencyHistogram.bucketIndex(LatencyHistogram.MAX_TRACKABLE_NANOS); index++) {
+      long highest = LatencyHistogram.highestValueInBucket(index);
+      Assertions.assertEquals(index, LatencyHistogram.bucketIndex(previousHighest + 1));
+      Assertions.assertEquals(index, LatencyHistogram.bucketIndex(highest));
+      previousHighest = highest;
+    }
+    Assertions.assertEquals(LatencyHistogram.MAX_TRACKABLE_NANOS, previousHighest);
+  }
+
+  private static void assertWithin(long expected, long actual) {
+    // never below, and at most one sub bucket above
+    Assertions.assertTrue(actual >= expected && actual <= expected * 1.04, expected + " vs " + actual);
+  }
+}
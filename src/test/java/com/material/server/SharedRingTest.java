@@ -0,0 +1,27 @@
+package com.material.server;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+
+public class SharedRingTest {
+  private static final int DATA_OFFSET = 128;
+  private static final int CAPACITY = 64;
+
+  @Test
+  void testMessagesOfALengthOutOfRangeAreRejected() throws Exception {
+    for (int length : new int[] {-2, CAPACITY, Integer.MAX_VALUE}) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(DATA_OFFSET + CAPACITY);
+      SharedRing ring = new SharedRing(buffer, 0, 64, DATA_OFFSET, CAPACITY, false);
+      ring.write(new byte[] {1, 2, 3}, () -> false);
+      Assertions.assertArrayEquals(new byte[] {1, 2, 3}, ring.read(() -> false));
+
+      // as if the other side wrote a bad length
+      ring.write(new byte[] {4}, () -> false);
+      buffer.putInt(DATA_OFFSET + 8, length);
+      Assertions.assertThrows(StreamCorruptedException.class, () -> ring.read(() -> false));
+    }
+  }
+}
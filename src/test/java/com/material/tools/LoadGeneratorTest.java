@@ -0,0 +1,105 @@
+package com.material.tools;
+
+import com.material.server.FileServer;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+
+public class LoadGeneratorTest {
+  private static final int PORT = 5252;
+  private static final ExecutorService SERVER_EXECUTOR = Executors.newSingleThreadExecutor();
+  private static final FileServer FILE_SERVER = new FileServer(PORT, true);
+
+  @BeforeAll
+  static void startServer() throws Exception {
+    SERVER_EXECUTOR.submit(FILE_SERVER::start);
+
+    // wait for the server to listen
+    for (int i = 0; ; i++) {
+      try {
+        new Socket("127.0.0.1", PORT).close();
+        return;
+      } catch (Exception ex) {
+        if (i == 50) {
+          throw ex;
+        }
+        Thread.sleep(100);
+      }
+    }
+  }
+
+  @AfterAll
+  static void stopServer() {
+    FILE_SERVER.shutdown();
+    SERVER_EXECUTOR.shutdownNow();
+  }
+
+  @Test
+  void testReportsEveryCommandOfTheMix() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty("sessions", "3");
+    properties.setProperty("rate", "200");
+    properties.setProperty("warmupSeconds", "1");
+    properties.setProperty("durationSeconds", "2");
+    properties.setProperty("seed", "42");
+    properties.setProperty("fileSizes", "16:1,4096:1");
+    properties.setProperty("tree.fanout", "3");
+    properties.setProperty("tree.filesPerDirectory", "4");
+
+    LoadReport report = new LoadGenerator("127.0.0.1", PORT, new WorkloadSpec(properties)).run();
+
+    Assertions.assertEquals(0, report.getAllErrors(), report.format());
+    for (WorkloadSpec.Command command : WorkloadSpec.Command.values()) {
+      Assertions.assertTrue(report.getLatencies(command).getCount() > 0, report.format());
+    }
+    // about 400 requests are scheduled in the steady state
+    Assertions.assertTrue(report.getAllLatencies().getCount() > 200, report.format());
+    Assertions.assertTrue(report.format().startsWith("target=200.0 ops/sec"), report.format());
+  }
+
+  @Test
+  void testReportCountsFailedRequestsInLatencies() {
+    LoadReport report = new LoadReport(10, TimeUnit.SECONDS.toNanos(1));
+    for (int i = 0; i < 9; i++) {
+      report.recordSuccess(WorkloadSpec.Command.READ, TimeUnit.MILLISECONDS.toNanos(1));
+    }
+    report.recordError(WorkloadSpec.Command.READ, TimeUnit.SECONDS.toNanos(5));
+
+    Assertions.assertEquals(10, report.getLatencies(WorkloadSpec.Command.READ).getCount());
+    Assertions.assertEquals(1, report.getErrors(WorkloadSpec.Command.READ));
+    // the timed out request sets the p99
+    Assertions.assertTrue(report.getAllLatencies().getValueAtPercentile(99) >= TimeUnit.SECONDS.toNanos(4),
+        report.format());
+    Assertions.assertEquals(9.0, report.getThroughput(), 0.001);
+  }
+
+  @Test
+  void testWorkloadSpecParsesWeights() {
+    Properties properties = new Properties();
+    properties.setProperty("mix", "read:1,write:0");
+    properties.setProperty("fileSizes", "10:1");
+    properties.setProperty("arrivals", "uniform");
+    properties.setProperty("rate", "1000");
+    WorkloadSpec spec = new WorkloadSpec(properties);
+
+    Random random = new Random(1);
+    for (int i = 0; i < 100; i++) {
+      Assertions.assertEquals(WorkloadSpec.Command.READ, spec.nextCommand(random));
+      Assertions.assertEquals(10, spec.nextFileSize(random));
+      Assertions.assertEquals(1_000_000, spec.nextArrivalGapNanos(random));
+    }
+
+    properties.setProperty("mix", "rename:1");
+    Assertions.assertThrows(IllegalArgumentException.class, () -> new WorkloadSpec(properties));
+    properties.setProperty("mix", "read:0");
+    Assertions.assertThrows(IllegalArgumentException.class, () -> new WorkloadSpec(properties));
+  }
+}
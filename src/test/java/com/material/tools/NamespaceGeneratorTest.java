@@ -0,0 +1,112 @@
+package com.material.tools;
+
+import com.material.filesystem.DefaultFileSystem;
+import com.material.filesystem.File;
+import com.material.filesystem.NodeType;
+import com.material.filesystem.user.DefaultUserManager;
+import com.material.filesystem.util.DataGenerator;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.Deflater;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+
+public class NamespaceGeneratorTest {
+
+  @Test
+  void testPopulate() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty("seed", "7");
+    properties.setProperty("depth", "2");
+    properties.setProperty("fanout", "uniform:1:4");
+    properties.setProperty("filesPerDirectory", "zipf:8:1.0");
+    properties.setProperty("nameLength", "1");
+    properties.setProperty("fileSizes", "zipf:16:1.1:1000");
+    NamespaceGenerator generator = new NamespaceGenerator(properties);
+    NamespaceGenerator sameSeed = new NamespaceGenerator(properties);
+    Assertions.assertEquals(generator.getDirectories(), sameSeed.getDirectories());
+    Assertions.assertEquals(generator.getTotalBytes(), sameSeed.getTotalBytes());
+    Assertions.assertTrue(generator.getDirectories().size() > 1);
+
+    DefaultUserManager userManager = new DefaultUserManager();
+    userManager.login("root", "1234");
+    DefaultFileSystem fileSystem = new DefaultFileSystem(userManager);
+    generator.populate(fileSystem);
+
+    for (String directory : generator.getDirectories()) {
+      Assertions.assertEquals(NodeType.DIRECTORY, fileSystem.getNodeAtPath(Paths.get(directory), false).getNodeType());
+    }
+    long totalBytes = 0;
+    for (NamespaceGenerator.GeneratedFile file : generator.getFiles()) {
+      File contents = (File) fileSystem.getNodeAtPath(Paths.get(file.getPath()), false).getFileSystemObject();
+      Assertions.assertArrayEquals(generator.contentsOf(file), contents.getContents());
+      totalBytes += contents.size();
+    }
+    Assertions.assertEquals(generator.getTotalBytes(), totalBytes);
+
+    StringWriter script = new StringWriter();
+    generator.writeScript(script);
+    Assertions.assertEquals(generator.getDirectories().size() + 2 * generator.getFiles().size(),
+        script.toString().split("\n").length);
+  }
+
+  @Test
+  void testContents() {
+    // filled in parallel, the same seed still gives the same bytes
+    byte[] random = DataGenerator.randomArray(1 << 20, 42);
+    Assertions.assertArrayEquals(random, DataGenerator.randomArray(1 << 20, 42));
+    Assertions.assertTrue(compressedRatio(random) > 0.99);
+
+    Assertions.assertEquals(0.5, compressedRatio(DataGenerator.contentArray(1 << 20, 42, 0.5, 0)), 0.05);
+    Assertions.assertTrue(compressedRatio(DataGenerator.contentArray(1 << 20, 42, 1, 0)) < 0.01);
+
+    byte[] duplicated = DataGenerator.contentArray(1 << 20, 42, 0, 0.75);
+    Set<ByteBuffer> blocks = new HashSet<>();
+    int count = duplicated.length / DataGenerator.BLOCK_SIZE;
+    for (int i = 0; i < count; i++) {
+      blocks.add(ByteBuffer.wrap(duplicated, i * DataGenerator.BLOCK_SIZE, DataGenerator.BLOCK_SIZE).slice());
+    }
+    Assertions.assertEquals(0.75, 1 - (double) blocks.size() / count, 0.1);
+  }
+
+  @Test
+  void testDistribution() {
+    Random random = new Random(1);
+    Distribution zipf = Distribution.parse("zipf:100:1.0");
+    int ones = 0;
+    for (int i = 0; i < 10000; i++) {
+      long value = zipf.next(random);
+      Assertions.assertTrue(value >= 1 && value <= 100);
+      ones += value == 1 ? 1 : 0;
+    }
+    // 1 / H(100), about 19%
+    Assertions.assertEquals(0.19, ones / 10000.0, 0.02);
+
+    Distribution weighted = Distribution.parse("10:1,20:0,30:1");
+    for (int i = 0; i < 1000; i++) {
+      Assertions.assertNotEquals(20, weighted.next(random));
+    }
+    Assertions.assertEquals(20, weighted.mean(), 0.001);
+    Assertions.assertEquals(5, Distribution.parse("5").next(random));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> Distribution.parse("uniform:5:1"));
+  }
+
+  private static double compressedRatio(byte[] bytes) {
+    Deflater deflater = new Deflater();
+    deflater.setInput(bytes);
+    deflater.finish();
+    byte[] buffer = new byte[64 * 1024];
+    long compressed = 0;
+    while (!deflater.finished()) {
+      compressed += deflater.deflate(buffer);
+    }
+    deflater.end();
+    return (double) compressed / bytes.length;
+  }
+}
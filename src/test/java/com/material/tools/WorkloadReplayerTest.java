@@ -0,0 +1,114 @@
+package com.material.tools;
+
+import com.material.client.AsyncFileSystemClient;
+import com.material.server.FileServer;
+import com.material.server.WireProtocol;
+import com.material.server.WorkloadRecorder;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+
+public class WorkloadReplayerTest {
+
+  @Test
+  void testRecordAndReplay() throws Exception {
+    Path recording = Paths.get("build", "workload-test.rec").toAbsolutePath();
+    Files.createDirectories(recording.getParent());
+    byte[] contents = new byte[300 * 1024];
+    for (int i = 0; i < contents.length; i++) {
+      contents[i] = (byte) i;
+    }
+
+    ExecutorService executor = Executors.newCachedThreadPool();
+    FileServer recordedServer = new FileServer(5353, true);
+    System.setProperty(WorkloadRecorder.RECORD_PROPERTY, recording.toString());
+    try {
+      startServer(executor, recordedServer, 5353);
+    } finally {
+      System.clearProperty(WorkloadRecorder.RECORD_PROPERTY);
+    }
+
+    // one connection, as replaying as fast as possible keeps the order of commands within a session only
+    try (AsyncFileSystemClient client = new AsyncFileSystemClient("127.0.0.1", 5353, "admin", "1234", 1)) {
+      client.mkdir("/replay/dir", true).get(10, TimeUnit.SECONDS);
+      client.touch("/replay/dir/file.bin").get(10, TimeUnit.SECONDS);
+      // a chunked upload, recorded with its raw bytes
+      client.upload("/replay/dir/file.bin", contents).get(10, TimeUnit.SECONDS);
+      client.read("/replay/dir/file.bin").get(10, TimeUnit.SECONDS);
+      client.ls("/replay").get(10, TimeUnit.SECONDS);
+    }
+    try (Socket socket = new Socket("127.0.0.1", 5353)) {
+      InputStream in = socket.getInputStream();
+      OutputStream out = socket.getOutputStream();
+      WireProtocol.readLine(in);
+      out.write("login admin 1234\nbatch\nmkDir /replay/batched\ntouch /replay/batched/a.txt\nendBatch\n".getBytes());
+      out.flush();
+      WireProtocol.readLine(in);
+      Assertions.assertEquals(WireProtocol.START_LINES, WireProtocol.readLine(in));
+    }
+    awaitClosedSessions(recording, 2);
+    recordedServer.shutdown();
+
+    for (int port = 5354; port <= 5355; port++) {
+      FileServer freshServer = new FileServer(port, true);
+      startServer(executor, freshServer, port);
+      ReplayReport report = new WorkloadReplayer(recording, "127.0.0.1", port, port == 5355, 10000).replay();
+
+      Assertions.assertEquals(0, report.getAllErrors(), report.format());
+      Assertions.assertEquals(report.getAllOriginal().getCount(), report.getAllReplay().getCount(), report.format());
+      Assertions.assertEquals(1, report.getReplay("batch").getCount(), report.format());
+      Assertions.assertTrue(report.getReplay("uploadChunk").getCount() > 1, report.format());
+      try (AsyncFileSystemClient client = new AsyncFileSystemClient("127.0.0.1", port, "admin", "1234", 1)) {
+        Assertions.assertArrayEquals(contents, client.read("/replay/dir/file.bin").get(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(List.of("a.txt"), client.ls("/replay/batched").get(10, TimeUnit.SECONDS));
+      }
+      freshServer.shutdown();
+    }
+    executor.shutdownNow();
+  }
+
+  private static void startServer(ExecutorService executor, FileServer server, int port) throws Exception {
+    executor.submit(server::start);
+    for (int i = 0; ; i++) {
+      try {
+        new Socket("127.0.0.1", port).close();
+        return;
+      } catch (Exception ex) {
+        if (i == 50) {
+          throw ex;
+        }
+        Thread.sleep(100);
+      }
+    }
+  }
+
+  /**
+   * Wait for the handlers of the closed connections to record them, which flushes the recording.
+   */
+  private static void awaitClosedSessions(Path recording, int sessions) throws Exception {
+    for (int i = 0; ; i++) {
+      List<WorkloadRecorder.Record> closed = new ArrayList<>();
+      WorkloadRecorder.read(recording, record -> {
+        if (record.getKind() == WorkloadRecorder.Kind.CLOSE) {
+          closed.add(record);
+        }
+      });
+      // the first connection of the recorded server only checked it was listening
+      if (closed.size() >= sessions + 1 || i == 50) {
+        return;
+      }
+      Thread.sleep(100);
+    }
+  }
+}